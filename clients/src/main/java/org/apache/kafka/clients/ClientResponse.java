@@ -13,6 +13,7 @@
 package org.apache.kafka.clients;
 
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.requests.AbstractRequestResponse;
 
 /**
  * A response from the server. Contains both the body of the response as well as the correlated request that was
@@ -23,7 +24,8 @@ public class ClientResponse {
     private final long receivedTimeMs;
     private final boolean disconnected;
     private final ClientRequest request;
-    private final Struct responseBody;
+    private final AbstractRequestResponse response;
+    private Struct responseBody;
 
     /**
      * @param request The original request
@@ -36,9 +38,23 @@ public class ClientResponse {
         this.receivedTimeMs = receivedTimeMs;
         this.disconnected = disconnected;
         this.request = request;
+        this.response = null;
         this.responseBody = responseBody;
     }
 
+    /**
+     * @param request The original request
+     * @param receivedTimeMs The unix timestamp when this response was received
+     * @param response The response, read directly from the buffer without a struct
+     */
+    public ClientResponse(ClientRequest request, long receivedTimeMs, AbstractRequestResponse response) {
+        this.receivedTimeMs = receivedTimeMs;
+        this.disconnected = false;
+        this.request = request;
+        this.response = response;
+        this.responseBody = null;
+    }
+
     public long receivedTimeMs() {
         return receivedTimeMs;
     }
@@ -52,11 +68,20 @@ public class ClientResponse {
     }
 
     public Struct responseBody() {
+        if (responseBody == null && response != null)
+            responseBody = response.toStruct();
         return responseBody;
     }
 
+    /**
+     * @return The response if it was read without a struct, null otherwise
+     */
+    public AbstractRequestResponse parsedResponse() {
+        return response;
+    }
+
     public boolean hasResponse() {
-        return responseBody != null;
+        return responseBody != null || response != null;
     }
 
     public long requestLatencyMs() {
@@ -71,7 +96,7 @@ public class ClientResponse {
                ", request=" +
                request +
                ", responseBody=" +
-               responseBody +
+               (response != null ? response : responseBody) +
                ")";
     }
 
@@ -21,6 +21,7 @@ import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.requests.FetchResponse;
 import org.apache.kafka.common.requests.MetadataRequest;
 import org.apache.kafka.common.requests.MetadataResponse;
 import org.apache.kafka.common.requests.RequestHeader;
@@ -429,6 +430,12 @@ public class NetworkClient implements KafkaClient {
         return responseBody;
     }
 
+    private static FetchResponse parseFetchResponse(ByteBuffer responseBuffer, RequestHeader requestHeader) {
+        ResponseHeader responseHeader = ResponseHeader.parse(responseBuffer);
+        correlate(requestHeader, responseHeader);
+        return FetchResponse.parse(responseBuffer, requestHeader.apiVersion());
+    }
+
     /**
      * Post process disconnection of a node
      *
@@ -517,6 +524,12 @@ public class NetworkClient implements KafkaClient {
             String source = receive.source();
             //从inFlightRequests中取出对应的ClientRequest
             ClientRequest req = inFlightRequests.completeNext(source);
+            RequestHeader header = req.request().header();
+            if (header.apiKey() == ApiKeys.FETCH.id) {
+                // fetch responses can be large and are only used by the fetchers, so they skip the struct
+                responses.add(new ClientResponse(req, now, parseFetchResponse(receive.payload(), header)));
+                continue;
+            }
             //解析响应
             Struct body = parseResponse(receive.payload(), req.request().header());
             //调用maybeHandleCompletedReceive处理Metadata
@@ -117,6 +117,12 @@ public class ConsumerConfig extends AbstractConfig {
     private static final String MAX_PARTITION_FETCH_BYTES_DOC = "The maximum amount of data per-partition the server will return. The maximum total memory used for a request will be <code>#partitions * max.partition.fetch.bytes</code>. This size must be at least as large as the maximum message size the server allows or else it is possible for the producer to send messages larger than the consumer can fetch. If that happens, the consumer can get stuck trying to fetch a large message on a certain partition.";
     public static final int DEFAULT_MAX_PARTITION_FETCH_BYTES = 1 * 1024 * 1024;
 
+    /**
+     * <code>max.partition.prefetch.bytes</code>
+     */
+    public static final String MAX_PARTITION_PREFETCH_BYTES_CONFIG = "max.partition.prefetch.bytes";
+    private static final String MAX_PARTITION_PREFETCH_BYTES_DOC = "The amount of fetched data per-partition the consumer buffers ahead of the application. While less than this is buffered for a partition, the consumer fetches the data that follows it without waiting for the buffered data to be consumed, so that fetches to a broker stay in flight while the application processes records. The maximum memory used for the buffered data is about <code>#partitions * (max.partition.prefetch.bytes + max.partition.fetch.bytes)</code>. If set to 0, a partition is only fetched again once all its fetched data is consumed.";
+
     /** <code>send.buffer.bytes</code> */
     public static final String SEND_BUFFER_CONFIG = CommonClientConfigs.SEND_BUFFER_CONFIG;
 
@@ -159,6 +165,12 @@ public class ConsumerConfig extends AbstractConfig {
     public static final String CHECK_CRCS_CONFIG = "check.crcs";
     private static final String CHECK_CRCS_DOC = "Automatically check the CRC32 of the records consumed. This ensures no on-the-wire or on-disk corruption to the messages occurred. This check adds some overhead, so it may be disabled in cases seeking extreme performance.";
 
+    /**
+     * <code>lazy.deserialization</code>
+     */
+    public static final String LAZY_DESERIALIZATION_CONFIG = "lazy.deserialization";
+    private static final String LAZY_DESERIALIZATION_DOC = "Defer the deserialization of the key and value of a record until they are accessed. The consumed records are then views over the fetched data instead of copies, which saves the cost of deserializing the records that are filtered out or only partly read, but keeps the fetched data in memory until every record of it is deserialized or discarded. Deserialization errors are raised when the key or value is accessed instead of by <code>poll()</code>. The deserializers are then called by whichever thread first accesses a key or value, possibly by several threads at once and after the consumer is closed, so they must be thread-safe and must not depend on the state of the consumer.";
+
     /** <code>key.deserializer</code> */
     public static final String KEY_DESERIALIZER_CLASS_CONFIG = "key.deserializer";
     public static final String KEY_DESERIALIZER_CLASS_DOC = "Deserializer class for key that implements the <code>Deserializer</code> interface.";
@@ -236,6 +248,12 @@ public class ConsumerConfig extends AbstractConfig {
                                         atLeast(0),
                                         Importance.HIGH,
                                         MAX_PARTITION_FETCH_BYTES_DOC)
+                                .define(MAX_PARTITION_PREFETCH_BYTES_CONFIG,
+                                        Type.INT,
+                                        0,
+                                        atLeast(0),
+                                        Importance.LOW,
+                                        MAX_PARTITION_PREFETCH_BYTES_DOC)
                                 .define(SEND_BUFFER_CONFIG,
                                         Type.INT,
                                         128 * 1024,
@@ -283,6 +301,11 @@ public class ConsumerConfig extends AbstractConfig {
                                         true,
                                         Importance.LOW,
                                         CHECK_CRCS_DOC)
+                                .define(LAZY_DESERIALIZATION_CONFIG,
+                                        Type.BOOLEAN,
+                                        false,
+                                        Importance.LOW,
+                                        LAZY_DESERIALIZATION_DOC)
                                 .define(METRICS_SAMPLE_WINDOW_MS_CONFIG,
                                         Type.LONG,
                                         30000,
@@ -12,8 +12,13 @@
  */
 package org.apache.kafka.clients.consumer;
 
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.ByteBuffer;
 
 /**
  * A key/value pair to be received from Kafka. This consists of a topic name and a partition number, from which the
@@ -32,8 +37,14 @@ public final class ConsumerRecord<K, V> {
     private final long checksum;
     private final int serializedKeySize;
     private final int serializedValueSize;
-    private final K key;
-    private final V value;
+    private K key;
+    private V value;
+
+    // the serialized key and value of a record that is deserialized on access, set to null once deserialized
+    private volatile ByteBuffer keyBytes;
+    private volatile ByteBuffer valueBytes;
+    private final Deserializer<K> keyDeserializer;
+    private final Deserializer<V> valueDeserializer;
 
     /**
      * Creates a record to be received from a specified topic and partition (provided for
@@ -92,6 +103,53 @@ public final class ConsumerRecord<K, V> {
         this.serializedValueSize = serializedValueSize;
         this.key = key;
         this.value = value;
+        this.keyDeserializer = null;
+        this.valueDeserializer = null;
+    }
+
+    /**
+     * Creates a record whose key and value are deserialized when they are first accessed. The serialized key and
+     * value are views over the fetched data, which is kept in memory as long as the record is not deserialized.
+     * <p>
+     * The deserializers are called by whichever thread first accesses the key or value, so they may be called by
+     * several threads at once when the records are handed to other threads, and even after the consumer that created
+     * the record was closed. They must be thread-safe and must not depend on the state of the consumer.
+     *
+     * @param topic The topic this record is received from
+     * @param partition The partition of the topic this record is received from
+     * @param offset The offset of this record in the corresponding Kafka partition
+     * @param timestamp The timestamp of the record.
+     * @param timestampType The timestamp type
+     * @param checksum The checksum (CRC32) of the full record
+     * @param keyBytes The serialized key, or null if the record has no key
+     * @param valueBytes The serialized value, or null if the record has no value
+     * @param keyDeserializer The deserializer of the key
+     * @param valueDeserializer The deserializer of the value
+     */
+    public ConsumerRecord(String topic,
+                          int partition,
+                          long offset,
+                          long timestamp,
+                          TimestampType timestampType,
+                          long checksum,
+                          ByteBuffer keyBytes,
+                          ByteBuffer valueBytes,
+                          Deserializer<K> keyDeserializer,
+                          Deserializer<V> valueDeserializer) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic cannot be null");
+        this.topic = topic;
+        this.partition = partition;
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.timestampType = timestampType;
+        this.checksum = checksum;
+        this.serializedKeySize = keyBytes == null ? NULL_SIZE : keyBytes.remaining();
+        this.serializedValueSize = valueBytes == null ? NULL_SIZE : valueBytes.remaining();
+        this.keyBytes = keyBytes;
+        this.valueBytes = valueBytes;
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
     }
 
     /**
@@ -112,6 +170,8 @@ public final class ConsumerRecord<K, V> {
      * The key (or null if no key is specified)
      */
     public K key() {
+        if (keyBytes != null)
+            deserializeKey();
         return key;
     }
 
@@ -119,9 +179,37 @@ public final class ConsumerRecord<K, V> {
      * The value
      */
     public V value() {
+        if (valueBytes != null)
+            deserializeValue();
         return value;
     }
 
+    private synchronized void deserializeKey() {
+        if (keyBytes == null)
+            return;
+        try {
+            key = keyDeserializer.deserialize(topic, Utils.toArray(keyBytes));
+        } catch (RuntimeException e) {
+            throw new SerializationException("Error deserializing key for partition " + topic + "-" + partition +
+                    " at offset " + offset, e);
+        }
+        // the key is published by the volatile write
+        keyBytes = null;
+    }
+
+    private synchronized void deserializeValue() {
+        if (valueBytes == null)
+            return;
+        try {
+            value = valueDeserializer.deserialize(topic, Utils.toArray(valueBytes));
+        } catch (RuntimeException e) {
+            throw new SerializationException("Error deserializing value for partition " + topic + "-" + partition +
+                    " at offset " + offset, e);
+        }
+        // the value is published by the volatile write
+        valueBytes = null;
+    }
+
     /**
      * The position of this record in the corresponding Kafka partition.
      */
@@ -172,6 +260,12 @@ public final class ConsumerRecord<K, V> {
                + ", " + timestampType + " = " + timestamp + ", checksum = " + checksum
                + ", serialized key size = "  + serializedKeySize
                + ", serialized value size = " + serializedValueSize
-               + ", key = " + key + ", value = " + value + ")";
+               + ", key = " + (keyBytes != null ? notDeserialized(serializedKeySize) : key)
+               + ", value = " + (valueBytes != null ? notDeserialized(serializedValueSize) : value) + ")";
+    }
+
+    // toString does not deserialize the record, deserialization may fail
+    private static String notDeserialized(int serializedSize) {
+        return "<not deserialized, " + serializedSize + " bytes>";
     }
 }
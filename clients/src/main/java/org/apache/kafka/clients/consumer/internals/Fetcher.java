@@ -80,11 +80,14 @@ public class Fetcher<K, V> {
     private final int fetchSize;
     private final long retryBackoffMs;
     private final int maxPollRecords;
+    private final int maxPrefetchBytes;
     private final boolean checkCrcs;
+    private final boolean lazyDeserialization;
     private final Metadata metadata;
     private final FetchManagerMetrics sensors;
     private final SubscriptionState subscriptions;
     private final List<CompletedFetch> completedFetches;
+    private final Set<TopicPartition> inFlightPartitions;
     private final Deserializer<K> keyDeserializer;
     private final Deserializer<V> valueDeserializer;
 
@@ -95,7 +98,9 @@ public class Fetcher<K, V> {
                    int maxWaitMs,
                    int fetchSize,
                    int maxPollRecords,
+                   int maxPrefetchBytes,
                    boolean checkCrcs,
+                   boolean lazyDeserialization,
                    Deserializer<K> keyDeserializer,
                    Deserializer<V> valueDeserializer,
                    Metadata metadata,
@@ -112,26 +117,33 @@ public class Fetcher<K, V> {
         this.maxWaitMs = maxWaitMs;
         this.fetchSize = fetchSize;
         this.maxPollRecords = maxPollRecords;
+        this.maxPrefetchBytes = maxPrefetchBytes;
         this.checkCrcs = checkCrcs;
+        this.lazyDeserialization = lazyDeserialization;
         this.keyDeserializer = keyDeserializer;
         this.valueDeserializer = valueDeserializer;
         this.completedFetches = new ArrayList<>();
+        this.inFlightPartitions = new HashSet<>();
         this.sensors = new FetchManagerMetrics(metrics, metricGrpPrefix);
         this.retryBackoffMs = retryBackoffMs;
     }
 
     /**
      * Set-up a fetch request for any node that we have assigned partitions for which doesn't already have
-     * an in-flight fetch or pending fetch data.
+     * an in-flight fetch or pending fetch data. With prefetching, a partition is fetched again while its pending
+     * fetch data is below the prefetch size, starting after the pending data.
      */
     public void sendFetches() {
         for (Map.Entry<Node, FetchRequest> fetchEntry: createFetchRequests().entrySet()) {
             final FetchRequest request = fetchEntry.getValue();
+            inFlightPartitions.addAll(request.fetchData().keySet());
             client.send(fetchEntry.getKey(), ApiKeys.FETCH, request)
                     .addListener(new RequestFutureListener<ClientResponse>() {
                         @Override
                         public void onSuccess(ClientResponse resp) {
-                            FetchResponse response = new FetchResponse(resp.responseBody());
+                            inFlightPartitions.removeAll(request.fetchData().keySet());
+                            FetchResponse response = resp.parsedResponse() instanceof FetchResponse ?
+                                    (FetchResponse) resp.parsedResponse() : new FetchResponse(resp.responseBody());
                             Set<TopicPartition> partitions = new HashSet<>(response.responseData().keySet());
                             FetchResponseMetricAggregator metricAggregator = new FetchResponseMetricAggregator(sensors, partitions);
 
@@ -139,7 +151,8 @@ public class Fetcher<K, V> {
                                 TopicPartition partition = entry.getKey();
                                 long fetchOffset = request.fetchData().get(partition).offset;
                                 FetchResponse.PartitionData fetchData = entry.getValue();
-                                completedFetches.add(new CompletedFetch(partition, fetchOffset, fetchData, metricAggregator));
+                                long nextFetchOffset = maxPrefetchBytes > 0 ? nextFetchOffset(fetchData) : -1L;
+                                completedFetches.add(new CompletedFetch(partition, fetchOffset, nextFetchOffset, fetchData, metricAggregator));
                             }
 
                             sensors.fetchLatency.record(resp.requestLatencyMs());
@@ -148,6 +161,7 @@ public class Fetcher<K, V> {
 
                         @Override
                         public void onFailure(RuntimeException e) {
+                            inFlightPartitions.removeAll(request.fetchData().keySet());
                             log.debug("Fetch failed", e);
                         }
                     });
@@ -467,28 +481,90 @@ public class Fetcher<K, V> {
         }
     }
 
-    private Set<TopicPartition> fetchablePartitions() {
-        Set<TopicPartition> fetchable = subscriptions.fetchablePartitions();
+    /**
+     * Get the partitions to fetch and the offset to fetch each of them from. Without prefetching, a partition is only
+     * fetched from its position once all its pending fetch data is consumed. With prefetching, it is fetched from the
+     * end of its pending fetch data as long as that data is below the prefetch size and no fetch for it is in flight.
+     */
+    private Map<TopicPartition, Long> fetchablePartitions() {
+        Map<TopicPartition, Long> fetchable = new HashMap<>();
+        for (TopicPartition partition : subscriptions.fetchablePartitions()) {
+            if (maxPrefetchBytes <= 0 || !inFlightPartitions.contains(partition))
+                fetchable.put(partition, subscriptions.position(partition));
+        }
+
+        if (maxPrefetchBytes <= 0) {
+            if (nextInLineRecords != null && !nextInLineRecords.isEmpty())
+                fetchable.remove(nextInLineRecords.partition);
+            for (CompletedFetch completedFetch : completedFetches)
+                fetchable.remove(completedFetch.partition);
+            return fetchable;
+        }
+
+        // follow the pending fetch data of each partition from its position, the data that does not continue from
+        // the end of the previous data is stale and will be discarded
+        Map<TopicPartition, Integer> pendingBytes = new HashMap<>();
         if (nextInLineRecords != null && !nextInLineRecords.isEmpty())
-            fetchable.remove(nextInLineRecords.partition);
+            addPendingFetch(fetchable, pendingBytes, nextInLineRecords.partition, nextInLineRecords.fetchOffset,
+                    nextInLineRecords.nextFetchOffset(), nextInLineRecords.bytes);
         for (CompletedFetch completedFetch : completedFetches)
-            fetchable.remove(completedFetch.partition);
+            addPendingFetch(fetchable, pendingBytes, completedFetch.partition, completedFetch.fetchedOffset,
+                    completedFetch.nextFetchOffset, completedFetch.partitionData.recordSet.limit());
+        for (Map.Entry<TopicPartition, Integer> entry : pendingBytes.entrySet()) {
+            if (entry.getValue() >= maxPrefetchBytes)
+                fetchable.remove(entry.getKey());
+        }
         return fetchable;
     }
 
+    private void addPendingFetch(Map<TopicPartition, Long> fetchable,
+                                 Map<TopicPartition, Integer> pendingBytes,
+                                 TopicPartition partition,
+                                 long fetchOffset,
+                                 long nextFetchOffset,
+                                 int bytes) {
+        Long offset = fetchable.get(partition);
+        if (offset == null || offset != fetchOffset)
+            return;
+        if (nextFetchOffset < 0) {
+            // without data or after an error, wait for the pending fetch to be consumed
+            fetchable.remove(partition);
+            return;
+        }
+        fetchable.put(partition, nextFetchOffset);
+        Integer pending = pendingBytes.get(partition);
+        pendingBytes.put(partition, (pending == null ? 0 : pending) + bytes);
+    }
+
+    /**
+     * The offset after the last record of the fetched data, or -1 if it has no complete record. This only reads the
+     * headers of the outer log entries, since the offset of a compressed entry is the offset of its last record.
+     */
+    private static long nextFetchOffset(FetchResponse.PartitionData partitionData) {
+        if (partitionData.errorCode != Errors.NONE.code())
+            return -1L;
+        long lastOffset = -1L;
+        Iterator<LogEntry> entries = new MemoryRecords.RecordsIterator(partitionData.recordSet.duplicate(), true);
+        while (entries.hasNext())
+            lastOffset = entries.next().offset();
+        return lastOffset < 0 ? -1L : lastOffset + 1;
+    }
+
     /**
      * Create fetch requests for all nodes for which we have assigned partitions
-     * that have no existing requests in flight.
+     * that have no existing requests in flight. With prefetching, several fetches may be in flight to a node, but
+     * only one for each partition.
      */
     private Map<Node, FetchRequest> createFetchRequests() {
         // create the fetch info
         Cluster cluster = metadata.fetch();
         Map<Node, Map<TopicPartition, FetchRequest.PartitionData>> fetchable = new HashMap<>();
-        for (TopicPartition partition : fetchablePartitions()) {
+        for (Map.Entry<TopicPartition, Long> fetchableEntry : fetchablePartitions().entrySet()) {
+            TopicPartition partition = fetchableEntry.getKey();
             Node node = cluster.leaderFor(partition);
             if (node == null) {
                 metadata.requestUpdate();
-            } else if (this.client.pendingRequestCount(node) == 0) {
+            } else if (maxPrefetchBytes > 0 || this.client.pendingRequestCount(node) == 0) {
                 // if there is a leader and no in-flight requests, issue a new fetch
                 Map<TopicPartition, FetchRequest.PartitionData> fetch = fetchable.get(node);
                 if (fetch == null) {
@@ -496,7 +572,7 @@ public class Fetcher<K, V> {
                     fetchable.put(node, fetch);
                 }
 
-                long position = this.subscriptions.position(partition);
+                long position = fetchableEntry.getValue();
                 fetch.put(partition, new FetchRequest.PartitionData(position, this.fetchSize));
                 log.trace("Added fetch request for partition {} at offset {}", partition, position);
             }
@@ -557,7 +633,7 @@ public class Fetcher<K, V> {
 
                 if (!parsed.isEmpty()) {
                     log.trace("Adding fetched record for partition {} with offset {} to buffered record list", tp, position);
-                    parsedRecords = new PartitionRecords<>(fetchOffset, tp, parsed);
+                    parsedRecords = new PartitionRecords<>(fetchOffset, tp, parsed, bytes);
                     ConsumerRecord<K, V> record = parsed.get(parsed.size() - 1);
                     this.sensors.recordsFetchLag.record(partition.highWatermark - record.offset());
                 } else if (buffer.limit() > 0 && !skippedRecords) {
@@ -615,10 +691,16 @@ public class Fetcher<K, V> {
                     + record.computeChecksum()
                     + ")");
 
+        long offset = logEntry.offset();
+        long timestamp = record.timestamp();
+        TimestampType timestampType = record.timestampType();
+        // the key and value stay views over the fetched data until the application reads them
+        if (lazyDeserialization)
+            return new ConsumerRecord<>(partition.topic(), partition.partition(), offset,
+                                        timestamp, timestampType, record.checksum(),
+                                        record.key(), record.value(), this.keyDeserializer, this.valueDeserializer);
+
         try {
-            long offset = logEntry.offset();
-            long timestamp = record.timestamp();
-            TimestampType timestampType = record.timestampType();
             ByteBuffer keyBytes = record.key();
             byte[] keyByteArray = keyBytes == null ? null : Utils.toArray(keyBytes);
             K key = keyBytes == null ? null : this.keyDeserializer.deserialize(partition.topic(), keyByteArray);
@@ -641,11 +723,17 @@ public class Fetcher<K, V> {
         private long fetchOffset;
         private TopicPartition partition;
         private List<ConsumerRecord<K, V>> records;
+        private final int bytes;
 
-        public PartitionRecords(long fetchOffset, TopicPartition partition, List<ConsumerRecord<K, V>> records) {
+        public PartitionRecords(long fetchOffset, TopicPartition partition, List<ConsumerRecord<K, V>> records, int bytes) {
             this.fetchOffset = fetchOffset;
             this.partition = partition;
             this.records = records;
+            this.bytes = bytes;
+        }
+
+        private long nextFetchOffset() {
+            return records.get(records.size() - 1).offset() + 1;
         }
 
         private boolean isEmpty() {
@@ -683,15 +771,19 @@ public class Fetcher<K, V> {
     private static class CompletedFetch {
         private final TopicPartition partition;
         private final long fetchedOffset;
+        // the offset after the fetched data, only known with prefetching, -1 otherwise
+        private final long nextFetchOffset;
         private final FetchResponse.PartitionData partitionData;
         private final FetchResponseMetricAggregator metricAggregator;
 
         public CompletedFetch(TopicPartition partition,
                               long fetchedOffset,
+                              long nextFetchOffset,
                               FetchResponse.PartitionData partitionData,
                               FetchResponseMetricAggregator metricAggregator) {
             this.partition = partition;
             this.fetchedOffset = fetchedOffset;
+            this.nextFetchOffset = nextFetchOffset;
             this.partitionData = partitionData;
             this.metricAggregator = metricAggregator;
         }
@@ -19,7 +19,9 @@ package org.apache.kafka.clients.producer.internals;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,6 +43,10 @@ import org.apache.kafka.common.utils.Time;
  * buffers are deallocated.
  * </ol>
  * <p>
+ * Allocations and deallocations do not take a lock while no thread is blocked: the free list is a concurrent deque and
+ * the unallocated memory is an atomic counter. The lock only guards the queue of blocked threads, which take memory
+ * one at a time, in the order they started waiting.
+ * <p>
  * * ByteBuffer的创建和释放是比较消耗系统资源的,为了实现内存的高效应用
  * * Kafka客户端使用BufferPool来实现ByteBuffer的复用
  * * 每个BufferPool对象只针对特定大小(由poolableSize字段指定)的ByteBuffer进行管理
@@ -59,21 +65,26 @@ public final class BufferPool {
     private final long totalMemory;
     private final int poolableSize;
     /**
-     * 因为有多线程并发分配和回收ByteBuffer,所以使用锁控制并发,保证线程安全
+     * Guards the waiters queue. Blocked threads wait on a condition of this lock
      */
     private final ReentrantLock lock;
     /**
      * 一个Deque<ByteBuffer>队列,其中缓存了指定大小的ByteBuffer对象
      */
-    private final Deque<ByteBuffer> free;
+    private final ConcurrentLinkedDeque<ByteBuffer> free;
     /**
      * 记录因申请不到足够空间而阻塞的线程,此队列中实际记录的是阻塞线程对应的condition对象
      */
     private final Deque<Condition> waiters;
+    /**
+     * The size of the waiters queue, so that allocations and deallocations can check for blocked threads without the
+     * lock. It is only written with the lock held
+     */
+    private volatile int numWaiters;
     /**
      * 记录了可用的空间大小,这个空间是totalMemory减去free列表中全部ByteBuffer的大小
      */
-    private long availableMemory;
+    private final AtomicLong availableMemory;
     private final Metrics metrics;
     private final Time time;
     private final Sensor waitTime;
@@ -90,10 +101,10 @@ public final class BufferPool {
     public BufferPool(long memory, int poolableSize, Metrics metrics, Time time, String metricGrpName) {
         this.poolableSize = poolableSize;
         this.lock = new ReentrantLock();
-        this.free = new ArrayDeque<ByteBuffer>();
+        this.free = new ConcurrentLinkedDeque<ByteBuffer>();
         this.waiters = new ArrayDeque<Condition>();
         this.totalMemory = memory;
-        this.availableMemory = memory;
+        this.availableMemory = new AtomicLong(memory);
         this.metrics = metrics;
         this.time = time;
         this.waitTime = this.metrics.sensor("bufferpool-wait-time");
@@ -121,51 +132,60 @@ public final class BufferPool {
                     + " bytes, but there is a hard limit of "
                     + this.totalMemory
                     + " on memory allocations.");
-        //加锁同步
-        this.lock.lock();
-        try {
-            //请求的是poolableSize指定大小的ByteBuffer,且free中有空闲的yteBuffer
+        // the memory goes to the blocked threads first, so that they are not starved by new allocations
+        if (this.numWaiters == 0) {
             // check if we have a free buffer of the right size pooled
-            if (size == poolableSize && !this.free.isEmpty())
-                return this.free.pollFirst();
-
-            // now check if the request is immediately satisfiable with the
-            // memory on hand or if we need to block
-            //当申请的空间不是poolableSize,执行下面的逻辑
-            int freeListSize = this.free.size() * this.poolableSize;
-            if (this.availableMemory + freeListSize >= size) {
-                // we have enough unallocated or pooled memory to immediately
-                // satisfy the request
-                //为了让availableMemory>size,freeUp()方法会从free队列中不断释放ByteBuffer
-                //直到availableMemory满足这次申请
-                freeUp(size);
-                //减少availableMemory
-                this.availableMemory -= size;
-                lock.unlock();
+            if (size == poolableSize) {
+                ByteBuffer buffer = this.free.pollFirst();
+                if (buffer != null)
+                    return buffer;
+            }
+            // now check if the request is immediately satisfiable with the unallocated or pooled memory on hand
+            if (reserve(size, false) == size)
                 return ByteBuffer.allocate(size);
-            } else {
-                //没有空间了,只有阻塞
-                // we are out of memory and will have to block
-                int accumulated = 0;
-                ByteBuffer buffer = null;
-                Condition moreMemory = this.lock.newCondition();
-                long remainingTimeToBlockNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs);
-                //将Condition添加到waiters中
-                this.waiters.addLast(moreMemory);
+        }
+        return allocateBlocking(size, maxTimeToBlockMs);
+    }
+
+    /**
+     * Wait in line for memory. Only the thread at the head of the waiters queue takes memory, and it keeps the memory
+     * it gathered until it has enough, so that all memory is given to the longest waiting thread.
+     */
+    private ByteBuffer allocateBlocking(int size, long maxTimeToBlockMs) throws InterruptedException {
+        int accumulated = 0;
+        ByteBuffer buffer = null;
+        this.lock.lock();
+        try {
+            Condition moreMemory = this.lock.newCondition();
+            long remainingTimeToBlockNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs);
+            //将Condition添加到waiters中
+            this.waiters.addLast(moreMemory);
+            this.numWaiters = this.waiters.size();
+            try {
                 // loop over and over until we have a buffer or have reserved
                 // enough memory to allocate one
-                //循环等待
-                while (accumulated < size) {
+                while (true) {
+                    // memory released before this thread was added to the waiters may not have signalled it, so the
+                    // memory is checked before waiting
+                    if (this.waiters.peekFirst() == moreMemory) {
+                        if (accumulated == 0 && size == this.poolableSize) {
+                            // just grab a buffer from the free list
+                            buffer = this.free.pollFirst();
+                            if (buffer != null)
+                                break;
+                        }
+                        // we may only get part of what we need on this iteration
+                        accumulated += (int) reserve(size - accumulated, true);
+                        if (accumulated == size)
+                            break;
+                    }
+
                     long startWaitNs = time.nanoseconds();
                     long timeNs;
                     boolean waitingTimeElapsed;
                     try {
                         //阻塞
                         waitingTimeElapsed = !moreMemory.await(remainingTimeToBlockNs, TimeUnit.NANOSECONDS);
-                    } catch (InterruptedException e) {
-                        //出现异常,移除此线程对应的Condition
-                        this.waiters.remove(moreMemory);
-                        throw e;
                     } finally {
                         //统计阻塞时间
                         long endWaitNs = time.nanoseconds();
@@ -173,66 +193,60 @@ public final class BufferPool {
                         this.waitTime.record(timeNs, time.milliseconds());
                     }
 
-                    if (waitingTimeElapsed) {
-                        //超时,报错
-                        this.waiters.remove(moreMemory);
+                    if (waitingTimeElapsed)
                         throw new TimeoutException("Failed to allocate memory within the configured max blocking time " + maxTimeToBlockMs + " ms.");
-                    }
 
                     remainingTimeToBlockNs -= timeNs;
-                    // check if we can satisfy this request from the free list,
-                    // otherwise allocate memory
-                    //请求的是poolableSize大小的ByteBuffer,且free中有空闲的ByteBuffer
-                    if (accumulated == 0 && size == this.poolableSize && !this.free.isEmpty()) {
-                        // just grab a buffer from the free list
-                        buffer = this.free.pollFirst();
-                        accumulated = size;
-                    } else {
-                        // we'll need to allocate memory, but we may only get
-                        // part of what we need on this iteration
-                        //先分配一部分空间,并继续等待空闲时间
-                        freeUp(size - accumulated);
-                        int got = (int) Math.min(size - accumulated, this.availableMemory);
-                        this.availableMemory -= got;
-                        accumulated += got;
-                    }
                 }
-
+                // the gathered memory now belongs to the returned buffer
+                accumulated = 0;
+            } finally {
+                // give back what was gathered if the allocation failed
+                if (accumulated > 0)
+                    this.availableMemory.addAndGet(accumulated);
                 // remove the condition for this thread to let the next thread
                 // in line start getting memory
-                //已经成功分配空间,移除Condition
-                Condition removed = this.waiters.removeFirst();
-                if (removed != moreMemory)
-                    throw new IllegalStateException("Wrong condition: this shouldn't happen.");
-
+                this.waiters.remove(moreMemory);
+                this.numWaiters = this.waiters.size();
                 // signal any additional waiters if there is more memory left
                 // over for them
-                //要是还有空间空闲,就唤醒下一个线程
-                if (this.availableMemory > 0 || !this.free.isEmpty()) {
+                if (this.availableMemory.get() > 0 || !this.free.isEmpty()) {
                     if (!this.waiters.isEmpty())
                         this.waiters.peekFirst().signal();
                 }
-
-                // unlock and return the buffer
-                lock.unlock();//解锁
-                if (buffer == null)
-                    return ByteBuffer.allocate(size);
-                else
-                    return buffer;
             }
         } finally {
-            if (lock.isHeldByCurrentThread())
-                lock.unlock();//解锁
+            lock.unlock();
         }
+        if (buffer == null)
+            return ByteBuffer.allocate(size);
+        else
+            return buffer;
     }
 
     /**
-     * Attempt to ensure we have at least the requested number of bytes of memory for allocation by deallocating pooled
-     * buffers (if needed)
+     * Take memory from the unallocated memory, deallocating pooled buffers if the unallocated memory is not enough
+     *
+     * @param size The number of bytes needed
+     * @param partial Whether less memory than needed may be taken
+     * @return The number of bytes taken, which is either size or 0 unless partial is set
      */
-    private void freeUp(int size) {
-        while (!this.free.isEmpty() && this.availableMemory < size)
-            this.availableMemory += this.free.pollLast().capacity();
+    private long reserve(long size, boolean partial) {
+        while (true) {
+            long available = this.availableMemory.get();
+            if (available < size) {
+                ByteBuffer buffer = this.free.pollLast();
+                if (buffer != null) {
+                    this.availableMemory.addAndGet(buffer.capacity());
+                    continue;
+                }
+                if (!partial || available <= 0)
+                    return 0;
+            }
+            long taken = Math.min(available, size);
+            if (this.availableMemory.compareAndSet(available, available - taken))
+                return taken;
+        }
     }
 
     /**
@@ -244,22 +258,25 @@ public final class BufferPool {
      *               since the buffer may re-allocate itself during in-place compression
      */
     public void deallocate(ByteBuffer buffer, int size) {
-        lock.lock();//加锁
-        try {
-            //释放的是ByteBuffer大小的poolableSize,放入free队列中进行管理
-            if (size == this.poolableSize && size == buffer.capacity()) {
-                buffer.clear();
-                this.free.add(buffer);
-            } else {
-                //释放的ByteBuffer不是poolableSize,不会复用ByteBuffer,仅修改availableMemory的大小
-                this.availableMemory += size;
+        //释放的是ByteBuffer大小的poolableSize,放入free队列中进行管理
+        if (size == this.poolableSize && size == buffer.capacity()) {
+            buffer.clear();
+            this.free.add(buffer);
+        } else {
+            //释放的ByteBuffer不是poolableSize,不会复用ByteBuffer,仅修改availableMemory的大小
+            this.availableMemory.addAndGet(size);
+        }
+        // a thread that starts waiting after this check sees the memory released above before it waits
+        if (this.numWaiters > 0) {
+            lock.lock();
+            try {
+                //唤醒一个因空间不足而阻塞的线程
+                Condition moreMem = this.waiters.peekFirst();
+                if (moreMem != null)
+                    moreMem.signal();
+            } finally {
+                lock.unlock();
             }
-            //唤醒一个因空间不足而阻塞的线程
-            Condition moreMem = this.waiters.peekFirst();
-            if (moreMem != null)
-                moreMem.signal();
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -271,36 +288,21 @@ public final class BufferPool {
      * the total free memory both unallocated and in the free list
      */
     public long availableMemory() {
-        lock.lock();
-        try {
-            return this.availableMemory + this.free.size() * this.poolableSize;
-        } finally {
-            lock.unlock();
-        }
+        return this.availableMemory.get() + this.free.size() * (long) this.poolableSize;
     }
 
     /**
      * Get the unallocated memory (not in the free list or in use)
      */
     public long unallocatedMemory() {
-        lock.lock();
-        try {
-            return this.availableMemory;
-        } finally {
-            lock.unlock();
-        }
+        return this.availableMemory.get();
     }
 
     /**
      * The number of threads blocked waiting on memory
      */
     public int queued() {
-        lock.lock();
-        try {
-            return this.waiters.size();
-        } finally {
-            lock.unlock();
-        }
+        return this.numWaiters;
     }
 
     /**
@@ -47,6 +47,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class acts as a queue that accumulates records into {@link org.apache.kafka.common.record.MemoryRecords}
@@ -91,6 +92,14 @@ public final class RecordAccumulator {
      * 每个Deque中都保存了发往对应TopicPartition的RecordBatch集合
      */
     private final ConcurrentMap<TopicPartition, Deque<RecordBatch>> batches;
+    /**
+     * The number of batches that can be open for appends at the same time for each partition
+     */
+    private final int appendStripes;
+    /**
+     * The batch each stripe of a partition is currently appending to, only used when appendStripes > 1
+     */
+    private final ConcurrentMap<TopicPartition, AtomicReferenceArray<RecordBatch>> openBatches;
     /**
      * 保存已被写入内存而为被Send线程处理的RecordBatch
      */
@@ -127,6 +136,36 @@ public final class RecordAccumulator {
                              long retryBackoffMs,
                              Metrics metrics,
                              Time time) {
+        this(batchSize, totalSize, compression, lingerMs, retryBackoffMs, 1, metrics, time);
+    }
+
+    /**
+     * Create a new record accumulator
+     *
+     * @param batchSize      The size to use when allocating {@link org.apache.kafka.common.record.MemoryRecords} instances
+     * @param totalSize      The maximum memory the record accumulator can use.
+     * @param compression    The compression codec for the records
+     * @param lingerMs       An artificial delay time to add before declaring a records instance that isn't full ready for
+     *                       sending. This allows time for more records to arrive. Setting a non-zero lingerMs will trade off some
+     *                       latency for potentially better throughput due to more batching (and hence fewer, larger requests).
+     * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error. This avoids
+     *                       exhausting all retries in a short period of time.
+     * @param appendStripes  The number of batches that can be open for appends at the same time for each partition. With
+     *                       more than one stripe, a thread only locks the batch of its stripe to append to it, so that
+     *                       threads on different stripes can append to the same partition concurrently.
+     * @param metrics        The metrics
+     * @param time           The time instance to use
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             long lingerMs,
+                             long retryBackoffMs,
+                             int appendStripes,
+                             Metrics metrics,
+                             Time time) {
+        if (appendStripes < 1)
+            throw new IllegalArgumentException("The number of append stripes must be at least 1, but was " + appendStripes);
         this.drainIndex = 0;
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
@@ -136,6 +175,8 @@ public final class RecordAccumulator {
         this.lingerMs = lingerMs;
         this.retryBackoffMs = retryBackoffMs;
         this.batches = new CopyOnWriteMap<>();
+        this.appendStripes = appendStripes;
+        this.openBatches = new CopyOnWriteMap<>();
         String metricGrpName = "producer-metrics";
         this.free = new BufferPool(totalSize, batchSize, metrics, time, metricGrpName);
         this.incomplete = new IncompleteRecordBatches();
@@ -230,6 +271,8 @@ public final class RecordAccumulator {
             // check if we have an in-progress batch
             //步骤1:查找TopicPartition对应的Deque
             Deque<RecordBatch> dq = getOrCreateDeque(tp);
+            if (appendStripes > 1)
+                return appendStriped(tp, timestamp, key, value, callback, maxTimeToBlock, dq);
             synchronized (dq) {//步骤2:对Deque对象加锁(保证了相同TopicPartition的append操作只能顺序执行
                 // 当有一个线程正在进行append操作时 与之相同的TopicPartition的客户端就不能进行append操作 必须等待 这样就能保证写入同一个分区的数据在BufferPool是有序写入的)
                 //边界检查
@@ -272,6 +315,72 @@ public final class RecordAccumulator {
         }
     }
 
+    /**
+     * Append a record to the open batch of the calling thread's stripe. Only the batch itself is locked while appending,
+     * the deque is only locked to add a new batch once the open batch of the stripe is full.
+     * <p>
+     * A thread always uses the same stripe, and the batches of a stripe are added to the deque in the order they are
+     * created, so the records of a thread are still sent in the order they were appended.
+     */
+    private RecordAppendResult appendStriped(TopicPartition tp,
+                                             long timestamp,
+                                             byte[] key,
+                                             byte[] value,
+                                             Callback callback,
+                                             long maxTimeToBlock,
+                                             Deque<RecordBatch> dq) throws InterruptedException {
+        AtomicReferenceArray<RecordBatch> open = getOrCreateOpenBatches(tp);
+        int stripe = (int) (Thread.currentThread().getId() % appendStripes);
+        if (closed)
+            throw new IllegalStateException("Cannot send after the producer is closed.");
+        RecordAppendResult appendResult = tryAppend(timestamp, key, value, callback, open.get(stripe));
+        if (appendResult != null)
+            return appendResult;
+
+        // the open batch of this stripe is full, try to allocate a new batch
+        int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
+        log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(), tp.partition());
+        ByteBuffer buffer = free.allocate(size, maxTimeToBlock);
+        synchronized (dq) {
+            // Need to check if producer is closed again after grabbing the dequeue lock.
+            if (closed)
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+            // Another thread of this stripe may have added a new batch while we were allocating
+            appendResult = tryAppend(timestamp, key, value, callback, open.get(stripe));
+            if (appendResult != null) {
+                free.deallocate(buffer);
+                return appendResult;
+            }
+            MemoryRecords records = MemoryRecords.emptyRecords(buffer, compression, this.batchSize);
+            RecordBatch batch = new RecordBatch(tp, records, time.milliseconds());
+            FutureRecordMetadata future;
+            synchronized (batch) {
+                future = Utils.notNull(batch.tryAppend(timestamp, key, value, callback, time.milliseconds()));
+            }
+            dq.addLast(batch);
+            incomplete.add(batch);
+            open.set(stripe, batch);
+            return new RecordAppendResult(future, batch.records.isFull(), true);
+        }
+    }
+
+    /**
+     * Try to append to the given open batch of a stripe while holding the lock of the batch. The batch is closed if it
+     * has no room left, as {@link #tryAppend(long, byte[], byte[], Callback, Deque)} does.
+     */
+    private RecordAppendResult tryAppend(long timestamp, byte[] key, byte[] value, Callback callback, RecordBatch batch) {
+        if (batch == null)
+            return null;
+        synchronized (batch) {
+            FutureRecordMetadata future = batch.tryAppend(timestamp, key, value, callback, time.milliseconds());
+            if (future == null) {
+                batch.records.close();
+                return null;
+            }
+            return new RecordAppendResult(future, batch.records.isFull(), false);
+        }
+    }
+
     /**
      * 会查找batches集合中对应队列的最后一个RecordBatch对象,并调用其tryAppend()方法完成消息追加
      * If `RecordBatch.tryAppend` fails (i.e. the record batch is full), close its memory records to release temporary
@@ -310,9 +419,16 @@ public final class RecordAccumulator {
                     Iterator<RecordBatch> batchIterator = dq.iterator();
                     while (batchIterator.hasNext()) {
                         RecordBatch batch = batchIterator.next();
-                        boolean isFull = batch != lastBatch || batch.records.isFull();
+                        // with several stripes every batch but the open batches of the stripes is complete
+                        boolean complete = appendStripes > 1 ? !isOpenBatch(tp, batch) : batch != lastBatch;
+                        boolean isFull = complete || batch.records.isFull();
+                        boolean expired;
+                        // appends to striped batches do not hold the deque lock
+                        synchronized (batch) {
+                            expired = batch.maybeExpire(requestTimeout, retryBackoffMs, now, this.lingerMs, isFull);
+                        }
                         // check if the batch is expired
-                        if (batch.maybeExpire(requestTimeout, retryBackoffMs, now, this.lingerMs, isFull)) {
+                        if (expired) {
                             expiredBatches.add(batch);
                             count++;
                             batchIterator.remove();
@@ -441,7 +557,10 @@ public final class RecordAccumulator {
                         long waitedTimeMs = nowMs - batch.lastAttemptMs;
                         long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs;
                         long timeLeftMs = Math.max(timeToWaitMs - waitedTimeMs, 0);
-                        boolean full = deque.size() > 1 || batch.records.isFull();//条件一
+                        boolean full = deque.size() > appendStripes || batch.records.isFull();//条件一
+                        // with several stripes the first batch is also complete once its stripe has moved on to a new batch
+                        if (appendStripes > 1 && !full)
+                            full = !isOpenBatch(part, batch);
                         boolean expired = waitedTimeMs >= timeToWaitMs;//条件二 exhausted条件三  flushInProgress条件四  closed条件五
                         /**
                          *  1):Deque中有多个RecordBatch或是第一个RecordBatch已经满了
@@ -555,7 +674,10 @@ public final class RecordAccumulator {
                                         //每个PartitionInfo只取一个RecordBatch
                                         RecordBatch batch = deque.pollFirst();
                                         //关闭Compressor几底层输出流,并将MemoryRecords设置为只读
-                                        batch.records.close();
+                                        // appends to striped batches do not hold the deque lock
+                                        synchronized (batch) {
+                                            batch.records.close();
+                                        }
                                         size += batch.records.sizeInBytes();
                                         ready.add(batch);
                                         batch.drainedMs = now;
@@ -579,6 +701,35 @@ public final class RecordAccumulator {
         return batches.get(tp);
     }
 
+    /**
+     * Get the open batches of the stripes of the given partition, or create them if they don't exist
+     */
+    private AtomicReferenceArray<RecordBatch> getOrCreateOpenBatches(TopicPartition tp) {
+        AtomicReferenceArray<RecordBatch> open = this.openBatches.get(tp);
+        if (open != null)
+            return open;
+        open = new AtomicReferenceArray<>(appendStripes);
+        AtomicReferenceArray<RecordBatch> previous = this.openBatches.putIfAbsent(tp, open);
+        if (previous == null)
+            return open;
+        else
+            return previous;
+    }
+
+    /**
+     * Is the given batch still open for appends by its stripe
+     */
+    private boolean isOpenBatch(TopicPartition tp, RecordBatch batch) {
+        AtomicReferenceArray<RecordBatch> open = this.openBatches.get(tp);
+        if (open == null)
+            return false;
+        for (int i = 0; i < open.length(); i++) {
+            if (open.get(i) == batch)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Get the deque for the given topic-partition, creating it if necessary.
      */
@@ -659,6 +810,7 @@ public final class RecordAccumulator {
         // batch appended by the last appending thread.
         abortBatches();
         this.batches.clear();
+        this.openBatches.clear();
     }
 
     /**
@@ -669,7 +821,9 @@ public final class RecordAccumulator {
             Deque<RecordBatch> dq = getDeque(batch.topicPartition);
             // Close the batch before aborting
             synchronized (dq) {
-                batch.records.close();
+                synchronized (batch) {
+                    batch.records.close();
+                }
                 dq.remove(batch);
             }
             batch.done(-1L, Record.NO_TIMESTAMP, new IllegalStateException("Producer is closed forcefully."));
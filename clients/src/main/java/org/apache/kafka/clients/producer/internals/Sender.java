@@ -502,7 +502,7 @@ public class Sender implements Runnable {
         ProduceRequest request = new ProduceRequest(acks, timeout, produceRecordsByPartition);
         RequestSend send = new RequestSend(Integer.toString(destination),
                 this.client.nextRequestHeader(ApiKeys.PRODUCE),
-                request.toStruct());
+                request);
         //步骤3:创建RequestCompletionHandler回调对象,
         RequestCompletionHandler callback = new RequestCompletionHandler() {
             public void onComplete(ClientResponse response) {
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of the buffers that network receives are read into. A pool may bound the memory it hands out, in which case
+ * allocations fail once it is exhausted, until buffers are released back to it.
+ */
+public interface MemoryPool {
+
+    /**
+     * A pool without any bound, which allocates a new heap buffer for every allocation and lets the garbage collector
+     * reclaim released buffers.
+     */
+    MemoryPool NONE = new MemoryPool() {
+        @Override
+        public ByteBuffer tryAllocate(int sizeBytes) {
+            if (sizeBytes < 0)
+                throw new IllegalArgumentException("Requested size " + sizeBytes + " is negative");
+            return ByteBuffer.allocate(sizeBytes);
+        }
+
+        @Override
+        public void release(ByteBuffer previouslyAllocated) {
+        }
+
+        @Override
+        public long size() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long availableMemory() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean isOutOfMemory() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "NONE";
+        }
+    };
+
+    /**
+     * Try to allocate a buffer. The buffer has a limit of sizeBytes, but may have a larger capacity.
+     *
+     * @param sizeBytes The size of the buffer
+     * @return The buffer, or null if the pool is out of memory
+     */
+    ByteBuffer tryAllocate(int sizeBytes);
+
+    /**
+     * Return a buffer to the pool. The buffer, and any buffer sharing its content, must not be used afterwards.
+     *
+     * @param previouslyAllocated A buffer allocated by this pool
+     */
+    void release(ByteBuffer previouslyAllocated);
+
+    /**
+     * @return The total memory of the pool in bytes
+     */
+    long size();
+
+    /**
+     * @return The memory in bytes that may still be allocated
+     */
+    long availableMemory();
+
+    /**
+     * @return true if allocations fail until buffers are released
+     */
+    boolean isOutOfMemory();
+}
@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bounded pool of heap buffers that reuses released buffers instead of leaving them to the garbage collector.
+ * <p>
+ * Buffers of up to maxPooledBufferSize bytes are rounded up to a size class, with four classes for every power of two
+ * so that at most a quarter of a buffer is wasted, and released buffers are kept in a free list for their class. Larger
+ * buffers are allocated with their exact size and are not kept.
+ * <p>
+ * An allocation succeeds as long as less than sizeBytes are allocated, so that a single buffer larger than the pool
+ * can still be allocated. The buffers in the free lists count towards the size of the pool: they are dropped, starting
+ * with the largest class, when a new buffer is needed that would not fit otherwise.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SizeClassedMemoryPool implements MemoryPool {
+
+    public static final int DEFAULT_MIN_POOLED_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_POOLED_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private static final int CLASSES_PER_DOUBLING = 4;
+
+    private final long sizeBytes;
+    private final int[] classSizes;
+    private final List<ArrayDeque<ByteBuffer>> freeBuffers;
+    // the capacity of the buffers handed out and not released yet
+    private long allocatedBytes;
+    // the capacity of the buffers in the free lists
+    private long freeBytes;
+
+    public SizeClassedMemoryPool(long sizeBytes) {
+        this(sizeBytes, DEFAULT_MIN_POOLED_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFER_SIZE);
+    }
+
+    /**
+     * @param sizeBytes The total memory of the pool
+     * @param minPooledBufferSize The smallest size class, smaller buffers are rounded up to it
+     * @param maxPooledBufferSize The size of the largest buffers kept for reuse
+     */
+    public SizeClassedMemoryPool(long sizeBytes, int minPooledBufferSize, int maxPooledBufferSize) {
+        if (sizeBytes <= 0)
+            throw new IllegalArgumentException("The size of the pool must be positive, but is " + sizeBytes);
+        if (minPooledBufferSize <= 0 || maxPooledBufferSize < minPooledBufferSize)
+            throw new IllegalArgumentException("Invalid pooled buffer sizes " + minPooledBufferSize + " and " + maxPooledBufferSize);
+        this.sizeBytes = sizeBytes;
+        this.classSizes = classSizes(minPooledBufferSize, maxPooledBufferSize);
+        this.freeBuffers = new ArrayList<>(classSizes.length);
+        for (int i = 0; i < classSizes.length; i++)
+            freeBuffers.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    private static int[] classSizes(int minSize, int maxSize) {
+        List<Integer> sizes = new ArrayList<>();
+        long base = minSize;
+        while (base <= maxSize) {
+            for (int i = 0; i < CLASSES_PER_DOUBLING; i++) {
+                long size = base + base * i / CLASSES_PER_DOUBLING;
+                if (size > maxSize)
+                    break;
+                sizes.add((int) size);
+            }
+            base *= 2;
+        }
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = sizes.get(i);
+        return result;
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int sizeBytes) {
+        if (sizeBytes < 0)
+            throw new IllegalArgumentException("Requested size " + sizeBytes + " is negative");
+        int sizeClass = sizeClass(sizeBytes);
+        int capacity;
+        synchronized (this) {
+            if (allocatedBytes >= this.sizeBytes)
+                return null;
+            if (sizeClass < classSizes.length) {
+                ByteBuffer buffer = freeBuffers.get(sizeClass).pollFirst();
+                if (buffer != null) {
+                    freeBytes -= buffer.capacity();
+                    allocatedBytes += buffer.capacity();
+                    buffer.clear();
+                    buffer.limit(sizeBytes);
+                    return buffer;
+                }
+                capacity = classSizes[sizeClass];
+            } else {
+                capacity = sizeBytes;
+            }
+            dropFreeBuffers(allocatedBytes + freeBytes + capacity - this.sizeBytes);
+            allocatedBytes += capacity;
+        }
+        // the new buffer is allocated outside of the lock, since zeroing a large buffer takes a while
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.limit(sizeBytes);
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer previouslyAllocated) {
+        if (previouslyAllocated == null)
+            throw new IllegalArgumentException("Released buffer is null");
+        int capacity = previouslyAllocated.capacity();
+        int sizeClass = Arrays.binarySearch(classSizes, capacity);
+        synchronized (this) {
+            allocatedBytes -= capacity;
+            if (sizeClass >= 0) {
+                freeBuffers.get(sizeClass).addFirst(previouslyAllocated);
+                freeBytes += capacity;
+            }
+        }
+    }
+
+    /**
+     * Drop free buffers, starting with the largest class, until at least the given number of bytes is dropped or the
+     * free lists are empty
+     */
+    private void dropFreeBuffers(long bytes) {
+        for (int sizeClass = classSizes.length - 1; sizeClass >= 0 && bytes > 0; sizeClass--) {
+            ArrayDeque<ByteBuffer> free = freeBuffers.get(sizeClass);
+            while (bytes > 0 && !free.isEmpty()) {
+                int capacity = free.pollLast().capacity();
+                freeBytes -= capacity;
+                bytes -= capacity;
+            }
+        }
+    }
+
+    /**
+     * The index of the smallest size class that can hold the given size, or the number of classes if it is larger than
+     * the largest class
+     */
+    private int sizeClass(int sizeBytes) {
+        int index = Arrays.binarySearch(classSizes, sizeBytes);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    @Override
+    public long size() {
+        return sizeBytes;
+    }
+
+    @Override
+    public synchronized long availableMemory() {
+        return Math.max(0, sizeBytes - allocatedBytes);
+    }
+
+    @Override
+    public synchronized boolean isOutOfMemory() {
+        return allocatedBytes >= sizeBytes;
+    }
+
+    /**
+     * @return The memory in bytes held by the free lists
+     */
+    public synchronized long freeMemory() {
+        return freeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SizeClassedMemoryPool(size = " + sizeBytes + ", available = " + availableMemory() + ")";
+    }
+}
@@ -26,6 +26,7 @@ import java.nio.channels.SelectionKey;
 
 import java.security.Principal;
 
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.utils.Utils;
 
 /**
@@ -42,17 +43,28 @@ public class KafkaChannel {
     private final TransportLayer transportLayer;
     private final Authenticator authenticator;
     private final int maxReceiveSize;
+    private final MemoryPool memoryPool;
     private NetworkReceive receive;
     private Send send;
 
     public KafkaChannel(String id, TransportLayer transportLayer, Authenticator authenticator, int maxReceiveSize) throws IOException {
+        this(id, transportLayer, authenticator, maxReceiveSize, MemoryPool.NONE);
+    }
+
+    public KafkaChannel(String id, TransportLayer transportLayer, Authenticator authenticator, int maxReceiveSize,
+                        MemoryPool memoryPool) throws IOException {
         this.id = id;
         this.transportLayer = transportLayer;
         this.authenticator = authenticator;
         this.maxReceiveSize = maxReceiveSize;
+        this.memoryPool = memoryPool;
     }
 
     public void close() throws IOException {
+        if (receive != null) {
+            receive.release();
+            receive = null;
+        }
         Utils.closeAll(transportLayer, authenticator);
     }
 
@@ -139,7 +151,7 @@ public class KafkaChannel {
         NetworkReceive result = null;
 
         if (receive == null) {
-            receive = new NetworkReceive(maxReceiveSize, id);
+            receive = new NetworkReceive(maxReceiveSize, id, memoryPool);
         }
         /**
          * receive方法从TransportLayer中读取数据到NetworkReceive对象中,
@@ -155,6 +167,13 @@ public class KafkaChannel {
         return result;
     }
 
+    /**
+     * Returns true if the size of the current receive was read, but the memory pool was out of memory for its content
+     */
+    public boolean awaitingMemory() {
+        return receive != null && !receive.memoryAllocated();
+    }
+
     public Send write() throws IOException {
         Send result = null;
         if (send != null && send(send)) {
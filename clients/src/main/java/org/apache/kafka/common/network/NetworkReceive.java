@@ -18,18 +18,27 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 
+import org.apache.kafka.common.memory.MemoryPool;
+
 /**
- * A size delimited Receive that consists of a 4 byte network-ordered size N followed by N bytes of content
+ * A size delimited Receive that consists of a 4 byte network-ordered size N followed by N bytes of content.
+ * <p>
+ * The buffer of the content is allocated from a memory pool once the size is read. If the pool is out of memory, the
+ * receive makes no progress until a later read succeeds to allocate it, see {@link #memoryAllocated()}.
  */
 public class NetworkReceive implements Receive {
 
     public final static String UNKNOWN_SOURCE = "";
     public final static int UNLIMITED = -1;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
     private final String source;
     //头部4字节的buffer
     private final ByteBuffer size;
     private final int maxSize;
+    private final MemoryPool memoryPool;
+    // the size read from the header, or -1 if it is not read yet
+    private int requestedBufferSize = -1;
     //后面整个消息response的buffer
     private ByteBuffer buffer;
 
@@ -39,6 +48,7 @@ public class NetworkReceive implements Receive {
         this.buffer = buffer;
         this.size = null;
         this.maxSize = UNLIMITED;
+        this.memoryPool = MemoryPool.NONE;
     }
 
     public NetworkReceive(String source) {
@@ -47,13 +57,19 @@ public class NetworkReceive implements Receive {
         this.size = ByteBuffer.allocate(4);
         this.buffer = null;
         this.maxSize = UNLIMITED;
+        this.memoryPool = MemoryPool.NONE;
     }
 
     public NetworkReceive(int maxSize, String source) {
+        this(maxSize, source, MemoryPool.NONE);
+    }
+
+    public NetworkReceive(int maxSize, String source, MemoryPool memoryPool) {
         this.source = source;
         this.size = ByteBuffer.allocate(4);
         this.buffer = null;
         this.maxSize = maxSize;
+        this.memoryPool = memoryPool;
     }
 
     public NetworkReceive() {
@@ -67,7 +83,14 @@ public class NetworkReceive implements Receive {
 
     @Override
     public boolean complete() {
-        return !size.hasRemaining() && !buffer.hasRemaining();
+        return !size.hasRemaining() && buffer != null && !buffer.hasRemaining();
+    }
+
+    /**
+     * @return false if the size was read, but the pool was out of memory for the buffer of the content
+     */
+    public boolean memoryAllocated() {
+        return requestedBufferSize == -1 || buffer != null;
     }
 
     public long readFrom(ScatteringByteChannel channel) throws IOException {
@@ -93,9 +116,15 @@ public class NetworkReceive implements Receive {
                 if (maxSize != UNLIMITED && receiveSize > maxSize)
                     throw new InvalidReceiveException("Invalid receive (size = " + receiveSize + " larger than " + maxSize + ")");
 
-                this.buffer = ByteBuffer.allocate(receiveSize);
+                requestedBufferSize = receiveSize;
+                if (receiveSize == 0)
+                    buffer = EMPTY_BUFFER;
             }
         }
+        if (buffer == null && requestedBufferSize != -1) {
+            // nothing more is read until the pool has memory for the content
+            buffer = memoryPool.tryAllocate(requestedBufferSize);
+        }
         if (buffer != null) {
             int bytesRead = channel.read(buffer);
             if (bytesRead < 0)
@@ -110,4 +139,14 @@ public class NetworkReceive implements Receive {
         return this.buffer;
     }
 
+    /**
+     * Release the buffer of an incomplete receive to the pool. The buffer of a complete receive is owned by whoever
+     * handles its payload.
+     */
+    public void release() {
+        if (buffer != null && buffer != EMPTY_BUFFER)
+            memoryPool.release(buffer);
+        buffer = null;
+    }
+
 }
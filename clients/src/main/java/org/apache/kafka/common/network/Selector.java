@@ -33,6 +33,7 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.MetricName;
@@ -73,6 +74,10 @@ import org.slf4j.LoggerFactory;
  * The nioSelector maintains several lists that are reset by each call to <code>poll()</code> which are available via
  * various getters. These are reset by each call to <code>poll()</code>.
  * <p>
+ * The buffers of the receives are allocated from a {@link MemoryPool}. When the pool is out of memory, a channel that
+ * has read the size of a receive is muted until memory is released to the pool, instead of allocating more. The
+ * payload of a completed receive belongs to the caller, which releases it to the pool once it is done with it.
+ * <p>
  * This class is not thread safe!
  * <p>
  * 对NIO Selector的封装 称为KSelector
@@ -101,6 +106,11 @@ public class Selector implements Selectable {
      * 暂存一次OP_READ事件处理过程中读取到的全部请求,当一次OP_READ事件处理完成之后,会将stagedReceives集合中的全部请求保存到completedReceives集合中
      */
     private final Map<KafkaChannel, Deque<NetworkReceive>> stagedReceives;
+    /**
+     * The channels muted by the caller, and those muted while the memory pool is out of memory
+     */
+    private final Set<KafkaChannel> explicitlyMutedChannels;
+    private final Set<KafkaChannel> memoryMutedChannels;
     private final Set<SelectionKey> immediatelyConnectedKeys;
     /**
      * 记录一次poll过程中发现的断开的连接
@@ -129,6 +139,7 @@ public class Selector implements Selectable {
     private final long connectionsMaxIdleNanos;
     private final int maxReceiveSize;
     private final boolean metricsPerConnection;
+    private final MemoryPool memoryPool;
     private long currentTimeNanos;
     private long nextIdleCloseCheckTime;
 
@@ -137,6 +148,13 @@ public class Selector implements Selectable {
      * Create a new nioSelector
      */
     public Selector(int maxReceiveSize, long connectionMaxIdleMs, Metrics metrics, Time time, String metricGrpPrefix, Map<String, String> metricTags, boolean metricsPerConnection, ChannelBuilder channelBuilder) {
+        this(maxReceiveSize, connectionMaxIdleMs, metrics, time, metricGrpPrefix, metricTags, metricsPerConnection, channelBuilder, MemoryPool.NONE);
+    }
+
+    /**
+     * Create a new nioSelector that allocates the buffers of the receives from the given memory pool
+     */
+    public Selector(int maxReceiveSize, long connectionMaxIdleMs, Metrics metrics, Time time, String metricGrpPrefix, Map<String, String> metricTags, boolean metricsPerConnection, ChannelBuilder channelBuilder, MemoryPool memoryPool) {
         try {
             this.nioSelector = java.nio.channels.Selector.open();
         } catch (IOException e) {
@@ -151,6 +169,8 @@ public class Selector implements Selectable {
         this.completedSends = new ArrayList<>();
         this.completedReceives = new ArrayList<>();
         this.stagedReceives = new HashMap<>();
+        this.explicitlyMutedChannels = new HashSet<>();
+        this.memoryMutedChannels = new HashSet<>();
         this.immediatelyConnectedKeys = new HashSet<>();
         this.connected = new ArrayList<>();
         this.disconnected = new ArrayList<>();
@@ -162,6 +182,7 @@ public class Selector implements Selectable {
         currentTimeNanos = time.nanoseconds();
         nextIdleCloseCheckTime = currentTimeNanos + connectionsMaxIdleNanos;
         this.metricsPerConnection = metricsPerConnection;
+        this.memoryPool = memoryPool;
     }
 
     public Selector(long connectionMaxIdleMS, Metrics metrics, Time time, String metricGrpPrefix, ChannelBuilder channelBuilder) {
@@ -218,7 +239,7 @@ public class Selector implements Selectable {
         //将这个socketChannel注册到nioSelector上,关注SelectionKey.OP_CONNECT事件
         SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_CONNECT);
         //创建KafkaChannel
-        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize, memoryPool);
         //将KafkaChannel注册到key上
         key.attach(channel);
         //将NodeId和KafkaChannel绑定,放到channels中管理
@@ -239,7 +260,7 @@ public class Selector implements Selectable {
      */
     public void register(String id, SocketChannel socketChannel) throws ClosedChannelException {
         SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_READ);
-        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize, memoryPool);
         key.attach(channel);
         this.channels.put(id, channel);
     }
@@ -330,7 +351,8 @@ public class Selector implements Selectable {
         //将上一次poll方法的结果全部清除掉
         clear();
 
-        if (hasStagedReceives() || !immediatelyConnectedKeys.isEmpty())
+        boolean resumeReads = !memoryMutedChannels.isEmpty() && !memoryPool.isOutOfMemory();
+        if (hasStagedReceives() || !immediatelyConnectedKeys.isEmpty() || resumeReads)
             timeout = 0;
 
         /* check ready keys */
@@ -346,6 +368,8 @@ public class Selector implements Selectable {
             pollSelectionKeys(this.nioSelector.selectedKeys(), false);
             pollSelectionKeys(immediatelyConnectedKeys, true);
         }
+        if (resumeReads)
+            resumeMemoryMutedChannels();
         //将targetReceives中的数据转移到completeReceives
         addToCompletedReceives();
 
@@ -399,15 +423,8 @@ public class Selector implements Selectable {
 
                 /* if channel is ready read from any connections that have readable data */
                 //OP_READ事件处理
-                if (channel.ready() && key.isReadable() && !hasStagedReceive(channel)) {
-                    NetworkReceive networkReceive;
-                    while ((networkReceive = channel.read()) != null)
-                    /**
-                     * 上面channel.read()读取到一个完整的NetworkReceive,将其添加到stagedReceives保存
-                     * 若一直读不到一个完整的NetworkReceive,则返回null,下次处理处理OP_READ事件时,继续读取,直到读取一个完整的NetworkReceive
-                     */
-                        addToStagedReceives(channel, networkReceive);
-                }
+                if (channel.ready() && key.isReadable() && !hasStagedReceive(channel))
+                    attemptRead(channel);
 
                 /* if channel is ready write to any sockets that have space in their buffer and for which we have data */
                 //处理OP_WRITE事件
@@ -444,6 +461,48 @@ public class Selector implements Selectable {
         }
     }
 
+    private void attemptRead(KafkaChannel channel) throws IOException {
+        NetworkReceive networkReceive;
+        while ((networkReceive = channel.read()) != null)
+        /**
+         * 上面channel.read()读取到一个完整的NetworkReceive,将其添加到stagedReceives保存
+         * 若一直读不到一个完整的NetworkReceive,则返回null,下次处理处理OP_READ事件时,继续读取,直到读取一个完整的NetworkReceive
+         */
+            addToStagedReceives(channel, networkReceive);
+        if (channel.awaitingMemory()) {
+            // stop reading from the channel until memory is released to the pool
+            log.trace("Muting channel {} since the memory pool is out of memory", channel.id());
+            channel.mute();
+            memoryMutedChannels.add(channel);
+        }
+    }
+
+    /**
+     * Unmute the channels muted while the pool was out of memory, and read from them right away since the rest of
+     * their receive may already be buffered by the transport layer.
+     */
+    private void resumeMemoryMutedChannels() {
+        List<KafkaChannel> resumed = new ArrayList<>(memoryMutedChannels);
+        memoryMutedChannels.clear();
+        for (KafkaChannel channel : resumed) {
+            if (explicitlyMutedChannels.contains(channel))
+                continue;
+            try {
+                channel.unmute();
+                if (!hasStagedReceive(channel))
+                    attemptRead(channel);
+            } catch (Exception e) {
+                String desc = channel.socketDescription();
+                if (e instanceof IOException)
+                    log.debug("Connection with {} disconnected", desc, e);
+                else
+                    log.warn("Unexpected error from {}; closing connection", desc, e);
+                close(channel);
+                this.disconnected.add(channel.id());
+            }
+        }
+    }
+
     @Override
     public List<Send> completedSends() {
         return this.completedSends;
@@ -471,6 +530,7 @@ public class Selector implements Selectable {
     }
 
     private void mute(KafkaChannel channel) {
+        explicitlyMutedChannels.add(channel);
         channel.mute();
     }
 
@@ -481,7 +541,10 @@ public class Selector implements Selectable {
     }
 
     private void unmute(KafkaChannel channel) {
-        channel.unmute();
+        explicitlyMutedChannels.remove(channel);
+        // a channel waiting for memory is unmuted once the pool has memory again
+        if (!memoryMutedChannels.contains(channel))
+            channel.unmute();
     }
 
     @Override
@@ -565,7 +628,13 @@ public class Selector implements Selectable {
         } catch (IOException e) {
             log.error("Exception closing connection to node {}:", channel.id(), e);
         }
-        this.stagedReceives.remove(channel);
+        Deque<NetworkReceive> deque = this.stagedReceives.remove(channel);
+        if (deque != null) {
+            for (NetworkReceive receive : deque)
+                memoryPool.release(receive.payload());
+        }
+        this.explicitlyMutedChannels.remove(channel);
+        this.memoryMutedChannels.remove(channel);
         this.channels.remove(channel.id());
         this.lruConnections.remove(channel.id());
         this.sensors.connectionClosed.record();
@@ -622,7 +691,7 @@ public class Selector implements Selectable {
      */
     private boolean hasStagedReceives() {
         for (KafkaChannel channel : this.stagedReceives.keySet()) {
-            if (!channel.isMute())
+            if (!explicitlyMutedChannels.contains(channel))
                 return true;
         }
         return false;
@@ -649,7 +718,8 @@ public class Selector implements Selectable {
             while (iter.hasNext()) {
                 Map.Entry<KafkaChannel, Deque<NetworkReceive>> entry = iter.next();
                 KafkaChannel channel = entry.getKey();
-                if (!channel.isMute()) {
+                // a channel muted while waiting for memory still delivers the receives it staged
+                if (!explicitlyMutedChannels.contains(channel)) {
                     Deque<NetworkReceive> deque = entry.getValue();
                     NetworkReceive networkReceive = deque.poll();
                     this.completedReceives.add(networkReceive);
@@ -27,7 +27,7 @@ public class ProtoUtils {
         if (apiKey < 0 || apiKey > schemas.length)
             throw new IllegalArgumentException("Invalid api key: " + apiKey);
         Schema[] versions = schemas[apiKey];
-        if (version < 0 || version > latestVersion(apiKey))
+        if (version < 0 || version >= versions.length)
             throw new IllegalArgumentException("Invalid version for API key " + apiKey + ": " + version);
         if (versions[version] == null)
             throw new IllegalArgumentException("Unsupported version for API key " + apiKey + ": " + version);
@@ -433,6 +433,36 @@ public class Protocol {
     // Only the version number is incremented to indicate the client support message format V1 which uses
     // relative offset and has timestamp.
     public static final Schema FETCH_REQUEST_V2 = FETCH_REQUEST_V1;
+
+    public static final Schema FETCH_REQUEST_FORGOTTEN_TOPIC_V3 = new Schema(new Field("topic", STRING, "Topic to remove from the fetch session."),
+                                                                             new Field("partitions",
+                                                                                       new ArrayOf(INT32),
+                                                                                       "Partitions to remove from the fetch session."));
+
+    // V3 adds incremental fetch sessions. The partitions of a session are only sent when they are added to it or when
+    // their fetch offset or maximum bytes change, and they are removed with the forgotten topics.
+    public static final Schema FETCH_REQUEST_V3 = new Schema(new Field("replica_id",
+                                                                       INT32,
+                                                                       "Broker id of the follower. For normal consumers, use -1."),
+                                                             new Field("max_wait_time",
+                                                                       INT32,
+                                                                       "Maximum time in ms to wait for the response."),
+                                                             new Field("min_bytes",
+                                                                       INT32,
+                                                                       "Minimum bytes to accumulate in the response."),
+                                                             new Field("session_id",
+                                                                       INT32,
+                                                                       "The fetch session id, or 0 to create a new session or to fetch without a session."),
+                                                             new Field("session_epoch",
+                                                                       INT32,
+                                                                       "The fetch session epoch. 0 creates a new session, replacing the given one if any, " +
+                                                                       "and -1 closes the given session and fetches without a session."),
+                                                             new Field("topics",
+                                                                       new ArrayOf(FETCH_REQUEST_TOPIC_V0),
+                                                                       "Topics to fetch, or to update in the fetch session."),
+                                                             new Field("forgotten_topics_data",
+                                                                       new ArrayOf(FETCH_REQUEST_FORGOTTEN_TOPIC_V3),
+                                                                       "Topics to remove from the fetch session."));
     public static final Schema FETCH_RESPONSE_PARTITION_V0 = new Schema(new Field("partition",
                                                                                   INT32,
                                                                                   "Topic partition id."),
@@ -459,9 +489,35 @@ public class Protocol {
     // record set only includes messages of v0 (magic byte 0). In v2, record set can include messages of v0 and v1
     // (magic byte 0 and 1). For details, see ByteBufferMessageSet.
     public static final Schema FETCH_RESPONSE_V2 = FETCH_RESPONSE_V1;
+    // The V3 response of an incremental fetch only includes the partitions with data, a new high watermark or an error
+    public static final Schema FETCH_RESPONSE_V3 = new Schema(new Field("throttle_time_ms",
+                                                                        INT32,
+                                                                        "Duration in milliseconds for which the request was throttled" +
+                                                                            " due to quota violation. (Zero if the request did not violate any quota.)",
+                                                                        0),
+                                                              new Field("error_code",
+                                                                        INT16,
+                                                                        "The error of the fetch session, if any.",
+                                                                        (short) 0),
+                                                              new Field("session_id",
+                                                                        INT32,
+                                                                        "The fetch session id, or 0 if the fetch is not part of a session.",
+                                                                        0),
+                                                              new Field("responses",
+                                                                      new ArrayOf(FETCH_RESPONSE_TOPIC_V0)));
+
+    // V4 is the same as V3, the version number is bumped up to indicate that the client can read messages compressed
+    // with zstd. The record sets of older versions never contain zstd messages, they are recompressed if needed.
+    public static final Schema FETCH_REQUEST_V4 = FETCH_REQUEST_V3;
+    public static final Schema FETCH_RESPONSE_V4 = FETCH_RESPONSE_V3;
+
+    // Fetch v3 and later are only sent by the replica fetchers of brokers whose inter.broker.protocol.version supports
+    // them. Other Kafka releases give these version numbers to different schemas, so they are never advertised to
+    // clients and a client never uses them by default.
+    public static final short FETCH_LATEST_CLIENT_VERSION = 2;
 
-    public static final Schema[] FETCH_REQUEST = new Schema[] {FETCH_REQUEST_V0, FETCH_REQUEST_V1, FETCH_REQUEST_V2};
-    public static final Schema[] FETCH_RESPONSE = new Schema[] {FETCH_RESPONSE_V0, FETCH_RESPONSE_V1, FETCH_RESPONSE_V2};
+    public static final Schema[] FETCH_REQUEST = new Schema[] {FETCH_REQUEST_V0, FETCH_REQUEST_V1, FETCH_REQUEST_V2, FETCH_REQUEST_V3, FETCH_REQUEST_V4};
+    public static final Schema[] FETCH_RESPONSE = new Schema[] {FETCH_RESPONSE_V0, FETCH_RESPONSE_V1, FETCH_RESPONSE_V2, FETCH_RESPONSE_V3, FETCH_RESPONSE_V4};
 
     /* List groups api */
     public static final Schema LIST_GROUPS_REQUEST_V0 = new Schema();
@@ -778,7 +834,7 @@ public class Protocol {
     public static final Schema[][] RESPONSES = new Schema[ApiKeys.MAX_API_KEY + 1][];
     public static final short[] MIN_VERSIONS = new short[ApiKeys.MAX_API_KEY + 1];
 
-    /* the latest version of each api */
+    /* the latest version of each api that clients may use, which is the version advertised to them */
     public static final short[] CURR_VERSION = new short[ApiKeys.MAX_API_KEY + 1];
 
     static {
@@ -831,6 +887,7 @@ public class Protocol {
                     break;
                 }
         }
+        CURR_VERSION[ApiKeys.FETCH.id] = FETCH_LATEST_CLIENT_VERSION;
 
         /* sanity check that:
          *   - we have the same number of request and response versions for each api
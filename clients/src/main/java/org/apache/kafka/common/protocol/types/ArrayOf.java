@@ -74,6 +74,19 @@ public class ArrayOf extends Type {
         return objs;
     }
 
+    /**
+     * Read the size of a non-nullable array, with the same validation as {@link #read(ByteBuffer)}. This is meant for
+     * readers that decode the elements directly from the buffer.
+     */
+    public static int readSize(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size < 0)
+            throw new SchemaException("Array size " + size + " cannot be negative");
+        if (size > buffer.remaining())
+            throw new SchemaException("Error reading array of size " + size + ", only " + buffer.remaining() + " bytes available");
+        return size;
+    }
+
     @Override
     public int sizeOf(Object o) {
         int size = 4;
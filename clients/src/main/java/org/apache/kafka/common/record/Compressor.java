@@ -21,6 +21,8 @@ import java.lang.reflect.Constructor;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.utils.Utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataInputStream;
@@ -40,6 +42,8 @@ public class Compressor {
     static private final float COMPRESSION_RATE_DAMPING_FACTOR = 0.9f;
     static private final float COMPRESSION_RATE_ESTIMATION_FACTOR = 1.05f;
     static private final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
+    // every call into the zstd streams crosses JNI, so reads and writes of single fields are buffered in front of them
+    static private final int ZSTD_BUFFER_SIZE = 16 * 1024;
 
     private static final float[] TYPE_TO_RATE;
 
@@ -53,7 +57,7 @@ public class Compressor {
         }
     }
 
-    // dynamically load the snappy and lz4 classes to avoid runtime dependency if we are not using compression
+    // dynamically load the snappy, lz4 and zstd classes to avoid runtime dependency if we are not using compression
     // caching constructors to avoid invoking of Class.forName method for each batch
     private static MemoizingConstructorSupplier snappyOutputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
         @Override
@@ -71,6 +75,14 @@ public class Compressor {
         }
     });
 
+    private static MemoizingConstructorSupplier zstdOutputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
+        @Override
+        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
+            return Class.forName("com.github.luben.zstd.ZstdOutputStream")
+                    .getConstructor(OutputStream.class);
+        }
+    });
+
     private static MemoizingConstructorSupplier snappyInputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
         @Override
         public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
@@ -87,6 +99,14 @@ public class Compressor {
         }
     });
 
+    private static MemoizingConstructorSupplier zstdInputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
+        @Override
+        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
+            return Class.forName("com.github.luben.zstd.ZstdInputStream")
+                    .getConstructor(InputStream.class);
+        }
+    });
+
     private final CompressionType type;
     /**
      * 对bufferStream进行了了一层装饰,为其添加了压缩功能
@@ -321,6 +341,13 @@ public class Compressor {
                     } catch (Exception e) {
                         throw new KafkaException(e);
                     }
+                case ZSTD:
+                    try {
+                        OutputStream stream = (OutputStream) zstdOutputStreamSupplier.get().newInstance(buffer);
+                        return new DataOutputStream(new BufferedOutputStream(stream, ZSTD_BUFFER_SIZE));
+                    } catch (Exception e) {
+                        throw new KafkaException(e);
+                    }
                 default:
                     //不支持的压缩方式,抛出异常
                     throw new IllegalArgumentException("Unknown compression type: " + type);
@@ -352,6 +379,13 @@ public class Compressor {
                     } catch (Exception e) {
                         throw new KafkaException(e);
                     }
+                case ZSTD:
+                    try {
+                        InputStream stream = (InputStream) zstdInputStreamSupplier.get().newInstance(buffer);
+                        return new DataInputStream(new BufferedInputStream(stream, ZSTD_BUFFER_SIZE));
+                    } catch (Exception e) {
+                        throw new KafkaException(e);
+                    }
                 default:
                     throw new IllegalArgumentException("Unknown compression type: " + type);
             }
@@ -24,6 +24,10 @@ public abstract class AbstractRequestResponse {
         this.struct = struct;
     }
 
+    /**
+     * The struct of this object. Subclasses that serialize themselves directly may pass a null struct to the
+     * constructor and build it on demand by overriding this method.
+     */
     public Struct toStruct() {
         return struct;
     }
@@ -32,24 +36,24 @@ public abstract class AbstractRequestResponse {
      * Get the serialized size of this object
      */
     public int sizeOf() {
-        return struct.sizeOf();
+        return toStruct().sizeOf();
     }
 
     /**
      * Write this object to a buffer
      */
     public void writeTo(ByteBuffer buffer) {
-        struct.writeTo(buffer);
+        toStruct().writeTo(buffer);
     }
 
     @Override
     public String toString() {
-        return struct.toString();
+        return toStruct().toString();
     }
 
     @Override
     public int hashCode() {
-        return struct.hashCode();
+        return toStruct().hashCode();
     }
 
     @Override
@@ -61,6 +65,6 @@ public abstract class AbstractRequestResponse {
         if (getClass() != obj.getClass())
             return false;
         AbstractRequestResponse other = (AbstractRequestResponse) obj;
-        return struct.equals(other.struct);
+        return toStruct().equals(other.toStruct());
     }
 }
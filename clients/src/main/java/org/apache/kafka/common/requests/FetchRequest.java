@@ -14,6 +14,7 @@ package org.apache.kafka.common.requests;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,11 +30,20 @@ import org.apache.kafka.common.utils.CollectionUtils;
 public class FetchRequest extends AbstractRequest {
 
     public static final int CONSUMER_REPLICA_ID = -1;
+    // the session id of a fetch that is not part of a fetch session
+    public static final int INVALID_SESSION_ID = 0;
+    // the epoch of a fetch that creates a new fetch session
+    public static final int INITIAL_EPOCH = 0;
+    // the epoch of a fetch that closes its fetch session, or that is not part of a fetch session
+    public static final int FINAL_EPOCH = -1;
     private static final Schema CURRENT_SCHEMA = ProtoUtils.currentRequestSchema(ApiKeys.FETCH.id);
     private static final String REPLICA_ID_KEY_NAME = "replica_id";
     private static final String MAX_WAIT_KEY_NAME = "max_wait_time";
     private static final String MIN_BYTES_KEY_NAME = "min_bytes";
+    private static final String SESSION_ID_KEY_NAME = "session_id";
+    private static final String SESSION_EPOCH_KEY_NAME = "session_epoch";
     private static final String TOPICS_KEY_NAME = "topics";
+    private static final String FORGOTTEN_TOPICS_KEY_NAME = "forgotten_topics_data";
 
     // topic level field names
     private static final String TOPIC_KEY_NAME = "topic";
@@ -47,7 +57,10 @@ public class FetchRequest extends AbstractRequest {
     private final int replicaId;
     private final int maxWait;
     private final int minBytes;
+    private final int sessionId;
+    private final int sessionEpoch;
     private final Map<TopicPartition, PartitionData> fetchData;
+    private final List<TopicPartition> toForget;
 
     public static final class PartitionData {
         public final long offset;
@@ -70,12 +83,34 @@ public class FetchRequest extends AbstractRequest {
      * Create a replica fetch request
      */
     public FetchRequest(int replicaId, int maxWait, int minBytes, Map<TopicPartition, PartitionData> fetchData) {
-        super(new Struct(CURRENT_SCHEMA));
+        this(ProtoUtils.latestVersion(ApiKeys.FETCH.id), replicaId, maxWait, minBytes, INVALID_SESSION_ID, FINAL_EPOCH, fetchData,
+             Collections.<TopicPartition>emptyList());
+    }
+
+    /**
+     * Create a fetch request of the given version, which may be part of a fetch session from version 3
+     *
+     * @param sessionId The id of the fetch session, or INVALID_SESSION_ID
+     * @param sessionEpoch The epoch of the fetch within the session, INITIAL_EPOCH to create a new session or FINAL_EPOCH
+     *                     to close the session or to fetch without a session
+     * @param fetchData The partitions to fetch, or for an incremental fetch the partitions added to the session or whose
+     *                  fetch offset or maximum bytes changed
+     * @param toForget The partitions to remove from the session
+     */
+    public FetchRequest(int version, int replicaId, int maxWait, int minBytes, int sessionId, int sessionEpoch,
+                        Map<TopicPartition, PartitionData> fetchData, List<TopicPartition> toForget) {
+        super(new Struct(ProtoUtils.requestSchema(ApiKeys.FETCH.id, version)));
+        if (version < 3 && (sessionId != INVALID_SESSION_ID || sessionEpoch != FINAL_EPOCH || !toForget.isEmpty()))
+            throw new IllegalArgumentException("Fetch sessions are not supported by version " + version + " of the fetch request");
         Map<String, Map<Integer, PartitionData>> topicsData = CollectionUtils.groupDataByTopic(fetchData);
 
         struct.set(REPLICA_ID_KEY_NAME, replicaId);
         struct.set(MAX_WAIT_KEY_NAME, maxWait);
         struct.set(MIN_BYTES_KEY_NAME, minBytes);
+        if (struct.hasField(SESSION_ID_KEY_NAME)) {
+            struct.set(SESSION_ID_KEY_NAME, sessionId);
+            struct.set(SESSION_EPOCH_KEY_NAME, sessionEpoch);
+        }
         List<Struct> topicArray = new ArrayList<Struct>();
         for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry : topicsData.entrySet()) {
             Struct topicData = struct.instance(TOPICS_KEY_NAME);
@@ -93,10 +128,23 @@ public class FetchRequest extends AbstractRequest {
             topicArray.add(topicData);
         }
         struct.set(TOPICS_KEY_NAME, topicArray.toArray());
+        if (struct.hasField(FORGOTTEN_TOPICS_KEY_NAME)) {
+            List<Struct> forgottenArray = new ArrayList<Struct>();
+            for (Map.Entry<String, List<Integer>> topicEntry : CollectionUtils.groupDataByTopic(toForget).entrySet()) {
+                Struct forgottenTopic = struct.instance(FORGOTTEN_TOPICS_KEY_NAME);
+                forgottenTopic.set(TOPIC_KEY_NAME, topicEntry.getKey());
+                forgottenTopic.set(PARTITIONS_KEY_NAME, topicEntry.getValue().toArray());
+                forgottenArray.add(forgottenTopic);
+            }
+            struct.set(FORGOTTEN_TOPICS_KEY_NAME, forgottenArray.toArray());
+        }
         this.replicaId = replicaId;
         this.maxWait = maxWait;
         this.minBytes = minBytes;
+        this.sessionId = sessionId;
+        this.sessionEpoch = sessionEpoch;
         this.fetchData = fetchData;
+        this.toForget = toForget;
     }
 
     public FetchRequest(Struct struct) {
@@ -104,6 +152,13 @@ public class FetchRequest extends AbstractRequest {
         replicaId = struct.getInt(REPLICA_ID_KEY_NAME);
         maxWait = struct.getInt(MAX_WAIT_KEY_NAME);
         minBytes = struct.getInt(MIN_BYTES_KEY_NAME);
+        if (struct.hasField(SESSION_ID_KEY_NAME)) {
+            sessionId = struct.getInt(SESSION_ID_KEY_NAME);
+            sessionEpoch = struct.getInt(SESSION_EPOCH_KEY_NAME);
+        } else {
+            sessionId = INVALID_SESSION_ID;
+            sessionEpoch = FINAL_EPOCH;
+        }
         fetchData = new HashMap<TopicPartition, PartitionData>();
         for (Object topicResponseObj : struct.getArray(TOPICS_KEY_NAME)) {
             Struct topicResponse = (Struct) topicResponseObj;
@@ -117,6 +172,15 @@ public class FetchRequest extends AbstractRequest {
                 fetchData.put(new TopicPartition(topic, partition), partitionData);
             }
         }
+        toForget = new ArrayList<TopicPartition>();
+        if (struct.hasField(FORGOTTEN_TOPICS_KEY_NAME)) {
+            for (Object forgottenTopicObj : struct.getArray(FORGOTTEN_TOPICS_KEY_NAME)) {
+                Struct forgottenTopic = (Struct) forgottenTopicObj;
+                String topic = forgottenTopic.getString(TOPIC_KEY_NAME);
+                for (Object partition : forgottenTopic.getArray(PARTITIONS_KEY_NAME))
+                    toForget.add(new TopicPartition(topic, (Integer) partition));
+            }
+        }
     }
 
     @Override
@@ -134,7 +198,11 @@ public class FetchRequest extends AbstractRequest {
             case 0:
                 return new FetchResponse(responseData);
             case 1:
-                return new FetchResponse(responseData, 0);
+            case 2:
+                return new FetchResponse(responseData, 0, versionId);
+            case 3:
+            case 4:
+                return new FetchResponse(Errors.NONE.code(), sessionId, responseData, 0);
             default:
                 throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
                         versionId, this.getClass().getSimpleName(), ProtoUtils.latestVersion(ApiKeys.FETCH.id)));
@@ -153,10 +221,22 @@ public class FetchRequest extends AbstractRequest {
         return minBytes;
     }
 
+    public int sessionId() {
+        return sessionId;
+    }
+
+    public int sessionEpoch() {
+        return sessionEpoch;
+    }
+
     public Map<TopicPartition, PartitionData> fetchData() {
         return fetchData;
     }
 
+    public List<TopicPartition> toForget() {
+        return toForget;
+    }
+
     public static FetchRequest parse(ByteBuffer buffer, int versionId) {
         return new FetchRequest(ProtoUtils.parseRequest(ApiKeys.FETCH.id, versionId, buffer));
     }
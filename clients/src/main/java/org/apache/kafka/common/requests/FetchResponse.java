@@ -18,11 +18,15 @@ package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
-import org.apache.kafka.common.protocol.types.Schema;
+import org.apache.kafka.common.protocol.types.ArrayOf;
+import org.apache.kafka.common.protocol.types.SchemaException;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.protocol.types.Type;
 import org.apache.kafka.common.utils.CollectionUtils;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -30,17 +34,20 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * This wrapper supports both v0 and v1 of FetchResponse.
+ * This wrapper supports v0 to v3 of FetchResponse.
+ * <p>
+ * Fetch responses may hold thousands of partitions, so they are read from and written to the buffer directly instead
+ * of going through a {@link Struct}, which is only built when it is asked for.
  */
 public class FetchResponse extends AbstractRequestResponse {
     
-    private static final Schema CURRENT_SCHEMA = ProtoUtils.currentResponseSchema(ApiKeys.FETCH.id);
     private static final String RESPONSES_KEY_NAME = "responses";
 
     // topic level field names
     private static final String TOPIC_KEY_NAME = "topic";
     private static final String PARTITIONS_KEY_NAME = "partition_responses";
     private static final String THROTTLE_TIME_KEY_NAME = "throttle_time_ms";
+    private static final String SESSION_ID_KEY_NAME = "session_id";
 
     // partition level field names
     private static final String PARTITION_KEY_NAME = "partition";
@@ -62,11 +69,21 @@ public class FetchResponse extends AbstractRequestResponse {
     private static final String HIGH_WATERMARK_KEY_NAME = "high_watermark";
     private static final String RECORD_SET_KEY_NAME = "record_set";
 
+    // partition, error_code, high_watermark and the size of the record_set
+    private static final int PARTITION_HEADER_SIZE = 4 + 2 + 8 + 4;
+
     public static final long INVALID_HIGHWATERMARK = -1L;
     public static final ByteBuffer EMPTY_RECORD_SET = ByteBuffer.allocate(0);
 
+    private final int version;
     private final Map<TopicPartition, PartitionData> responseData;
     private final int throttleTime;
+    private final short errorCode;
+    private final int sessionId;
+
+    // built on demand, when the response was not created from a struct
+    private Map<String, Map<Integer, PartitionData>> topicsData;
+    private Struct lazyStruct;
 
     public static final class PartitionData {
         public final short errorCode;
@@ -85,10 +102,7 @@ public class FetchResponse extends AbstractRequestResponse {
      * @param responseData fetched data grouped by topic-partition
      */
     public FetchResponse(Map<TopicPartition, PartitionData> responseData) {
-        super(new Struct(ProtoUtils.responseSchema(ApiKeys.FETCH.id, 0)));
-        initCommonFields(responseData);
-        this.responseData = responseData;
-        this.throttleTime = DEFAULT_THROTTLE_TIME;
+        this(0, responseData, DEFAULT_THROTTLE_TIME, Errors.NONE.code(), FetchRequest.INVALID_SESSION_ID);
     }
 
   /**
@@ -97,11 +111,41 @@ public class FetchResponse extends AbstractRequestResponse {
    * @param throttleTime Time in milliseconds the response was throttled
    */
     public FetchResponse(Map<TopicPartition, PartitionData> responseData, int throttleTime) {
-        super(new Struct(CURRENT_SCHEMA));
-        initCommonFields(responseData);
-        struct.set(THROTTLE_TIME_KEY_NAME, throttleTime);
+        this(responseData, throttleTime, 1);
+    }
+
+  /**
+   * Constructor for Version 1 and 2
+   * @param responseData fetched data grouped by topic-partition
+   * @param throttleTime Time in milliseconds the response was throttled
+   * @param version the version of the response
+   */
+    public FetchResponse(Map<TopicPartition, PartitionData> responseData, int throttleTime, int version) {
+        this(version, responseData, throttleTime, Errors.NONE.code(), FetchRequest.INVALID_SESSION_ID);
+    }
+
+  /**
+   * Constructor for Version 3
+   * @param errorCode the error of the fetch session
+   * @param sessionId the id of the fetch session, or INVALID_SESSION_ID
+   * @param responseData fetched data grouped by topic-partition, only the partitions with data, a new high watermark
+   *                     or an error for an incremental fetch
+   * @param throttleTime Time in milliseconds the response was throttled
+   */
+    public FetchResponse(short errorCode, int sessionId, Map<TopicPartition, PartitionData> responseData, int throttleTime) {
+        this(3, responseData, throttleTime, errorCode, sessionId);
+    }
+
+    private FetchResponse(int version, Map<TopicPartition, PartitionData> responseData, int throttleTime,
+                          short errorCode, int sessionId) {
+        super(null);
+        // fail fast on an unknown version, as building the struct would
+        ProtoUtils.responseSchema(ApiKeys.FETCH.id, version);
+        this.version = version;
         this.responseData = responseData;
         this.throttleTime = throttleTime;
+        this.errorCode = errorCode;
+        this.sessionId = sessionId;
     }
 
     public FetchResponse(Struct struct) {
@@ -121,13 +165,31 @@ public class FetchResponse extends AbstractRequestResponse {
             }
         }
         this.throttleTime = struct.hasField(THROTTLE_TIME_KEY_NAME) ? struct.getInt(THROTTLE_TIME_KEY_NAME) : DEFAULT_THROTTLE_TIME;
+        this.errorCode = struct.hasField(ERROR_CODE_KEY_NAME) ? struct.getShort(ERROR_CODE_KEY_NAME) : Errors.NONE.code();
+        this.sessionId = struct.hasField(SESSION_ID_KEY_NAME) ? struct.getInt(SESSION_ID_KEY_NAME) : FetchRequest.INVALID_SESSION_ID;
+        // v1 and v2 only differ in the format of the record sets
+        this.version = struct.hasField(SESSION_ID_KEY_NAME) ? 3 : struct.hasField(THROTTLE_TIME_KEY_NAME) ? 1 : 0;
+    }
+
+    private Map<String, Map<Integer, PartitionData>> topicsData() {
+        if (topicsData == null)
+            topicsData = CollectionUtils.groupDataByTopic(responseData);
+        return topicsData;
     }
 
-    private void initCommonFields(Map<TopicPartition, PartitionData> responseData) {
-        Map<String, Map<Integer, PartitionData>> topicsData = CollectionUtils.groupDataByTopic(responseData);
+    @Override
+    public Struct toStruct() {
+        if (struct != null)
+            return struct;
+        if (lazyStruct == null)
+            lazyStruct = buildStruct();
+        return lazyStruct;
+    }
 
+    private Struct buildStruct() {
+        Struct struct = new Struct(ProtoUtils.responseSchema(ApiKeys.FETCH.id, version));
         List<Struct> topicArray = new ArrayList<Struct>();
-        for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry: topicsData.entrySet()) {
+        for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry: topicsData().entrySet()) {
             Struct topicData = struct.instance(RESPONSES_KEY_NAME);
             topicData.set(TOPIC_KEY_NAME, topicEntry.getKey());
             List<Struct> partitionArray = new ArrayList<Struct>();
@@ -144,8 +206,58 @@ public class FetchResponse extends AbstractRequestResponse {
             topicArray.add(topicData);
         }
         struct.set(RESPONSES_KEY_NAME, topicArray.toArray());
+        if (version >= 1)
+            struct.set(THROTTLE_TIME_KEY_NAME, throttleTime);
+        if (version >= 3) {
+            struct.set(ERROR_CODE_KEY_NAME, errorCode);
+            struct.set(SESSION_ID_KEY_NAME, sessionId);
+        }
+        return struct;
     }
 
+    @Override
+    public int sizeOf() {
+        if (struct != null)
+            return struct.sizeOf();
+        int size = 4;
+        if (version >= 1)
+            size += 4;
+        if (version >= 3)
+            size += 2 + 4;
+        for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry : topicsData().entrySet()) {
+            size += Type.STRING.sizeOf(topicEntry.getKey()) + 4;
+            for (PartitionData partitionData : topicEntry.getValue().values())
+                size += PARTITION_HEADER_SIZE + partitionData.recordSet.remaining();
+        }
+        return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        if (struct != null) {
+            struct.writeTo(buffer);
+            return;
+        }
+        if (version >= 1)
+            buffer.putInt(throttleTime);
+        if (version >= 3) {
+            buffer.putShort(errorCode);
+            buffer.putInt(sessionId);
+        }
+        Map<String, Map<Integer, PartitionData>> topicsData = topicsData();
+        buffer.putInt(topicsData.size());
+        for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry : topicsData.entrySet()) {
+            Type.STRING.write(buffer, topicEntry.getKey());
+            buffer.putInt(topicEntry.getValue().size());
+            for (Map.Entry<Integer, PartitionData> partitionEntry : topicEntry.getValue().entrySet()) {
+                PartitionData partitionData = partitionEntry.getValue();
+                buffer.putInt(partitionEntry.getKey());
+                buffer.putShort(partitionData.errorCode);
+                buffer.putLong(partitionData.highWatermark);
+                Type.BYTES.write(buffer, partitionData.recordSet);
+            }
+        }
+    }
 
     public Map<TopicPartition, PartitionData> responseData() {
         return responseData;
@@ -155,11 +267,49 @@ public class FetchResponse extends AbstractRequestResponse {
         return this.throttleTime;
     }
 
+    public short errorCode() {
+        return this.errorCode;
+    }
+
+    public int sessionId() {
+        return this.sessionId;
+    }
+
     public static FetchResponse parse(ByteBuffer buffer) {
-        return new FetchResponse(CURRENT_SCHEMA.read(buffer));
+        return parse(buffer, ProtoUtils.latestVersion(ApiKeys.FETCH.id));
     }
 
+    /**
+     * Read a response of the given version, with the same validation as the schema of that version but without
+     * building a struct. The record sets are slices of the buffer.
+     */
     public static FetchResponse parse(ByteBuffer buffer, int version) {
-        return new FetchResponse(ProtoUtils.responseSchema(ApiKeys.FETCH.id, version).read(buffer));
+        ProtoUtils.responseSchema(ApiKeys.FETCH.id, version);
+        try {
+            int throttleTime = version >= 1 ? buffer.getInt() : DEFAULT_THROTTLE_TIME;
+            short errorCode = Errors.NONE.code();
+            int sessionId = FetchRequest.INVALID_SESSION_ID;
+            if (version >= 3) {
+                errorCode = buffer.getShort();
+                sessionId = buffer.getInt();
+            }
+            Map<TopicPartition, PartitionData> responseData = new HashMap<TopicPartition, PartitionData>();
+            int numTopics = ArrayOf.readSize(buffer);
+            for (int i = 0; i < numTopics; i++) {
+                String topic = (String) Type.STRING.read(buffer);
+                int numPartitions = ArrayOf.readSize(buffer);
+                for (int j = 0; j < numPartitions; j++) {
+                    int partition = buffer.getInt();
+                    short partitionErrorCode = buffer.getShort();
+                    long highWatermark = buffer.getLong();
+                    ByteBuffer recordSet = (ByteBuffer) Type.BYTES.read(buffer);
+                    responseData.put(new TopicPartition(topic, partition),
+                            new PartitionData(partitionErrorCode, highWatermark, recordSet));
+                }
+            }
+            return new FetchResponse(version, responseData, throttleTime, errorCode, sessionId);
+        } catch (BufferUnderflowException e) {
+            throw new SchemaException("Error reading fetch response of version " + version + ": not enough bytes available");
+        }
     }
 }
@@ -17,17 +17,26 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
+import org.apache.kafka.common.protocol.types.ArrayOf;
 import org.apache.kafka.common.protocol.types.Schema;
+import org.apache.kafka.common.protocol.types.SchemaException;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.protocol.types.Type;
 import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.utils.CollectionUtils;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Produce requests carry the record sets of every partition, so they are read from and written to the buffer directly
+ * instead of going through a {@link Struct}, which is only built when it is asked for. All the versions share the same
+ * format.
+ */
 public class ProduceRequest extends AbstractRequest {
     
     private static final Schema CURRENT_SCHEMA = ProtoUtils.currentRequestSchema(ApiKeys.PRODUCE.id);
@@ -47,27 +56,12 @@ public class ProduceRequest extends AbstractRequest {
     private final int timeout;
     private final Map<TopicPartition, ByteBuffer> partitionRecords;
 
+    // built on demand, when the request was not created from a struct
+    private Map<String, Map<Integer, ByteBuffer>> recordsByTopic;
+    private Struct lazyStruct;
+
     public ProduceRequest(short acks, int timeout, Map<TopicPartition, ByteBuffer> partitionRecords) {
-        super(new Struct(CURRENT_SCHEMA));
-        Map<String, Map<Integer, ByteBuffer>> recordsByTopic = CollectionUtils.groupDataByTopic(partitionRecords);
-        struct.set(ACKS_KEY_NAME, acks);
-        struct.set(TIMEOUT_KEY_NAME, timeout);
-        List<Struct> topicDatas = new ArrayList<Struct>(recordsByTopic.size());
-        for (Map.Entry<String, Map<Integer, ByteBuffer>> entry : recordsByTopic.entrySet()) {
-            Struct topicData = struct.instance(TOPIC_DATA_KEY_NAME);
-            topicData.set(TOPIC_KEY_NAME, entry.getKey());
-            List<Struct> partitionArray = new ArrayList<Struct>();
-            for (Map.Entry<Integer, ByteBuffer> partitionEntry : entry.getValue().entrySet()) {
-                ByteBuffer buffer = partitionEntry.getValue().duplicate();
-                Struct part = topicData.instance(PARTITION_DATA_KEY_NAME)
-                                       .set(PARTITION_KEY_NAME, partitionEntry.getKey())
-                                       .set(RECORD_SET_KEY_NAME, buffer);
-                partitionArray.add(part);
-            }
-            topicData.set(PARTITION_DATA_KEY_NAME, partitionArray.toArray());
-            topicDatas.add(topicData);
-        }
-        struct.set(TOPIC_DATA_KEY_NAME, topicDatas.toArray());
+        super(null);
         this.acks = acks;
         this.timeout = timeout;
         this.partitionRecords = partitionRecords;
@@ -90,6 +84,79 @@ public class ProduceRequest extends AbstractRequest {
         timeout = struct.getInt(TIMEOUT_KEY_NAME);
     }
 
+    private Map<String, Map<Integer, ByteBuffer>> recordsByTopic() {
+        if (recordsByTopic == null)
+            recordsByTopic = CollectionUtils.groupDataByTopic(partitionRecords);
+        return recordsByTopic;
+    }
+
+    @Override
+    public Struct toStruct() {
+        if (struct != null)
+            return struct;
+        if (lazyStruct == null)
+            lazyStruct = buildStruct();
+        return lazyStruct;
+    }
+
+    private Struct buildStruct() {
+        Struct struct = new Struct(CURRENT_SCHEMA);
+        struct.set(ACKS_KEY_NAME, acks);
+        struct.set(TIMEOUT_KEY_NAME, timeout);
+        List<Struct> topicDatas = new ArrayList<Struct>(recordsByTopic().size());
+        for (Map.Entry<String, Map<Integer, ByteBuffer>> entry : recordsByTopic().entrySet()) {
+            Struct topicData = struct.instance(TOPIC_DATA_KEY_NAME);
+            topicData.set(TOPIC_KEY_NAME, entry.getKey());
+            List<Struct> partitionArray = new ArrayList<Struct>();
+            for (Map.Entry<Integer, ByteBuffer> partitionEntry : entry.getValue().entrySet()) {
+                ByteBuffer buffer = partitionEntry.getValue().duplicate();
+                Struct part = topicData.instance(PARTITION_DATA_KEY_NAME)
+                                       .set(PARTITION_KEY_NAME, partitionEntry.getKey())
+                                       .set(RECORD_SET_KEY_NAME, buffer);
+                partitionArray.add(part);
+            }
+            topicData.set(PARTITION_DATA_KEY_NAME, partitionArray.toArray());
+            topicDatas.add(topicData);
+        }
+        struct.set(TOPIC_DATA_KEY_NAME, topicDatas.toArray());
+        return struct;
+    }
+
+    @Override
+    public int sizeOf() {
+        if (struct != null)
+            return struct.sizeOf();
+        // acks, timeout and the size of topic_data
+        int size = 2 + 4 + 4;
+        for (Map.Entry<String, Map<Integer, ByteBuffer>> entry : recordsByTopic().entrySet()) {
+            size += Type.STRING.sizeOf(entry.getKey()) + 4;
+            // partition and the size of the record_set
+            for (ByteBuffer records : entry.getValue().values())
+                size += 4 + 4 + records.remaining();
+        }
+        return size;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        if (struct != null) {
+            struct.writeTo(buffer);
+            return;
+        }
+        buffer.putShort(acks);
+        buffer.putInt(timeout);
+        Map<String, Map<Integer, ByteBuffer>> recordsByTopic = recordsByTopic();
+        buffer.putInt(recordsByTopic.size());
+        for (Map.Entry<String, Map<Integer, ByteBuffer>> entry : recordsByTopic.entrySet()) {
+            Type.STRING.write(buffer, entry.getKey());
+            buffer.putInt(entry.getValue().size());
+            for (Map.Entry<Integer, ByteBuffer> partitionEntry : entry.getValue().entrySet()) {
+                buffer.putInt(partitionEntry.getKey());
+                Type.BYTES.write(buffer, partitionEntry.getValue());
+            }
+        }
+    }
+
     @Override
     public AbstractRequestResponse getErrorResponse(int versionId, Throwable e) {
         /* In case the producer doesn't actually want any response */
@@ -128,13 +195,37 @@ public class ProduceRequest extends AbstractRequest {
 
     public void clearPartitionRecords() {
         partitionRecords.clear();
+        recordsByTopic = null;
+        lazyStruct = null;
     }
 
+    /**
+     * Read a request of the given version, with the same validation as the schema of that version but without building
+     * a struct. The record sets are slices of the buffer.
+     */
     public static ProduceRequest parse(ByteBuffer buffer, int versionId) {
-        return new ProduceRequest(ProtoUtils.parseRequest(ApiKeys.PRODUCE.id, versionId, buffer));
+        ProtoUtils.requestSchema(ApiKeys.PRODUCE.id, versionId);
+        try {
+            short acks = buffer.getShort();
+            int timeout = buffer.getInt();
+            Map<TopicPartition, ByteBuffer> partitionRecords = new HashMap<TopicPartition, ByteBuffer>();
+            int numTopics = ArrayOf.readSize(buffer);
+            for (int i = 0; i < numTopics; i++) {
+                String topic = (String) Type.STRING.read(buffer);
+                int numPartitions = ArrayOf.readSize(buffer);
+                for (int j = 0; j < numPartitions; j++) {
+                    int partition = buffer.getInt();
+                    ByteBuffer records = (ByteBuffer) Type.BYTES.read(buffer);
+                    partitionRecords.put(new TopicPartition(topic, partition), records);
+                }
+            }
+            return new ProduceRequest(acks, timeout, partitionRecords);
+        } catch (BufferUnderflowException e) {
+            throw new SchemaException("Error reading produce request of version " + versionId + ": not enough bytes available");
+        }
     }
 
     public static ProduceRequest parse(ByteBuffer buffer) {
-        return new ProduceRequest(CURRENT_SCHEMA.read(buffer));
+        return parse(buffer, ProtoUtils.latestVersion(ApiKeys.PRODUCE.id));
     }
 }
@@ -23,14 +23,27 @@ import org.apache.kafka.common.protocol.types.Struct;
 public class RequestSend extends NetworkSend {
 
     private final RequestHeader header;
-    private final Struct body;
+    private final AbstractRequestResponse request;
+    private Struct body;
 
     public RequestSend(String destination, RequestHeader header, Struct body) {
         super(destination, serialize(header, body));
         this.header = header;
+        this.request = null;
         this.body = body;
     }
 
+    /**
+     * Serialize the request with its own {@link AbstractRequestResponse#writeTo(ByteBuffer)}, which may skip the
+     * struct. The struct is only built if {@link #body()} is called.
+     */
+    public RequestSend(String destination, RequestHeader header, AbstractRequestResponse request) {
+        super(destination, serialize(header, request));
+        this.header = header;
+        this.request = request;
+        this.body = null;
+    }
+
     public static ByteBuffer serialize(RequestHeader header, Struct body) {
         ByteBuffer buffer = ByteBuffer.allocate(header.sizeOf() + body.sizeOf());
         header.writeTo(buffer);
@@ -39,17 +52,27 @@ public class RequestSend extends NetworkSend {
         return buffer;
     }
 
+    public static ByteBuffer serialize(RequestHeader header, AbstractRequestResponse request) {
+        ByteBuffer buffer = ByteBuffer.allocate(header.sizeOf() + request.sizeOf());
+        header.writeTo(buffer);
+        request.writeTo(buffer);
+        buffer.rewind();
+        return buffer;
+    }
+
     public RequestHeader header() {
         return this.header;
     }
 
     public Struct body() {
+        if (body == null)
+            body = request.toStruct();
         return body;
     }
 
     @Override
     public String toString() {
-        return "RequestSend(header=" + header.toString() + ", body=" + body.toString() + ")";
+        return "RequestSend(header=" + header.toString() + ", body=" + (request != null ? request : body).toString() + ")";
     }
 
 }
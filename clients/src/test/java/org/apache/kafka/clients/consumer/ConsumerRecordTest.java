@@ -16,10 +16,17 @@
  **/
 package org.apache.kafka.clients.consumer;
 
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConsumerRecordTest {
 
@@ -44,5 +51,29 @@ public class ConsumerRecordTest {
         assertEquals(ConsumerRecord.NULL_SIZE, record.serializedValueSize());
     }
 
+    @Test
+    public void testToStringDoesNotDeserialize() {
+        Deserializer<String> failing = new StringDeserializer() {
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                throw new IllegalStateException("should not be deserialized");
+            }
+        };
+        ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 23, ConsumerRecord.NO_TIMESTAMP,
+                TimestampType.NO_TIMESTAMP_TYPE, ConsumerRecord.NULL_CHECKSUM, ByteBuffer.wrap("key".getBytes()),
+                ByteBuffer.wrap("value".getBytes()), failing, new StringDeserializer());
+        String string = record.toString();
+        assertTrue(string, string.contains("key = <not deserialized, 3 bytes>"));
+        assertTrue(string, string.contains("value = <not deserialized, 5 bytes>"));
+
+        assertEquals("value", record.value());
+        assertTrue(record.toString(), record.toString().contains("value = value)"));
+        try {
+            record.key();
+            fail("The key should fail to deserialize");
+        } catch (SerializationException e) {
+            // expected
+        }
+    }
 
 }
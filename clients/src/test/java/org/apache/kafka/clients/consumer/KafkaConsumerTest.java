@@ -606,7 +606,9 @@ public class KafkaConsumerTest {
                 maxWaitMs,
                 fetchSize,
                 maxPollRecords,
+                0,
                 checkCrcs,
+                false,
                 keyDeserializer,
                 valueDeserializer,
                 metadata,
@@ -65,7 +65,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -183,6 +185,53 @@ public class FetcherTest {
         }
     }
 
+    @Test
+    public void testLazyDeserialization() {
+        final AtomicInteger deserialized = new AtomicInteger();
+        ByteArrayDeserializer deserializer = new ByteArrayDeserializer() {
+            @Override
+            public byte[] deserialize(String topic, byte[] data) {
+                if (deserialized.incrementAndGet() == 4)
+                    throw new SerializationException();
+                return data;
+            }
+        };
+
+        Fetcher<byte[], byte[]> fetcher = createFetcher(subscriptions, new Metrics(time), deserializer, deserializer,
+                Integer.MAX_VALUE, true);
+
+        subscriptions.assignFromUser(Collections.singleton(tp));
+        subscriptions.seek(tp, 1);
+
+        client.prepareResponse(matchesOffset(tp, 1), fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+
+        fetcher.sendFetches();
+        consumerClient.poll(0);
+        List<ConsumerRecord<byte[], byte[]>> records = fetcher.fetchedRecords().get(tp);
+        assertEquals(3, records.size());
+        assertEquals(4L, subscriptions.position(tp).longValue());
+        assertEquals(0, deserialized.get());
+
+        // only the accessed fields are deserialized, once
+        ConsumerRecord<byte[], byte[]> record = records.get(1);
+        assertEquals(3, record.serializedKeySize());
+        assertEquals(7, record.serializedValueSize());
+        assertArrayEquals("value-2".getBytes(), record.value());
+        assertArrayEquals("value-2".getBytes(), record.value());
+        assertEquals(1, deserialized.get());
+        assertArrayEquals("key".getBytes(), record.key());
+        assertArrayEquals("value-1".getBytes(), records.get(0).value());
+        assertEquals(3, deserialized.get());
+
+        // deserialization errors are raised when the field is accessed
+        try {
+            records.get(2).value();
+            fail("value should have raised");
+        } catch (SerializationException e) {
+            // this is good
+        }
+    }
+
     @Test
     public void testParseInvalidRecord() {
         ByteBuffer buffer = ByteBuffer.allocate(1024);
@@ -260,6 +309,67 @@ public class FetcherTest {
         assertEquals(5, records.get(1).offset());
     }
 
+    @Test
+    public void testPrefetch() {
+        Fetcher<byte[], byte[]> fetcher = createFetcher(subscriptions, new Metrics(time), new ByteArrayDeserializer(),
+                new ByteArrayDeserializer(), Integer.MAX_VALUE, 1024, false);
+
+        List<ConsumerRecord<byte[], byte[]>> records;
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 1);
+
+        client.prepareResponse(matchesOffset(tp, 1), fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        fetcher.sendFetches();
+        // no other fetch is sent for the partition while one is in flight
+        fetcher.sendFetches();
+        assertEquals(1, consumerClient.pendingRequestCount());
+        consumerClient.poll(0);
+
+        // the fetched data is not consumed yet, so the partition is fetched from the end of it
+        client.prepareResponse(matchesOffset(tp, 4), fetchResponse(this.nextRecords.buffer(), Errors.NONE.code(), 100L, 0));
+        fetcher.sendFetches();
+        assertEquals(1, consumerClient.pendingRequestCount());
+        consumerClient.poll(0);
+
+        records = fetcher.fetchedRecords().get(tp);
+        assertEquals(5, records.size());
+        assertEquals(6L, subscriptions.position(tp).longValue());
+        assertEquals(1, records.get(0).offset());
+        assertEquals(5, records.get(4).offset());
+    }
+
+    @Test
+    public void testPrefetchLimit() {
+        Fetcher<byte[], byte[]> fetcher = createFetcher(subscriptions, new Metrics(time), new ByteArrayDeserializer(),
+                new ByteArrayDeserializer(), Integer.MAX_VALUE, 1, false);
+
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 1);
+
+        client.prepareResponse(matchesOffset(tp, 1), fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        fetcher.sendFetches();
+        consumerClient.poll(0);
+
+        // the fetched data is larger than the prefetch size
+        fetcher.sendFetches();
+        assertEquals(0, consumerClient.pendingRequestCount());
+        assertEquals(3, fetcher.fetchedRecords().get(tp).size());
+    }
+
+    @Test
+    public void testNoPrefetchByDefault() {
+        subscriptions.assignFromUser(Arrays.asList(tp));
+        subscriptions.seek(tp, 1);
+
+        client.prepareResponse(matchesOffset(tp, 1), fetchResponse(this.records.buffer(), Errors.NONE.code(), 100L, 0));
+        fetcher.sendFetches();
+        consumerClient.poll(0);
+
+        fetcher.sendFetches();
+        assertEquals(0, consumerClient.pendingRequestCount());
+        assertEquals(3, fetcher.fetchedRecords().get(tp).size());
+    }
+
     @Test
     public void testFetchNonContinuousRecords() {
         // if we are fetching from a compacted topic, there may be gaps in the returned records
@@ -691,12 +801,33 @@ public class FetcherTest {
                                                Deserializer<K> keyDeserializer,
                                                Deserializer<V> valueDeserializer,
                                                int maxPollRecords) {
+        return createFetcher(subscriptions, metrics, keyDeserializer, valueDeserializer, maxPollRecords, false);
+    }
+
+    private <K, V> Fetcher<K, V> createFetcher(SubscriptionState subscriptions,
+                                               Metrics metrics,
+                                               Deserializer<K> keyDeserializer,
+                                               Deserializer<V> valueDeserializer,
+                                               int maxPollRecords,
+                                               boolean lazyDeserialization) {
+        return createFetcher(subscriptions, metrics, keyDeserializer, valueDeserializer, maxPollRecords, 0, lazyDeserialization);
+    }
+
+    private <K, V> Fetcher<K, V> createFetcher(SubscriptionState subscriptions,
+                                               Metrics metrics,
+                                               Deserializer<K> keyDeserializer,
+                                               Deserializer<V> valueDeserializer,
+                                               int maxPollRecords,
+                                               int maxPrefetchBytes,
+                                               boolean lazyDeserialization) {
         return new Fetcher<>(consumerClient,
                 minBytes,
                 maxWaitMs,
                 fetchSize,
                 maxPollRecords,
+                maxPrefetchBytes,
                 true, // check crc
+                lazyDeserialization,
                 keyDeserializer,
                 valueDeserializer,
                 metadata,
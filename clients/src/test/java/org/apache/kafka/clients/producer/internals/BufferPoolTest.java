@@ -225,6 +225,53 @@ public class BufferPoolTest {
         assertEquals(pool.queued(), 0);
     }
 
+    /**
+     * Test that new allocations do not take memory from blocked threads, and that a blocked thread that times out gives
+     * back the memory it gathered
+     */
+    @Test
+    public void testAllocationsQueueBehindBlockedThreads() throws Exception {
+        BufferPool pool = new BufferPool(2048, 1024, metrics, time, metricGroup);
+        ByteBuffer first = pool.allocate(1024, maxBlockTimeMs);
+        ByteBuffer second = pool.allocate(1024, maxBlockTimeMs);
+        CountDownLatch allocation = asyncAllocate(pool, 2048);
+        long deadlineMs = systemTime.milliseconds() + maxBlockTimeMs;
+        while (pool.queued() == 0 && systemTime.milliseconds() < deadlineMs)
+            Thread.sleep(10);
+        assertEquals("The allocation should block", 1, pool.queued());
+
+        // the memory goes to the blocked thread, even though this allocation could be satisfied
+        pool.deallocate(first);
+        while (pool.availableMemory() > 0 && systemTime.milliseconds() < deadlineMs)
+            Thread.sleep(10);
+        assertEquals(0, pool.availableMemory());
+        try {
+            pool.allocate(1024, 10);
+            fail("The allocation should wait behind the blocked thread");
+        } catch (TimeoutException e) {
+            // this is good
+        }
+        assertEquals(1L, allocation.getCount());
+
+        pool.deallocate(second);
+        assertTrue("Allocation should succeed soon after de-allocation", allocation.await(1, TimeUnit.SECONDS));
+        assertEquals(0, pool.queued());
+    }
+
+    @Test
+    public void testTimedOutAllocationReleasesGatheredMemory() throws Exception {
+        BufferPool pool = new BufferPool(2048, 1024, metrics, time, metricGroup);
+        pool.allocate(1024, maxBlockTimeMs);
+        try {
+            pool.allocate(2048, 10);
+            fail("The buffer allocated more memory than its maximum value 2048");
+        } catch (TimeoutException e) {
+            // this is good
+        }
+        assertEquals(1024, pool.availableMemory());
+        assertEquals(1024, pool.allocate(1024, maxBlockTimeMs).capacity());
+    }
+
     private static class BufferPoolAllocator implements Runnable {
         BufferPool pool;
         long maxBlockTimeMs;
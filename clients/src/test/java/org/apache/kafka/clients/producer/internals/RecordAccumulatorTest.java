@@ -193,6 +193,59 @@ public class RecordAccumulatorTest {
             t.join();
     }
 
+    @Test
+    public void testStripedAppendsPreserveOrderPerThread() throws Exception {
+        final int numThreads = 4;
+        final int msgs = 5000;
+        final RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 0L, 100L, 4, metrics, time);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int thread = i;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < msgs; i++) {
+                        try {
+                            byte[] value = ByteBuffer.allocate(8).putInt(thread).putInt(i).array();
+                            accum.append(tp1, 0L, key, value, null, maxBlockTimeMs);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        int[] nextSequence = new int[numThreads];
+        int read = 0;
+        long now = time.milliseconds();
+        while (read < numThreads * msgs) {
+            Set<Node> nodes = accum.ready(cluster, now).readyNodes;
+            List<RecordBatch> batches = accum.drain(cluster, nodes, 5 * 1024, 0).get(node1.id());
+            if (batches != null) {
+                for (RecordBatch batch : batches) {
+                    for (LogEntry entry : batch.records) {
+                        ByteBuffer value = entry.record().value();
+                        int thread = value.getInt();
+                        assertEquals("Records of a thread should be drained in the order they were appended",
+                                nextSequence[thread]++, value.getInt());
+                        read++;
+                    }
+                    accum.deallocate(batch);
+                }
+            }
+        }
+
+        for (Thread t : threads)
+            t.join();
+        assertFalse("No more batches should be ready", accum.hasUnsent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppendStripesMustBePositive() {
+        new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 0L, 100L, 0, metrics, time);
+    }
+
 
     @Test
     public void testNextReadyCheckDelay() throws Exception {
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class SizeClassedMemoryPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        SizeClassedMemoryPool pool = new SizeClassedMemoryPool(1024 * 1024, 1024, 64 * 1024);
+        assertCapacity(pool, 1, 1024);
+        assertCapacity(pool, 1024, 1024);
+        assertCapacity(pool, 1025, 1280);
+        assertCapacity(pool, 1700, 1792);
+        assertCapacity(pool, 1793, 2048);
+        assertCapacity(pool, 40 * 1024, 40 * 1024);
+        assertCapacity(pool, 41 * 1024, 48 * 1024);
+        // larger than the largest class
+        assertCapacity(pool, 64 * 1024 + 1, 64 * 1024 + 1);
+    }
+
+    private void assertCapacity(MemoryPool pool, int size, int expectedCapacity) {
+        ByteBuffer buffer = pool.tryAllocate(size);
+        assertEquals(expectedCapacity, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(size, buffer.limit());
+        pool.release(buffer);
+    }
+
+    @Test
+    public void testReleasedBuffersAreReused() {
+        SizeClassedMemoryPool pool = new SizeClassedMemoryPool(1024 * 1024, 1024, 64 * 1024);
+        ByteBuffer buffer = pool.tryAllocate(2000);
+        buffer.putInt(42);
+        pool.release(buffer);
+        assertEquals(2048, pool.freeMemory());
+
+        ByteBuffer reused = pool.tryAllocate(1900);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1900, reused.limit());
+        assertEquals(0, pool.freeMemory());
+        assertEquals(1024 * 1024 - 2048, pool.availableMemory());
+
+        // buffers larger than the largest class are not kept
+        pool.release(reused);
+        pool.release(pool.tryAllocate(100 * 1024));
+        assertEquals(2048, pool.freeMemory());
+        assertEquals(1024 * 1024, pool.availableMemory());
+    }
+
+    @Test
+    public void testOutOfMemory() {
+        SizeClassedMemoryPool pool = new SizeClassedMemoryPool(4096, 1024, 64 * 1024);
+        ByteBuffer first = pool.tryAllocate(3000);
+        assertFalse(pool.isOutOfMemory());
+        // an allocation succeeds as long as some memory is available, even if it is larger
+        ByteBuffer second = pool.tryAllocate(2000);
+        assertNotNull(second);
+        assertTrue(pool.isOutOfMemory());
+        assertEquals(0, pool.availableMemory());
+        assertNull(pool.tryAllocate(1));
+
+        pool.release(second);
+        assertFalse(pool.isOutOfMemory());
+        assertNotNull(pool.tryAllocate(1));
+        pool.release(first);
+    }
+
+    @Test
+    public void testFreeBuffersAreDroppedForNewAllocations() {
+        SizeClassedMemoryPool pool = new SizeClassedMemoryPool(8192, 1024, 64 * 1024);
+        ByteBuffer buffer = pool.tryAllocate(6144);
+        pool.release(buffer);
+        assertEquals(6144, pool.freeMemory());
+
+        // the free buffer is dropped to make room for a buffer of another class
+        ByteBuffer other = pool.tryAllocate(4096);
+        assertEquals(0, pool.freeMemory());
+        assertEquals(4096, pool.availableMemory());
+        pool.release(other);
+        assertEquals(4096, pool.freeMemory());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSize() {
+        new SizeClassedMemoryPool(4096).tryAllocate(-1);
+    }
+}
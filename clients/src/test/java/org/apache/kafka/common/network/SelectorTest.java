@@ -13,6 +13,7 @@
 package org.apache.kafka.common.network;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -22,6 +23,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
 
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.memory.SizeClassedMemoryPool;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.protocol.SecurityProtocol;
 import org.apache.kafka.common.utils.MockTime;
@@ -249,6 +252,38 @@ public class SelectorTest {
         assertEquals("The response should be from the previously muted node", "1", selector.completedReceives().get(0).source());
     }
 
+    @Test
+    public void testChannelsAreMutedWhileMemoryPoolIsExhausted() throws Exception {
+        this.selector.close();
+        // the first receive uses all the memory of the pool
+        MemoryPool pool = new SizeClassedMemoryPool(1, 16, 1024);
+        this.selector = new Selector(NetworkReceive.UNLIMITED, 5000, new Metrics(), time, "MetricGroup",
+                new HashMap<String, String>(), true, channelBuilder, pool);
+        blockingConnect("0");
+        blockingConnect("1");
+
+        selector.send(createSend("0", "hello"));
+        while (selector.completedReceives().isEmpty())
+            selector.poll(5);
+        NetworkReceive first = selector.completedReceives().get(0);
+        assertEquals("hello", asString(first));
+        assertTrue(pool.isOutOfMemory());
+
+        selector.send(createSend("1", "hi"));
+        for (int i = 0; i < 20; i++) {
+            selector.poll(5);
+            assertTrue("No receive should complete while the pool is out of memory", selector.completedReceives().isEmpty());
+        }
+        assertTrue("The channel waiting for memory should be muted", selector.channel("1").isMute());
+
+        pool.release(first.payload());
+        do {
+            selector.poll(5);
+        } while (selector.completedReceives().isEmpty());
+        assertEquals("1", selector.completedReceives().get(0).source());
+        assertEquals("hi", asString(selector.completedReceives().get(0)));
+        assertFalse(selector.channel("1").isMute());
+    }
 
     @Test
     public void testCloseOldestConnection() throws Exception {
@@ -18,9 +18,19 @@ package org.apache.kafka.common.protocol;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 public class ProtoUtilsTest {
     @Test(expected = IllegalArgumentException.class)
     public void schemaVersionOutOfRange() {
         ProtoUtils.requestSchema(ApiKeys.PRODUCE.id, Protocol.REQUESTS[ApiKeys.PRODUCE.id].length);
     }
+
+    @Test
+    public void interBrokerFetchVersionsAreNotAdvertised() {
+        assertEquals(Protocol.FETCH_LATEST_CLIENT_VERSION, ProtoUtils.latestVersion(ApiKeys.FETCH.id));
+        // the versions used between brokers can still be read and written
+        ProtoUtils.requestSchema(ApiKeys.FETCH.id, Protocol.REQUESTS[ApiKeys.FETCH.id].length - 1);
+        ProtoUtils.responseSchema(ApiKeys.FETCH.id, Protocol.RESPONSES[ApiKeys.FETCH.id].length - 1);
+    }
 }
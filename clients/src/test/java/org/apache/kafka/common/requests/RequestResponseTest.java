@@ -19,7 +19,10 @@ import org.apache.kafka.common.errors.UnknownServerException;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
+import org.apache.kafka.common.protocol.Protocol;
 import org.apache.kafka.common.protocol.SecurityProtocol;
+import org.apache.kafka.common.protocol.types.SchemaException;
+import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.record.Record;
 import org.junit.Test;
 
@@ -50,8 +53,6 @@ public class RequestResponseTest {
                 createControlledShutdownResponse(),
                 createControlledShutdownRequest().getErrorResponse(1, new UnknownServerException()),
                 createFetchRequest(),
-                createFetchRequest().getErrorResponse(1, new UnknownServerException()),
-                createFetchResponse(),
                 createHeartBeatRequest(),
                 createHeartBeatRequest().getErrorResponse(0, new UnknownServerException()),
                 createHeartBeatResponse(),
@@ -107,6 +108,13 @@ public class RequestResponseTest {
         createMetadataResponse(0);
         createMetadataRequest(Arrays.asList("topic1")).getErrorResponse(0, new UnknownServerException());
         checkSerialization(createFetchRequest().getErrorResponse(0, new UnknownServerException()), 0);
+        checkSerialization(createFetchRequest().getErrorResponse(1, new UnknownServerException()), 1);
+        checkSerialization(createFetchRequest().getErrorResponse(2, new UnknownServerException()), 2);
+        checkSerialization(createFetchRequest(2), 2);
+        checkSerialization(createFetchRequest(3).getErrorResponse(3, new UnknownServerException()), 3);
+        checkSerialization(createIncrementalFetchRequest(), 3);
+        checkSerialization(createFetchResponse(), 3);
+        checkSerialization(createIncrementalFetchRequest().getErrorResponse(3, new UnknownServerException()), 3);
         checkSerialization(createOffsetCommitRequest(0), 0);
         checkSerialization(createOffsetCommitRequest(0).getErrorResponse(0, new UnknownServerException()), 0);
         checkSerialization(createOffsetCommitRequest(1), 1);
@@ -160,12 +168,128 @@ public class RequestResponseTest {
 
         FetchResponse v0Response = new FetchResponse(responseData);
         FetchResponse v1Response = new FetchResponse(responseData, 10);
+        FetchResponse v3Response = new FetchResponse(Errors.NONE.code(), 123, responseData, 10);
         assertEquals("Throttle time must be zero", 0, v0Response.getThrottleTime());
         assertEquals("Throttle time must be 10", 10, v1Response.getThrottleTime());
+        assertEquals("Throttle time must be 10", 10, v3Response.getThrottleTime());
         assertEquals("Should use schema version 0", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 0), v0Response.toStruct().schema());
         assertEquals("Should use schema version 1", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 1), v1Response.toStruct().schema());
+        assertEquals("Should use schema version 3", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 3), v3Response.toStruct().schema());
         assertEquals("Response data does not match", responseData, v0Response.responseData());
         assertEquals("Response data does not match", responseData, v1Response.responseData());
+        assertEquals("Response data does not match", responseData, v3Response.responseData());
+        assertEquals("Session id must be 0", FetchRequest.INVALID_SESSION_ID, v1Response.sessionId());
+        assertEquals("Session id must be 123", 123, v3Response.sessionId());
+    }
+
+    @Test
+    public void fetchResponseDirectSerializationTest() {
+        Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<>();
+        responseData.put(new TopicPartition("test1", 0), new FetchResponse.PartitionData(Errors.NONE.code(), 1000000, recordSet(10)));
+        responseData.put(new TopicPartition("test1", 1), new FetchResponse.PartitionData(Errors.NOT_LEADER_FOR_PARTITION.code(),
+                FetchResponse.INVALID_HIGHWATERMARK, FetchResponse.EMPTY_RECORD_SET));
+        responseData.put(new TopicPartition("test2", 0), new FetchResponse.PartitionData(Errors.NONE.code(), 5, recordSet(100)));
+
+        List<FetchResponse> responses = Arrays.asList(new FetchResponse(responseData), new FetchResponse(responseData, 10, 1),
+                new FetchResponse(responseData, 10, 2), new FetchResponse(Errors.NONE.code(), 123, responseData, 10));
+        for (int version = 0; version < responses.size(); version++) {
+            FetchResponse response = responses.get(version);
+            ByteBuffer direct = serialize(response);
+            assertEquals("Version " + version + " should match the struct encoding", serialize(response.toStruct()), direct);
+
+            FetchResponse deserialized = FetchResponse.parse(direct.duplicate(), version);
+            assertEquals(response, deserialized);
+            assertEquals(responseData.keySet(), deserialized.responseData().keySet());
+            assertEquals(recordSet(100), deserialized.responseData().get(new TopicPartition("test2", 0)).recordSet);
+            assertEquals(response.getThrottleTime(), deserialized.getThrottleTime());
+            assertEquals(response.sessionId(), deserialized.sessionId());
+            // the record sets are not modified by serialization
+            assertEquals(10, responseData.get(new TopicPartition("test1", 0)).recordSet.remaining());
+        }
+    }
+
+    @Test
+    public void fetchSessionVersionsAreNotAdvertisedTest() {
+        ApiVersionsResponse.ApiVersion fetchVersions = ApiVersionsResponse.apiVersionsResponse().apiVersion(ApiKeys.FETCH.id);
+        assertEquals(Protocol.FETCH_LATEST_CLIENT_VERSION, fetchVersions.maxVersion);
+        // consumers fetch without a session
+        FetchRequest request = new FetchRequest(100, 100000, new HashMap<TopicPartition, FetchRequest.PartitionData>());
+        assertEquals(ProtoUtils.requestSchema(ApiKeys.FETCH.id, Protocol.FETCH_LATEST_CLIENT_VERSION), request.toStruct().schema());
+    }
+
+    @Test(expected = SchemaException.class)
+    public void fetchResponseTruncatedTest() {
+        Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<>();
+        responseData.put(new TopicPartition("test", 0), new FetchResponse.PartitionData(Errors.NONE.code(), 1000000, recordSet(10)));
+        ByteBuffer buffer = serialize(new FetchResponse(Errors.NONE.code(), 123, responseData, 10));
+        buffer.limit(buffer.limit() - 15);
+        FetchResponse.parse(buffer, 3);
+    }
+
+    @Test
+    public void produceRequestDirectSerializationTest() {
+        Map<TopicPartition, ByteBuffer> produceData = new HashMap<>();
+        produceData.put(new TopicPartition("test1", 0), recordSet(10));
+        produceData.put(new TopicPartition("test1", 1), recordSet(20));
+        produceData.put(new TopicPartition("test2", 0), recordSet(30));
+        ProduceRequest request = new ProduceRequest((short) -1, 5000, produceData);
+        ByteBuffer direct = serialize(request);
+        assertEquals(serialize(request.toStruct()), direct);
+
+        for (int version = 0; version <= ProtoUtils.latestVersion(ApiKeys.PRODUCE.id); version++) {
+            ProduceRequest deserialized = ProduceRequest.parse(direct.duplicate(), version);
+            assertEquals(request, deserialized);
+            assertEquals((short) -1, deserialized.acks());
+            assertEquals(5000, deserialized.timeout());
+            assertEquals(produceData, deserialized.partitionRecords());
+        }
+    }
+
+    private ByteBuffer recordSet(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++)
+            buffer.put((byte) i);
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer serialize(AbstractRequestResponse requestResponse) {
+        ByteBuffer buffer = ByteBuffer.allocate(requestResponse.sizeOf());
+        requestResponse.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer serialize(Struct struct) {
+        ByteBuffer buffer = ByteBuffer.allocate(struct.sizeOf());
+        struct.writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void fetchRequestSessionTest() {
+        FetchRequest request = (FetchRequest) createIncrementalFetchRequest();
+        ByteBuffer buffer = ByteBuffer.allocate(request.sizeOf());
+        request.writeTo(buffer);
+        buffer.rewind();
+        FetchRequest deserialized = FetchRequest.parse(buffer, 3);
+        assertEquals(123, deserialized.sessionId());
+        assertEquals(5, deserialized.sessionEpoch());
+        assertEquals(Collections.singleton(new TopicPartition("test1", 0)), deserialized.fetchData().keySet());
+        assertEquals(new HashSet<>(Arrays.asList(new TopicPartition("test2", 0), new TopicPartition("test2", 1))),
+                new HashSet<>(deserialized.toForget()));
+
+        FetchRequest sessionless = (FetchRequest) createFetchRequest();
+        assertEquals(FetchRequest.INVALID_SESSION_ID, sessionless.sessionId());
+        assertEquals(FetchRequest.FINAL_EPOCH, sessionless.sessionEpoch());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fetchRequestSessionNotSupportedBeforeV3() {
+        new FetchRequest(2, 1, 100, 100000, 123, 5, new HashMap<TopicPartition, FetchRequest.PartitionData>(),
+                Collections.<TopicPartition>emptyList());
     }
 
     @Test
@@ -209,16 +333,28 @@ public class RequestResponseTest {
     }
 
     private AbstractRequest createFetchRequest() {
+        return createFetchRequest(ProtoUtils.latestVersion(ApiKeys.FETCH.id));
+    }
+
+    private AbstractRequest createFetchRequest(int version) {
         Map<TopicPartition, FetchRequest.PartitionData> fetchData = new HashMap<>();
         fetchData.put(new TopicPartition("test1", 0), new FetchRequest.PartitionData(100, 1000000));
         fetchData.put(new TopicPartition("test2", 0), new FetchRequest.PartitionData(200, 1000000));
-        return new FetchRequest(-1, 100, 100000, fetchData);
+        return new FetchRequest(version, -1, 100, 100000, FetchRequest.INVALID_SESSION_ID, FetchRequest.FINAL_EPOCH, fetchData,
+                Collections.<TopicPartition>emptyList());
+    }
+
+    private AbstractRequest createIncrementalFetchRequest() {
+        Map<TopicPartition, FetchRequest.PartitionData> fetchData = new HashMap<>();
+        fetchData.put(new TopicPartition("test1", 0), new FetchRequest.PartitionData(100, 1000000));
+        List<TopicPartition> toForget = Arrays.asList(new TopicPartition("test2", 0), new TopicPartition("test2", 1));
+        return new FetchRequest(3, 1, 100, 100000, 123, 5, fetchData, toForget);
     }
 
     private AbstractRequestResponse createFetchResponse() {
         Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<>();
         responseData.put(new TopicPartition("test", 0), new FetchResponse.PartitionData(Errors.NONE.code(), 1000000, ByteBuffer.allocate(10)));
-        return new FetchResponse(responseData, 0);
+        return new FetchResponse(Errors.NONE.code(), 123, responseData, 0);
     }
 
     private AbstractRequest createHeartBeatRequest() {
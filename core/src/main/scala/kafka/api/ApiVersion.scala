@@ -51,7 +51,12 @@ object ApiVersion {
     "0.10.0-IV0" -> KAFKA_0_10_0_IV0,
     // 0.10.0-IV1 is introduced for KIP-36(rack awareness) and KIP-43(SASL handshake).
     "0.10.0-IV1" -> KAFKA_0_10_0_IV1,
-    "0.10.0" -> KAFKA_0_10_0_IV1
+    "0.10.0" -> KAFKA_0_10_0_IV1,
+    // 0.10.0-fetch-session-IV0 is introduced for incremental fetch sessions (fetch request v3 between brokers). It is
+    // not named after a later release so that it cannot be mistaken for the internal versions of that release.
+    "0.10.0-fetch-session-IV0" -> KAFKA_0_10_0_FETCH_SESSION_IV0,
+    // 0.10.0-zstd-IV0 is introduced for the zstd compression codec (message format and fetch request v4 between brokers).
+    "0.10.0-zstd-IV0" -> KAFKA_0_10_0_ZSTD_IV0
   )
 
   private val versionPattern = "\\.".r
@@ -111,3 +116,15 @@ case object KAFKA_0_10_0_IV1 extends ApiVersion {
   val messageFormatVersion: Byte = Message.MagicValue_V1
   val id: Int = 5
 }
+
+case object KAFKA_0_10_0_FETCH_SESSION_IV0 extends ApiVersion {
+  val version: String = "0.10.0-fetch-session-IV0"
+  val messageFormatVersion: Byte = Message.MagicValue_V1
+  val id: Int = 6
+}
+
+case object KAFKA_0_10_0_ZSTD_IV0 extends ApiVersion {
+  val version: String = "0.10.0-zstd-IV0"
+  val messageFormatVersion: Byte = Message.MagicValue_V1
+  val id: Int = 7
+}
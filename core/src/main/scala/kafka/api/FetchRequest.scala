@@ -21,22 +21,31 @@ import kafka.utils.nonthreadsafe
 import kafka.api.ApiUtils._
 import kafka.common.TopicAndPartition
 import kafka.consumer.ConsumerConfig
-import kafka.network.RequestChannel
+import kafka.network.{InvalidRequestException, RequestChannel}
 import kafka.message.MessageSet
 
 import java.util.concurrent.atomic.AtomicInteger
 import java.nio.ByteBuffer
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
+import org.apache.kafka.common.requests.{FetchRequest => JFetchRequest}
 
 import scala.collection.immutable.Map
 
 case class PartitionFetchInfo(offset: Long, fetchSize: Int)
 
 object FetchRequest {
+  // the latest version of consumers, the versions from SessionVersion on are only used by replica fetchers
   val CurrentVersion = 2.shortValue
   val DefaultMaxWait = 0
   val DefaultMinBytes = 0
   val DefaultCorrelationId = 0
+  // the first version with fetch sessions
+  val SessionVersion = 3.shortValue
+  // the first version whose responses may contain messages compressed with zstd
+  val ZStdVersion = 4.shortValue
+  val InvalidSessionId = JFetchRequest.INVALID_SESSION_ID
+  val InitialEpoch = JFetchRequest.INITIAL_EPOCH
+  val FinalEpoch = JFetchRequest.FINAL_EPOCH
 
   def readFrom(buffer: ByteBuffer): FetchRequest = {
     val versionId = buffer.getShort
@@ -45,6 +54,13 @@ object FetchRequest {
     val replicaId = buffer.getInt
     val maxWait = buffer.getInt
     val minBytes = buffer.getInt
+    // other Kafka releases give different schemas to these versions, so only brokers may send them
+    if (versionId > CurrentVersion && !Request.isValidBrokerId(replicaId))
+      throw new InvalidRequestException(s"Fetch request version $versionId is only supported for replica fetchers, " +
+        s"but it was sent by $clientId")
+    val (sessionId, sessionEpoch) =
+      if (versionId >= SessionVersion) (buffer.getInt, buffer.getInt)
+      else (InvalidSessionId, FinalEpoch)
     val topicCount = buffer.getInt
     val pairs = (1 to topicCount).flatMap(_ => {
       val topic = readShortString(buffer)
@@ -56,7 +72,16 @@ object FetchRequest {
         (TopicAndPartition(topic, partitionId), PartitionFetchInfo(offset, fetchSize))
       })
     })
-    FetchRequest(versionId, correlationId, clientId, replicaId, maxWait, minBytes, Map(pairs:_*))
+    val toForget =
+      if (versionId >= SessionVersion) {
+        val forgottenTopicCount = buffer.getInt
+        (1 to forgottenTopicCount).flatMap { _ =>
+          val topic = readShortString(buffer)
+          val partitionCount = buffer.getInt
+          (1 to partitionCount).map(_ => TopicAndPartition(topic, buffer.getInt))
+        }
+      } else Seq.empty
+    FetchRequest(versionId, correlationId, clientId, replicaId, maxWait, minBytes, Map(pairs:_*), sessionId, sessionEpoch, toForget)
   }
 }
 
@@ -66,7 +91,10 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
                         replicaId: Int = Request.OrdinaryConsumerId,
                         maxWait: Int = FetchRequest.DefaultMaxWait,
                         minBytes: Int = FetchRequest.DefaultMinBytes,
-                        requestInfo: Map[TopicAndPartition, PartitionFetchInfo])
+                        requestInfo: Map[TopicAndPartition, PartitionFetchInfo],
+                        sessionId: Int = FetchRequest.InvalidSessionId,
+                        sessionEpoch: Int = FetchRequest.FinalEpoch,
+                        toForget: Seq[TopicAndPartition] = Seq.empty)
         extends RequestOrResponse(Some(ApiKeys.FETCH.id)) {
 
   /**
@@ -74,6 +102,8 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
    */
   lazy val requestInfoGroupedByTopic = requestInfo.groupBy(_._1.topic)
 
+  private lazy val toForgetGroupedByTopic = toForget.groupBy(_.topic)
+
   /**
    *  Public constructor for the clients
    */
@@ -98,6 +128,10 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
     buffer.putInt(replicaId)
     buffer.putInt(maxWait)
     buffer.putInt(minBytes)
+    if (versionId >= FetchRequest.SessionVersion) {
+      buffer.putInt(sessionId)
+      buffer.putInt(sessionEpoch)
+    }
     buffer.putInt(requestInfoGroupedByTopic.size) // topic count
     requestInfoGroupedByTopic.foreach {
       case (topic, partitionFetchInfos) =>
@@ -110,6 +144,14 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
             buffer.putInt(fetchSize)
         }
     }
+    if (versionId >= FetchRequest.SessionVersion) {
+      buffer.putInt(toForgetGroupedByTopic.size) // forgotten topic count
+      toForgetGroupedByTopic.foreach { case (topic, partitions) =>
+        writeShortString(buffer, topic)
+        buffer.putInt(partitions.size)
+        partitions.foreach(topicAndPartition => buffer.putInt(topicAndPartition.partition))
+      }
+    }
   }
 
   def sizeInBytes: Int = {
@@ -130,7 +172,16 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
         8 + /* offset */
         4 /* fetch size */
       )
-    })
+    }) + {
+      if (versionId >= FetchRequest.SessionVersion) {
+        4 + /* sessionId */
+        4 + /* sessionEpoch */
+        4 + /* forgotten topic count */
+        toForgetGroupedByTopic.foldLeft(0) { case (folded, (topic, partitions)) =>
+          folded + shortStringLength(topic) + 4 /* partition count */ + partitions.size * 4 /* partition id */
+        }
+      } else 0
+    }
   }
 
   def isFromFollower = Request.isValidBrokerId(replicaId)
@@ -151,7 +202,7 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
         (topicAndPartition, FetchResponsePartitionData(Errors.forException(e).code, -1, MessageSet.Empty))
     }
     val fetchRequest = request.requestObj.asInstanceOf[FetchRequest]
-    val errorResponse = FetchResponse(correlationId, fetchResponsePartitionData, fetchRequest.versionId)
+    val errorResponse = FetchResponse(correlationId, fetchResponsePartitionData, fetchRequest.versionId, sessionId = sessionId)
     // Magic value does not matter here because the message set is empty
     requestChannel.sendResponse(new RequestChannel.Response(request, new FetchResponseSend(request.connectionId, errorResponse)))
   }
@@ -165,8 +216,15 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
     fetchRequest.append("; ReplicaId: " + replicaId)
     fetchRequest.append("; MaxWait: " + maxWait + " ms")
     fetchRequest.append("; MinBytes: " + minBytes + " bytes")
-    if(details)
+    if (versionId >= FetchRequest.SessionVersion) {
+      fetchRequest.append("; SessionId: " + sessionId)
+      fetchRequest.append("; SessionEpoch: " + sessionEpoch)
+    }
+    if(details) {
       fetchRequest.append("; RequestInfo: " + requestInfo.mkString(","))
+      if (toForget.nonEmpty)
+        fetchRequest.append("; ToForget: " + toForget.mkString(","))
+    }
     fetchRequest.toString()
   }
 }
@@ -165,6 +165,9 @@ object FetchResponse {
   def readFrom(buffer: ByteBuffer, requestVersion: Int): FetchResponse = {
     val correlationId = buffer.getInt
     val throttleTime = if (requestVersion > 0) buffer.getInt else 0
+    val (error, sessionId) =
+      if (requestVersion >= FetchRequest.SessionVersion) (buffer.getShort, buffer.getInt)
+      else (Errors.NONE.code, FetchRequest.InvalidSessionId)
     val topicCount = buffer.getInt
     val pairs = (1 to topicCount).flatMap(_ => {
       val topicData = TopicData.readFrom(buffer)
@@ -173,15 +176,17 @@ object FetchResponse {
           (TopicAndPartition(topicData.topic, partitionId), partitionData)
       }
     })
-    FetchResponse(correlationId, Map(pairs:_*), requestVersion, throttleTime)
+    FetchResponse(correlationId, Map(pairs:_*), requestVersion, throttleTime, error, sessionId)
   }
 
   // Returns the size of the response header
   def headerSize(requestVersion: Int): Int = {
     val throttleTimeSize = if (requestVersion > 0) 4 else 0
+    val sessionSize = if (requestVersion >= FetchRequest.SessionVersion) 2 /* error code */ + 4 /* session id */ else 0
     4 + /* correlationId */
     4 + /* topic count */
-    throttleTimeSize
+    throttleTimeSize +
+    sessionSize
   }
 
   // Returns the size of entire fetch response in bytes (including the header size)
@@ -200,7 +205,9 @@ object FetchResponse {
 case class FetchResponse(correlationId: Int,
                          data: Map[TopicAndPartition, FetchResponsePartitionData],
                          requestVersion: Int = 0,
-                         throttleTimeMs: Int = 0)
+                         throttleTimeMs: Int = 0,
+                         error: Short = Errors.NONE.code,
+                         sessionId: Int = FetchRequest.InvalidSessionId)
   extends RequestOrResponse() {
 
   /**
@@ -219,6 +226,10 @@ case class FetchResponse(correlationId: Int,
     // Include the throttleTime only if the client can read it
     if (requestVersion > 0)
       buffer.putInt(throttleTimeMs)
+    if (requestVersion >= FetchRequest.SessionVersion) {
+      buffer.putShort(error)
+      buffer.putInt(sessionId)
+    }
 
     buffer.putInt(dataGroupedByTopic.size) // topic count
   }
@@ -34,7 +34,7 @@ import org.apache.kafka.clients.consumer.ConsumerRecord
 import kafka.utils._
 import kafka.common._
 import kafka.message._
-import kafka.log.FileMessageSet
+import kafka.log.{FileMessageSet, Log}
 import kafka.metrics.KafkaMetricsGroup
 import kafka.common.TopicAndPartition
 import kafka.common.MessageFormatter
@@ -42,8 +42,8 @@ import kafka.server.ReplicaManager
 import scala.collection._
 import java.io.PrintStream
 import java.nio.ByteBuffer
-import java.util.concurrent.atomic.AtomicBoolean
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.concurrent.{Callable, Executors, Future, ThreadFactory, TimeUnit}
 import com.yammer.metrics.core.Gauge
 import org.apache.kafka.common.internals.TopicConstants
 
@@ -57,7 +57,7 @@ class GroupMetadataManager(val brokerId: Int,
                            time: Time) extends Logging with KafkaMetricsGroup {
 
   /* offsets cache */
-  private val offsetsCache = new Pool[GroupTopicPartition, OffsetAndMetadata]
+  private val offsetsCache = new OffsetCache
 
   /* group metadata cache */
   private val groupsCache = new Pool[String, GroupMetadata]
@@ -77,13 +77,24 @@ class GroupMetadataManager(val brokerId: Int,
   /* number of partitions for the consumer metadata topic */
   private val groupMetadataTopicPartitionCount = getOffsetsTopicPartitionCount
 
-  /* Single-thread scheduler to handling offset/group metadata cache loading and unloading */
-  private val scheduler = new KafkaScheduler(threads = 1, threadNamePrefix = "group-metadata-manager-")
+  /* Single-thread schedulers handling offset/group metadata cache loading and unloading. A partition of the offsets
+   * topic is always handled by the same scheduler so that its loading and unloading are never reordered, while
+   * different partitions are loaded in parallel */
+  private val schedulers = (0 until config.loadThreads).map { i =>
+    new KafkaScheduler(threads = 1, threadNamePrefix = "group-metadata-manager-" + i + "-")
+  }
+
+  /* The threads reading the segments of the partitions being loaded, shared by all the loading partitions */
+  private val segmentReaderIndex = new AtomicInteger(0)
+  private val segmentReaders = Executors.newFixedThreadPool(config.loadThreads, new ThreadFactory {
+    def newThread(runnable: Runnable): Thread =
+      Utils.daemonThread("group-metadata-segment-reader-" + segmentReaderIndex.getAndIncrement(), runnable)
+  })
 
   this.logIdent = "[Group Metadata Manager on Broker " + brokerId + "]: "
 
-  scheduler.startup()
-  scheduler.schedule(name = "delete-expired-consumer-offsets",
+  schedulers.foreach(_.startup())
+  schedulers.head.schedule(name = "delete-expired-consumer-offsets",
     fun = deleteExpiredOffsets,
     period = config.offsetsRetentionCheckIntervalMs,
     unit = TimeUnit.MILLISECONDS)
@@ -102,6 +113,8 @@ class GroupMetadataManager(val brokerId: Int,
 
   def currentGroups(): Iterable[GroupMetadata] = groupsCache.values
 
+  private def schedulerFor(offsetsPartition: Int): KafkaScheduler = schedulers(offsetsPartition % schedulers.size)
+
   def partitionFor(groupId: String): Int = Utils.abs(groupId.hashCode) % groupMetadataTopicPartitionCount
 
   def isGroupLocal(groupId: String): Boolean = loadingPartitions synchronized ownedPartitions.contains(partitionFor(groupId))
@@ -326,9 +339,9 @@ class GroupMetadataManager(val brokerId: Int,
     if (isGroupLocal(group)) {
       if (topicPartitions.isEmpty) {
         // Return offsets for all partitions owned by this consumer group. (this only applies to consumers that commit offsets to Kafka.)
-        offsetsCache.filter(_._1.group == group).map { case(groupTopicPartition, offsetAndMetadata) =>
-          (groupTopicPartition.topicPartition, new OffsetFetchResponse.PartitionData(offsetAndMetadata.offset, offsetAndMetadata.metadata, Errors.NONE.code))
-        }.toMap
+        offsetsCache.offsets(group).map { case (topicPartition, offsetAndMetadata) =>
+          (topicPartition, new OffsetFetchResponse.PartitionData(offsetAndMetadata.offset, offsetAndMetadata.metadata, Errors.NONE.code))
+        }
       } else {
         topicPartitions.map { topicPartition =>
           val groupTopicPartition = GroupTopicPartition(group, topicPartition)
@@ -350,7 +363,7 @@ class GroupMetadataManager(val brokerId: Int,
   def loadGroupsForPartition(offsetsPartition: Int,
                              onGroupLoaded: GroupMetadata => Unit) {
     val topicPartition = TopicAndPartition(TopicConstants.GROUP_METADATA_TOPIC_NAME, offsetsPartition)
-    scheduler.schedule(topicPartition.toString, loadGroupsAndOffsets)
+    schedulerFor(offsetsPartition).schedule(topicPartition.toString, loadGroupsAndOffsets)
 
     def loadGroupsAndOffsets() {
       info("Loading offsets and group metadata from " + topicPartition)
@@ -368,79 +381,87 @@ class GroupMetadataManager(val brokerId: Int,
       try {
         replicaManager.logManager.getLog(topicPartition) match {
           case Some(log) =>
-            var currOffset = log.logSegments.head.baseOffset
-            val buffer = ByteBuffer.allocate(config.loadBufferSize)
-            // loop breaks if leader changes at any time during the load, since getHighWatermark is -1
-            inWriteLock(offsetExpireLock) {
+            // read the segments in parallel, each into the last state of the keys it contains, and then apply the
+            // segments in log order which gives the same result as replaying the whole partition
+            val highWatermark = getHighWatermark(offsetsPartition)
+            val segmentRanges = log.logSegments.map(_.baseOffset).toSeq.filter(_ < highWatermark)
+              .foldRight(List.empty[(Long, Long)]) { (baseOffset, ranges) =>
+                (baseOffset, ranges.headOption.map(_._1).getOrElse(highWatermark)) :: ranges
+              }
+
+            // only a few segments are read ahead of the one being applied, so that a partition neither holds many
+            // segments in memory nor takes all the readers from the other partitions being loaded
+            val pendingRanges = mutable.Queue(segmentRanges: _*)
+            val segmentReads = mutable.Queue[Future[LoadedSegment]]()
+            def readAhead() {
+              while (segmentReads.size < GroupMetadataManager.SegmentReadAhead && pendingRanges.nonEmpty) {
+                val (start, end) = pendingRanges.dequeue()
+                segmentReads += segmentReaders.submit(new Callable[LoadedSegment] {
+                  def call() = readSegment(log, offsetsPartition, start, end)
+                })
+              }
+            }
+
+            try {
               val loadedGroups = mutable.Map[String, GroupMetadata]()
               val removedGroups = mutable.Set[String]()
 
-              while (currOffset < getHighWatermark(offsetsPartition) && !shuttingDown.get()) {
-                buffer.clear()
-                val messages = log.read(currOffset, config.loadBufferSize).messageSet.asInstanceOf[FileMessageSet]
-                messages.readInto(buffer, 0)
-                val messageSet = new ByteBufferMessageSet(buffer)
-                messageSet.foreach { msgAndOffset =>
-                  require(msgAndOffset.message.key != null, "Offset entry key should not be null")
-                  val baseKey = GroupMetadataManager.readMessageKey(msgAndOffset.message.key)
-
-                  if (baseKey.isInstanceOf[OffsetKey]) {
-                    // load offset
-                    val key = baseKey.key.asInstanceOf[GroupTopicPartition]
-                    if (msgAndOffset.message.payload == null) {
-                      if (offsetsCache.remove(key) != null)
+              // apply each segment as soon as it is read, waiting for the read without the lock so that the other
+              // partitions and the offset expiration are only held up while a segment is applied, and stop after the
+              // first segment that was not read completely, as the following ones may have been read past a leader change
+              var complete = true
+              readAhead()
+              while (complete && segmentReads.nonEmpty) {
+                val segment = segmentReads.dequeue().get
+                if (segment.complete)
+                  readAhead()
+                inWriteLock(offsetExpireLock) {
+                  segment.offsets.foreach {
+                    case (key, None) =>
+                      if (offsetsCache.remove(key.group, key.topicPartition))
                         trace("Removed offset for %s due to tombstone entry.".format(key))
                       else
                         trace("Ignoring redundant tombstone for %s.".format(key))
-                    } else {
-                      // special handling for version 0:
-                      // set the expiration time stamp as commit time stamp + server default retention time
-                      val value = GroupMetadataManager.readOffsetMessageValue(msgAndOffset.message.payload)
-                      putOffset(key, value.copy (
-                        expireTimestamp = {
-                          if (value.expireTimestamp == org.apache.kafka.common.requests.OffsetCommitRequest.DEFAULT_TIMESTAMP)
-                            value.commitTimestamp + config.offsetsRetentionMs
-                          else
-                            value.expireTimestamp
-                        }
-                      ))
+                    case (key, Some(value)) =>
+                      putOffset(key, value)
                       trace("Loaded offset %s for %s.".format(value, key))
-                    }
-                  } else {
-                    // load group metadata
-                    val groupId = baseKey.key.asInstanceOf[String]
-                    val groupMetadata = GroupMetadataManager.readGroupMessageValue(groupId, msgAndOffset.message.payload)
-                    if (groupMetadata != null) {
-                      trace(s"Loaded group metadata for group ${groupMetadata.groupId} with generation ${groupMetadata.generationId}")
-                      removedGroups.remove(groupId)
-                      loadedGroups.put(groupId, groupMetadata)
-                    } else {
-                      loadedGroups.remove(groupId)
-                      removedGroups.add(groupId)
-                    }
                   }
+                }
 
-                  currOffset = msgAndOffset.nextOffset
+                segment.groups.foreach {
+                  case (groupId, Some(groupMetadata)) =>
+                    trace(s"Loaded group metadata for group ${groupMetadata.groupId} with generation ${groupMetadata.generationId}")
+                    removedGroups.remove(groupId)
+                    loadedGroups.put(groupId, groupMetadata)
+                  case (groupId, None) =>
+                    loadedGroups.remove(groupId)
+                    removedGroups.add(groupId)
                 }
+                complete = segment.complete
               }
 
-              loadedGroups.values.foreach { group =>
-                val currentGroup = addGroup(group)
-                if (group != currentGroup)
-                  debug(s"Attempt to load group ${group.groupId} from log with generation ${group.generationId} failed " +
-                    s"because there is already a cached group with generation ${currentGroup.generationId}")
-                else
-                  onGroupLoaded(group)
-              }
+              inWriteLock(offsetExpireLock) {
+                loadedGroups.values.foreach { group =>
+                  val currentGroup = addGroup(group)
+                  if (group != currentGroup)
+                    debug(s"Attempt to load group ${group.groupId} from log with generation ${group.generationId} failed " +
+                      s"because there is already a cached group with generation ${currentGroup.generationId}")
+                  else
+                    onGroupLoaded(group)
+                }
 
-              removedGroups.foreach { groupId =>
-                val group = groupsCache.get(groupId)
-                if (group != null)
-                  throw new IllegalStateException(s"Unexpected unload of acitve group ${group.groupId} while " +
-                    s"loading partition ${topicPartition}")
+                removedGroups.foreach { groupId =>
+                  val group = groupsCache.get(groupId)
+                  if (group != null)
+                    throw new IllegalStateException(s"Unexpected unload of acitve group ${group.groupId} while " +
+                      s"loading partition ${topicPartition}")
+                }
               }
+            } finally {
+              // the segments that are not applied do not need to be read, a read that is running is not interrupted
+              // since that would close the channel of the log
+              segmentReads.foreach(_.cancel(false))
             }
-
             if (!shuttingDown.get())
               info("Finished loading offsets from %s in %d milliseconds."
                 .format(topicPartition, time.milliseconds() - startMs))
@@ -461,6 +482,63 @@ class GroupMetadataManager(val brokerId: Int,
     }
   }
 
+  /**
+   * Read the messages of the offsets topic partition from the start offset up to the end offset, which should be the
+   * range of a single segment, into the last state of each offset and group found in the range.
+   */
+  private def readSegment(log: Log, offsetsPartition: Int, startOffset: Long, endOffset: Long): LoadedSegment = {
+    val segment = new LoadedSegment
+    val buffer = ByteBuffer.allocate(config.loadBufferSize)
+    var currOffset = startOffset
+    // loop breaks if leader changes at any time during the load, since getHighWatermark is -1
+    while (currOffset < endOffset && !shuttingDown.get() && getHighWatermark(offsetsPartition) >= 0) {
+      buffer.clear()
+      val messages = log.read(currOffset, config.loadBufferSize, Some(endOffset)).messageSet
+      if (messages.sizeInBytes == 0) {
+        // the rest of the range was removed by the log cleaner
+        currOffset = endOffset
+      } else {
+        messages.asInstanceOf[FileMessageSet].readInto(buffer, 0)
+        val messageSet = new ByteBufferMessageSet(buffer)
+        val readOffset = currOffset
+        // a compressed message set may start before the offset that was read from
+        messageSet.iterator.filter(_.offset >= readOffset).foreach { msgAndOffset =>
+          require(msgAndOffset.message.key != null, "Offset entry key should not be null")
+          val baseKey = GroupMetadataManager.readMessageKey(msgAndOffset.message.key)
+
+          if (baseKey.isInstanceOf[OffsetKey]) {
+            // load offset
+            val key = baseKey.key.asInstanceOf[GroupTopicPartition]
+            if (msgAndOffset.message.payload == null) {
+              segment.offsets.put(key, None)
+            } else {
+              // special handling for version 0:
+              // set the expiration time stamp as commit time stamp + server default retention time
+              val value = GroupMetadataManager.readOffsetMessageValue(msgAndOffset.message.payload)
+              segment.offsets.put(key, Some(value.copy (
+                expireTimestamp = {
+                  if (value.expireTimestamp == org.apache.kafka.common.requests.OffsetCommitRequest.DEFAULT_TIMESTAMP)
+                    value.commitTimestamp + config.offsetsRetentionMs
+                  else
+                    value.expireTimestamp
+                }
+              )))
+            }
+          } else {
+            // load group metadata
+            val groupId = baseKey.key.asInstanceOf[String]
+            val groupMetadata = GroupMetadataManager.readGroupMessageValue(groupId, msgAndOffset.message.payload)
+            segment.groups.put(groupId, Option(groupMetadata))
+          }
+
+          currOffset = msgAndOffset.nextOffset
+        }
+      }
+    }
+    segment.complete = currOffset >= endOffset
+    segment
+  }
+
   /**
    * When this broker becomes a follower for an offsets topic partition clear out the cache for groups that belong to
    * that partition.
@@ -469,7 +547,7 @@ class GroupMetadataManager(val brokerId: Int,
   def removeGroupsForPartition(offsetsPartition: Int,
                                onGroupUnloaded: GroupMetadata => Unit) {
     val topicPartition = TopicAndPartition(TopicConstants.GROUP_METADATA_TOPIC_NAME, offsetsPartition)
-    scheduler.schedule(topicPartition.toString, removeGroupsAndOffsets)
+    schedulerFor(offsetsPartition).schedule(topicPartition.toString, removeGroupsAndOffsets)
 
     def removeGroupsAndOffsets() {
       var numOffsetsRemoved = 0
@@ -487,12 +565,7 @@ class GroupMetadataManager(val brokerId: Int,
          * in getOffsets to protects against fetching from an empty/cleared offset cache (i.e., cleared due to a leader->follower
          * transition right after the check and clear the cache), causing offset fetch return empty offsets with NONE error code
          */
-        offsetsCache.keys.foreach { key =>
-          if (partitionFor(key.group) == offsetsPartition) {
-            offsetsCache.remove(key)
-            numOffsetsRemoved += 1
-          }
-        }
+        numOffsetsRemoved = offsetsCache.removeGroups(group => partitionFor(group) == offsetsPartition)
 
         // clear the groups for this partition in the cache
         for (group <- groupsCache.values) {
@@ -519,11 +592,12 @@ class GroupMetadataManager(val brokerId: Int,
    * @return If the key is present, return the offset and metadata; otherwise return None
    */
   private def getOffset(key: GroupTopicPartition): OffsetFetchResponse.PartitionData = {
-    val offsetAndMetadata = offsetsCache.get(key)
-    if (offsetAndMetadata == null)
-      new OffsetFetchResponse.PartitionData(OffsetFetchResponse.INVALID_OFFSET, "", Errors.NONE.code)
-    else
-      new OffsetFetchResponse.PartitionData(offsetAndMetadata.offset, offsetAndMetadata.metadata, Errors.NONE.code)
+    offsetsCache.get(key.group, key.topicPartition) match {
+      case None =>
+        new OffsetFetchResponse.PartitionData(OffsetFetchResponse.INVALID_OFFSET, "", Errors.NONE.code)
+      case Some(offsetAndMetadata) =>
+        new OffsetFetchResponse.PartitionData(offsetAndMetadata.offset, offsetAndMetadata.metadata, Errors.NONE.code)
+    }
   }
 
   /**
@@ -533,7 +607,7 @@ class GroupMetadataManager(val brokerId: Int,
    * @param offsetAndMetadata The offset/metadata to be stored
    */
   private def putOffset(key: GroupTopicPartition, offsetAndMetadata: OffsetAndMetadata) {
-    offsetsCache.put(key, offsetAndMetadata)
+    offsetsCache.put(key.group, key.topicPartition, offsetAndMetadata)
   }
 
   private def deleteExpiredOffsets() {
@@ -541,19 +615,15 @@ class GroupMetadataManager(val brokerId: Int,
     val startMs = time.milliseconds()
 
     val numExpiredOffsetsRemoved = inWriteLock(offsetExpireLock) {
-      val expiredOffsets = offsetsCache.filter { case (groupTopicPartition, offsetAndMetadata) =>
-        offsetAndMetadata.expireTimestamp < startMs
-      }
+      val expiredOffsets = offsetsCache.removeExpired(startMs)
 
       debug("Found %d expired offsets.".format(expiredOffsets.size))
 
-      // delete the expired offsets from the table and generate tombstone messages to remove them from the log
+      // generate tombstone messages to remove the expired offsets, which were deleted from the table, from the log
       val tombstonesForPartition = expiredOffsets.map { case (groupTopicAndPartition, offsetAndMetadata) =>
         val offsetsPartition = partitionFor(groupTopicAndPartition.group)
         trace("Removing expired offset and metadata for %s: %s".format(groupTopicAndPartition, offsetAndMetadata))
 
-        offsetsCache.remove(groupTopicAndPartition)
-
         val commitKey = GroupMetadataManager.offsetCommitKey(groupTopicAndPartition.group,
           groupTopicAndPartition.topicPartition.topic, groupTopicAndPartition.topicPartition.partition)
 
@@ -609,7 +679,9 @@ class GroupMetadataManager(val brokerId: Int,
 
   def shutdown() {
     shuttingDown.set(true)
-    scheduler.shutdown()
+    schedulers.foreach(_.shutdown())
+    segmentReaders.shutdown()
+    segmentReaders.awaitTermination(1, TimeUnit.DAYS)
 
     // TODO: clear the caches
   }
@@ -665,6 +737,9 @@ class GroupMetadataManager(val brokerId: Int,
  */
 object GroupMetadataManager {
 
+  /* the number of segments of a loading partition that are read ahead of the one being applied */
+  private val SegmentReadAhead = 2
+
   private val CURRENT_OFFSET_KEY_SCHEMA_VERSION = 1.toShort
   private val CURRENT_GROUP_KEY_SCHEMA_VERSION = 2.toShort
 
@@ -770,7 +845,7 @@ object GroupMetadataManager {
    *
    * @return key for offset commit message
    */
-  private def offsetCommitKey(group: String, topic: String, partition: Int, versionId: Short = 0): Array[Byte] = {
+  private[coordinator] def offsetCommitKey(group: String, topic: String, partition: Int, versionId: Short = 0): Array[Byte] = {
     val key = new Struct(CURRENT_OFFSET_KEY_SCHEMA)
     key.set(OFFSET_KEY_GROUP_FIELD, group)
     key.set(OFFSET_KEY_TOPIC_FIELD, topic)
@@ -803,7 +878,7 @@ object GroupMetadataManager {
    * @param offsetAndMetadata consumer's current offset and metadata
    * @return payload for offset commit message
    */
-  private def offsetCommitValue(offsetAndMetadata: OffsetAndMetadata): Array[Byte] = {
+  private[coordinator] def offsetCommitValue(offsetAndMetadata: OffsetAndMetadata): Array[Byte] = {
     // generate commit value with schema version 1
     val value = new Struct(CURRENT_OFFSET_VALUE_SCHEMA)
     value.set(OFFSET_VALUE_OFFSET_FIELD_V1, offsetAndMetadata.offset)
@@ -1012,6 +1087,16 @@ object GroupMetadataManager {
 
 }
 
+/**
+ * The last state of the offsets and groups read from a segment of the offsets topic, None for a tombstone
+ */
+private[coordinator] class LoadedSegment {
+  val offsets = mutable.Map[GroupTopicPartition, Option[OffsetAndMetadata]]()
+  val groups = mutable.Map[String, Option[GroupMetadata]]()
+  /* false if the read stopped before the end of the segment */
+  var complete = false
+}
+
 case class GroupTopicPartition(group: String, topicPartition: TopicPartition) {
 
   def this(group: String, topic: String, partition: Int) =
@@ -0,0 +1,281 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.coordinator
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import kafka.common.{OffsetAndMetadata, OffsetMetadata}
+import kafka.utils.{Pool, nonthreadsafe, threadsafe}
+import org.apache.kafka.common.TopicPartition
+
+import scala.collection.mutable
+
+/**
+ * The cache of the committed offsets of the groups managed by this coordinator.
+ *
+ * A coordinator may hold millions of committed offsets, so rather than keeping one key and one OffsetAndMetadata object
+ * per group-topic-partition, the offsets of a group are kept per topic in primitive arrays indexed by partition. The
+ * group id is stored once per group and the topic name (interned) once per group and topic. OffsetAndMetadata objects
+ * are only created when offsets are read.
+ */
+@threadsafe
+private[coordinator] class OffsetCache {
+
+  private val groups = new Pool[String, GroupOffsets](Some((_: String) => new GroupOffsets))
+  private val numOffsets = new AtomicInteger(0)
+
+  /* the number of cached offsets */
+  def size: Int = numOffsets.get
+
+  def get(group: String, topicPartition: TopicPartition): Option[OffsetAndMetadata] = {
+    val groupOffsets = groups.get(group)
+    if (groupOffsets == null)
+      None
+    else groupOffsets synchronized {
+      groupOffsets.get(topicPartition.topic, topicPartition.partition)
+    }
+  }
+
+  /**
+   * Get all the cached offsets of the group
+   */
+  def offsets(group: String): Map[TopicPartition, OffsetAndMetadata] = {
+    val groupOffsets = groups.get(group)
+    if (groupOffsets == null)
+      Map.empty
+    else groupOffsets synchronized {
+      groupOffsets.all.toMap
+    }
+  }
+
+  def put(group: String, topicPartition: TopicPartition, offsetAndMetadata: OffsetAndMetadata) {
+    var done = false
+    // retry if the group offsets are removed concurrently because they became empty
+    while (!done) {
+      val groupOffsets = groups.getAndMaybePut(group)
+      groupOffsets synchronized {
+        if (!groupOffsets.removed) {
+          if (groupOffsets.put(topicPartition.topic, topicPartition.partition, offsetAndMetadata))
+            numOffsets.incrementAndGet()
+          done = true
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove the offset of the group for the partition
+   *
+   * @return true if an offset was removed
+   */
+  def remove(group: String, topicPartition: TopicPartition): Boolean = {
+    val groupOffsets = groups.get(group)
+    if (groupOffsets == null)
+      false
+    else groupOffsets synchronized {
+      val removed = groupOffsets.remove(topicPartition.topic, topicPartition.partition)
+      if (removed) {
+        numOffsets.decrementAndGet()
+        maybeRemoveGroup(group, groupOffsets)
+      }
+      removed
+    }
+  }
+
+  /**
+   * Remove all the offsets of the groups matching the predicate
+   *
+   * @return the number of offsets removed
+   */
+  def removeGroups(shouldRemove: String => Boolean): Int = {
+    var numRemoved = 0
+    for ((group, groupOffsets) <- groups if shouldRemove(group)) {
+      groupOffsets synchronized {
+        if (!groupOffsets.removed) {
+          val size = groupOffsets.size
+          groupOffsets.removed = true
+          groups.remove(group, groupOffsets)
+          numOffsets.addAndGet(-size)
+          numRemoved += size
+        }
+      }
+    }
+    numRemoved
+  }
+
+  /**
+   * Remove all the offsets that expire before the given time
+   *
+   * @return the removed offsets
+   */
+  def removeExpired(now: Long): Seq[(GroupTopicPartition, OffsetAndMetadata)] = {
+    val expired = mutable.ArrayBuffer[(GroupTopicPartition, OffsetAndMetadata)]()
+    for ((group, groupOffsets) <- groups) {
+      groupOffsets synchronized {
+        val removed = groupOffsets.removeExpired(now)
+        if (removed.nonEmpty) {
+          numOffsets.addAndGet(-removed.size)
+          removed.foreach { case (topicPartition, offsetAndMetadata) =>
+            expired += ((GroupTopicPartition(group, topicPartition), offsetAndMetadata))
+          }
+          maybeRemoveGroup(group, groupOffsets)
+        }
+      }
+    }
+    expired
+  }
+
+  private def maybeRemoveGroup(group: String, groupOffsets: GroupOffsets) {
+    if (groupOffsets.size == 0) {
+      groupOffsets.removed = true
+      groups.remove(group, groupOffsets)
+    }
+  }
+}
+
+/**
+ * The offsets of a single group, guarded by the lock of the object
+ */
+@nonthreadsafe
+private class GroupOffsets {
+
+  /* set once the group offsets are removed from the cache, after which they must not be updated */
+  var removed = false
+
+  private val topics = new mutable.HashMap[String, TopicOffsets]
+  private var numOffsets = 0
+
+  def size: Int = numOffsets
+
+  def get(topic: String, partition: Int): Option[OffsetAndMetadata] =
+    topics.get(topic).flatMap(_.get(partition))
+
+  def all: Iterable[(TopicPartition, OffsetAndMetadata)] =
+    topics.values.flatMap(_.all)
+
+  /**
+   * @return true if there was no offset for the partition before
+   */
+  def put(topic: String, partition: Int, offsetAndMetadata: OffsetAndMetadata): Boolean = {
+    val added = topics.getOrElseUpdate(topic, new TopicOffsets(topic.intern)).put(partition, offsetAndMetadata)
+    if (added)
+      numOffsets += 1
+    added
+  }
+
+  def remove(topic: String, partition: Int): Boolean = {
+    topics.get(topic) match {
+      case Some(topicOffsets) if topicOffsets.remove(partition) =>
+        if (topicOffsets.size == 0)
+          topics.remove(topic)
+        numOffsets -= 1
+        true
+      case _ => false
+    }
+  }
+
+  def removeExpired(now: Long): Seq[(TopicPartition, OffsetAndMetadata)] = {
+    val expired = topics.values.flatMap(_.removeExpired(now)).toBuffer
+    if (expired.nonEmpty) {
+      numOffsets -= expired.size
+      topics.retain { case (_, topicOffsets) => topicOffsets.size > 0 }
+    }
+    expired
+  }
+}
+
+/**
+ * The offsets of the partitions of one topic of a group, stored in arrays indexed by partition
+ */
+@nonthreadsafe
+private class TopicOffsets(val topic: String) {
+  import TopicOffsets.NoOffset
+
+  private var offsets = Array.fill(1)(NoOffset)
+  private var commitTimestamps = new Array[Long](1)
+  private var expireTimestamps = new Array[Long](1)
+  /* null for the common case of no metadata */
+  private var metadata = new Array[String](1)
+  private var numOffsets = 0
+
+  def size: Int = numOffsets
+
+  def get(partition: Int): Option[OffsetAndMetadata] = {
+    if (partition < offsets.length && offsets(partition) != NoOffset)
+      Some(offsetAndMetadata(partition))
+    else
+      None
+  }
+
+  def all: Iterable[(TopicPartition, OffsetAndMetadata)] =
+    offsets.indices.filter(offsets(_) != NoOffset).map { partition =>
+      (new TopicPartition(topic, partition), offsetAndMetadata(partition))
+    }
+
+  def put(partition: Int, offsetAndMetadata: OffsetAndMetadata): Boolean = {
+    if (partition >= offsets.length)
+      grow(math.max(partition + 1, 2 * offsets.length))
+    val added = offsets(partition) == NoOffset
+    offsets(partition) = offsetAndMetadata.offset
+    commitTimestamps(partition) = offsetAndMetadata.commitTimestamp
+    expireTimestamps(partition) = offsetAndMetadata.expireTimestamp
+    metadata(partition) =
+      if (offsetAndMetadata.metadata == null || offsetAndMetadata.metadata.isEmpty) null else offsetAndMetadata.metadata
+    if (added)
+      numOffsets += 1
+    added
+  }
+
+  def remove(partition: Int): Boolean = {
+    if (partition < offsets.length && offsets(partition) != NoOffset) {
+      offsets(partition) = NoOffset
+      metadata(partition) = null
+      numOffsets -= 1
+      true
+    } else
+      false
+  }
+
+  def removeExpired(now: Long): Seq[(TopicPartition, OffsetAndMetadata)] = {
+    val expired = offsets.indices.filter(p => offsets(p) != NoOffset && expireTimestamps(p) < now).map { partition =>
+      (new TopicPartition(topic, partition), offsetAndMetadata(partition))
+    }
+    expired.foreach { case (topicPartition, _) => remove(topicPartition.partition) }
+    expired
+  }
+
+  private def offsetAndMetadata(partition: Int): OffsetAndMetadata = {
+    val partitionMetadata = if (metadata(partition) == null) OffsetMetadata.NoMetadata else metadata(partition)
+    OffsetAndMetadata(offsets(partition), partitionMetadata, commitTimestamps(partition), expireTimestamps(partition))
+  }
+
+  /* grow the arrays to the given length, callers double it so that committing partitions in order copies them O(log n) times */
+  private def grow(length: Int) {
+    val oldLength = offsets.length
+    offsets = java.util.Arrays.copyOf(offsets, length)
+    java.util.Arrays.fill(offsets, oldLength, length, NoOffset)
+    commitTimestamps = java.util.Arrays.copyOf(commitTimestamps, length)
+    expireTimestamps = java.util.Arrays.copyOf(expireTimestamps, length)
+    metadata = java.util.Arrays.copyOf(metadata, length)
+  }
+}
+
+private object TopicOffsets {
+  /* marks a partition without a committed offset, committed offsets are never negative enough to clash with it */
+  val NoOffset = Long.MinValue
+}
@@ -23,6 +23,8 @@ import kafka.message.{NoCompressionCodec, CompressionCodec}
  * Configuration settings for in-built offset management
  * @param maxMetadataSize The maximum allowed metadata for any offset commit.
  * @param loadBufferSize Batch size for reading from the offsets segments when loading offsets into the cache.
+ * @param loadThreads The number of partitions of the offsets topic loaded in parallel, and the number of threads
+ *                    reading the segments of the partitions being loaded.
  * @param offsetsRetentionMs Offsets older than this retention period will be discarded.
  * @param offsetsRetentionCheckIntervalMs Frequency at which to check for expired offsets.
  * @param offsetsTopicNumPartitions The number of partitions for the offset commit topic (should not change after deployment).
@@ -38,6 +40,7 @@ import kafka.message.{NoCompressionCodec, CompressionCodec}
  */
 case class OffsetConfig(maxMetadataSize: Int = OffsetConfig.DefaultMaxMetadataSize,
                         loadBufferSize: Int = OffsetConfig.DefaultLoadBufferSize,
+                        loadThreads: Int = OffsetConfig.DefaultLoadThreads,
                         offsetsRetentionMs: Long = OffsetConfig.DefaultOffsetRetentionMs,
                         offsetsRetentionCheckIntervalMs: Long = OffsetConfig.DefaultOffsetsRetentionCheckIntervalMs,
                         offsetsTopicNumPartitions: Int = OffsetConfig.DefaultOffsetsTopicNumPartitions,
@@ -50,6 +53,7 @@ case class OffsetConfig(maxMetadataSize: Int = OffsetConfig.DefaultMaxMetadataSi
 object OffsetConfig {
   val DefaultMaxMetadataSize = 4096
   val DefaultLoadBufferSize = 5*1024*1024
+  val DefaultLoadThreads = 4
   val DefaultOffsetRetentionMs = 24*60*60*1000L
   val DefaultOffsetsRetentionCheckIntervalMs = 600000L
   val DefaultOffsetsTopicNumPartitions = 50
@@ -21,20 +21,26 @@ package kafka.log
  * Configuration parameters for the log cleaner
  * 
  * @param numThreads The number of cleaner threads to run
+ * @param partitionThreads The number of threads each cleaner thread uses to clean a single log
  * @param dedupeBufferSize The total memory used for log deduplication
  * @param dedupeBufferLoadFactor The maximum percent full for the deduplication buffer
+ * @param dedupeBufferOffHeap Use an off-heap offset map that grows up to the deduplication buffer size
  * @param maxMessageSize The maximum size of a message that can appear in the log
  * @param maxIoBytesPerSecond The maximum read and write I/O that all cleaner threads are allowed to do
+ * @param minSegmentGarbageRatio The ratio of discarded bytes up to which a segment without superseded messages is left in place rather than recopied
  * @param backOffMs The amount of time to wait before rechecking if no logs are eligible for cleaning
  * @param enableCleaner Allows completely disabling the log cleaner
  * @param hashAlgorithm The hash algorithm to use in key comparison.
  */
 case class CleanerConfig(numThreads: Int = 1,
+                         partitionThreads: Int = 1,
                          dedupeBufferSize: Long = 4*1024*1024L,
                          dedupeBufferLoadFactor: Double = 0.9d,
+                         dedupeBufferOffHeap: Boolean = false,
                          ioBufferSize: Int = 1024*1024,
                          maxMessageSize: Int = 32*1024*1024,
                          maxIoBytesPerSecond: Double = Double.MaxValue,
+                         minSegmentGarbageRatio: Double = 0.0,
                          backOffMs: Long = 15 * 1000,
                          enableCleaner: Boolean = true,
                          hashAlgorithm: String = "MD5") {
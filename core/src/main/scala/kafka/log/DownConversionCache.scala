@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.util
+
+import kafka.common.TopicAndPartition
+import kafka.utils.threadsafe
+
+/**
+ * The messages of a chunk of a log converted to an older message format.
+ *
+ * @param buffer The converted messages
+ * @param sourceBytes The number of bytes the chunk takes in the log
+ * @param sourceCrc The crc of the first message of the chunk in the log
+ * @param nextOffset The offset of the message following the chunk in the log
+ */
+case class ConvertedChunk(buffer: ByteBuffer, sourceBytes: Int, sourceCrc: Long, nextOffset: Long)
+
+/**
+ * A bounded LRU cache of converted chunks shared by the [[DownConvertedMessageSet]]s of all fetch requests, so that
+ * consumers using an old fetch request version that read the same part of a log don't convert it over and over again.
+ *
+ * A chunk is keyed by the partition, the offset of its first message and the message format it was converted to. The
+ * log may have changed since the chunk was converted (it may have been truncated or cleaned), so it is up to the user
+ * to check that a cached chunk still matches the log before using it.
+ *
+ * @param maxBytes The maximum size of the converted messages kept in the cache, 0 disables the cache
+ */
+@threadsafe
+class DownConversionCache(val maxBytes: Long) {
+
+  private val chunks = new util.LinkedHashMap[DownConversionCache.Key, ConvertedChunk](16, 0.75f, true)
+  private var bytes = 0L
+
+  /**
+   * Whether chunks are cached at all, the cache doesn't need to be looked up otherwise
+   */
+  val enabled: Boolean = maxBytes > 0
+
+  def get(topicAndPartition: TopicAndPartition, baseOffset: Long, magicValue: Byte): Option[ConvertedChunk] = synchronized {
+    Option(chunks.get(DownConversionCache.Key(topicAndPartition, baseOffset, magicValue)))
+  }
+
+  def put(topicAndPartition: TopicAndPartition, baseOffset: Long, magicValue: Byte, chunk: ConvertedChunk): Unit = synchronized {
+    val size = chunk.buffer.limit
+    if (size <= maxBytes) {
+      val previous = chunks.put(DownConversionCache.Key(topicAndPartition, baseOffset, magicValue), chunk)
+      if (previous != null)
+        bytes -= previous.buffer.limit
+      bytes += size
+      // evict the least recently used chunks
+      val iter = chunks.values.iterator
+      while (bytes > maxBytes) {
+        bytes -= iter.next().buffer.limit
+        iter.remove()
+      }
+    }
+  }
+
+  /**
+   * The size of the converted messages in the cache
+   */
+  def sizeInBytes: Long = synchronized { bytes }
+
+  def size: Int = synchronized { chunks.size }
+
+  def clear(): Unit = synchronized {
+    chunks.clear()
+    bytes = 0L
+  }
+}
+
+object DownConversionCache {
+  private case class Key(topicAndPartition: TopicAndPartition, baseOffset: Long, magicValue: Byte)
+}
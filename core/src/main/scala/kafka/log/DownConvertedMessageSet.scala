@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+
+import kafka.common.TopicAndPartition
+import kafka.message._
+import kafka.utils.Logging
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A message set that holds the messages of a [[FileMessageSet]] converted to another message format. The messages are
+ * converted when the set is created, on the request handler thread, so that the network threads only copy the
+ * converted bytes to the socket.
+ *
+ * The messages are converted in chunks. A chunk is either a single compressed wrapper message or a run of uncompressed
+ * messages that ends after `ChunkSize` bytes or at an offset that is a multiple of `ChunkAlignment`, whichever comes
+ * first. Aligning the chunks makes fetches of different consumers from the same part of the log produce the same
+ * chunks, which are shared through the [[DownConversionCache]] unless it is disabled.
+ *
+ * The converted messages are for fetchers that predate zstd, so zstd message sets are recompressed with
+ * `ZStdFallbackCodec` instead.
+ *
+ * The converted set is no larger than the fetched range, or than the first converted chunk if that is larger so that a
+ * consumer always gets at least one message. If the converted messages are larger, the last chunk is truncated.
+ * Consumers ignore a partial message at the end of a fetch response and fetch it again with their next request.
+ */
+class DownConvertedMessageSet(val topicAndPartition: TopicAndPartition,
+                              val source: FileMessageSet,
+                              val toMagicValue: Byte,
+                              cache: DownConversionCache) extends MessageSet with Logging {
+
+  import DownConvertedMessageSet._
+
+  private val header = ByteBuffer.allocate(MessageSet.LogOverhead + Message.CrcLength)
+
+  /* the converted chunks and the position of each of them in this set, empty if the source does not contain a complete
+   * message, in which case the source is sent as it is */
+  private val (chunks, chunkPositions, convertedBytes) = {
+    val chunks = new ArrayBuffer[ByteBuffer]
+    val positions = new ArrayBuffer[Int]
+    var bytes = 0
+    var sourcePosition = 0
+    var maxBytes = source.sizeInBytes
+    var chunk = chunkAt(sourcePosition)
+    while (chunk != null && bytes < maxBytes) {
+      if (chunks.isEmpty)
+        maxBytes = math.max(maxBytes, chunk.buffer.limit)
+      chunks += chunk.buffer.duplicate
+      positions += bytes
+      bytes += chunk.buffer.limit
+      sourcePosition += chunk.sourceBytes
+      chunk = if (bytes < maxBytes) chunkAt(sourcePosition) else null
+    }
+    (chunks.toArray, positions.toArray, math.min(bytes, maxBytes))
+  }
+
+  override val sizeInBytes: Int = if (chunks.isEmpty) source.sizeInBytes else convertedBytes
+
+  override def writeTo(channel: GatheringByteChannel, offset: Long, maxSize: Int): Int = {
+    if (chunks.isEmpty)
+      return source.writeTo(channel, offset, maxSize)
+
+    val end = math.min(sizeInBytes.toLong, offset + maxSize)
+    val buffers = new ArrayBuffer[ByteBuffer]
+    for (i <- chunks.indices) {
+      val chunkStart = chunkPositions(i)
+      val chunkEnd = chunkStart + chunks(i).limit
+      if (chunkEnd > offset && chunkStart < end) {
+        val buffer = chunks(i).duplicate
+        buffer.position(math.max(0L, offset - chunkStart).toInt)
+        buffer.limit(math.min(chunkEnd.toLong, end).toInt - chunkStart)
+        buffers += buffer
+      }
+    }
+    if (buffers.isEmpty) 0 else channel.write(buffers.toArray).toInt
+  }
+
+  /**
+   * Get the converted chunk that starts at the given position of the source, from the cache if possible
+   */
+  private def chunkAt(position: Int): ConvertedChunk = {
+    if (position + header.capacity > source.sizeInBytes)
+      return null
+    header.clear()
+    source.readInto(header, position)
+    val baseOffset = header.getLong(0)
+    val messageSize = header.getInt(MessageSet.OffsetLength)
+    val crc = header.getInt(MessageSet.LogOverhead) & 0xffffffffL
+    if (position + MessageSet.LogOverhead + messageSize > source.sizeInBytes)
+      return null
+
+    if (!cache.enabled)
+      return convert(position, crc)
+    cache.get(topicAndPartition, baseOffset, toMagicValue) match {
+      case Some(chunk) if chunk.sourceCrc == crc && followedBy(position + chunk.sourceBytes, chunk.nextOffset) =>
+        chunk
+      case _ =>
+        val chunk = convert(position, crc)
+        if (chunk != null)
+          cache.put(topicAndPartition, baseOffset, toMagicValue, chunk)
+        chunk
+    }
+  }
+
+  /**
+   * Check that the message at the given position of the source has the given offset. This makes sure that a cached
+   * chunk still covers exactly the same messages as the source, since the log may have been truncated or cleaned since
+   * the chunk was converted.
+   */
+  private def followedBy(position: Int, offset: Long): Boolean = {
+    if (position > source.sizeInBytes)
+      false
+    else if (position + MessageSet.OffsetLength > source.sizeInBytes)
+      true // no complete message follows the chunk, it is the last one we convert
+    else {
+      val offsetBuffer = ByteBuffer.allocate(MessageSet.OffsetLength)
+      source.readInto(offsetBuffer, position)
+      offsetBuffer.getLong(0) == offset
+    }
+  }
+
+  private def convert(position: Int, crc: Long): ConvertedChunk = {
+    val entries = source.read(position, source.sizeInBytes - position).iterator
+    val offsets = new ArrayBuffer[Long]
+    val messages = new ArrayBuffer[Message]
+    var codec: CompressionCodec = NoCompressionCodec
+    var sourceBytes = 0
+    var nextOffset = -1L
+    var done = false
+    while (!done && entries.hasNext) {
+      val entry = entries.next()
+      val message = entry.message
+      if (message.compressionCodec != NoCompressionCodec) {
+        // a compressed message set is a chunk of its own
+        if (messages.isEmpty) {
+          if (message.magic == toMagicValue && message.compressionCodec != ZStdCompressionCodec) {
+            val buffer = ByteBuffer.allocate(MessageSet.entrySize(message))
+            buffer.putLong(entry.offset)
+            buffer.putInt(message.size)
+            buffer.put(message.buffer.duplicate)
+            buffer.flip()
+            return ConvertedChunk(buffer, buffer.limit, crc, entry.nextOffset)
+          }
+          for (innerMessageAndOffset <- ByteBufferMessageSet.deepIterator(entry)) {
+            messages += innerMessageAndOffset.message.toFormatVersion(toMagicValue)
+            offsets += innerMessageAndOffset.offset
+          }
+          codec = if (message.compressionCodec == ZStdCompressionCodec) ZStdFallbackCodec else message.compressionCodec
+          sourceBytes += MessageSet.entrySize(message)
+          nextOffset = entry.nextOffset
+        }
+        done = true
+      } else {
+        messages += message.toFormatVersion(toMagicValue)
+        offsets += entry.offset
+        sourceBytes += MessageSet.entrySize(message)
+        nextOffset = entry.nextOffset
+        done = sourceBytes >= ChunkSize || entry.nextOffset % ChunkAlignment == 0
+      }
+    }
+
+    if (sourceBytes == 0)
+      null
+    else {
+      // We use the offset seq to assign offsets so the offset of the messages does not change.
+      val converted = new ByteBufferMessageSet(compressionCodec = codec, offsetSeq = offsets, messages: _*)
+      ConvertedChunk(converted.buffer, sourceBytes, crc, nextOffset)
+    }
+  }
+
+  override def isMagicValueInAllWrapperMessages(expectedMagicValue: Byte): Boolean =
+    if (chunks.isEmpty) source.isMagicValueInAllWrapperMessages(expectedMagicValue)
+    else expectedMagicValue == toMagicValue
+
+  /**
+   * Get a shallow iterator over the converted messages, without the partial message the set may end with
+   */
+  override def iterator: Iterator[MessageAndOffset] = {
+    if (chunks.isEmpty)
+      source.iterator
+    else {
+      val end = sizeInBytes
+      chunks.indices.iterator.flatMap { i =>
+        val buffer = chunks(i).duplicate
+        buffer.limit(math.min(buffer.limit, end - chunkPositions(i)))
+        new ByteBufferMessageSet(buffer).shallowIterator
+      }
+    }
+  }
+}
+
+object DownConvertedMessageSet {
+  /* the maximum number of bytes of uncompressed messages in the log converted at a time */
+  val ChunkSize = 64 * 1024
+  /* runs of uncompressed messages are cut into chunks at offsets that are a multiple of this */
+  val ChunkAlignment = 128
+  /* the codec zstd message sets are recompressed with, since the fetchers that need converted messages can't read zstd */
+  val ZStdFallbackCodec: CompressionCodec = GZIPCompressionCodec
+}
@@ -117,7 +117,7 @@ class FileMessageSet private[kafka](@volatile var file: File,
     new FileMessageSet(file,
                        channel,
                        start = this.start + position,
-                       end = math.min(this.start + position + size, sizeInBytes()))
+                       end = this.start + math.min(position + size, sizeInBytes()))
   }
 
   /**
@@ -148,6 +148,40 @@ class FileMessageSet private[kafka](@volatile var file: File,
     null
   }
 
+  /**
+   * Search forward for the first message that meets the following requirements:
+   * - Message's timestamp is greater than or equals to the targetTimestamp.
+   * - Message's position in the log file is greater than or equals to the startingPosition.
+   *
+   * Only the shallow messages are read until a candidate is found; a compressed wrapper message is decompressed only
+   * if its (maximum) timestamp is at or beyond the target, to locate the exact inner message.
+   *
+   * @param targetTimestamp The timestamp to search for.
+   * @param startingPosition The starting position to search.
+   * @return The timestamp and offset of the message found. None, if no message is found.
+   */
+  def searchForTimestamp(targetTimestamp: Long, startingPosition: Int): Option[TimestampOffset] = {
+    val messagesToSearch = read(startingPosition, sizeInBytes)
+    for (messageAndOffset <- messagesToSearch) {
+      val message = messageAndOffset.message
+      if (message.timestamp >= targetTimestamp) {
+        // We found a message
+        message.compressionCodec match {
+          case NoCompressionCodec =>
+            return Some(TimestampOffset(message.timestamp, messageAndOffset.offset))
+          case _ =>
+            // Iterate over the inner messages to get the exact offset.
+            for (innerMessageAndOffset <- ByteBufferMessageSet.deepIterator(messageAndOffset)) {
+              val timestamp = innerMessageAndOffset.message.timestamp
+              if (timestamp >= targetTimestamp)
+                return Some(TimestampOffset(timestamp, innerMessageAndOffset.offset))
+            }
+        }
+      }
+    }
+    None
+  }
+
   /**
    * Write some of this set to the given channel.
    * @param destChannel The channel to write to.
@@ -203,6 +237,32 @@ class FileMessageSet private[kafka](@volatile var file: File,
     true
   }
 
+  /**
+   * Check whether any of the wrapper messages in this set is compressed with the given codec.
+   */
+  def hasWrapperMessageCompressedWith(codec: CompressionCodec): Boolean = {
+    var location = start
+    val offsetAndSizeBuffer = ByteBuffer.allocate(MessageSet.LogOverhead)
+    val headerBuffer = ByteBuffer.allocate(Message.CrcLength + Message.MagicLength + Message.AttributesLength)
+    while (location < end) {
+      offsetAndSizeBuffer.rewind()
+      channel.read(offsetAndSizeBuffer, location)
+      if (offsetAndSizeBuffer.hasRemaining)
+        return false
+      offsetAndSizeBuffer.rewind()
+      offsetAndSizeBuffer.getLong // skip offset field
+      val messageSize = offsetAndSizeBuffer.getInt
+      if (messageSize < Message.MinMessageOverhead)
+        throw new IllegalStateException("Invalid message size: " + messageSize)
+      headerBuffer.rewind()
+      channel.read(headerBuffer, location + MessageSet.LogOverhead)
+      if ((headerBuffer.get(Message.AttributesOffset) & Message.CompressionCodeMask) == codec.codec)
+        return true
+      location += (MessageSet.LogOverhead + messageSize)
+    }
+    false
+  }
+
   /**
    * Convert this message set to use the specified message format.
    */
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
+import kafka.utils.{SystemTime, threadsafe}
+import org.apache.kafka.common.utils.Utils
+
+/**
+ * A wrapper of an index of a log segment that only memory maps the index file when the index is first used, and that
+ * can drop the memory map again once the index has not been used for a while. Most segments of a log are never read
+ * once they are inactive, so this keeps the number of memory maps proportional to the data that is actually used.
+ *
+ * Unloading an index unmaps it right away rather than when the garbage collector gets to the buffer, so the number of
+ * mapped indexes is exact. An index is never unloaded while it is read through [[use]], which is how it must be
+ * accessed by anything that does not hold the lock of the log; [[get]] is for callers that hold it, since the indexes
+ * of a log are unloaded under its lock. Only the index of an inactive segment may be unloaded, since the size of the
+ * index of the active segment does not match its entries.
+ *
+ * @param _file The index file
+ * @param loadIndex A function that memory maps the index file
+ * @param loaded The index if it has already been loaded
+ */
+@threadsafe
+class LazyIndex[T <: AbstractIndex[_, _]] private (@volatile private var _file: File,
+                                                    loadIndex: File => T,
+                                                    loaded: Option[T]) {
+
+  import LazyIndex._
+
+  @volatile private var index: Option[T] = loaded
+  @volatile private var lastUsedMs = SystemTime.milliseconds
+  /* held for read while the index is used without the lock of the log, and for write while it is unmapped */
+  private val unmapLock = new ReentrantReadWriteLock
+
+  if (loaded.isDefined)
+    numMapped.incrementAndGet()
+
+  /* The index file */
+  def file: File = index.map(_.file).getOrElse(_file)
+
+  def isLoaded: Boolean = index.isDefined
+
+  /**
+   * Get the index, memory mapping the index file first if it is not mapped. The caller must hold the lock of the log
+   * while it uses the index, see [[use]] otherwise.
+   */
+  def get: T = {
+    lastUsedMs = SystemTime.milliseconds
+    index match {
+      case Some(idx) => idx
+      case None =>
+        synchronized {
+          index match {
+            case Some(idx) => idx
+            case None =>
+              val idx = loadIndex(_file)
+              numMapped.incrementAndGet()
+              index = Some(idx)
+              idx
+          }
+        }
+    }
+  }
+
+  /**
+   * Run the given function on the index, memory mapping the index file first if it is not mapped. The index is not
+   * unmapped until the function returns.
+   */
+  def use[R](fun: T => R): R = inReadLock(unmapLock) {
+    fun(get)
+  }
+
+  /**
+   * Unmap the index if it has not been used for the given time. An index that is being used is left mapped, it is
+   * unloaded by a later call if it is idle by then.
+   *
+   * @return true if the index was unloaded
+   */
+  def unloadIfIdle(now: Long, idleMs: Long): Boolean = {
+    if (!unmapLock.writeLock.tryLock())
+      return false
+    try {
+      synchronized {
+        if (index.isDefined && now - lastUsedMs >= idleMs) {
+          unload()
+          true
+        } else
+          false
+      }
+    } finally {
+      unmapLock.writeLock.unlock()
+    }
+  }
+
+  /* must be called with the write lock held */
+  private def unload(): T = {
+    val idx = index.get
+    idx.unmap()
+    _file = idx.file
+    index = None
+    numMapped.decrementAndGet()
+    idx
+  }
+
+  def renameTo(f: File): Unit = synchronized {
+    index match {
+      case Some(idx) => idx.renameTo(f)
+      case None => Utils.atomicMoveWithFallback(_file.toPath, f.toPath)
+    }
+    _file = f
+  }
+
+  def flush(): Unit = inReadLock(unmapLock) {
+    index.foreach(_.flush())
+  }
+
+  def close(): Unit = inWriteLock(unmapLock) {
+    synchronized {
+      index.foreach { idx =>
+        idx.close()
+        unload()
+      }
+    }
+  }
+
+  def delete(): Boolean = inWriteLock(unmapLock) {
+    synchronized {
+      index match {
+        case Some(_) => unload().delete()
+        case None => _file.delete()
+      }
+    }
+  }
+}
+
+object LazyIndex {
+
+  /* the number of indexes currently memory mapped through a lazy index, an index is counted until it is unmapped */
+  private val numMapped = new AtomicInteger(0)
+
+  def numMappedIndexes: Int = numMapped.get
+
+  def forOffset(file: File, baseOffset: Long, maxIndexSize: Int): LazyIndex[OffsetIndex] =
+    new LazyIndex(file, f => new OffsetIndex(f, baseOffset, maxIndexSize), None)
+
+  def forTime(file: File, baseOffset: Long, maxIndexSize: Int): LazyIndex[TimeIndex] =
+    new LazyIndex(file, f => new TimeIndex(f, baseOffset, maxIndexSize), None)
+
+  def apply(index: OffsetIndex): LazyIndex[OffsetIndex] =
+    new LazyIndex(index.file, f => new OffsetIndex(f, index.baseOffset, index.maxIndexSize), Some(index))
+
+  def apply(index: TimeIndex): LazyIndex[TimeIndex] =
+    new LazyIndex(index.file, f => new TimeIndex(f, index.baseOffset, index.maxIndexSize), Some(index))
+}
@@ -17,6 +17,7 @@
 
 package kafka.log
 
+import kafka.api.KAFKA_0_10_0_ZSTD_IV0
 import kafka.utils._
 import kafka.message._
 import kafka.common._
@@ -27,7 +28,8 @@ import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap}
 import java.util.concurrent.atomic._
 import java.text.NumberFormat
 
-import org.apache.kafka.common.errors.{CorruptRecordException, OffsetOutOfRangeException, RecordBatchTooLargeException, RecordTooLargeException}
+import org.apache.kafka.common.errors.{CorruptRecordException, OffsetOutOfRangeException, RecordBatchTooLargeException, RecordTooLargeException,
+  UnsupportedCompressionTypeException}
 import org.apache.kafka.common.record.TimestampType
 
 import scala.collection.JavaConversions
@@ -35,13 +37,15 @@ import com.yammer.metrics.core.Gauge
 import org.apache.kafka.common.utils.Utils
 
 object LogAppendInfo {
-  val UnknownLogAppendInfo = LogAppendInfo(-1, -1, Message.NoTimestamp, NoCompressionCodec, NoCompressionCodec, -1, -1, false)
+  val UnknownLogAppendInfo = LogAppendInfo(-1, -1, Message.NoTimestamp, -1L, Message.NoTimestamp, NoCompressionCodec, NoCompressionCodec, -1, -1, false)
 }
 
 /**
  * Struct to hold various quantities we compute about each message set before appending to the log
  * @param firstOffset The first offset in the message set
  * @param lastOffset The last offset in the message set
+ * @param maxTimestamp The maximum timestamp of the message set.
+ * @param offsetOfMaxTimestamp The offset of the shallow message with the maximum timestamp.
  * @param timestamp The log append time (if used) of the message set, otherwise Message.NoTimestamp
  * @param sourceCodec The source codec used in the message set (send by the producer)
  * @param targetCodec The target codec of the message set(after applying the broker compression configuration if any)
@@ -51,6 +55,8 @@ object LogAppendInfo {
  */
 case class LogAppendInfo(var firstOffset: Long,
                          var lastOffset: Long,
+                         var maxTimestamp: Long,
+                         var offsetOfMaxTimestamp: Long,
                          var timestamp: Long,
                          sourceCodec: CompressionCodec,
                          targetCodec: CompressionCodec,
@@ -153,26 +159,32 @@ class Log(val dir: File,
         file.delete()
       } else if(filename.endsWith(SwapFileSuffix)) {
         // we crashed in the middle of a swap operation, to recover:
-        // if a log, delete the .index file, complete the swap operation later
+        // if a log, delete the .index and .timeindex files, complete the swap operation later
         // if an index just delete it, it will be rebuilt
         val baseName = new File(CoreUtils.replaceSuffix(file.getPath, SwapFileSuffix, ""))
-        if(baseName.getPath.endsWith(IndexFileSuffix)) {
+        if(baseName.getPath.endsWith(IndexFileSuffix) || baseName.getPath.endsWith(TimeIndexFileSuffix)) {
           file.delete()
         } else if(baseName.getPath.endsWith(LogFileSuffix)){
-          // delete the index
+          // delete the index files
           val index = new File(CoreUtils.replaceSuffix(baseName.getPath, LogFileSuffix, IndexFileSuffix))
           index.delete()
+          val timeIndex = new File(CoreUtils.replaceSuffix(baseName.getPath, LogFileSuffix, TimeIndexFileSuffix))
+          timeIndex.delete()
           swapFiles += file
         }
       }
     }
 
-    // now do a second pass and load all the .log and .index files
+    // now do a second pass and load all the .log and all index files
     for(file <- dir.listFiles if file.isFile) {
       val filename = file.getName
-      if(filename.endsWith(IndexFileSuffix)) {
+      if(filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix)) {
         // if it is an index file, make sure it has a corresponding .log file
-        val logFile = new File(file.getAbsolutePath.replace(IndexFileSuffix, LogFileSuffix))
+        val logFile =
+          if (filename.endsWith(TimeIndexFileSuffix))
+            new File(file.getAbsolutePath.replace(TimeIndexFileSuffix, LogFileSuffix))
+          else
+            new File(file.getAbsolutePath.replace(IndexFileSuffix, LogFileSuffix))
         if(!logFile.exists) {
           warn("Found an orphaned index file, %s, with no corresponding log file.".format(file.getAbsolutePath))
           file.delete()
@@ -181,6 +193,9 @@ class Log(val dir: File,
         // if its a log file, load the corresponding log segment
         val start = filename.substring(0, filename.length - LogFileSuffix.length).toLong
         val indexFile = Log.indexFilename(dir, start)
+        val timeIndexFile = Log.timeIndexFilename(dir, start)
+        val indexFileExists = indexFile.exists()
+        val timeIndexFileExists = timeIndexFile.exists()
         val segment = new LogSegment(dir = dir,
                                      startOffset = start,
                                      indexIntervalBytes = config.indexInterval,
@@ -189,15 +204,13 @@ class Log(val dir: File,
                                      time = time,
                                      fileAlreadyExists = true)
 
-        if(indexFile.exists()) {
-          try {
-              segment.index.sanityCheck()
-          } catch {
-            case e: java.lang.IllegalArgumentException =>
-              warn("Found a corrupted index file, %s, deleting and rebuilding index...".format(indexFile.getAbsolutePath))
-              indexFile.delete()
-              segment.recover(config.maxMessageSize)
-          }
+        if(indexFileExists) {
+          // Segments written before the time index existed get an empty one; their retention and timestamp
+          // lookups fall back to the segment's last modified time.
+          if(!timeIndexFileExists)
+            segment.timeIndex.resize(0)
+          // the indexes are sanity checked, and rebuilt if they are corrupt, when the segment is first used
+          segment.checkIndexesOnFirstUse(config.maxMessageSize, lock)
         }
         else {
           error("Could not find index file corresponding to log file %s, rebuilding index...".format(segment.log.file.getAbsolutePath))
@@ -216,8 +229,11 @@ class Log(val dir: File,
       val startOffset = fileName.substring(0, fileName.length - LogFileSuffix.length).toLong
       val indexFile = new File(CoreUtils.replaceSuffix(logFile.getPath, LogFileSuffix, IndexFileSuffix) + SwapFileSuffix)
       val index =  new OffsetIndex(indexFile, baseOffset = startOffset, maxIndexSize = config.maxIndexSize)
+      val timeIndexFile = new File(CoreUtils.replaceSuffix(logFile.getPath, LogFileSuffix, TimeIndexFileSuffix) + SwapFileSuffix)
+      val timeIndex = new TimeIndex(timeIndexFile, baseOffset = startOffset, maxIndexSize = config.maxIndexSize)
       val swapSegment = new LogSegment(new FileMessageSet(file = swapFile),
-                                       index = index,
+                                       offsetIndex = index,
+                                       timestampIndex = timeIndex,
                                        baseOffset = startOffset,
                                        indexIntervalBytes = config.indexInterval,
                                        rollJitterMs = config.randomSegmentJitter,
@@ -243,6 +259,7 @@ class Log(val dir: File,
       recoverLog()
       // reset the index size of the currently active log segment to allow more entries
       activeSegment.index.resize(config.maxIndexSize)
+      activeSegment.timeIndex.resize(config.maxIndexSize)
     }
 
   }
@@ -259,10 +276,13 @@ class Log(val dir: File,
     }
 
     // okay we need to actually recovery this log
+    val numUnflushed = logSegments(this.recoveryPoint, Long.MaxValue).size
     val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).iterator
+    var numRecovered = 0
     while(unflushed.hasNext) {
       val curr = unflushed.next
-      info("Recovering unflushed segment %d in log %s.".format(curr.baseOffset, name))
+      numRecovered += 1
+      info("Recovering unflushed segment %d in log %s (%d of %d).".format(curr.baseOffset, name, numRecovered, numUnflushed))
       val truncatedBytes =
         try {
           curr.recover(config.maxMessageSize)
@@ -323,6 +343,12 @@ class Log(val dir: File,
     if (appendInfo.shallowCount == 0)
       return appendInfo
 
+    // zstd can only be written once the message format of the topic allows it, brokers and consumers that predate it
+    // may read the log otherwise
+    if (assignOffsets && appendInfo.targetCodec == ZStdCompressionCodec && config.messageFormatVersion < KAFKA_0_10_0_ZSTD_IV0)
+      throw new UnsupportedCompressionTypeException(s"Messages compressed with zstd cannot be appended to $name since " +
+        s"its message format version ${config.messageFormatVersion.version} is older than ${KAFKA_0_10_0_ZSTD_IV0.version}")
+
     // trim any invalid bytes or partial messages before appending it to the on-disk log
     var validMessages = trimInvalidBytes(messages, appendInfo)
 
@@ -352,6 +378,16 @@ class Log(val dir: File,
           if (config.messageTimestampType == TimestampType.LOG_APPEND_TIME)
             appendInfo.timestamp = now
 
+          // the offsets and possibly the timestamps have been rewritten, find the largest timestamp again
+          if (config.messageFormatVersion.messageFormatVersion > Message.MagicValue_V0) {
+            val (maxTimestamp, offsetOfMaxTimestamp) = validMessages.largestTimestampAndOffset
+            appendInfo.maxTimestamp = maxTimestamp
+            appendInfo.offsetOfMaxTimestamp = offsetOfMaxTimestamp
+          } else {
+            appendInfo.maxTimestamp = Message.NoTimestamp
+            appendInfo.offsetOfMaxTimestamp = -1L
+          }
+
           // re-validate message sizes if there's a possibility that they have changed (due to re-compression or message
           // format conversion)
           if (messageSizesMaybeChanged) {
@@ -383,7 +419,7 @@ class Log(val dir: File,
         val segment = maybeRoll(validMessages.sizeInBytes)
 
         // now append to the log
-        segment.append(appendInfo.firstOffset, validMessages)
+        segment.append(appendInfo.firstOffset, appendInfo.maxTimestamp, appendInfo.offsetOfMaxTimestamp, validMessages)
 
         // increment the log end offset
         updateLogEndOffset(appendInfo.lastOffset + 1)
@@ -416,12 +452,15 @@ class Log(val dir: File,
    * <li> Number of valid bytes
    * <li> Whether the offsets are monotonically increasing
    * <li> Whether any compression codec is used (if many are used, then the last one is given)
+   * <li> The largest timestamp and the offset of the shallow message carrying it
    * </ol>
    */
   private def analyzeAndValidateMessageSet(messages: ByteBufferMessageSet): LogAppendInfo = {
     var shallowMessageCount = 0
     var validBytesCount = 0
     var firstOffset, lastOffset = -1L
+    var maxTimestamp = Message.NoTimestamp
+    var offsetOfMaxTimestamp = -1L
     var sourceCodec: CompressionCodec = NoCompressionCodec
     var monotonic = true
     for(messageAndOffset <- messages.shallowIterator) {
@@ -447,6 +486,10 @@ class Log(val dir: File,
 
       // check the validity of the message by checking CRC
       m.ensureValid()
+      if (m.timestamp > maxTimestamp) {
+        maxTimestamp = m.timestamp
+        offsetOfMaxTimestamp = lastOffset
+      }
 
       shallowMessageCount += 1
       validBytesCount += messageSize
@@ -459,7 +502,8 @@ class Log(val dir: File,
     // Apply broker-side compression if any
     val targetCodec = BrokerCompressionCodec.getTargetCompressionCodec(config.compressionType, sourceCodec)
 
-    LogAppendInfo(firstOffset, lastOffset, Message.NoTimestamp, sourceCodec, targetCodec, shallowMessageCount, validBytesCount, monotonic)
+    LogAppendInfo(firstOffset, lastOffset, maxTimestamp, offsetOfMaxTimestamp, Message.NoTimestamp, sourceCodec, targetCodec,
+      shallowMessageCount, validBytesCount, monotonic)
   }
 
   /**
@@ -556,6 +600,29 @@ class Log(val dir: File,
     }
   }
 
+  /**
+   * Find the first message whose timestamp is greater than or equal to the given timestamp.
+   *
+   * The segments are searched in order and the ones whose largest timestamp is smaller than the target are skipped
+   * without being read. Within the first candidate segment, the time index narrows the search down to a single
+   * index interval.
+   *
+   * @param targetTimestamp The timestamp to search for.
+   * @return The timestamp and offset of the first message whose timestamp is larger than or equal to the target
+   *         timestamp, or None if there is no such message.
+   */
+  def fetchOffsetsByTimestamp(targetTimestamp: Long): Option[TimestampOffset] = {
+    debug("Searching offset for timestamp %d in log %s".format(targetTimestamp, name))
+    // Take a copy of the segments to avoid racing with segment deletion and rolling
+    val segmentsCopy = logSegments.toBuffer
+    for (segment <- segmentsCopy if segment.largestTimestamp >= targetTimestamp) {
+      val found = segment.findOffsetByTimestamp(targetTimestamp)
+      if (found.isDefined)
+        return found
+    }
+    None
+  }
+
   /**
    * Delete any log segments matching the given predicate function,
    * starting with the oldest segment and moving forward until a segment doesn't match.
@@ -611,6 +678,7 @@ class Log(val dir: File,
    * <li> The logSegment is full
    * <li> The maxTime has elapsed
    * <li> The index is full
+   * <li> The time index is full
    * </ol>
    * @return The currently active segment after (perhaps) rolling to a new segment
    */
@@ -618,13 +686,15 @@ class Log(val dir: File,
     val segment = activeSegment
     if (segment.size > config.segmentSize - messagesSize ||
         segment.size > 0 && time.milliseconds - segment.created > config.segmentMs - segment.rollJitterMs ||
-        segment.index.isFull) {
-      debug("Rolling new log segment in %s (log_size = %d/%d, index_size = %d/%d, age_ms = %d/%d)."
+        segment.index.isFull || segment.timeIndex.isFull) {
+      debug("Rolling new log segment in %s (log_size = %d/%d, index_size = %d/%d, time_index_size = %d/%d, age_ms = %d/%d)."
             .format(name,
                     segment.size,
                     config.segmentSize,
                     segment.index.entries,
                     segment.index.maxEntries,
+                    segment.timeIndex.entries,
+                    segment.timeIndex.maxEntries,
                     time.milliseconds - segment.created,
                     config.segmentMs - segment.rollJitterMs))
       roll()
@@ -644,17 +714,15 @@ class Log(val dir: File,
       val newOffset = logEndOffset
       val logFile = logFilename(dir, newOffset)
       val indexFile = indexFilename(dir, newOffset)
-      for(file <- List(logFile, indexFile); if file.exists) {
+      val timeIndexFile = timeIndexFilename(dir, newOffset)
+      for(file <- List(logFile, indexFile, timeIndexFile); if file.exists) {
         warn("Newly rolled segment file " + file.getName + " already exists; deleting it first")
         file.delete()
       }
 
       segments.lastEntry() match {
         case null =>
-        case entry => {
-          entry.getValue.index.trimToValidSize()
-          entry.getValue.log.trim()
-        }
+        case entry => entry.getValue.onBecomeInactiveSegment()
       }
       val segment = new LogSegment(dir,
                                    startOffset = newOffset,
@@ -690,6 +758,19 @@ class Log(val dir: File,
    */
   def flush(): Unit = flush(this.logEndOffset)
 
+  /**
+   * Drop the memory maps of the indexes of the inactive segments that have not been used for the given time
+   *
+   * @return The number of segments whose indexes were unloaded
+   */
+  def unloadIdleIndexes(idleMs: Long): Int = {
+    lock synchronized {
+      val active = activeSegment
+      val now = time.milliseconds
+      logSegments.count(segment => segment != active && segment.unloadIdleIndexes(now, idleMs))
+    }
+  }
+
   /**
    * Flush log segments for all offsets up to offset-1
    * @param offset The offset to flush up to (non-inclusive); the new recovery point
@@ -910,6 +991,9 @@ object Log {
   /** an index file */
   val IndexFileSuffix = ".index"
 
+  /** a time index file */
+  val TimeIndexFileSuffix = ".timeindex"
+
   /** a file that is scheduled to be deleted */
   val DeletedFileSuffix = ".deleted"
 
@@ -954,6 +1038,14 @@ object Log {
   def indexFilename(dir: File, offset: Long) =
     new File(dir, filenamePrefixFromOffset(offset) + IndexFileSuffix)
 
+  /**
+   * Construct a time index file name in the given dir using the given base offset
+   * @param dir The directory in which the log will reside
+   * @param offset The base offset of the log file
+   */
+  def timeIndexFilename(dir: File, offset: Long) =
+    new File(dir, filenamePrefixFromOffset(offset) + TimeIndexFileSuffix)
+
 
   /**
    * Parse the topic and partition out of the directory name of a log
@@ -20,13 +20,15 @@ package kafka.log
 import java.io.{DataOutputStream, File}
 import java.nio._
 import java.util.Date
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
 
 import com.yammer.metrics.core.Gauge
 import kafka.common._
 import kafka.message._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils._
+import org.apache.kafka.common.utils.Utils
 
 import scala.collection._
 
@@ -39,6 +41,7 @@ import scala.collection._
  *
  * The cleaning is carried out by a pool of background threads. Each thread chooses the dirtiest log that has the "dedupe" retention policy 
  * and cleans that. The dirtiness of the log is guessed by taking the ratio of bytes in the dirty section of the log to the total bytes in the log. 
+ * A thread may split the cleaning of a single log with a few worker threads, see Cleaner.
  * 
  * To clean a log the cleaner first builds a mapping of key=>last_offset for the dirty section of the log. See kafka.log.OffsetMap for details of
  * the implementation of the mapping. 
@@ -186,18 +189,30 @@ class LogCleaner(val config: CleanerConfig,
     
     override val loggerName = classOf[LogCleaner].getName
     
-    if(config.dedupeBufferSize / config.numThreads > Int.MaxValue)
+    if(!config.dedupeBufferOffHeap && config.dedupeBufferSize / config.numThreads > Int.MaxValue)
       warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
 
-    val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt, 
-                                                              hashAlgorithm = config.hashAlgorithm),
-                              ioBufferSize = config.ioBufferSize / config.numThreads / 2,
-                              maxIoBufferSize = config.maxMessageSize,
-                              dupBufferLoadFactor = config.dedupeBufferLoadFactor,
-                              throttler = throttler,
-                              time = time,
-                              checkDone = checkDone)
+    // the buffers of the thread are divided between the cleaners that clean a log together
+    private def newCleaner(workers: Seq[Cleaner] = Seq.empty) =
+      new Cleaner(id = threadId,
+                  offsetMap = newOffsetMap(),
+                  ioBufferSize = config.ioBufferSize / config.numThreads / config.partitionThreads / 2,
+                  maxIoBufferSize = config.maxMessageSize,
+                  dupBufferLoadFactor = config.dedupeBufferLoadFactor,
+                  throttler = throttler,
+                  time = time,
+                  checkDone = checkDone,
+                  minSegmentGarbageRatio = config.minSegmentGarbageRatio,
+                  workers = workers)
+
+    private def newOffsetMap(): OffsetMap =
+      if (config.dedupeBufferOffHeap)
+        new OffHeapOffsetMap(memory = config.dedupeBufferSize / config.numThreads / config.partitionThreads)
+      else
+        new SkimpyOffsetMap(memory = (math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue) / config.partitionThreads).toInt,
+                            hashAlgorithm = config.hashAlgorithm)
+
+    val cleaner = newCleaner(workers = (1 until config.partitionThreads).map(_ => newCleaner()))
     
     @volatile var lastStats: CleanerStats = new CleanerStats()
     private val backOffWaitLatch = new CountDownLatch(1)
@@ -220,6 +235,7 @@ class LogCleaner(val config: CleanerConfig,
     	 initiateShutdown()
     	 backOffWaitLatch.countDown()
     	 awaitShutdown()
+    	 cleaner.shutdown()
      }
      
     /**
@@ -267,7 +283,8 @@ class LogCleaner(val config: CleanerConfig,
         "\tStart size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesRead), stats.messagesRead) +
         "\tEnd size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesWritten), stats.messagesWritten) + 
         "\t%.1f%% size reduction (%.1f%% fewer messages)%n".format(100.0 * (1.0 - stats.bytesWritten.toDouble/stats.bytesRead), 
-                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead))
+                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead)) +
+        "\tSkipped %,d segments (%,.1f MB) with too little garbage to recopy%n".format(stats.segmentsSkipped, mb(stats.bytesSkipped))
       info(message)
       if (stats.invalidMessagesRead > 0) {
         warn("\tFound %d invalid messages during compaction.".format(stats.invalidMessagesRead))
@@ -287,6 +304,11 @@ class LogCleaner(val config: CleanerConfig,
  * @param throttler The throttler instance to use for limiting I/O rate.
  * @param time The time instance
  * @param checkDone Check if the cleaning for a partition is finished or aborted.
+ * @param minSegmentGarbageRatio A segment that is cleaned on its own and holds no record shadowed by a later one is left
+ *                               in place unless cleaning it would discard more than this ratio of its bytes
+ * @param workers The cleaners that clean a log along with this one, each with its own offset map and buffers. When there
+ *                are workers, the dirty segments are split into consecutive ranges that are mapped in parallel, and the
+ *                segment groups are then cleaned in parallel using all the maps.
  */
 private[log] class Cleaner(val id: Int,
                            val offsetMap: OffsetMap,
@@ -295,11 +317,24 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: (TopicAndPartition) => Unit) extends Logging {
+                           checkDone: (TopicAndPartition) => Unit,
+                           minSegmentGarbageRatio: Double = 0.0,
+                           workers: Seq[Cleaner] = Seq.empty) extends Logging {
   
   override val loggerName = classOf[LogCleaner].getName
 
   this.logIdent = "Cleaner " + id + ": "
+
+  /* the threads running the workers, this cleaner uses the calling thread */
+  private val workerExecutor: Option[ExecutorService] =
+    if (workers.isEmpty) None
+    else {
+      val workerCount = new AtomicInteger(0)
+      Some(Executors.newFixedThreadPool(workers.size, new ThreadFactory {
+        def newThread(runnable: Runnable): Thread =
+          Utils.newThread("kafka-log-cleaner-thread-%d-worker-%d".format(id, workerCount.incrementAndGet()), runnable, true)
+      }))
+    }
   
   /* cleaning stats - one instance for the current (or next) cleaning cycle and one for the last completed cycle */
   val statsUnderlying = (new CleanerStats(time), new CleanerStats(time))
@@ -320,13 +355,19 @@ private[log] class Cleaner(val id: Int,
    */
   private[log] def clean(cleanable: LogToClean): Long = {
     stats.clear()
+    workers.foreach(_.stats.clear())
     info("Beginning cleaning of log %s.".format(cleanable.log.name))
     val log = cleanable.log
 
     // build the offset map
     info("Building offset map for %s...".format(cleanable.log.name))
     val upperBoundOffset = log.activeSegment.baseOffset
-    val endOffset = buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap) + 1
+    val (lastOffset, maps) =
+      if (workers.isEmpty)
+        (buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap), Seq(offsetMap))
+      else
+        buildOffsetMapInParallel(log, cleanable.firstDirtyOffset, upperBoundOffset)
+    val endOffset = lastOffset + 1
     stats.indexDone()
     
     // figure out the timestamp below which it is safe to remove delete tombstones
@@ -339,11 +380,16 @@ private[log] class Cleaner(val id: Int,
         
     // group the segments and clean the groups
     info("Cleaning log %s (discarding tombstones prior to %s)...".format(log.name, new Date(deleteHorizonMs)))
-    for (group <- groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize))
-      cleanSegments(log, group, offsetMap, deleteHorizonMs)
+    val groups = groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize)
+    if (workers.isEmpty)
+      for (group <- groups)
+        cleanSegments(log, group, offsetMap, deleteHorizonMs)
+    else
+      cleanSegmentsInParallel(log, groups, new CompositeOffsetMap(maps), deleteHorizonMs)
       
     // record buffer utilization
-    stats.bufferUtilization = offsetMap.utilization
+    stats.bufferUtilization = maps.map(_.utilization).max
+    workers.foreach(worker => stats.add(worker.stats))
     
     stats.allDone()
 
@@ -351,7 +397,77 @@ private[log] class Cleaner(val id: Int,
   }
 
   /**
-   * Clean a group of segments into a single replacement segment
+   * Stop the worker threads, if any
+   */
+  def shutdown() {
+    workerExecutor.foreach(_.shutdown())
+  }
+
+  /**
+   * Clean the groups of segments with this cleaner and its workers. Each cleaner takes the next group that is not
+   * cleaned yet until all of them are.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments to clean
+   * @param map The offset map to use for cleaning segments, which is no longer updated
+   * @param deleteHorizonMs The time to retain delete tombstones
+   */
+  private def cleanSegmentsInParallel(log: Log, groups: Seq[Seq[LogSegment]], map: OffsetMap, deleteHorizonMs: Long) {
+    val pending = groups.toIndexedSeq
+    val nextGroup = new AtomicInteger(0)
+    val failed = new AtomicBoolean(false)
+    val cleaners = (this +: workers).take(pending.size)
+    if (cleaners.nonEmpty) {
+      inParallel(cleaners.map(cleaner => (cleaner, map.concurrentReader()))) { (cleaner, reader) =>
+        try {
+          var group = nextGroup.getAndIncrement()
+          while (group < pending.size && !failed.get) {
+            cleaner.cleanSegments(log, pending(group), reader, deleteHorizonMs)
+            group = nextGroup.getAndIncrement()
+          }
+        } catch {
+          case e: Throwable =>
+            // the other cleaners stop after their current group
+            failed.set(true)
+            throw e
+        }
+      }
+    }
+  }
+
+  /**
+   * Apply the function to each cleaner and its input, on the calling thread for this cleaner and on the worker threads
+   * for the others, and wait for all of them to complete. The first exception thrown is rethrown once they are done.
+   */
+  private def inParallel[T, R](tasks: Seq[(Cleaner, T)])(f: (Cleaner, T) => R): Seq[R] = {
+    val futures = tasks.tail.map { case (cleaner, input) =>
+      workerExecutor.get.submit(new Callable[R] {
+        def call(): R = f(cleaner, input)
+      })
+    }
+    var error: Throwable = null
+    val first = try Some(f(tasks.head._1, tasks.head._2)) catch {
+      case e: Throwable =>
+        error = e
+        None
+    }
+    val others = futures.map { future =>
+      try Some(future.get) catch {
+        case e: ExecutionException =>
+          if (error == null) error = e.getCause
+          None
+      }
+    }
+    if (error != null)
+      throw error
+    (first +: others).map(_.get)
+  }
+
+  /**
+   * Clean a group of segments into a single replacement segment. A group of a single segment is left in place instead
+   * if none of its records is shadowed by a later record or tombstone and it has little enough other garbage, such as
+   * expired tombstones. That is decided by reading the segment before any cleaned segment is created, so a segment that
+   * is kept is never rewritten. Groups of several segments are always swapped in so that small segments are merged.
    *
    * @param log The log being cleaned
    * @param segments The group of segments being cleaned
@@ -362,14 +478,31 @@ private[log] class Cleaner(val id: Int,
                                  segments: Seq[LogSegment], 
                                  map: OffsetMap, 
                                  deleteHorizonMs: Long) {
-    // create a new segment with the suffix .cleaned appended to both the log and index name
+    // a segment that only holds a little garbage and nothing shadowed can be kept as it is, a shadowed record must
+    // always be removed, or it would come back once the record or tombstone shadowing it is cleaned away
+    if (segments.size == 1) {
+      val segment = segments.head
+      val maxGarbageBytes = (segment.size * minSegmentGarbageRatio).toLong
+      val garbage = measureGarbage(log.topicAndPartition, segment, map, segment.lastModified > deleteHorizonMs, maxGarbageBytes)
+      if (!garbage.shadowed && garbage.bytes <= maxGarbageBytes) {
+        info("Keeping segment %s in log %s in place, cleaning it would only discard %d bytes."
+            .format(segment.baseOffset, log.name, garbage.bytes))
+        stats.skipSegment(segment.size)
+        return
+      }
+    }
+
+    // create a new segment with the suffix .cleaned appended to the log and both index names
     val logFile = new File(segments.head.log.file.getPath + Log.CleanedFileSuffix)
     logFile.delete()
     val indexFile = new File(segments.head.index.file.getPath + Log.CleanedFileSuffix)
     indexFile.delete()
+    val timeIndexFile = new File(segments.head.timeIndex.file.getPath + Log.CleanedFileSuffix)
+    timeIndexFile.delete()
     val messages = new FileMessageSet(logFile, fileAlreadyExists = false, initFileSize = log.initFileSize(), preallocate = log.config.preallocate)
     val index = new OffsetIndex(indexFile, segments.head.baseOffset, segments.head.index.maxIndexSize)
-    val cleaned = new LogSegment(messages, index, segments.head.baseOffset, segments.head.indexIntervalBytes, log.config.randomSegmentJitter, time)
+    val timeIndex = new TimeIndex(timeIndexFile, segments.head.baseOffset, segments.head.timeIndex.maxIndexSize)
+    val cleaned = new LogSegment(messages, index, timeIndex, segments.head.baseOffset, segments.head.indexIntervalBytes, log.config.randomSegmentJitter, time)
 
     try {
       // clean segments into the new destination segment
@@ -380,8 +513,8 @@ private[log] class Cleaner(val id: Int,
         cleanInto(log.topicAndPartition, old, cleaned, map, retainDeletes, log.config.messageFormatVersion.messageFormatVersion)
       }
 
-      // trim excess index
-      index.trimToValidSize()
+      // record the largest timestamp of the cleaned segment and trim excess index
+      cleaned.onBecomeInactiveSegment()
 
       // flush new segment to disk before swap
       cleaned.flush()
@@ -400,6 +533,62 @@ private[log] class Cleaner(val id: Int,
     }
   }
 
+  /**
+   * Measure the garbage that cleaning the given segment would discard, without writing anything. Reading stops as soon
+   * as a shadowed record is found or the garbage exceeds the given limit, since the segment has to be cleaned either way.
+   *
+   * @param source The dirty log segment
+   * @param map The key=>offset mapping
+   * @param retainDeletes Should delete tombstones be retained while cleaning this segment
+   * @param maxGarbageBytes The garbage above which the segment is known to need cleaning
+   * @return The garbage found in the source segment
+   */
+  private[log] def measureGarbage(topicAndPartition: TopicAndPartition,
+                                  source: LogSegment,
+                                  map: OffsetMap,
+                                  retainDeletes: Boolean,
+                                  maxGarbageBytes: Long): SegmentGarbage = {
+    var garbageBytes = 0L
+    var shadowed = false
+    var position = 0
+    while (position < source.log.sizeInBytes && !shadowed && garbageBytes <= maxGarbageBytes) {
+      checkDone(topicAndPartition)
+      readBuffer.clear()
+      val messages = new ByteBufferMessageSet(source.log.readInto(readBuffer, position))
+      throttler.maybeThrottle(messages.sizeInBytes)
+      var messagesRead = 0
+      for (entry <- messages.shallowIterator) {
+        val size = MessageSet.entrySize(entry.message)
+        if (entry.message.compressionCodec == NoCompressionCodec) {
+          if (isGarbage(map, retainDeletes, entry)) {
+            garbageBytes += size
+            shadowed ||= isShadowed(map, entry)
+          }
+        } else {
+          var discarded = 0
+          var retained = 0
+          ByteBufferMessageSet.deepIterator(entry).foreach { messageAndOffset =>
+            if (isGarbage(map, retainDeletes, messageAndOffset)) {
+              discarded += 1
+              shadowed ||= isShadowed(map, messageAndOffset)
+            } else
+              retained += 1
+          }
+          // the bytes of a compressed message set are counted in proportion to the messages it would lose
+          garbageBytes += size.toLong * discarded / (discarded + retained)
+        }
+        messagesRead += 1
+      }
+      position += messages.validBytes
+
+      // if we read bytes but didn't get even one complete message, our I/O buffer is too small, grow it and try again
+      if (readBuffer.limit > 0 && messagesRead == 0)
+        growBuffers()
+    }
+    restoreBuffers()
+    SegmentGarbage(garbageBytes, shadowed)
+  }
+
   /**
    * Clean the given source log segment into the destination segment using the key=>offset mapping
    * provided
@@ -461,7 +650,8 @@ private[log] class Cleaner(val id: Int,
       if (writeBuffer.position > 0) {
         writeBuffer.flip()
         val retained = new ByteBufferMessageSet(writeBuffer)
-        dest.append(retained.head.offset, retained)
+        val (maxTimestamp, offsetOfMaxTimestamp) = retained.largestTimestampAndOffset
+        dest.append(retained.head.offset, maxTimestamp, offsetOfMaxTimestamp, retained)
         throttler.maybeThrottle(writeBuffer.limit)
       }
       
@@ -513,22 +703,35 @@ private[log] class Cleaner(val id: Int,
                                   map: kafka.log.OffsetMap,
                                   retainDeletes: Boolean,
                                   entry: kafka.message.MessageAndOffset): Boolean = {
-    val key = entry.message.key
-    if (key != null) {
-      val foundOffset = map.get(key)
-      /* two cases in which we can get rid of a message:
-       *   1) if there exists a message with the same key but higher offset
-       *   2) if the message is a delete "tombstone" marker and enough time has passed
-       */
-      val redundant = foundOffset >= 0 && entry.offset < foundOffset
-      val obsoleteDelete = !retainDeletes && entry.message.isNull
-      !redundant && !obsoleteDelete
+    if (entry.message.key != null) {
+      !isObsolete(map, retainDeletes, entry)
     } else {
       stats.invalidMessage()
       false
     }
   }
 
+  private def isGarbage(map: OffsetMap, retainDeletes: Boolean, entry: MessageAndOffset): Boolean =
+    entry.message.key == null || isObsolete(map, retainDeletes, entry)
+
+  private def isObsolete(map: OffsetMap, retainDeletes: Boolean, entry: MessageAndOffset): Boolean = {
+    /* two cases in which we can get rid of a message:
+     *   1) if there exists a message with the same key but higher offset
+     *   2) if the message is a delete "tombstone" marker and enough time has passed
+     */
+    val obsoleteDelete = !retainDeletes && entry.message.isNull
+    isShadowed(map, entry) || obsoleteDelete
+  }
+
+  private def isShadowed(map: OffsetMap, entry: MessageAndOffset): Boolean = {
+    if (entry.message.key == null)
+      false
+    else {
+      val foundOffset = map.get(entry.message.key)
+      foundOffset >= 0 && entry.offset < foundOffset
+    }
+  }
+
   /**
    * Double the I/O buffer capacity
    */
@@ -552,13 +755,14 @@ private[log] class Cleaner(val id: Int,
   }
 
   /**
-   * Group the segments in a log into groups totaling less than a given size. the size is enforced separately for the log data and the index data.
+   * Group the segments in a log into groups totaling less than a given size. the size is enforced separately for the log data and the
+   * data of each index.
    * We collect a group of such segments together into a single
    * destination segment. This prevents segment sizes from shrinking too much.
    *
    * @param segments The log segments to group
    * @param maxSize the maximum size in bytes for the total of all log data in a group
-   * @param maxIndexSize the maximum size in bytes for the total of all index data in a group
+   * @param maxIndexSize the maximum size in bytes for the total of all index data (and of all time index data) in a group
    *
    * @return A list of grouped segments
    */
@@ -569,14 +773,17 @@ private[log] class Cleaner(val id: Int,
       var group = List(segs.head)
       var logSize = segs.head.size
       var indexSize = segs.head.index.sizeInBytes
+      var timeIndexSize = segs.head.timeIndex.sizeInBytes
       segs = segs.tail
       while(!segs.isEmpty &&
             logSize + segs.head.size <= maxSize &&
             indexSize + segs.head.index.sizeInBytes <= maxIndexSize &&
+            timeIndexSize + segs.head.timeIndex.sizeInBytes <= maxIndexSize &&
             segs.head.index.lastOffset - group.last.index.baseOffset <= Int.MaxValue) {
         group = segs.head :: group
         logSize += segs.head.size
         indexSize += segs.head.index.sizeInBytes
+        timeIndexSize += segs.head.timeIndex.sizeInBytes
         segs = segs.tail
       }
       grouped ::= group.reverse
@@ -597,27 +804,106 @@ private[log] class Cleaner(val id: Int,
     map.clear()
     val dirty = log.logSegments(start, end).toBuffer
     info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
-    
-    // Add all the dirty segments. We must take at least map.slots * load_factor,
-    // but we may be able to fit more (if there is lots of duplication in the dirty section of the log)
-    var offset = dirty.head.baseOffset
-    require(offset == start, "Last clean offset is %d but segment base offset is %d for log %s.".format(start, offset, log.name))
+    require(dirty.head.baseOffset == start, "Last clean offset is %d but segment base offset is %d for log %s.".format(start, dirty.head.baseOffset, log.name))
+
+    val (offset, _) = buildOffsetMapForSegments(log, dirty, map)
+    // If not even one segment can fit in the map, compaction cannot happen
+    requireMapped(log, dirty, offset)
+    info("Offset map for log %s complete.".format(log.name))
+    offset
+  }
+
+  /**
+   * Build the offset maps for the dirty portion of the log with this cleaner and its workers. The dirty segments are split
+   * into consecutive ranges of about the same size, and each cleaner maps one of them into its own offset map.
+   * @param log The log to use
+   * @param start The offset at which dirty messages begin
+   * @param end The ending offset for the maps that are being built
+   *
+   * @return The final offset the maps cover and the maps to use for cleaning, in offset order
+   */
+  private def buildOffsetMapInParallel(log: Log, start: Long, end: Long): (Long, Seq[OffsetMap]) = {
+    val dirty = log.logSegments(start, end).toBuffer
+    info("Building offset map for log %s for %d segments in offset range [%d, %d) with %d cleaners.".format(log.name, dirty.size, start, end, workers.size + 1))
+    require(dirty.head.baseOffset == start, "Last clean offset is %d but segment base offset is %d for log %s.".format(start, dirty.head.baseOffset, log.name))
+
+    val ranges = (this +: workers).zip(splitBySize(dirty, workers.size + 1))
+    val mapped = inParallel(ranges) { (cleaner, segments) =>
+      cleaner.offsetMap.clear()
+      cleaner.buildOffsetMapForSegments(log, segments, cleaner.offsetMap)
+    }
+
+    // The ranges following one that did not entirely fit in its map are not cleaned this time
+    var offset = -1L
+    val maps = mutable.ArrayBuffer[OffsetMap]()
+    var complete = true
+    for (((rangeOffset, rangeComplete), (cleaner, _)) <- mapped.zip(ranges) if complete) {
+      if (rangeOffset > -1L) {
+        offset = rangeOffset
+        maps += cleaner.offsetMap
+      }
+      complete = rangeComplete
+    }
+    requireMapped(log, dirty, offset)
+    info("Offset map for log %s complete, %d of %d ranges mapped.".format(log.name, maps.size, ranges.size))
+    (offset, maps)
+  }
+
+  private def requireMapped(log: Log, dirty: Seq[LogSegment], offset: Long) {
+    require(offset > -1L, "Unable to build the offset map for segment %s/%s. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads or log.cleaner.partition.threads".format(log.name, dirty.head.log.file.getName))
+  }
+
+  /**
+   * Split the segments into at most the given number of consecutive, non-empty ranges of about the same size in bytes
+   */
+  private[log] def splitBySize(segments: Seq[LogSegment], maxRanges: Int): Seq[Seq[LogSegment]] = {
+    val sizes = segments.map(_.size.toLong).toIndexedSeq
+    val totalSize = sizes.sum
+    val ranges = mutable.ArrayBuffer[Seq[LogSegment]]()
+    var range = mutable.ArrayBuffer[LogSegment]()
+    var size = 0L
+    for ((segment, i) <- segments.zipWithIndex) {
+      range += segment
+      size += sizes(i)
+      // a segment belongs to the range its middle falls into, but each range takes at least one segment
+      val segmentsLeft = sizes.size - i - 1
+      if (segmentsLeft > 0 && ranges.size < maxRanges - 1 &&
+          ((2 * size + sizes(i + 1)) * maxRanges > 2 * totalSize * (ranges.size + 1) || segmentsLeft < maxRanges - ranges.size)) {
+        ranges += range
+        range = mutable.ArrayBuffer[LogSegment]()
+      }
+    }
+    if (range.nonEmpty)
+      ranges += range
+    ranges
+  }
+
+  /**
+   * Add the messages in consecutive segments to the offset map until it is full.
+   * We must take at least map.slots * load_factor, but we may be able to fit more (if there is lots of duplication in
+   * the segments)
+   * @param log The log to use
+   * @param segments The segments to index
+   * @param map The map in which to store the mappings
+   *
+   * @return The final offset covered by the map, or -1 if not even the first segment fits in the map, and whether all
+   *         the segments fit in the map
+   */
+  private def buildOffsetMapForSegments(log: Log, segments: Seq[LogSegment], map: OffsetMap): (Long, Boolean) = {
+    var offset = -1L
     var full = false
-    for (segment <- dirty if !full) {
+    for (segment <- segments if !full) {
       checkDone(log.topicAndPartition)
 
       val newOffset = buildOffsetMapForSegment(log.topicAndPartition, segment, map)
       if (newOffset > -1L)
         offset = newOffset
       else {
-        // If not even one segment can fit in the map, compaction cannot happen
-        require(offset > start, "Unable to build the offset map for segment %s/%s. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads".format(log.name, segment.log.file.getName))
-        debug("Offset map is full, %d segments fully mapped, segment with base offset %d is partially mapped".format(dirty.indexOf(segment), segment.baseOffset))
+        debug("Offset map is full, %d segments fully mapped, segment with base offset %d is partially mapped".format(segments.indexOf(segment), segment.baseOffset))
         full = true
       }
     }
-    info("Offset map for log %s complete.".format(log.name))
-    offset
+    (offset, !full)
   }
 
   /**
@@ -663,12 +949,20 @@ private[log] class Cleaner(val id: Int,
   }
 }
 
+/**
+ * The garbage discarded from a segment by cleaning it
+ *
+ * @param bytes The number of bytes discarded
+ * @param shadowed Whether any of the discarded records was shadowed by a later record or tombstone with the same key
+ */
+private[log] case class SegmentGarbage(bytes: Long, shadowed: Boolean)
+
 /**
  * A simple struct for collecting stats about log cleaning
  */
 private case class CleanerStats(time: Time = SystemTime) {
   var startTime, mapCompleteTime, endTime, bytesRead, bytesWritten, mapBytesRead, mapMessagesRead, messagesRead,
-      messagesWritten, invalidMessagesRead = 0L
+      messagesWritten, invalidMessagesRead, segmentsSkipped, bytesSkipped = 0L
   var bufferUtilization = 0.0d
   clear()
   
@@ -686,6 +980,11 @@ private case class CleanerStats(time: Time = SystemTime) {
     bytesWritten += size
   }
 
+  def skipSegment(size: Long) {
+    segmentsSkipped += 1
+    bytesSkipped += size
+  }
+
   def indexMessagesRead(size: Int) {
     mapMessagesRead += size
   }
@@ -698,6 +997,18 @@ private case class CleanerStats(time: Time = SystemTime) {
     mapCompleteTime = time.milliseconds
   }
 
+  def add(other: CleanerStats) {
+    bytesRead += other.bytesRead
+    bytesWritten += other.bytesWritten
+    mapBytesRead += other.mapBytesRead
+    mapMessagesRead += other.mapMessagesRead
+    messagesRead += other.messagesRead
+    messagesWritten += other.messagesWritten
+    invalidMessagesRead += other.invalidMessagesRead
+    segmentsSkipped += other.segmentsSkipped
+    bytesSkipped += other.bytesSkipped
+  }
+
   def allDone() {
     endTime = time.milliseconds
   }
@@ -717,6 +1028,8 @@ private case class CleanerStats(time: Time = SystemTime) {
     messagesRead = 0L
     invalidMessagesRead = 0L
     messagesWritten = 0L
+    segmentsSkipped = 0L
+    bytesSkipped = 0L
     bufferUtilization = 0.0d
   }
 }
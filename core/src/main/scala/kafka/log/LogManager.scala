@@ -19,7 +19,10 @@ package kafka.log
 
 import java.io._
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
 import kafka.utils._
 
 import scala.collection._
@@ -36,6 +39,12 @@ import java.util.concurrent.{ExecutionException, ExecutorService, Executors, Fut
  * size or I/O rate.
  * 
  * A background thread handles log retention by periodically truncating excess log segments.
+ *
+ * The logs of each data directory are loaded, and recovered after an unclean shutdown, by a pool of `ioThreads`
+ * threads, one log at a time per thread. The number of logs that are left to load is reported per data directory.
+ *
+ * The index files of a segment are only memory mapped when the segment is used. If `indexIdleUnmapMs` is not negative,
+ * a background thread unmaps the indexes of inactive segments that have not been used for that long.
  */
 @threadsafe
 class LogManager(val logDirs: Array[File],
@@ -48,7 +57,8 @@ class LogManager(val logDirs: Array[File],
                  val retentionCheckMs: Long,
                  scheduler: Scheduler,
                  val brokerState: BrokerState,
-                 private val time: Time) extends Logging {
+                 private val time: Time,
+                 val indexIdleUnmapMs: Long = -1L) extends Logging with KafkaMetricsGroup {
   val RecoveryPointCheckpointFile = "recovery-point-offset-checkpoint"
   val LockFile = ".lock"
   val InitialTaskDelayMs = 30*1000
@@ -58,8 +68,24 @@ class LogManager(val logDirs: Array[File],
   createAndValidateLogDirs(logDirs)
   private val dirLocks = lockLogDirs(logDirs)
   private val recoveryPointCheckpoints = logDirs.map(dir => (dir, new OffsetCheckpoint(new File(dir, RecoveryPointCheckpointFile)))).toMap
+
+  /* the number of logs in each data directory that have not been loaded yet */
+  private val remainingLogsToLoad = logDirs.map(dir => (dir, new AtomicInteger(0))).toMap
+  for ((dir, remainingLogs) <- remainingLogsToLoad) {
+    newGauge("RemainingLogsToLoad",
+      new Gauge[Int] {
+        def value = remainingLogs.get
+      },
+      Map("dir" -> dir.getAbsolutePath))
+  }
+
   loadLogs()
 
+  newGauge("MappedIndexes",
+    new Gauge[Int] {
+      def value = LazyIndex.numMappedIndexes
+    })
+
   // public, so we can access this from kafka.admin.DeleteTopicTest
   val cleaner: LogCleaner =
     if(cleanerConfig.enableCleaner)
@@ -138,10 +164,15 @@ class LogManager(val logDirs: Array[File],
         }
       }
 
-      val jobsForDir = for {
+      val logDirsToLoad = for {
         dirContent <- Option(dir.listFiles).toList
         logDir <- dirContent if logDir.isDirectory
-      } yield {
+      } yield logDir
+      val remainingLogs = remainingLogsToLoad(dir)
+      remainingLogs.set(logDirsToLoad.size)
+      info("Loading %d logs in data directory %s with %d threads.".format(logDirsToLoad.size, dir.getAbsolutePath, ioThreads))
+
+      val jobsForDir = for (logDir <- logDirsToLoad) yield {
         CoreUtils.runnable {
           debug("Loading log '" + logDir.getName + "'")
 
@@ -157,6 +188,10 @@ class LogManager(val logDirs: Array[File],
               "Duplicate log directories found: %s, %s!".format(
               current.dir.getAbsolutePath, previous.dir.getAbsolutePath))
           }
+
+          val remaining = remainingLogs.decrementAndGet()
+          if (remaining % 100 == 0 && remaining > 0)
+            info("%d logs left to load in data directory %s.".format(remaining, dir.getAbsolutePath))
         }
       }
 
@@ -205,6 +240,14 @@ class LogManager(val logDirs: Array[File],
                          period = flushCheckpointMs,
                          TimeUnit.MILLISECONDS)
     }
+    if(scheduler != null && indexIdleUnmapMs >= 0) {
+      info("Starting index unmapper with an idle time of %d ms.".format(indexIdleUnmapMs))
+      scheduler.schedule("kafka-index-unmapper",
+                         unloadIdleIndexes,
+                         delay = InitialTaskDelayMs,
+                         period = math.max(indexIdleUnmapMs / 2, 1000L),
+                         TimeUnit.MILLISECONDS)
+    }
     if(cleanerConfig.enableCleaner)
       cleaner.startup()
   }
@@ -215,6 +258,10 @@ class LogManager(val logDirs: Array[File],
   def shutdown() {
     info("Shutting down.")
 
+    for (dir <- logDirs)
+      removeMetric("RemainingLogsToLoad", Map("dir" -> dir.getAbsolutePath))
+    removeMetric("MappedIndexes")
+
     val threadPools = mutable.ArrayBuffer.empty[ExecutorService]
     val jobs = mutable.Map.empty[File, Seq[Future[_]]]
 
@@ -424,7 +471,7 @@ class LogManager(val logDirs: Array[File],
     if (log.config.retentionMs < 0)
       return 0
     val startMs = time.milliseconds
-    log.deleteOldSegments(startMs - _.lastModified > log.config.retentionMs)
+    log.deleteOldSegments(startMs - _.largestTimestamp > log.config.retentionMs)
   }
 
   /**
@@ -480,6 +527,22 @@ class LogManager(val logDirs: Array[File],
     }
   }
 
+  /**
+   * Unmap the indexes of the inactive segments that have not been used for `indexIdleUnmapMs`
+   */
+  private def unloadIdleIndexes() {
+    var unloaded = 0
+    for ((topicAndPartition, log) <- logs) {
+      try {
+        unloaded += log.unloadIdleIndexes(indexIdleUnmapMs)
+      } catch {
+        case e: Throwable =>
+          error("Error unmapping the indexes of " + topicAndPartition, e)
+      }
+    }
+    debug("Unmapped the indexes of %d idle segments.".format(unloaded))
+  }
+
   /**
    * Flush any log which has exceeded its flush interval and has unwritten messages.
    */
@@ -27,22 +27,31 @@ import java.io.{IOException, File}
 
 
  /**
- * A segment of the log. Each segment has two components: a log and an index. The log is a FileMessageSet containing
- * the actual messages. The index is an OffsetIndex that maps from logical offsets to physical file positions. Each
- * segment has a base offset which is an offset <= the least offset of any message in this segment and > any offset in
- * any previous segment.
+ * A segment of the log. Each segment has three components: a log, an index and a time index. The log is a FileMessageSet
+ * containing the actual messages. The index is an OffsetIndex that maps from logical offsets to physical file positions.
+ * The time index is a TimeIndex that maps from message timestamps to logical offsets. Each segment has a base offset
+ * which is an offset <= the least offset of any message in this segment and > any offset in any previous segment.
  *
- * A segment with a base offset of [base_offset] would be stored in two files, a [base_offset].index and a [base_offset].log file.
+ * A segment with a base offset of [base_offset] would be stored in three files, a [base_offset].index, a
+ * [base_offset].timeindex and a [base_offset].log file.
+ *
+ * The index files are only memory mapped when the indexes are first used, and may be unmapped again by
+ * [[unloadIdleIndexes]] once the segment is inactive. The indexes of a segment loaded from disk may also be sanity
+ * checked lazily, see [[checkIndexesOnFirstUse]]. Access the indexes through `index` and `timeIndex`, which load them
+ * and run the pending check first, while holding the lock of the log, since idle indexes are unmapped under it. Reads
+ * that run without the lock use the indexes through [[LazyIndex.use]] instead.
  *
  * @param log The message set containing log entries
- * @param index The offset index
+ * @param lazyOffsetIndex The offset index
+ * @param lazyTimeIndex The timestamp index
  * @param baseOffset A lower bound on the offsets in this segment
  * @param indexIntervalBytes The approximate number of bytes between entries in the index
  * @param time The time instance
  */
 @nonthreadsafe
 class LogSegment(val log: FileMessageSet,
-                 val index: OffsetIndex,
+                 lazyOffsetIndex: LazyIndex[OffsetIndex],
+                 lazyTimeIndex: LazyIndex[TimeIndex],
                  val baseOffset: Long,
                  val indexIntervalBytes: Int,
                  val rollJitterMs: Long,
@@ -53,9 +62,25 @@ class LogSegment(val log: FileMessageSet,
   /* the number of bytes since we last added an entry in the offset index */
   private var bytesSinceLastIndexEntry = 0
 
+  /* The maximum timestamp we see so far, read from the time index when it is first needed */
+  @volatile private var _maxTimestampSoFar: Option[Long] = None
+  @volatile private var _offsetOfMaxTimestamp: Option[Long] = None
+
+  /* the max message size to rebuild the indexes with if they have not been sanity checked yet, -1 if they have */
+  @volatile private var uncheckedIndexesMaxMessageSize = -1
+  /* the lock the pending check of the indexes runs under, the lock of the log the segment belongs to */
+  @volatile private var uncheckedIndexesLock: AnyRef = this
+
+  def this(log: FileMessageSet, offsetIndex: OffsetIndex, timestampIndex: TimeIndex, baseOffset: Long, indexIntervalBytes: Int, rollJitterMs: Long, time: Time) =
+    this(log, LazyIndex(offsetIndex), LazyIndex(timestampIndex), baseOffset, indexIntervalBytes, rollJitterMs, time)
+
   def this(dir: File, startOffset: Long, indexIntervalBytes: Int, maxIndexSize: Int, rollJitterMs: Long, time: Time, fileAlreadyExists: Boolean = false, initFileSize: Int = 0, preallocate: Boolean = false) =
     this(new FileMessageSet(file = Log.logFilename(dir, startOffset), fileAlreadyExists = fileAlreadyExists, initFileSize = initFileSize, preallocate = preallocate),
-         new OffsetIndex(Log.indexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize),
+         // the indexes of a new segment are created right away
+         if (fileAlreadyExists) LazyIndex.forOffset(Log.indexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize)
+         else LazyIndex(new OffsetIndex(Log.indexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize)),
+         if (fileAlreadyExists) LazyIndex.forTime(Log.timeIndexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize)
+         else LazyIndex(new TimeIndex(Log.timeIndexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize)),
          startOffset,
          indexIntervalBytes,
          rollJitterMs,
@@ -64,22 +89,106 @@ class LogSegment(val log: FileMessageSet,
   /* Return the size in bytes of this log segment */
   def size: Long = log.sizeInBytes()
 
+  /* The offset index, sanity checked first if the check is still pending */
+  def index: OffsetIndex = {
+    maybeCheckIndexes()
+    lazyOffsetIndex.get
+  }
+
+  /* The time index, sanity checked first if the check is still pending */
+  def timeIndex: TimeIndex = {
+    maybeCheckIndexes()
+    lazyTimeIndex.get
+  }
+
+  private def maxTimestampSoFar: Long = {
+    if (_maxTimestampSoFar.isEmpty)
+      _maxTimestampSoFar = Some(timeIndex.lastEntry.timestamp)
+    _maxTimestampSoFar.get
+  }
+
+  private def maxTimestampSoFar_=(timestamp: Long): Unit = _maxTimestampSoFar = Some(timestamp)
+
+  private def offsetOfMaxTimestamp: Long = {
+    if (_offsetOfMaxTimestamp.isEmpty)
+      _offsetOfMaxTimestamp = Some(timeIndex.lastEntry.offset)
+    _offsetOfMaxTimestamp.get
+  }
+
+  private def offsetOfMaxTimestamp_=(offset: Long): Unit = _offsetOfMaxTimestamp = Some(offset)
+
+  /**
+   * Drop the memory maps of the indexes if they have not been used for the given time. This may only be called for
+   * an inactive segment.
+   *
+   * @return true if any index was unloaded
+   */
+  def unloadIdleIndexes(now: Long, idleMs: Long): Boolean = {
+    val offsetIndexUnloaded = lazyOffsetIndex.unloadIfIdle(now, idleMs)
+    val timeIndexUnloaded = lazyTimeIndex.unloadIfIdle(now, idleMs)
+    offsetIndexUnloaded || timeIndexUnloaded
+  }
+
+  /**
+   * Defer the sanity check of the indexes of a segment loaded from disk to the first time they are used, which
+   * rebuilds them if they are corrupt. This keeps loading a log from touching the indexes of all its segments.
+   *
+   * The check runs under the given lock, the lock of the log, so that a rebuild does not race with appends,
+   * truncation or the unloading of idle indexes, whichever thread uses the segment first.
+   *
+   * @param maxMessageSize The max message size to use if the indexes have to be rebuilt
+   * @param logLock The lock of the log the segment belongs to
+   */
+  def checkIndexesOnFirstUse(maxMessageSize: Int, logLock: AnyRef) {
+    uncheckedIndexesLock = logLock
+    uncheckedIndexesMaxMessageSize = maxMessageSize
+  }
+
+  private def maybeCheckIndexes() {
+    if (uncheckedIndexesMaxMessageSize >= 0) {
+      uncheckedIndexesLock synchronized {
+        val maxMessageSize = uncheckedIndexesMaxMessageSize
+        if (maxMessageSize >= 0) {
+          try {
+            lazyOffsetIndex.get.sanityCheck()
+            lazyTimeIndex.get.sanityCheck()
+          } catch {
+            case e: IllegalArgumentException =>
+              warn("Found a corrupted index file, %s or %s, rebuilding indexes...".format(lazyOffsetIndex.file.getAbsolutePath,
+                lazyTimeIndex.file.getAbsolutePath))
+              rebuild(maxMessageSize)
+          }
+          uncheckedIndexesMaxMessageSize = -1
+        }
+      }
+    }
+  }
+
   /**
    * Append the given messages starting with the given offset. Add
-   * an entry to the index if needed.
+   * an entry to the index and the time index if needed.
    *
    * It is assumed this method is being called from within a lock.
    *
    * @param offset The first offset in the message set.
+   * @param largestTimestamp The largest timestamp in the message set.
+   * @param offsetOfLargestTimestamp The offset of the shallow message containing the largest timestamp.
    * @param messages The messages to append.
    */
   @nonthreadsafe
-  def append(offset: Long, messages: ByteBufferMessageSet) {
+  def append(offset: Long, largestTimestamp: Long, offsetOfLargestTimestamp: Long, messages: ByteBufferMessageSet) {
     if (messages.sizeInBytes > 0) {
-      trace("Inserting %d bytes at offset %d at position %d".format(messages.sizeInBytes, offset, log.sizeInBytes()))
+      trace("Inserting %d bytes at offset %d at position %d with largest timestamp %d at offset %d"
+          .format(messages.sizeInBytes, offset, log.sizeInBytes(), largestTimestamp, offsetOfLargestTimestamp))
+      // update the in memory max timestamp and corresponding offset.
+      if (largestTimestamp > maxTimestampSoFar) {
+        maxTimestampSoFar = largestTimestamp
+        offsetOfMaxTimestamp = offsetOfLargestTimestamp
+      }
       // append an entry to the index (if needed)
       if(bytesSinceLastIndexEntry > indexIntervalBytes) {
         index.append(offset, log.sizeInBytes())
+        timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
         this.bytesSinceLastIndexEntry = 0
       }
       // append the messages
@@ -102,7 +211,8 @@ class LogSegment(val log: FileMessageSet,
    */
   @threadsafe
   private[log] def translateOffset(offset: Long, startingFilePosition: Int = 0): OffsetPosition = {
-    val mapping = index.lookup(offset)
+    maybeCheckIndexes()
+    val mapping = lazyOffsetIndex.use(_.lookup(offset))
     log.searchFor(offset, max(mapping.position, startingFilePosition))
   }
 
@@ -170,15 +280,32 @@ class LogSegment(val log: FileMessageSet,
    */
   @nonthreadsafe
   def recover(maxMessageSize: Int): Int = {
+    uncheckedIndexesMaxMessageSize = -1
+    rebuild(maxMessageSize)
+  }
+
+  private def rebuild(maxMessageSize: Int): Int = {
+    val index = lazyOffsetIndex.get
+    val timeIndex = lazyTimeIndex.get
     index.truncate()
     index.resize(index.maxIndexSize)
+    timeIndex.truncate()
+    timeIndex.resize(timeIndex.maxIndexSize)
     var validBytes = 0
     var lastIndexEntry = 0
+    maxTimestampSoFar = Message.NoTimestamp
     val iter = log.iterator(maxMessageSize)
     try {
       while(iter.hasNext) {
         val entry = iter.next
         entry.message.ensureValid()
+
+        // The max timestamp should have been put in the outer message, so we don't need to iterate over the inner messages.
+        if (entry.message.timestamp > maxTimestampSoFar) {
+          maxTimestampSoFar = entry.message.timestamp
+          offsetOfMaxTimestamp = entry.offset
+        }
+
         if(validBytes - lastIndexEntry > indexIntervalBytes) {
           // we need to decompress the message, if required, to get the offset of the first uncompressed message
           val startOffset =
@@ -189,6 +316,7 @@ class LogSegment(val log: FileMessageSet,
                 ByteBufferMessageSet.deepIterator(entry).next().offset
           }
           index.append(startOffset, validBytes)
+          timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
           lastIndexEntry = validBytes
         }
         validBytes += MessageSet.entrySize(entry.message)
@@ -200,6 +328,9 @@ class LogSegment(val log: FileMessageSet,
     val truncated = log.sizeInBytes - validBytes
     log.truncateTo(validBytes)
     index.trimToValidSize()
+    // A normally closed segment always appends the biggest timestamp ever seen into the time index, we do this as well.
+    timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true)
+    timeIndex.trimToValidSize()
     truncated
   }
 
@@ -217,11 +348,20 @@ class LogSegment(val log: FileMessageSet,
     if(mapping == null)
       return 0
     index.truncateTo(offset)
+    timeIndex.truncateTo(offset)
     // after truncation, reset and allocate more space for the (new currently  active) index
     index.resize(index.maxIndexSize)
+    timeIndex.resize(timeIndex.maxIndexSize)
     val bytesTruncated = log.truncateTo(mapping.position)
-    if(log.sizeInBytes == 0)
+    if(log.sizeInBytes == 0) {
       created = time.milliseconds
+      maxTimestampSoFar = Message.NoTimestamp
+      offsetOfMaxTimestamp = baseOffset
+    } else {
+      // the in-memory max timestamp may belong to a truncated message, fall back to what the time index still knows
+      maxTimestampSoFar = timeIndex.lastEntry.timestamp
+      offsetOfMaxTimestamp = timeIndex.lastEntry.offset
+    }
     bytesSinceLastIndexEntry = 0
     bytesTruncated
   }
@@ -250,7 +390,8 @@ class LogSegment(val log: FileMessageSet,
   def flush() {
     LogFlushStats.logFlushTimer.time {
       log.flush()
-      index.flush()
+      lazyOffsetIndex.flush()
+      lazyTimeIndex.flush()
     }
   }
 
@@ -266,17 +407,66 @@ class LogSegment(val log: FileMessageSet,
     catch {
       case e: IOException => throw kafkaStorageException("log", e)
     }
-    try index.renameTo(new File(CoreUtils.replaceSuffix(index.file.getPath, oldSuffix, newSuffix)))
+    try lazyOffsetIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyOffsetIndex.file.getPath, oldSuffix, newSuffix)))
     catch {
       case e: IOException => throw kafkaStorageException("index", e)
     }
+    try lazyTimeIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyTimeIndex.file.getPath, oldSuffix, newSuffix)))
+    catch {
+      case e: IOException => throw kafkaStorageException("timeindex", e)
+    }
+  }
+
+  /**
+   * Append the largest timestamp of this segment to the time index and trim both indexes to their valid size.
+   * This is called when the segment stops being the active segment, so that the last time index entry of an
+   * inactive segment always carries the largest timestamp of the segment.
+   */
+  def onBecomeInactiveSegment() {
+    timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true)
+    index.trimToValidSize()
+    timeIndex.trimToValidSize()
+    log.trim()
+  }
+
+  /**
+   * Search for the first message whose timestamp is greater than or equals to the target timestamp.
+   *
+   * The time index is used to find the greatest offset whose indexed timestamp is less than or equal to the target,
+   * then the offset index is used to translate that offset into a file position from which the log is scanned.
+   *
+   * @param timestamp The timestamp to search for.
+   * @return the timestamp and offset of the first message whose timestamp is larger than or equals to the
+   *         target timestamp. None will be returned if there is no such message.
+   */
+  @threadsafe
+  def findOffsetByTimestamp(timestamp: Long): Option[TimestampOffset] = {
+    // Get the index entry with a timestamp less than or equal to the target timestamp
+    maybeCheckIndexes()
+    val timestampOffset = lazyTimeIndex.use(_.lookup(timestamp))
+    val position = lazyOffsetIndex.use(_.lookup(timestampOffset.offset)).position
+    // Search the timestamp
+    log.searchForTimestamp(timestamp, position)
+  }
+
+  /**
+   * The largest timestamp this segment contains, if maxTimestampSoFar >= 0, otherwise the last modified time
+   * of the segment file, which is what message format v0 segments are retained by.
+   */
+  def largestTimestamp = {
+    maybeCheckIndexes()
+    if (maxTimestampSoFar >= 0) maxTimestampSoFar else lastModified
   }
 
   /**
    * Close this log segment
    */
   def close() {
-    CoreUtils.swallow(index.close)
+    // a time index that has not been loaded or sanity checked is closed as it is
+    if (lazyTimeIndex.isLoaded && uncheckedIndexesMaxMessageSize < 0)
+      CoreUtils.swallow(lazyTimeIndex.get.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp, skipFullCheck = true))
+    CoreUtils.swallow(lazyOffsetIndex.close())
+    CoreUtils.swallow(lazyTimeIndex.close())
     CoreUtils.swallow(log.close)
   }
 
@@ -286,11 +476,14 @@ class LogSegment(val log: FileMessageSet,
    */
   def delete() {
     val deletedLog = log.delete()
-    val deletedIndex = index.delete()
+    val deletedIndex = lazyOffsetIndex.delete()
+    val deletedTimeIndex = lazyTimeIndex.delete()
     if(!deletedLog && log.file.exists)
       throw new KafkaStorageException("Delete of log " + log.file.getName + " failed.")
-    if(!deletedIndex && index.file.exists)
-      throw new KafkaStorageException("Delete of index " + index.file.getName + " failed.")
+    if(!deletedIndex && lazyOffsetIndex.file.exists)
+      throw new KafkaStorageException("Delete of index " + lazyOffsetIndex.file.getName + " failed.")
+    if(!deletedTimeIndex && lazyTimeIndex.file.exists)
+      throw new KafkaStorageException("Delete of time index " + lazyTimeIndex.file.getName + " failed.")
   }
 
   /**
@@ -303,6 +496,7 @@ class LogSegment(val log: FileMessageSet,
    */
   def lastModified_=(ms: Long) = {
     log.file.setLastModified(ms)
-    index.file.setLastModified(ms)
+    lazyOffsetIndex.file.setLastModified(ms)
+    lazyTimeIndex.file.setLastModified(ms)
   }
 }
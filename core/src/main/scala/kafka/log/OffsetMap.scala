@@ -30,6 +30,12 @@ trait OffsetMap {
   def clear()
   def size: Int
   def utilization: Double = size.toDouble / slots
+
+  /**
+   * A view of this map for looking up keys from another thread. Several readers can be used concurrently, as long as
+   * the map is no longer updated.
+   */
+  def concurrentReader(): OffsetMap = this
 }
 
 /**
@@ -39,8 +45,9 @@ trait OffsetMap {
  * @param hashAlgorithm The hash algorithm instance to use: MD2, MD5, SHA-1, SHA-256, SHA-384, SHA-512
  */
 @nonthreadsafe
-class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extends OffsetMap {
-  private val bytes = ByteBuffer.allocate(memory)
+class SkimpyOffsetMap private (val memory: Int, val hashAlgorithm: String, bytes: ByteBuffer) extends OffsetMap {
+
+  def this(memory: Int, hashAlgorithm: String = "MD5") = this(memory, hashAlgorithm, ByteBuffer.allocate(memory))
   
   /* the hash algorithm instance to use, default is MD5 */
   private val digest = MessageDigest.getInstance(hashAlgorithm)
@@ -129,6 +136,15 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
     bytes.getLong()
   }
   
+  /**
+   * A reader sharing the entries of this map, but with its own hash buffers and buffer position
+   */
+  override def concurrentReader(): OffsetMap = {
+    val reader = new SkimpyOffsetMap(memory, hashAlgorithm, bytes.duplicate())
+    reader.entries = entries
+    reader
+  }
+
   /**
    * Change the salt used for key hashing making all existing keys unfindable.
    * Doesn't actually zero out the array.
@@ -178,3 +194,326 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   }
   
 }
+
+/**
+ * A read-only union of the offset maps built for consecutive ranges of the dirty section of a log, in offset order.
+ * A key is looked up from the last map to the first, so that the offset of its last occurrence is found.
+ * @param maps The offset maps, in the order of the ranges they were built for
+ */
+class CompositeOffsetMap(maps: Seq[OffsetMap]) extends OffsetMap {
+  private val reversed = maps.reverse.toArray
+
+  override val slots: Int = maps.map(_.slots).sum
+
+  override def put(key: ByteBuffer, offset: Long) {
+    throw new UnsupportedOperationException("A composite offset map is read-only")
+  }
+
+  override def get(key: ByteBuffer): Long = {
+    var i = 0
+    var offset = -1L
+    while (offset < 0 && i < reversed.length) {
+      offset = reversed(i).get(key)
+      i += 1
+    }
+    offset
+  }
+
+  override def clear() {
+    maps.foreach(_.clear())
+  }
+
+  override def size: Int = maps.map(_.size).sum
+
+  override def concurrentReader(): OffsetMap = new CompositeOffsetMap(maps.map(_.concurrentReader()))
+}
+
+/**
+ * An hash table used for deduplicating the log, stored off-heap so that it is not limited to 2 GB and does not add to the
+ * garbage collected heap. Like SkimpyOffsetMap, the hash of the key is used as a proxy for the key, but the hash is the
+ * 128-bit MurmurHash3, which is much cheaper to compute than a cryptographic hash for the same collision probability
+ * on keys that are not crafted to collide. Collisions are resolved by probing. This hash table does not support deletes.
+ *
+ * The table starts small and doubles in size as entries are added, up to the given memory. While it grows, the previous
+ * table is held along with the new one.
+ *
+ * @param memory The maximum amount of off-heap memory this map can use
+ * @param initialMemory The amount of off-heap memory the map uses when it is created or cleared
+ * @param maxBufferSize The maximum size of each of the direct buffers holding the table
+ */
+@nonthreadsafe
+class OffHeapOffsetMap(val memory: Long,
+                       initialMemory: Long = OffHeapOffsetMap.InitialMemory,
+                       maxBufferSize: Int = OffHeapOffsetMap.MaxBufferSize) extends OffsetMap {
+  import OffHeapOffsetMap._
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = math.min(memory / BytesPerEntry, Int.MaxValue).toInt
+  require(slots > 0, "The offset map needs at least %d bytes of memory.".format(BytesPerEntry))
+
+  private val initialSlots = math.max(math.min(initialMemory / BytesPerEntry, slots.toLong).toInt, 1)
+
+  private var table = new EntryTable(initialSlots, maxBufferSize)
+
+  /* number of entries put into the map */
+  private var entries = 0
+
+  private val hash = new Murmur3Hash
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long) {
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    if (entries >= table.slots * GrowthLoadFactor && table.slots < slots)
+      grow()
+    hash.hash(key)
+    val slot = table.find(hash.h1, hash.h2)
+    if (table.isEmpty(slot)) {
+      table.put(slot, hash.h1, hash.h2, offset)
+      entries += 1
+    } else {
+      table.putOffset(slot, offset)
+    }
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = getOffset(table, hash, key)
+
+  /**
+   * Release the memory of the table and start again with a small table
+   */
+  override def clear() {
+    table.free()
+    table = new EntryTable(initialSlots, maxBufferSize)
+    entries = 0
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The number of entries the table can hold before it grows
+   */
+  def capacity: Int = table.slots
+
+  /**
+   * A reader sharing the table of this map, but with its own hash state. It must not be used once the map is updated or
+   * cleared.
+   */
+  override def concurrentReader(): OffsetMap = {
+    val readerTable = table
+    val readerEntries = entries
+    new OffsetMap {
+      private val readerHash = new Murmur3Hash
+      override val slots: Int = OffHeapOffsetMap.this.slots
+      override def put(key: ByteBuffer, offset: Long) {
+        throw new UnsupportedOperationException("A reader of an offset map is read-only")
+      }
+      override def get(key: ByteBuffer): Long = getOffset(readerTable, readerHash, key)
+      override def clear() {
+        throw new UnsupportedOperationException("A reader of an offset map is read-only")
+      }
+      override def size: Int = readerEntries
+    }
+  }
+
+  private def getOffset(table: EntryTable, hash: Murmur3Hash, key: ByteBuffer): Long = {
+    hash.hash(key)
+    val slot = table.find(hash.h1, hash.h2)
+    if (table.isEmpty(slot)) -1L else table.offset(slot)
+  }
+
+  /**
+   * Move the entries to a table twice as large, or as large as the memory allows
+   */
+  private def grow() {
+    val newTable = new EntryTable(math.min(table.slots.toLong * 2, slots.toLong).toInt, maxBufferSize)
+    for (slot <- 0 until table.slots if !table.isEmpty(slot)) {
+      val h1 = table.hash1(slot)
+      val h2 = table.hash2(slot)
+      newTable.put(newTable.find(h1, h2), h1, h2, table.offset(slot))
+    }
+    table.free()
+    table = newTable
+  }
+}
+
+object OffHeapOffsetMap {
+  val InitialMemory = 1024 * 1024L
+
+  /* the 128-bit hash followed by the offset */
+  private val BytesPerEntry = 24
+
+  /* the table grows when it is fuller than this, unless it has reached the maximum size */
+  private val GrowthLoadFactor = 0.75
+
+  val MaxBufferSize = 1 << 30
+
+  /**
+   * An open addressing table of entries held in direct buffers. A slot is empty if both halves of its hash are zero,
+   * so the hash of a key is never zero, see Murmur3Hash.
+   */
+  private class EntryTable(val slots: Int, maxBufferSize: Int) {
+    private val slotsPerChunk = maxBufferSize / BytesPerEntry
+    private val chunks = Array.tabulate((slots + slotsPerChunk - 1) / slotsPerChunk) { i =>
+      ByteBuffer.allocateDirect(math.min(slots - i * slotsPerChunk, slotsPerChunk) * BytesPerEntry)
+    }
+
+    /**
+     * The slot holding the given hash, or the empty slot where it would be added. We first try the successive
+     * integers of the hash, then we degrade to linear probing.
+     */
+    def find(h1: Long, h2: Long): Int = {
+      var attempt = 0
+      var slot = probe(h1, h2, attempt)
+      while (!isEmpty(slot) && (hash1(slot) != h1 || hash2(slot) != h2)) {
+        attempt += 1
+        slot = if (attempt < 4) probe(h1, h2, attempt) else (slot + 1) % slots
+      }
+      slot
+    }
+
+    private def probe(h1: Long, h2: Long, attempt: Int): Int = {
+      val bits = attempt match {
+        case 0 => h1 >>> 32
+        case 1 => h1
+        case 2 => h2 >>> 32
+        case _ => h2
+      }
+      ((bits & 0x7fffffffL) % slots).toInt
+    }
+
+    def isEmpty(slot: Int): Boolean = hash1(slot) == 0 && hash2(slot) == 0
+
+    def hash1(slot: Int): Long = chunk(slot).getLong(position(slot))
+
+    def hash2(slot: Int): Long = chunk(slot).getLong(position(slot) + 8)
+
+    def offset(slot: Int): Long = chunk(slot).getLong(position(slot) + 16)
+
+    def put(slot: Int, h1: Long, h2: Long, offset: Long) {
+      val buffer = chunk(slot)
+      val pos = position(slot)
+      buffer.putLong(pos, h1)
+      buffer.putLong(pos + 8, h2)
+      buffer.putLong(pos + 16, offset)
+    }
+
+    def putOffset(slot: Int, offset: Long) {
+      chunk(slot).putLong(position(slot) + 16, offset)
+    }
+
+    private def chunk(slot: Int): ByteBuffer = chunks(slot / slotsPerChunk)
+
+    private def position(slot: Int): Int = (slot % slotsPerChunk) * BytesPerEntry
+
+    /**
+     * Release the direct buffers rather than waiting for them to be garbage collected
+     */
+    def free() {
+      chunks.foreach {
+        case buffer: sun.nio.ch.DirectBuffer => buffer.cleaner().clean()
+        case _ =>
+      }
+    }
+  }
+
+  /**
+   * The x64 128-bit variant of MurmurHash3 with a zero seed. The two halves of the hash of the last key are kept in h1
+   * and h2 to avoid allocating.
+   */
+  private[log] class Murmur3Hash {
+    var h1 = 0L
+    var h2 = 0L
+
+    def hash(key: ByteBuffer) {
+      val start = key.position
+      val length = key.remaining
+      val blocks = length / 16
+      h1 = 0L
+      h2 = 0L
+
+      var i = 0
+      while (i < blocks) {
+        val k1 = getLongLE(key, start + i * 16)
+        val k2 = getLongLE(key, start + i * 16 + 8)
+        h1 ^= mixK1(k1)
+        h1 = java.lang.Long.rotateLeft(h1, 27) + h2
+        h1 = h1 * 5 + 0x52dce729
+        h2 ^= mixK2(k2)
+        h2 = java.lang.Long.rotateLeft(h2, 31) + h1
+        h2 = h2 * 5 + 0x38495ab5
+        i += 1
+      }
+
+      val tail = start + blocks * 16
+      val remaining = length & 15
+      var k1 = 0L
+      var k2 = 0L
+      var j = remaining - 1
+      while (j >= 8) {
+        k2 ^= (key.get(tail + j) & 0xffL) << ((j - 8) * 8)
+        j -= 1
+      }
+      while (j >= 0) {
+        k1 ^= (key.get(tail + j) & 0xffL) << (j * 8)
+        j -= 1
+      }
+      if (remaining > 8)
+        h2 ^= mixK2(k2)
+      if (remaining > 0)
+        h1 ^= mixK1(k1)
+
+      h1 ^= length
+      h2 ^= length
+      h1 += h2
+      h2 += h1
+      h1 = fmix(h1)
+      h2 = fmix(h2)
+      h1 += h2
+      h2 += h1
+
+      // zero marks an empty slot
+      if (h1 == 0 && h2 == 0)
+        h2 = 1
+    }
+
+    private def getLongLE(buffer: ByteBuffer, index: Int): Long = {
+      var value = 0L
+      var i = 7
+      while (i >= 0) {
+        value = (value << 8) | (buffer.get(index + i) & 0xffL)
+        i -= 1
+      }
+      value
+    }
+
+    private def mixK1(k: Long): Long = java.lang.Long.rotateLeft(k * C1, 31) * C2
+
+    private def mixK2(k: Long): Long = java.lang.Long.rotateLeft(k * C2, 33) * C1
+
+    private def fmix(k: Long): Long = {
+      var h = k
+      h ^= h >>> 33
+      h *= 0xff51afd7ed558ccdL
+      h ^= h >>> 33
+      h *= 0xc4ceb9fe1a85ec53L
+      h ^= h >>> 33
+      h
+    }
+  }
+
+  private val C1 = 0x87c37b91114253d5L
+  private val C2 = 0x4cf5ad432745937fL
+}
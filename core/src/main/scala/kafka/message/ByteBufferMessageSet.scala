@@ -196,6 +196,11 @@ private class OffsetAssigner(offsets: Seq[Long]) {
 
 }
 
+/**
+ * The number of inner messages and the largest inner timestamp of a validated compressed wrapper message.
+ */
+private case class WrapperMessageInfo(innerCount: Int, maxTimestamp: Long)
+
 /**
  * A sequence of messages stored in a byte buffer
  *
@@ -316,6 +321,24 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
     channel.write(dup)
   }
 
+  /**
+   * Return the largest timestamp of the messages in this set and the offset of the first shallow message carrying it,
+   * or (Message.NoTimestamp, -1) if no message has a timestamp. The wrapper message of a compressed message set carries
+   * the largest timestamp of its inner messages, so this does not need to decompress anything.
+   */
+  private[kafka] def largestTimestampAndOffset: (Long, Long) = {
+    var maxTimestamp = Message.NoTimestamp
+    var offsetOfMaxTimestamp = -1L
+    for (messageAndOffset <- shallowIterator) {
+      val timestamp = messageAndOffset.message.timestamp
+      if (timestamp > maxTimestamp) {
+        maxTimestamp = timestamp
+        offsetOfMaxTimestamp = messageAndOffset.offset
+      }
+    }
+    (maxTimestamp, offsetOfMaxTimestamp)
+  }
+
   override def isMagicValueInAllWrapperMessages(expectedMagicValue: Byte): Boolean = {
     for (messageAndOffset <- shallowIterator) {
       if (messageAndOffset.message.magic != expectedMagicValue)
@@ -428,84 +451,185 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
       // 2. When magic value to use is 0 because offsets need to be overwritten
       // 3. When magic value to use is above 0, but some fields of inner messages need to be overwritten.
       // 4. Message format conversion is needed.
+      // Situation 1, 2 and the wrapper messages of situation 4 can be detected without decompressing anything.
+      val inPlaceAssignmentPossible = sourceCodec == targetCodec && messageFormatVersion > Message.MagicValue_V0 &&
+        isMagicValueInAllWrapperMessages(messageFormatVersion)
+      val wrapperMessagesInfo =
+        if (inPlaceAssignmentPossible)
+          validateCompressedMessagesForInPlaceAssignment(now, compactedTopic, messageFormatVersion, messageTimestampType,
+            messageTimestampDiffMaxMs)
+        else
+          None
+
+      wrapperMessagesInfo match {
+        case Some(infos) =>
+          (assignOffsetsToCompressedMessagesInPlace(offsetCounter, now, messageTimestampType, infos), false)
+        case None =>
+          (convertCompressedMessages(offsetCounter, now, sourceCodec, targetCodec, compactedTopic, messageFormatVersion,
+            messageTimestampType, messageTimestampDiffMaxMs), true)
+      }
+    }
+  }
 
-      // No in place assignment situation 1 and 2
-      var inPlaceAssignment = sourceCodec == targetCodec && messageFormatVersion > Message.MagicValue_V0
-
+  /**
+   * Validate the inner messages of all the wrapper messages in a single streaming pass. The inner messages are
+   * decompressed into a reusable buffer and dropped as soon as they are validated, they are never re-compressed.
+   *
+   * Returns the number of inner messages and the largest inner timestamp of each wrapper message, or None if some
+   * inner message has to be rewritten (situation 3 and 4 above) and the message set needs to be re-compressed.
+   */
+  private def validateCompressedMessagesForInPlaceAssignment(now: Long,
+                                                             compactedTopic: Boolean,
+                                                             messageFormatVersion: Byte,
+                                                             timestampType: TimestampType,
+                                                             timestampDiffMaxMs: Long): Option[Seq[WrapperMessageInfo]] = {
+    val infos = new mutable.ArrayBuffer[WrapperMessageInfo]
+    var innerBuffer = new Array[Byte](Message.MinMessageOverhead)
+    val wrapperMessages = shallowIterator
+    while (wrapperMessages.hasNext) {
+      val wrapperMessage = wrapperMessages.next().message
+      if (wrapperMessage.compressionCodec == NoCompressionCodec)
+        return None
+
+      val wrapperMessageTimestampOpt = Some(wrapperMessage.timestamp)
+      val wrapperMessageTimestampTypeOpt = Some(wrapperMessage.timestampType)
+      var innerCount = 0
       var maxTimestamp = Message.NoTimestamp
-      val expectedInnerOffset = new LongRef(0)
-      val validatedMessages = new mutable.ArrayBuffer[Message]
-      this.internalIterator(isShallow = false).foreach { messageAndOffset =>
-        val message = messageAndOffset.message
-        validateMessageKey(message, compactedTopic)
-
-        if (message.magic > Message.MagicValue_V0 && messageFormatVersion > Message.MagicValue_V0) {
-          // No in place assignment situation 3
-          // Validate the timestamp
-          validateTimestamp(message, now, messageTimestampType, messageTimestampDiffMaxMs)
-          // Check if we need to overwrite offset
-          if (messageAndOffset.offset != expectedInnerOffset.getAndIncrement())
-            inPlaceAssignment = false
+      val compressed = try {
+        new DataInputStream(CompressionFactory(wrapperMessage.compressionCodec, wrapperMessage.magic,
+          new ByteBufferBackedInputStream(wrapperMessage.payload)))
+      } catch {
+        case ioe: IOException =>
+          throw new InvalidMessageException(s"Failed to instantiate input stream compressed with ${wrapperMessage.compressionCodec}", ioe)
+      }
+      try {
+        while (true) {
+          val innerOffset = compressed.readLong()
+          val size = compressed.readInt()
+          if (size < Message.MinMessageOverhead)
+            throw new InvalidMessageException(s"Message found with corrupt size `$size` in deep iterator")
+          if (size > innerBuffer.length)
+            innerBuffer = new Array[Byte](math.max(size, innerBuffer.length * 2))
+          compressed.readFully(innerBuffer, 0, size)
+          val message = new Message(ByteBuffer.wrap(innerBuffer, 0, size).slice(), wrapperMessageTimestampOpt,
+            wrapperMessageTimestampTypeOpt)
+          message.ensureValid()
+          validateMessageKey(message, compactedTopic)
+          if (message.compressionCodec != NoCompressionCodec)
+            throw new InvalidMessageException("Compressed outer message should not have an inner message with a " +
+              s"compression attribute set: $message")
+          // The inner message has to be rewritten, give up on in place assignment
+          if (message.magic != messageFormatVersion || innerOffset != innerCount)
+            return None
+          validateTimestamp(message, now, timestampType, timestampDiffMaxMs)
           maxTimestamp = math.max(maxTimestamp, message.timestamp)
+          innerCount += 1
         }
+      } catch {
+        case eofe: EOFException =>
+          // we have reached the end of the compressed stream, same as the deep iterator does
+        case ioe: IOException =>
+          throw new InvalidMessageException(s"Error while reading message from stream compressed with ${wrapperMessage.compressionCodec}", ioe)
+      } finally {
+        CoreUtils.swallow(compressed.close())
+      }
+      if (innerCount == 0)
+        return None
+      infos += WrapperMessageInfo(innerCount, maxTimestamp)
+    }
+    if (infos.isEmpty) None else Some(infos)
+  }
+
+  /**
+   * Assign offsets to the validated compressed message set without re-compressing it: only the offset, timestamp and
+   * attributes of the wrapper messages are updated. Since the inner messages carry relative offsets, the offset of
+   * each wrapper message is the absolute offset of its last inner message.
+   */
+  private def assignOffsetsToCompressedMessagesInPlace(offsetCounter: LongRef,
+                                                       now: Long,
+                                                       timestampType: TimestampType,
+                                                       infos: Seq[WrapperMessageInfo]): ByteBufferMessageSet = {
+    var position = 0
+    for (info <- infos) {
+      buffer.putLong(position, offsetCounter.addAndGet(info.innerCount) - 1)
+      val messageSize = buffer.getInt(position + MessageSet.OffsetLength)
+
+      var crcUpdateNeeded = true
+      val timestampOffset = position + MessageSet.LogOverhead + Message.TimestampOffset
+      val attributeOffset = position + MessageSet.LogOverhead + Message.AttributesOffset
+      val timestamp = buffer.getLong(timestampOffset)
+      val attributes = buffer.get(attributeOffset)
+      if (timestampType == TimestampType.CREATE_TIME) {
+        if (timestamp == info.maxTimestamp)
+          // We don't need to recompute crc if the timestamp is not updated.
+          crcUpdateNeeded = false
+        else
+          // The wrapper must carry the largest inner timestamp, the time index relies on it.
+          buffer.putLong(timestampOffset, info.maxTimestamp)
+      } else if (timestampType == TimestampType.LOG_APPEND_TIME) {
+        // Set timestamp type and timestamp
+        buffer.putLong(timestampOffset, now)
+        buffer.put(attributeOffset, timestampType.updateAttributes(attributes))
+      }
 
-        if (sourceCodec != NoCompressionCodec && message.compressionCodec != NoCompressionCodec)
-          throw new InvalidMessageException("Compressed outer message should not have an inner message with a " +
-            s"compression attribute set: $message")
+      if (crcUpdateNeeded) {
+        // need to recompute the crc value
+        val messageBuffer = buffer.duplicate()
+        messageBuffer.position(position + MessageSet.LogOverhead)
+        messageBuffer.limit(position + MessageSet.LogOverhead + messageSize)
+        val wrapperMessage = new Message(messageBuffer.slice())
+        Utils.writeUnsignedInt(buffer, position + MessageSet.LogOverhead + Message.CrcOffset, wrapperMessage.computeChecksum)
+      }
+      position += MessageSet.LogOverhead + messageSize
+    }
+    this
+  }
 
-        // No in place assignment situation 4
-        if (message.magic != messageFormatVersion)
-          inPlaceAssignment = false
+  /**
+   * Decompress all the inner messages, convert them to the given message format version and re-compress them with the
+   * target codec into a single wrapper message.
+   */
+  private def convertCompressedMessages(offsetCounter: LongRef,
+                                        now: Long,
+                                        sourceCodec: CompressionCodec,
+                                        targetCodec: CompressionCodec,
+                                        compactedTopic: Boolean,
+                                        messageFormatVersion: Byte,
+                                        timestampType: TimestampType,
+                                        timestampDiffMaxMs: Long): ByteBufferMessageSet = {
+    var maxTimestamp = Message.NoTimestamp
+    val validatedMessages = new mutable.ArrayBuffer[Message]
+    this.internalIterator(isShallow = false).foreach { messageAndOffset =>
+      val message = messageAndOffset.message
+      validateMessageKey(message, compactedTopic)
 
-        validatedMessages += message.toFormatVersion(messageFormatVersion)
+      if (message.magic > Message.MagicValue_V0 && messageFormatVersion > Message.MagicValue_V0) {
+        // Validate the timestamp
+        validateTimestamp(message, now, timestampType, timestampDiffMaxMs)
+        maxTimestamp = math.max(maxTimestamp, message.timestamp)
       }
 
-      if (!inPlaceAssignment) {
-        // Cannot do in place assignment.
-        val wrapperMessageTimestamp = {
-          if (messageFormatVersion == Message.MagicValue_V0)
-            Some(Message.NoTimestamp)
-          else if (messageFormatVersion > Message.MagicValue_V0 && messageTimestampType == TimestampType.CREATE_TIME)
-            Some(maxTimestamp)
-          else // Log append time
-            Some(now)
-        }
+      if (sourceCodec != NoCompressionCodec && message.compressionCodec != NoCompressionCodec)
+        throw new InvalidMessageException("Compressed outer message should not have an inner message with a " +
+          s"compression attribute set: $message")
 
-        (new ByteBufferMessageSet(compressionCodec = targetCodec,
-                                  offsetCounter = offsetCounter,
-                                  wrapperMessageTimestamp = wrapperMessageTimestamp,
-                                  timestampType = messageTimestampType,
-                                  messages = validatedMessages: _*), true)
-      } else {
-        // Do not do re-compression but simply update the offset, timestamp and attributes field of the wrapper message.
-        buffer.putLong(0, offsetCounter.addAndGet(validatedMessages.size) - 1)
-        // validate the messages
-        validatedMessages.foreach(_.ensureValid())
-
-        var crcUpdateNeeded = true
-        val timestampOffset = MessageSet.LogOverhead + Message.TimestampOffset
-        val attributeOffset = MessageSet.LogOverhead + Message.AttributesOffset
-        val timestamp = buffer.getLong(timestampOffset)
-        val attributes = buffer.get(attributeOffset)
-        if (messageTimestampType == TimestampType.CREATE_TIME && timestamp == maxTimestamp)
-          // We don't need to recompute crc if the timestamp is not updated.
-          crcUpdateNeeded = false
-        else if (messageTimestampType == TimestampType.LOG_APPEND_TIME) {
-          // Set timestamp type and timestamp
-          buffer.putLong(timestampOffset, now)
-          buffer.put(attributeOffset, messageTimestampType.updateAttributes(attributes))
-        }
+      validatedMessages += message.toFormatVersion(messageFormatVersion)
+    }
 
-        if (crcUpdateNeeded) {
-          // need to recompute the crc value
-          buffer.position(MessageSet.LogOverhead)
-          val wrapperMessage = new Message(buffer.slice())
-          Utils.writeUnsignedInt(buffer, MessageSet.LogOverhead + Message.CrcOffset, wrapperMessage.computeChecksum)
-        }
-        buffer.rewind()
-        (this, false)
-      }
+    val wrapperMessageTimestamp = {
+      if (messageFormatVersion == Message.MagicValue_V0)
+        Some(Message.NoTimestamp)
+      else if (messageFormatVersion > Message.MagicValue_V0 && timestampType == TimestampType.CREATE_TIME)
+        Some(maxTimestamp)
+      else // Log append time
+        Some(now)
     }
+
+    new ByteBufferMessageSet(compressionCodec = targetCodec,
+                             offsetCounter = offsetCounter,
+                             wrapperMessageTimestamp = wrapperMessageTimestamp,
+                             timestampType = timestampType,
+                             messages = validatedMessages: _*)
   }
 
   // We create this method to avoid a memory copy. It reads from the original message set and directly
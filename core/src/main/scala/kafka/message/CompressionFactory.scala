@@ -17,14 +17,16 @@
 
 package kafka.message
 
-import java.io.OutputStream
+import java.io.{BufferedInputStream, BufferedOutputStream, InputStream, OutputStream}
 import java.util.zip.GZIPOutputStream
 import java.util.zip.GZIPInputStream
-import java.io.InputStream
 
+import com.github.luben.zstd.{ZstdInputStream, ZstdOutputStream}
 import org.apache.kafka.common.record.{KafkaLZ4BlockInputStream, KafkaLZ4BlockOutputStream}
 
 object CompressionFactory {
+
+  private val ZStdBufferSize = 16 * 1024
   
   def apply(compressionCodec: CompressionCodec, messageVersion: Byte, stream: OutputStream): OutputStream = {
     compressionCodec match {
@@ -35,6 +37,9 @@ object CompressionFactory {
         new SnappyOutputStream(stream)
       case LZ4CompressionCodec =>
         new KafkaLZ4BlockOutputStream(stream, messageVersion == Message.MagicValue_V0)
+      case ZStdCompressionCodec =>
+        // every call into the zstd stream crosses JNI, so small writes are buffered in front of it
+        new BufferedOutputStream(new ZstdOutputStream(stream), ZStdBufferSize)
       case _ =>
         throw new kafka.common.UnknownCodecException("Unknown Codec: " + compressionCodec)
     }
@@ -49,6 +54,8 @@ object CompressionFactory {
         new SnappyInputStream(stream)
       case LZ4CompressionCodec =>
         new KafkaLZ4BlockInputStream(stream, messageVersion == Message.MagicValue_V0)
+      case ZStdCompressionCodec =>
+        new BufferedInputStream(new ZstdInputStream(stream), ZStdBufferSize)
       case _ =>
         throw new kafka.common.UnknownCodecException("Unknown Codec: " + compressionCodec)
     }
@@ -27,6 +27,7 @@ import kafka.api._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils.{Logging, SystemTime}
 import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.memory.MemoryPool
 import org.apache.kafka.common.network.Send
 import org.apache.kafka.common.protocol.{ApiKeys, SecurityProtocol, Protocol}
 import org.apache.kafka.common.requests.{RequestSend, ProduceRequest, AbstractRequest, RequestHeader, ApiVersionsRequest}
@@ -35,7 +36,7 @@ import org.apache.log4j.Logger
 
 
 object RequestChannel extends Logging {
-  val AllDone = new Request(processor = 1, connectionId = "2", new Session(KafkaPrincipal.ANONYMOUS, InetAddress.getLocalHost()), buffer = getShutdownReceive(), startTimeMs = 0, securityProtocol = SecurityProtocol.PLAINTEXT)
+  val AllDone = new Request(processor = 1, connectionId = "2", session = new Session(KafkaPrincipal.ANONYMOUS, InetAddress.getLocalHost()), buffer = getShutdownReceive(), startTimeMs = 0, securityProtocol = SecurityProtocol.PLAINTEXT)
 
   def getShutdownReceive() = {
     val emptyRequestHeader = new RequestHeader(ApiKeys.PRODUCE.id, "", 0)
@@ -43,9 +44,29 @@ object RequestChannel extends Logging {
     RequestSend.serialize(emptyRequestHeader, emptyProduceRequest.toStruct)
   }
 
+  /**
+   * Requests from the controller. They are cheap to handle, but delaying them behind produce and fetch requests causes
+   * ISR churn, so they may be given a queue of their own. The controller only sends a broker one request at a time.
+   */
+  val ControllerApiKeys: Set[Short] = Set(ApiKeys.LEADER_AND_ISR, ApiKeys.STOP_REPLICA, ApiKeys.UPDATE_METADATA_KEY).map(_.id)
+
+  /**
+   * Requests for the group coordinator. Delaying them behind produce and fetch requests, or behind a slow request from
+   * the controller, causes consumer group rebalances, so they may be given a queue of their own.
+   */
+  val CoordinatorApiKeys: Set[Short] = Set(ApiKeys.GROUP_COORDINATOR, ApiKeys.JOIN_GROUP, ApiKeys.SYNC_GROUP,
+    ApiKeys.HEARTBEAT, ApiKeys.LEAVE_GROUP, ApiKeys.OFFSET_COMMIT, ApiKeys.OFFSET_FETCH).map(_.id)
+
+  /** The queues of a request channel */
+  sealed trait Queue
+  case object DataQueue extends Queue
+  case object ControllerQueue extends Queue
+  case object CoordinatorQueue extends Queue
+
   case class Session(principal: KafkaPrincipal, clientAddress: InetAddress)
 
-  case class Request(processor: Int, connectionId: String, session: Session, private var buffer: ByteBuffer, startTimeMs: Long, securityProtocol: SecurityProtocol) {
+  case class Request(processor: Int, connectionId: String, session: Session, private var buffer: ByteBuffer, startTimeMs: Long, securityProtocol: SecurityProtocol,
+                     memoryPool: MemoryPool = MemoryPool.NONE) {
     // These need to be volatile because the readers are in the network thread and the writers are in the request
     // handler threads or the purgatory threads
     @volatile var requestDequeueTimeMs = -1L
@@ -97,9 +118,21 @@ object RequestChannel extends Logging {
       else
         null
 
+    // the parsed request may still share the content of the buffer, so it is only released once the request is handled
+    private var receiveBuffer = buffer
     buffer = null
     private val requestLogger = Logger.getLogger("kafka.request.logger")
 
+    /**
+     * Release the receive buffer of the request to the memory pool. Nothing may read the request content afterwards.
+     */
+    def releaseBuffer(): Unit = {
+      if (receiveBuffer != null) {
+        memoryPool.release(receiveBuffer)
+        receiveBuffer = null
+      }
+    }
+
     def requestDesc(details: Boolean): String = {
       if (requestObj != null)
         requestObj.describe(details)
@@ -176,9 +209,20 @@ object RequestChannel extends Logging {
   case object CloseConnectionAction extends ResponseAction
 }
 
-class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMetricsGroup {
+/**
+ * @param separateControlQueue whether requests with one of the [[RequestChannel.ControllerApiKeys]] and requests with one
+ *                             of the [[RequestChannel.CoordinatorApiKeys]] are each queued separately from all other
+ *                             requests, so that none of the three queues waits behind another
+ */
+class RequestChannel(val numProcessors: Int, val queueSize: Int, val separateControlQueue: Boolean = false) extends KafkaMetricsGroup {
   private var responseListeners: List[(Int) => Unit] = Nil
   private val requestQueue = new ArrayBlockingQueue[RequestChannel.Request](queueSize)
+  private val controllerRequestQueue =
+    if (separateControlQueue) new ArrayBlockingQueue[RequestChannel.Request](queueSize)
+    else requestQueue
+  private val coordinatorRequestQueue =
+    if (separateControlQueue) new ArrayBlockingQueue[RequestChannel.Request](queueSize)
+    else requestQueue
   private val responseQueues = new Array[BlockingQueue[RequestChannel.Response]](numProcessors)
   for(i <- 0 until numProcessors)
     responseQueues(i) = new LinkedBlockingQueue[RequestChannel.Response]()
@@ -190,6 +234,21 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
     }
   )
 
+  if (separateControlQueue) {
+    newGauge(
+      "ControllerRequestQueueSize",
+      new Gauge[Int] {
+        def value = controllerRequestQueue.size
+      }
+    )
+    newGauge(
+      "CoordinatorRequestQueueSize",
+      new Gauge[Int] {
+        def value = coordinatorRequestQueue.size
+      }
+    )
+  }
+
   newGauge("ResponseQueueSize", new Gauge[Int]{
     def value = responseQueues.foldLeft(0) {(total, q) => total + q.size()}
   })
@@ -205,7 +264,17 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
 
   /** Send a request to be handled, potentially blocking until there is room in the queue for the request */
   def sendRequest(request: RequestChannel.Request) {
-    requestQueue.put(request)
+    if (RequestChannel.ControllerApiKeys.contains(request.requestId))
+      controllerRequestQueue.put(request)
+    else if (RequestChannel.CoordinatorApiKeys.contains(request.requestId))
+      coordinatorRequestQueue.put(request)
+    else
+      requestQueue.put(request)
+  }
+
+  /** Send a request to the given queue regardless of its api key, used to shut down the request handlers of the queue */
+  def sendRequest(request: RequestChannel.Request, queue: RequestChannel.Queue) {
+    queueFor(queue).put(request)
   }
 
   /** Send a response back to the socket server to be sent over the network */
@@ -237,6 +306,16 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
   def receiveRequest(): RequestChannel.Request =
     requestQueue.take()
 
+  /** Get the next request of the given queue or block until specified time has elapsed */
+  def receiveRequest(timeout: Long, queue: RequestChannel.Queue): RequestChannel.Request =
+    queueFor(queue).poll(timeout, TimeUnit.MILLISECONDS)
+
+  private def queueFor(queue: RequestChannel.Queue): BlockingQueue[RequestChannel.Request] = queue match {
+    case RequestChannel.DataQueue => requestQueue
+    case RequestChannel.ControllerQueue => controllerRequestQueue
+    case RequestChannel.CoordinatorQueue => coordinatorRequestQueue
+  }
+
   /** Get a response for the given processor if there is one */
   def receiveResponse(processor: Int): RequestChannel.Response = {
     val response = responseQueues(processor).poll()
@@ -251,6 +330,8 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
 
   def shutdown() {
     requestQueue.clear
+    controllerRequestQueue.clear
+    coordinatorRequestQueue.clear
   }
 }
 
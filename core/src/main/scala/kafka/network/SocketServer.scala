@@ -31,6 +31,7 @@ import kafka.common.KafkaException
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server.KafkaConfig
 import kafka.utils._
+import org.apache.kafka.common.memory.{MemoryPool, SizeClassedMemoryPool}
 import org.apache.kafka.common.metrics._
 import org.apache.kafka.common.network.{ChannelBuilders, KafkaChannel, LoginType, Mode, Selector => KSelector}
 import org.apache.kafka.common.security.auth.KafkaPrincipal
@@ -60,7 +61,11 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
 
   this.logIdent = "[Socket Server on Broker " + config.brokerId + "], "
 
-  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests)
+  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests, config.numControlIoThreads > 0)
+  // the receive buffers of the requests of all the processors, released once the requests are handled
+  private val memoryPool =
+    if (config.queuedMaxRequestBytes > 0) new SizeClassedMemoryPool(config.queuedMaxRequestBytes)
+    else MemoryPool.NONE
   private val processors = new Array[Processor](totalProcessorThreads)
 
   private[network] val acceptors = mutable.Map[EndPoint, Acceptor]()
@@ -109,6 +114,12 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
       }
     )
 
+    newGauge("MemoryPoolAvailable",
+      new Gauge[Long] {
+        def value = memoryPool.availableMemory
+      }
+    )
+
     info("Started " + acceptors.size + " acceptor threads")
   }
 
@@ -145,7 +156,8 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
       config.connectionsMaxIdleMs,
       protocol,
       config.values,
-      metrics
+      metrics,
+      memoryPool
     )
   }
 
@@ -361,7 +373,8 @@ private[kafka] class Processor(val id: Int,
                                connectionsMaxIdleMs: Long,
                                protocol: SecurityProtocol,
                                channelConfigs: java.util.Map[String, _],
-                               metrics: Metrics) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
+                               metrics: Metrics,
+                               memoryPool: MemoryPool = MemoryPool.NONE) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
 
   private object ConnectionId {
     def fromString(s: String): Option[ConnectionId] = s.split("-") match {
@@ -399,7 +412,8 @@ private[kafka] class Processor(val id: Int,
     "socket-server",
     metricTags,
     false,
-    ChannelBuilders.create(protocol, Mode.SERVER, LoginType.SERVER, channelConfigs, null, true))
+    ChannelBuilders.create(protocol, Mode.SERVER, LoginType.SERVER, channelConfigs, null, true),
+    memoryPool)
 
   override def run() {
     startupComplete()
@@ -485,13 +499,14 @@ private[kafka] class Processor(val id: Int,
         val channel = selector.channel(receive.source)
         val session = RequestChannel.Session(new KafkaPrincipal(KafkaPrincipal.USER_TYPE, channel.principal.getName),
           channel.socketAddress)
-        val req = RequestChannel.Request(processor = id, connectionId = receive.source, session = session, buffer = receive.payload, startTimeMs = time.milliseconds, securityProtocol = protocol)
+        val req = RequestChannel.Request(processor = id, connectionId = receive.source, session = session, buffer = receive.payload, startTimeMs = time.milliseconds, securityProtocol = protocol, memoryPool = memoryPool)
         requestChannel.sendRequest(req)
         selector.mute(receive.source)
       } catch {
         case e @ (_: InvalidRequestException | _: SchemaException) =>
           // note that even though we got an exception, we can assume that receive.source is valid. Issues with constructing a valid receive object were handled earlier
           error(s"Closing socket for ${receive.source} because of error", e)
+          memoryPool.release(receive.payload)
           close(selector, receive.source)
       }
     }
@@ -17,11 +17,12 @@
 package kafka.security.auth
 
 import java.util
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kafka.common.{NotificationHandler, ZkNodeChangeNotificationListener}
 
 import kafka.network.RequestChannel.Session
-import kafka.security.auth.SimpleAclAuthorizer.VersionedAcls
+import kafka.security.auth.SimpleAclAuthorizer.{DecisionKey, VersionedAcls}
 import kafka.server.KafkaConfig
 import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
 import kafka.utils._
@@ -44,6 +45,9 @@ object SimpleAclAuthorizer {
   val SuperUsersProp = "super.users"
   //If set to true when no acls are found for a resource , authorizer allows access to everyone. Defaults to false.
   val AllowEveryoneIfNoAclIsFoundProp = "allow.everyone.if.no.acl.found"
+  //Maximum number of authorization decisions cached per broker, 0 disables the cache. Defaults to 10000.
+  val DecisionCacheSizeProp = "authorizer.decision.cache.size"
+  val DefaultDecisionCacheSize = 10000
 
   /**
    * The root acl storage node. Under this node there will be one child node per resource type (Topic, Cluster, ConsumerGroup).
@@ -65,6 +69,8 @@ object SimpleAclAuthorizer {
   val AclChangedPrefix = "acl_changes_"
 
   private case class VersionedAcls(acls: Set[Acl], zkVersion: Int)
+
+  private case class DecisionKey(principal: KafkaPrincipal, host: String, operation: Operation, resource: Resource)
 }
 
 class SimpleAclAuthorizer extends Authorizer with Logging {
@@ -77,6 +83,11 @@ class SimpleAclAuthorizer extends Authorizer with Logging {
   private val aclCache = new scala.collection.mutable.HashMap[Resource, VersionedAcls]
   private val lock = new ReentrantReadWriteLock()
 
+  /* Authorization decisions computed from the current acls. The map is replaced rather than cleared whenever an acl
+   * changes, so that a decision computed from the old acls by a concurrent authorize call is put in the discarded map. */
+  private var decisionCacheSize = SimpleAclAuthorizer.DefaultDecisionCacheSize
+  @volatile private var decisionCache = new ConcurrentHashMap[DecisionKey, java.lang.Boolean]
+
   // The maximum number of times we should try to update the resource acls in zookeeper before failing;
   // This should never occur, but is a safeguard just in case.
   protected[auth] var maxUpdateRetries = 10
@@ -98,6 +109,9 @@ class SimpleAclAuthorizer extends Authorizer with Logging {
 
     shouldAllowEveryoneIfNoAclIsFound = configs.get(SimpleAclAuthorizer.AllowEveryoneIfNoAclIsFoundProp).exists(_.toString.toBoolean)
 
+    decisionCacheSize = configs.get(SimpleAclAuthorizer.DecisionCacheSizeProp).map(_.toString.toInt)
+      .getOrElse(SimpleAclAuthorizer.DefaultDecisionCacheSize)
+
     // Use `KafkaConfig` in order to get the default ZK config values if not present in `javaConfigs`. Note that this
     // means that `KafkaConfig.zkConnect` must always be set by the user (even if `SimpleAclAuthorizer.ZkUrlProp` is also
     // set).
@@ -122,6 +136,31 @@ class SimpleAclAuthorizer extends Authorizer with Logging {
   override def authorize(session: Session, operation: Operation, resource: Resource): Boolean = {
     val principal = session.principal
     val host = session.clientAddress.getHostAddress
+
+    val authorized =
+      if (decisionCacheSize <= 0)
+        isAuthorized(session, operation, resource, principal, host)
+      else {
+        // read the map before the acls so that a decision is never cached in a map newer than the acls it is based on
+        val decisions = decisionCache
+        val key = DecisionKey(principal, host, operation, resource)
+        val cached = decisions.get(key)
+        if (cached != null)
+          cached.booleanValue
+        else {
+          val decision = isAuthorized(session, operation, resource, principal, host)
+          if (decisions.size >= decisionCacheSize)
+            decisions.clear()
+          decisions.put(key, decision)
+          decision
+        }
+      }
+
+    logAuditMessage(principal, authorized, operation, resource, host)
+    authorized
+  }
+
+  private def isAuthorized(session: Session, operation: Operation, resource: Resource, principal: KafkaPrincipal, host: String): Boolean = {
     val acls = getAcls(resource) ++ getAcls(new Resource(resource.resourceType, Resource.WildCardResource))
 
     //check if there is any Deny acl match that would disallow this operation.
@@ -138,12 +177,9 @@ class SimpleAclAuthorizer extends Authorizer with Logging {
 
     //we allow an operation if a user is a super user or if no acls are found and user has configured to allow all users
     //when no acls are found or if no deny acls are found and at least one allow acls matches.
-    val authorized = isSuperUser(operation, resource, principal, host) ||
+    isSuperUser(operation, resource, principal, host) ||
       isEmptyAclAndAuthorized(operation, resource, principal, host, acls) ||
       (!denyMatch && allowMatch)
-
-    logAuditMessage(principal, authorized, operation, resource, host)
-    authorized
   }
 
   def isEmptyAclAndAuthorized(operation: Operation, resource: Resource, principal: KafkaPrincipal, host: String, acls: Set[Acl]): Boolean = {
@@ -339,11 +375,14 @@ class SimpleAclAuthorizer extends Authorizer with Logging {
   }
 
   private def updateCache(resource: Resource, versionedAcls: VersionedAcls) {
+    val previousAcls = aclCache.get(resource).map(_.acls).getOrElse(Set.empty[Acl])
     if (versionedAcls.acls.nonEmpty) {
       aclCache.put(resource, versionedAcls)
     } else {
       aclCache.remove(resource)
     }
+    if (previousAcls != versionedAcls.acls)
+      decisionCache = new ConcurrentHashMap[DecisionKey, java.lang.Boolean]
   }
 
   private def updateAclChangedFlag(resource: Resource) {
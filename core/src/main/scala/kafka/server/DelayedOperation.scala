@@ -110,6 +110,9 @@ abstract class DelayedOperation(override val delayMs: Long) extends TimerTask wi
 
 object DelayedOperationPurgatory {
 
+  /* the default number of shards the watch lists are split into */
+  val Shards = 512
+
   def apply[T <: DelayedOperation](purgatoryName: String,
                                    brokerId: Int = 0,
                                    purgeInterval: Int = 1000): DelayedOperationPurgatory[T] = {
@@ -121,18 +124,22 @@ object DelayedOperationPurgatory {
 
 /**
  * A helper purgatory class for bookkeeping delayed operations with a timeout, and expiring timed out operations.
+ *
+ * The watch lists are split into shards by the hash of their key. Each shard has its own lock guarding the removal of
+ * empty watch lists, so that operations watched on different keys rarely contend with each other.
  */
 class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
                                                        timeoutTimer: Timer,
                                                        brokerId: Int = 0,
                                                        purgeInterval: Int = 1000,
-                                                       reaperEnabled: Boolean = true)
+                                                       reaperEnabled: Boolean = true,
+                                                       shards: Int = DelayedOperationPurgatory.Shards)
         extends Logging with KafkaMetricsGroup {
 
-  /* a list of operation watching keys */
-  private val watchersForKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key)))
+  require(shards > 0, "The number of shards must be positive")
 
-  private val removeWatchersLock = new ReentrantReadWriteLock()
+  /* the shards of the operation watching keys */
+  private val watcherLists = Array.fill[WatcherList](shards)(new WatcherList)
 
   // the number of estimated total operations in the purgatory
   private[this] val estimatedTotalOperations = new AtomicInteger(0)
@@ -227,7 +234,8 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
    * @return the number of completed operations during this process
    */
   def checkAndComplete(key: Any): Int = {
-    val watchers = inReadLock(removeWatchersLock) { watchersForKey.get(key) }
+    val wl = watcherList(key)
+    val watchers = inReadLock(wl.removeWatchersLock) { wl.watchersForKey.get(key) }
     if(watchers == null)
       0
     else
@@ -239,7 +247,7 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
    * on multiple lists, and some of its watched entries may still be in the watch lists
    * even when it has been completed, this number may be larger than the number of real operations watched
    */
-  def watched() = allWatchers.map(_.watched).sum
+  def watched() = watcherLists.foldLeft(0) { case (sum, wl) => sum + wl.allWatchers.map(_.watched).sum }
 
   /**
    * Return the number of delayed operations in the expiry queue
@@ -247,18 +255,18 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
   def delayed() = timeoutTimer.size
 
   /*
-   * Return all the current watcher lists,
-   * note that the returned watchers may be removed from the list by other threads
+   * The shard of the watch lists the given key belongs to
    */
-  private def allWatchers = inReadLock(removeWatchersLock) { watchersForKey.values }
+  private def watcherList(key: Any): WatcherList = watcherLists(Utils.abs(key.hashCode) % watcherLists.length)
 
   /*
    * Return the watch list of the given key, note that we need to
    * grab the removeWatchersLock to avoid the operation being added to a removed watcher list
    */
   private def watchForOperation(key: Any, operation: T) {
-    inReadLock(removeWatchersLock) {
-      val watcher = watchersForKey.getAndMaybePut(key)
+    val wl = watcherList(key)
+    inReadLock(wl.removeWatchersLock) {
+      val watcher = wl.watchersForKey.getAndMaybePut(key)
       watcher.watch(operation)
     }
   }
@@ -267,17 +275,33 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
    * Remove the key from watcher lists if its list is empty
    */
   private def removeKeyIfEmpty(key: Any, watchers: Watchers) {
-    inWriteLock(removeWatchersLock) {
+    val wl = watcherList(key)
+    inWriteLock(wl.removeWatchersLock) {
       // if the current key is no longer correlated to the watchers to remove, skip
-      if (watchersForKey.get(key) != watchers)
+      if (wl.watchersForKey.get(key) != watchers)
         return
 
       if (watchers != null && watchers.watched == 0) {
-        watchersForKey.remove(key)
+        wl.watchersForKey.remove(key)
       }
     }
   }
 
+  /**
+   * A shard of the watch lists with its own lock
+   */
+  private class WatcherList {
+    val watchersForKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key)))
+
+    val removeWatchersLock = new ReentrantReadWriteLock()
+
+    /*
+     * Return all the current watcher lists of this shard,
+     * note that the returned watchers may be removed from the list by other threads
+     */
+    def allWatchers = inReadLock(removeWatchersLock) { watchersForKey.values }
+  }
+
   /**
    * Shutdown the expire reaper thread
    */
@@ -358,7 +382,7 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
       // a little overestimated total number of operations.
       estimatedTotalOperations.getAndSet(delayed)
       debug("Begin purging watch lists")
-      val purged = allWatchers.map(_.purgeCompleted()).sum
+      val purged = watcherLists.foldLeft(0) { case (sum, wl) => sum + wl.allWatchers.map(_.purgeCompleted()).sum }
       debug("Purged %d elements from watch lists.".format(purged))
     }
   }
@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util
+import java.util.concurrent.ThreadLocalRandom
+
+import com.yammer.metrics.core.Gauge
+import kafka.api.{FetchRequest, FetchResponsePartitionData, PartitionFetchInfo}
+import kafka.common.TopicAndPartition
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Logging, SystemTime, Time, threadsafe}
+import org.apache.kafka.common.protocol.Errors
+
+import scala.collection.JavaConverters._
+import scala.collection._
+
+/**
+ * A partition of a fetch session, with the fetch offset and size last sent by the fetcher and the high watermark last
+ * returned to it
+ */
+private[server] class CachedPartition(var fetchInfo: PartitionFetchInfo, var highWatermark: Long = -1L)
+
+/**
+ * An incremental fetch session. The broker remembers the partitions that a fetcher fetches, so that the fetcher only
+ * sends the partitions that it adds, removes or fetches from a new offset, and the broker only returns the partitions
+ * with data, a new high watermark or an error.
+ *
+ * @param id The id of the session
+ * @param lastUsedMs The last time the session was used
+ */
+private[server] class FetchSession(val id: Int, @volatile var lastUsedMs: Long) {
+  // the partitions of the session in the order they were added, only accessed while holding the lock of the session
+  val partitions = new util.LinkedHashMap[TopicAndPartition, CachedPartition]
+  // the epoch expected for the next fetch of the session
+  var epoch: Int = FetchSession.nextEpoch(FetchRequest.InitialEpoch)
+
+  def fetchInfos: immutable.Map[TopicAndPartition, PartitionFetchInfo] = synchronized {
+    partitions.asScala.map { case (topicAndPartition, cached) => topicAndPartition -> cached.fetchInfo }.toMap
+  }
+
+  /**
+   * Update the session with the partitions of a fetch request
+   */
+  def update(fetchInfos: Map[TopicAndPartition, PartitionFetchInfo], toForget: Seq[TopicAndPartition]): Unit = synchronized {
+    fetchInfos.foreach { case (topicAndPartition, fetchInfo) =>
+      val cached = partitions.get(topicAndPartition)
+      if (cached == null)
+        partitions.put(topicAndPartition, new CachedPartition(fetchInfo))
+      else
+        cached.fetchInfo = fetchInfo
+    }
+    toForget.foreach(partitions.remove)
+  }
+
+  /**
+   * Select the partitions to return to the fetcher, and remember the high watermarks returned. All the partitions are
+   * returned for a full fetch, only those with data, a new high watermark or an error for an incremental fetch.
+   */
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData],
+                         incremental: Boolean): Map[TopicAndPartition, FetchResponsePartitionData] = synchronized {
+    data.filter { case (topicAndPartition, partitionData) =>
+      val cached = partitions.get(topicAndPartition)
+      val changed = cached == null || cached.highWatermark != partitionData.hw
+      if (cached != null)
+        cached.highWatermark = partitionData.hw
+      !incremental || changed || partitionData.error != Errors.NONE.code || partitionData.messages.sizeInBytes > 0
+    }
+  }
+
+  def size: Int = synchronized {
+    partitions.size
+  }
+}
+
+private[server] object FetchSession {
+  def nextEpoch(epoch: Int): Int = if (epoch == Int.MaxValue) 1 else epoch + 1
+}
+
+/**
+ * The partitions to read for a fetch request, and how to build its response
+ */
+sealed trait FetchContext {
+  /**
+   * The partitions to read
+   */
+  def fetchInfos: immutable.Map[TopicAndPartition, PartitionFetchInfo]
+
+  /**
+   * The error of the fetch session, if any. No partition is read when there is one.
+   */
+  def error: Short = Errors.NONE.code
+
+  /**
+   * The id of the fetch session to return to the fetcher
+   */
+  def sessionId: Int
+
+  /**
+   * The partitions to return out of the partitions that were read
+   */
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData]): Map[TopicAndPartition, FetchResponsePartitionData]
+}
+
+/**
+ * A fetch that is not part of a session, as sent by the consumers and by the fetchers of older brokers
+ */
+class SessionlessFetchContext(val fetchInfos: immutable.Map[TopicAndPartition, PartitionFetchInfo]) extends FetchContext {
+  def sessionId = FetchRequest.InvalidSessionId
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData]) = data
+}
+
+/**
+ * The first fetch of a new session, which reads and returns all its partitions
+ */
+class FullFetchContext(session: FetchSession) extends FetchContext {
+  val fetchInfos = session.fetchInfos
+  def sessionId = session.id
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData]) = session.partitionsToReturn(data, incremental = false)
+}
+
+/**
+ * A fetch of an existing session, which reads all the partitions of the session but only returns those that changed
+ */
+class IncrementalFetchContext(session: FetchSession) extends FetchContext {
+  val fetchInfos = session.fetchInfos
+  def sessionId = session.id
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData]) = session.partitionsToReturn(data, incremental = true)
+}
+
+/**
+ * A fetch of an unknown session, or with an unexpected epoch. The fetcher starts a new session on its next fetch.
+ */
+class SessionErrorFetchContext(override val error: Short) extends FetchContext {
+  def fetchInfos = immutable.Map.empty[TopicAndPartition, PartitionFetchInfo]
+  def sessionId = FetchRequest.InvalidSessionId
+  def partitionsToReturn(data: Map[TopicAndPartition, FetchResponsePartitionData]) = Map.empty
+}
+
+/**
+ * The fetch sessions of a broker. When the cache is full, a new session replaces the least recently used one only if it
+ * has not been used for evictionMs, otherwise the fetch is served without a session.
+ *
+ * @param maxSessions The maximum number of sessions, 0 disables fetch sessions
+ * @param evictionMs The time after which an unused session may be replaced by a new one
+ */
+@threadsafe
+class FetchSessionCache(maxSessions: Int,
+                        evictionMs: Long = FetchSessionCache.DefaultEvictionMs,
+                        time: Time = SystemTime) extends Logging with KafkaMetricsGroup {
+
+  // the sessions in least recently used order
+  private val sessions = new util.LinkedHashMap[Int, FetchSession](16, 0.75f, true)
+
+  newGauge("NumIncrementalFetchSessions",
+    new Gauge[Int] {
+      def value = size
+    }
+  )
+
+  /**
+   * Resolve the fetch session of a request, creating, updating or closing it as requested
+   */
+  def newContext(request: FetchRequest): FetchContext = {
+    val now = time.milliseconds
+    if (request.sessionEpoch == FetchRequest.FinalEpoch) {
+      if (request.sessionId != FetchRequest.InvalidSessionId)
+        remove(request.sessionId)
+      new SessionlessFetchContext(request.requestInfo)
+    } else if (request.sessionEpoch == FetchRequest.InitialEpoch) {
+      if (request.sessionId != FetchRequest.InvalidSessionId)
+        remove(request.sessionId)
+      maybeCreate(now) match {
+        case Some(session) =>
+          session.update(request.requestInfo, Seq.empty)
+          debug(s"Created fetch session ${session.id} with ${session.size} partitions for ${request.clientId}")
+          new FullFetchContext(session)
+        case None =>
+          new SessionlessFetchContext(request.requestInfo)
+      }
+    } else {
+      val session = synchronized(Option(sessions.get(request.sessionId)))
+      session match {
+        case None =>
+          debug(s"Fetch session ${request.sessionId} of ${request.clientId} not found")
+          new SessionErrorFetchContext(Errors.FETCH_SESSION_ID_NOT_FOUND.code)
+        case Some(session) =>
+          session.synchronized {
+            if (session.epoch != request.sessionEpoch) {
+              debug(s"Fetch session ${session.id} of ${request.clientId} expected epoch ${session.epoch}, " +
+                s"but got epoch ${request.sessionEpoch}")
+              new SessionErrorFetchContext(Errors.INVALID_FETCH_SESSION_EPOCH.code)
+            } else {
+              session.update(request.requestInfo, request.toForget)
+              session.epoch = FetchSession.nextEpoch(session.epoch)
+              session.lastUsedMs = now
+              new IncrementalFetchContext(session)
+            }
+          }
+      }
+    }
+  }
+
+  private def maybeCreate(now: Long): Option[FetchSession] = synchronized {
+    if (maxSessions <= 0) {
+      None
+    } else {
+      if (sessions.size >= maxSessions) {
+        val eldest = sessions.values.iterator.next()
+        if (now - eldest.lastUsedMs >= evictionMs) {
+          debug(s"Evicting fetch session ${eldest.id}, which was last used at ${eldest.lastUsedMs}")
+          sessions.remove(eldest.id)
+        }
+      }
+      if (sessions.size >= maxSessions) {
+        None
+      } else {
+        var id = FetchRequest.InvalidSessionId
+        while (id == FetchRequest.InvalidSessionId || sessions.containsKey(id))
+          id = ThreadLocalRandom.current.nextInt(1, Int.MaxValue)
+        val session = new FetchSession(id, now)
+        sessions.put(id, session)
+        Some(session)
+      }
+    }
+  }
+
+  private def remove(sessionId: Int): Unit = synchronized {
+    sessions.remove(sessionId)
+  }
+
+  def size: Int = synchronized {
+    sessions.size
+  }
+}
+
+object FetchSessionCache {
+  val DefaultEvictionMs = 2 * 60 * 1000L
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util
+
+import kafka.utils.{Logging, nonthreadsafe}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.requests.{FetchResponse, FetchRequest => JFetchRequest}
+
+import scala.collection.JavaConverters._
+
+/**
+ * The fetch session of a fetcher with a broker. The first fetch sends all the partitions and creates the session, the
+ * following fetches only send the partitions that were added or whose fetch offset or size changed, and the partitions
+ * that were removed. Any error starts a new session on the next fetch.
+ *
+ * @param node The id of the broker, for logging
+ */
+@nonthreadsafe
+class FetchSessionHandler(node: Int) extends Logging {
+  import FetchSessionHandler._
+
+  private var sessionId = JFetchRequest.INVALID_SESSION_ID
+  private var nextEpoch = JFetchRequest.INITIAL_EPOCH
+  // the partitions that the broker knows about, with the fetch offset and size last sent
+  private var sessionPartitions = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
+  // the partitions of the fetch in progress, which become the session partitions once it succeeds
+  private var pendingPartitions: util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData] = null
+
+  /**
+   * Build the next fetch of the session
+   *
+   * @param fetchData All the partitions to fetch
+   */
+  def build(fetchData: util.Map[TopicPartition, JFetchRequest.PartitionData]): FetchRequestData = {
+    pendingPartitions = new util.LinkedHashMap(fetchData)
+    if (nextEpoch == JFetchRequest.INITIAL_EPOCH) {
+      FetchRequestData(sessionId, nextEpoch, pendingPartitions, util.Collections.emptyList[TopicPartition])
+    } else {
+      val toSend = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
+      fetchData.asScala.foreach { case (topicPartition, data) =>
+        val sent = sessionPartitions.get(topicPartition)
+        if (sent == null || sent.offset != data.offset || sent.maxBytes != data.maxBytes)
+          toSend.put(topicPartition, data)
+      }
+      val toForget = new util.ArrayList[TopicPartition]
+      sessionPartitions.keySet.asScala.foreach { topicPartition =>
+        if (!fetchData.containsKey(topicPartition))
+          toForget.add(topicPartition)
+      }
+      FetchRequestData(sessionId, nextEpoch, toSend, toForget)
+    }
+  }
+
+  /**
+   * Handle the response to the last fetch built
+   *
+   * @return true if the response is valid, false if it has a session error
+   */
+  def handleResponse(response: FetchResponse): Boolean = {
+    if (response.errorCode != Errors.NONE.code) {
+      info(s"Node $node was unable to process the fetch request with session $sessionId and epoch $nextEpoch: " +
+        s"${Errors.forCode(response.errorCode).message}")
+      reset()
+      false
+    } else {
+      if (nextEpoch == JFetchRequest.INITIAL_EPOCH) {
+        sessionId = response.sessionId
+        if (sessionId != JFetchRequest.INVALID_SESSION_ID) {
+          debug(s"Node $node created fetch session $sessionId with ${pendingPartitions.size} partitions")
+          nextEpoch = FetchSession.nextEpoch(nextEpoch)
+        }
+      } else {
+        nextEpoch = FetchSession.nextEpoch(nextEpoch)
+      }
+      sessionPartitions = pendingPartitions
+      pendingPartitions = null
+      true
+    }
+  }
+
+  /**
+   * Handle a failed fetch, the session is replaced on the next fetch
+   */
+  def handleError(t: Throwable): Unit = {
+    debug(s"Error sending fetch request with session $sessionId and epoch $nextEpoch to node $node", t)
+    reset()
+  }
+
+  private def reset(): Unit = {
+    // the broker replaces the session when it gets its id with the initial epoch
+    nextEpoch = JFetchRequest.INITIAL_EPOCH
+    sessionPartitions = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
+    pendingPartitions = null
+  }
+}
+
+object FetchSessionHandler {
+
+  case class FetchRequestData(sessionId: Int,
+                              epoch: Int,
+                              toSend: util.Map[TopicPartition, JFetchRequest.PartitionData],
+                              toForget: util.List[TopicPartition])
+}
@@ -29,7 +29,7 @@ import kafka.common._
 import kafka.controller.KafkaController
 import kafka.coordinator.{GroupCoordinator, JoinGroupResult}
 import kafka.log._
-import kafka.message.{ByteBufferMessageSet, Message, MessageSet}
+import kafka.message.{ByteBufferMessageSet, Message, MessageSet, ZStdCompressionCodec}
 import kafka.network._
 import kafka.network.RequestChannel.{Response, Session}
 import kafka.security.auth.{Authorizer, ClusterAction, Create, Describe, Group, Operation, Read, Resource, Topic, Write}
@@ -64,6 +64,12 @@ class KafkaApis(val requestChannel: RequestChannel,
   this.logIdent = "[KafkaApi-%d] ".format(brokerId)
   // Store all the quota managers for each type of request
   val quotaManagers: Map[Short, ClientQuotaManager] = instantiateQuotaManagers(config)
+  // Messages converted for fetch requests of old consumers
+  private val downConversionCache = new DownConversionCache(config.messageDownConversionCacheBytes)
+  // The partitions fetched by the followers and consumers in a fetch session
+  // followers are only served from fetch sessions once the inter broker protocol version allows them
+  private val fetchSessionCache = new FetchSessionCache(
+    if (config.interBrokerProtocolVersion >= KAFKA_0_10_0_FETCH_SESSION_IV0) config.maxIncrementalFetchSessionCacheSlots else 0)
 
   /**
    * Top-level method that handles all requests and multiplexes to the right api
@@ -421,8 +427,10 @@ class KafkaApis(val requestChannel: RequestChannel,
    */
   def handleFetchRequest(request: RequestChannel.Request) {
     val fetchRequest = request.requestObj.asInstanceOf[FetchRequest]
+    // all the partitions of a fetch session are read, even though an incremental fetch only holds those that changed
+    val fetchContext = fetchSessionCache.newContext(fetchRequest)
 
-    val (authorizedRequestInfo, unauthorizedRequestInfo) = fetchRequest.requestInfo.partition {
+    val (authorizedRequestInfo, unauthorizedRequestInfo) = fetchContext.fetchInfos.partition {
       case (topicAndPartition, _) => authorize(request.session, Read, new Resource(Topic, topicAndPartition.topic))
     }
 
@@ -449,14 +457,27 @@ class KafkaApis(val requestChannel: RequestChannel,
             val convertedData = if (replicaManager.getMessageFormatVersion(tp).exists(_ > Message.MagicValue_V0) &&
               !data.messages.isMagicValueInAllWrapperMessages(Message.MagicValue_V0)) {
               trace(s"Down converting message to V0 for fetch request from ${fetchRequest.clientId}")
-              new FetchResponsePartitionData(data.error, data.hw, data.messages.asInstanceOf[FileMessageSet].toMessageFormat(Message.MagicValue_V0))
+              // the messages are converted here rather than on the network thread, chunks are shared through the cache
+              new FetchResponsePartitionData(data.error, data.hw, new DownConvertedMessageSet(tp,
+                data.messages.asInstanceOf[FileMessageSet], Message.MagicValue_V0, downConversionCache))
             } else data
 
             tp -> convertedData
           }
+        } else if (fetchRequest.versionId < FetchRequest.ZStdVersion) {
+          // Only followers on an inter.broker.protocol.version that supports zstd may read it. Consumers, and followers
+          // on an older version, get the zstd message sets recompressed with a codec they can read.
+          responsePartitionData.map {
+            case (tp, data@FetchResponsePartitionData(_, _, messages: FileMessageSet))
+              if messages.hasWrapperMessageCompressedWith(ZStdCompressionCodec) =>
+              trace(s"Recompressing zstd messages for fetch request from ${fetchRequest.clientId}")
+              tp -> new FetchResponsePartitionData(data.error, data.hw, new DownConvertedMessageSet(tp, messages,
+                Message.MagicValue_V1, downConversionCache))
+            case (tp, data) => tp -> data
+          }
         } else responsePartitionData
 
-      val mergedPartitionData = convertedPartitionData ++ unauthorizedPartitionData
+      val mergedPartitionData = fetchContext.partitionsToReturn(convertedPartitionData ++ unauthorizedPartitionData)
 
       mergedPartitionData.foreach { case (topicAndPartition, data) =>
         if (data.error != Errors.NONE.code)
@@ -470,7 +491,8 @@ class KafkaApis(val requestChannel: RequestChannel,
       def fetchResponseCallback(delayTimeMs: Int) {
         trace(s"Sending fetch response to client ${fetchRequest.clientId} of " +
           s"${convertedPartitionData.values.map(_.messages.sizeInBytes).sum} bytes")
-        val response = FetchResponse(fetchRequest.correlationId, mergedPartitionData, fetchRequest.versionId, delayTimeMs)
+        val response = FetchResponse(fetchRequest.correlationId, mergedPartitionData, fetchRequest.versionId, delayTimeMs,
+          fetchContext.error, fetchContext.sessionId)
         requestChannel.sendResponse(new RequestChannel.Response(request, new FetchResponseSend(request.connectionId, response)))
       }
 
@@ -589,7 +611,7 @@ class KafkaApis(val requestChannel: RequestChannel,
       offsetTimeArray = new Array[(Long, Long)](segsArray.length)
 
     for (i <- 0 until segsArray.length)
-      offsetTimeArray(i) = (segsArray(i).baseOffset, segsArray(i).lastModified)
+      offsetTimeArray(i) = (segsArray(i).baseOffset, segsArray(i).largestTimestamp)
     if (lastSegmentHasSize)
       offsetTimeArray(segsArray.length) = (log.logEndOffset, SystemTime.milliseconds)
 
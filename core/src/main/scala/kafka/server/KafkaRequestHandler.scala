@@ -25,15 +25,17 @@ import com.yammer.metrics.core.Meter
 import org.apache.kafka.common.utils.Utils
 
 /**
- * A thread that answers kafka requests.
+ * A thread that answers kafka requests. A controller or coordinator request handler only answers the requests of the
+ * matching separate queue of the request channel.
  */
 class KafkaRequestHandler(id: Int,
                           brokerId: Int,
                           val aggregateIdleMeter: Meter,
                           val totalHandlerThreads: Int,
                           val requestChannel: RequestChannel,
-                          apis: KafkaApis) extends Runnable with Logging {
-  this.logIdent = "[Kafka Request Handler " + id + " on Broker " + brokerId + "], "
+                          apis: KafkaApis,
+                          val queue: RequestChannel.Queue = RequestChannel.DataQueue) extends Runnable with Logging {
+  this.logIdent = "[Kafka " + KafkaRequestHandler.queueName(queue) + "Request Handler " + id + " on Broker " + brokerId + "], "
 
   def run() {
     while(true) {
@@ -45,7 +47,7 @@ class KafkaRequestHandler(id: Int,
           // time_window is independent of the number of threads, each recorded idle
           // time should be discounted by # threads.
           val startSelectTime = SystemTime.nanoseconds
-          req = requestChannel.receiveRequest(300)
+          req = requestChannel.receiveRequest(300, queue)
           val idleTime = SystemTime.nanoseconds - startSelectTime
           aggregateIdleMeter.mark(idleTime / totalHandlerThreads)
         }
@@ -57,33 +59,71 @@ class KafkaRequestHandler(id: Int,
         }
         req.requestDequeueTimeMs = SystemTime.milliseconds
         trace("Kafka request handler %d on broker %d handling request %s".format(id, brokerId, req))
-        apis.handle(req)
+        try apis.handle(req)
+        finally req.releaseBuffer()
       } catch {
         case e: Throwable => error("Exception when handling request", e)
       }
     }
   }
 
-  def shutdown(): Unit = requestChannel.sendRequest(RequestChannel.AllDone)
+  def shutdown(): Unit = requestChannel.sendRequest(RequestChannel.AllDone, queue)
 }
 
+object KafkaRequestHandler {
+  private def queueName(queue: RequestChannel.Queue): String = queue match {
+    case RequestChannel.DataQueue => ""
+    case RequestChannel.ControllerQueue => "Controller "
+    case RequestChannel.CoordinatorQueue => "Coordinator "
+  }
+}
+
+/**
+ * @param numCoordinatorThreads the number of threads dedicated to the group coordinator requests, only used if the
+ *                              request channel queues the control requests separately. The controller requests then get
+ *                              a single thread of their own, since the controller only sends one at a time.
+ */
 class KafkaRequestHandlerPool(val brokerId: Int,
                               val requestChannel: RequestChannel,
                               val apis: KafkaApis,
-                              numThreads: Int) extends Logging with KafkaMetricsGroup {
+                              numThreads: Int,
+                              numCoordinatorThreads: Int = 0) extends Logging with KafkaMetricsGroup {
 
   /* a meter to track the average free capacity of the request handlers */
   private val aggregateIdleMeter = newMeter("RequestHandlerAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
 
+  private val totalControllerThreads = if (requestChannel.separateControlQueue) 1 else 0
+  private val totalCoordinatorThreads = if (requestChannel.separateControlQueue) numCoordinatorThreads else 0
+  if (requestChannel.separateControlQueue && totalCoordinatorThreads < 1)
+    throw new IllegalArgumentException("At least one coordinator request handler is required when control requests are queued separately")
+
   this.logIdent = "[Kafka Request Handler on Broker " + brokerId + "], "
-  val threads = new Array[Thread](numThreads)
-  val runnables = new Array[KafkaRequestHandler](numThreads)
+  val threads = new Array[Thread](numThreads + totalControllerThreads + totalCoordinatorThreads)
+  val runnables = new Array[KafkaRequestHandler](numThreads + totalControllerThreads + totalCoordinatorThreads)
   for(i <- 0 until numThreads) {
     runnables(i) = new KafkaRequestHandler(i, brokerId, aggregateIdleMeter, numThreads, requestChannel, apis)
     threads(i) = Utils.daemonThread("kafka-request-handler-" + i, runnables(i))
     threads(i).start()
   }
 
+  if (requestChannel.separateControlQueue) {
+    /* meters to track the average free capacity of the controller and of the coordinator request handlers */
+    val controllerIdleMeter = newMeter("ControllerRequestHandlerAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
+    val coordinatorIdleMeter = newMeter("CoordinatorRequestHandlerAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
+    startHandlers(numThreads, totalControllerThreads, controllerIdleMeter, RequestChannel.ControllerQueue,
+      "kafka-controller-request-handler-")
+    startHandlers(numThreads + totalControllerThreads, totalCoordinatorThreads, coordinatorIdleMeter,
+      RequestChannel.CoordinatorQueue, "kafka-coordinator-request-handler-")
+  }
+
+  private def startHandlers(first: Int, count: Int, idleMeter: Meter, queue: RequestChannel.Queue, threadNamePrefix: String) {
+    for(i <- 0 until count) {
+      runnables(first + i) = new KafkaRequestHandler(i, brokerId, idleMeter, count, requestChannel, apis, queue)
+      threads(first + i) = Utils.daemonThread(threadNamePrefix + i, runnables(first + i))
+      threads(first + i).start()
+    }
+  }
+
   def shutdown() {
     info("shutting down")
     for(handler <- runnables)
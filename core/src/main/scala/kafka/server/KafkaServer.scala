@@ -213,7 +213,8 @@ class KafkaServer(val config: KafkaConfig, time: Time = SystemTime, threadNamePr
         /* start processing requests */
         apis = new KafkaApis(socketServer.requestChannel, replicaManager, groupCoordinator,
           kafkaController, zkUtils, config.brokerId, config, metadataCache, metrics, authorizer)
-        requestHandlerPool = new KafkaRequestHandlerPool(config.brokerId, socketServer.requestChannel, apis, config.numIoThreads)
+        requestHandlerPool = new KafkaRequestHandlerPool(config.brokerId, socketServer.requestChannel, apis, config.numIoThreads,
+          config.numControlIoThreads)
         brokerState.newState(RunningAsBroker)
 
         Mx4jLoader.maybeLoad()
@@ -599,11 +600,14 @@ class KafkaServer(val config: KafkaConfig, time: Time = SystemTime, threadNamePr
     }
     // read the log configurations from zookeeper
     val cleanerConfig = CleanerConfig(numThreads = config.logCleanerThreads,
+                                      partitionThreads = config.logCleanerPartitionThreads,
                                       dedupeBufferSize = config.logCleanerDedupeBufferSize,
                                       dedupeBufferLoadFactor = config.logCleanerDedupeBufferLoadFactor,
+                                      dedupeBufferOffHeap = config.logCleanerDedupeBufferOffHeap,
                                       ioBufferSize = config.logCleanerIoBufferSize,
                                       maxMessageSize = config.messageMaxBytes,
                                       maxIoBytesPerSecond = config.logCleanerIoMaxBytesPerSecond,
+                                      minSegmentGarbageRatio = config.logCleanerMinSegmentGarbageRatio,
                                       backOffMs = config.logCleanerBackoffMs,
                                       enableCleaner = config.logCleanerEnable)
     new LogManager(logDirs = config.logDirs.map(new File(_)).toArray,
@@ -616,7 +620,8 @@ class KafkaServer(val config: KafkaConfig, time: Time = SystemTime, threadNamePr
                    retentionCheckMs = config.logCleanupIntervalMs,
                    scheduler = kafkaScheduler,
                    brokerState = brokerState,
-                   time = time)
+                   time = time,
+                   indexIdleUnmapMs = config.logIndexIdleUnmapMs)
   }
 
   /**
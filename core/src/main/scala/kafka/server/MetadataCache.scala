@@ -18,15 +18,14 @@
 package kafka.server
 
 import java.util.EnumMap
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.ConcurrentHashMap
 
-import scala.collection.{Seq, Set, mutable}
+import scala.collection.{Seq, Set, immutable, mutable}
 import scala.collection.JavaConverters._
 import kafka.cluster.{Broker, EndPoint}
 import kafka.api._
 import kafka.common.{BrokerEndPointNotAvailableException, Topic, TopicAndPartition}
 import kafka.controller.{KafkaController, LeaderIsrAndControllerEpoch}
-import kafka.utils.CoreUtils._
 import kafka.utils.Logging
 import org.apache.kafka.common.Node
 import org.apache.kafka.common.protocol.{Errors, SecurityProtocol}
@@ -35,24 +34,26 @@ import org.apache.kafka.common.requests.{MetadataResponse, PartitionState, Updat
 /**
  *  A cache for the state (e.g., current leader) of each partition. This cache is updated through
  *  UpdateMetadataRequest from the controller. Every broker maintains the same cache, asynchronously.
+ *
+ *  The state is kept in an immutable snapshot that updateCache replaces as a whole, so readers never take a lock and
+ *  always see the state of a single UpdateMetadataRequest. The topic metadata of the responses is built at most once
+ *  per snapshot, security protocol and topic, and then reused by all the metadata requests served from that snapshot.
  */
 private[server] class MetadataCache(brokerId: Int) extends Logging {
+  import MetadataCache._
+
   private val stateChangeLogger = KafkaController.stateChangeLogger
-  private val cache = mutable.Map[String, mutable.Map[Int, PartitionStateInfo]]()
-  private var controllerId: Option[Int] = None
-  private val aliveBrokers = mutable.Map[Int, Broker]()
-  private val aliveNodes = mutable.Map[Int, collection.Map[SecurityProtocol, Node]]()
-  private val partitionMetadataLock = new ReentrantReadWriteLock()
+  @volatile private var snapshot = new MetadataSnapshot(Map.empty, None, Map.empty, Map.empty)
 
   this.logIdent = s"[Kafka Metadata Cache on broker $brokerId] "
 
   // This method is the main hotspot when it comes to the performance of metadata requests,
   // we should be careful about adding additional logic here.
   // filterUnavailableEndpoints exists to support v0 MetadataResponses
-  private def getEndpoints(brokers: Iterable[Int], protocol: SecurityProtocol, filterUnavailableEndpoints: Boolean): Seq[Node] = {
-    val result = new mutable.ArrayBuffer[Node](math.min(aliveBrokers.size, brokers.size))
+  private def getEndpoints(snapshot: MetadataSnapshot, brokers: Iterable[Int], protocol: SecurityProtocol, filterUnavailableEndpoints: Boolean): Seq[Node] = {
+    val result = new mutable.ArrayBuffer[Node](math.min(snapshot.aliveBrokers.size, brokers.size))
     brokers.foreach { brokerId =>
-      val endpoint = getAliveEndpoint(brokerId, protocol) match {
+      val endpoint = getAliveEndpoint(snapshot, brokerId, protocol) match {
         case None => if (!filterUnavailableEndpoints) Some(new Node(brokerId, "", -1)) else None
         case Some(node) => Some(node)
       }
@@ -61,23 +62,23 @@ private[server] class MetadataCache(brokerId: Int) extends Logging {
     result
   }
 
-  private def getAliveEndpoint(brokerId: Int, protocol: SecurityProtocol): Option[Node] =
-    aliveNodes.get(brokerId).map { nodeMap =>
+  private def getAliveEndpoint(snapshot: MetadataSnapshot, brokerId: Int, protocol: SecurityProtocol): Option[Node] =
+    snapshot.aliveNodes.get(brokerId).map { nodeMap =>
       nodeMap.getOrElse(protocol,
         throw new BrokerEndPointNotAvailableException(s"Broker `$brokerId` does not support security protocol `$protocol`"))
     }
 
   // errorUnavailableEndpoints exists to support v0 MetadataResponses
-  private def getPartitionMetadata(topic: String, protocol: SecurityProtocol, errorUnavailableEndpoints: Boolean): Option[Iterable[MetadataResponse.PartitionMetadata]] = {
-    cache.get(topic).map { partitions =>
+  private def getPartitionMetadata(snapshot: MetadataSnapshot, topic: String, protocol: SecurityProtocol, errorUnavailableEndpoints: Boolean): Option[Iterable[MetadataResponse.PartitionMetadata]] = {
+    snapshot.partitionStates.get(topic).map { partitions =>
       partitions.map { case (partitionId, partitionState) =>
         val topicPartition = TopicAndPartition(topic, partitionId)
 
         val leaderAndIsr = partitionState.leaderIsrAndControllerEpoch.leaderAndIsr
-        val maybeLeader = getAliveEndpoint(leaderAndIsr.leader, protocol)
+        val maybeLeader = getAliveEndpoint(snapshot, leaderAndIsr.leader, protocol)
 
         val replicas = partitionState.allReplicas
-        val replicaInfo = getEndpoints(replicas, protocol, errorUnavailableEndpoints)
+        val replicaInfo = getEndpoints(snapshot, replicas, protocol, errorUnavailableEndpoints)
 
         maybeLeader match {
           case None =>
@@ -87,7 +88,7 @@ private[server] class MetadataCache(brokerId: Int) extends Logging {
 
           case Some(leader) =>
             val isr = leaderAndIsr.isr
-            val isrInfo = getEndpoints(isr, protocol, errorUnavailableEndpoints)
+            val isrInfo = getEndpoints(snapshot, isr, protocol, errorUnavailableEndpoints)
 
             if (replicaInfo.size < replicas.size) {
               debug(s"Error while fetching metadata for $topicPartition: replica information not available for " +
@@ -111,64 +112,55 @@ private[server] class MetadataCache(brokerId: Int) extends Logging {
 
   // errorUnavailableEndpoints exists to support v0 MetadataResponses
   def getTopicMetadata(topics: Set[String], protocol: SecurityProtocol, errorUnavailableEndpoints: Boolean = false): Seq[MetadataResponse.TopicMetadata] = {
-    inReadLock(partitionMetadataLock) {
-      topics.toSeq.flatMap { topic =>
-        getPartitionMetadata(topic, protocol, errorUnavailableEndpoints).map { partitionMetadata =>
-          new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic), partitionMetadata.toBuffer.asJava)
+    val snapshot = this.snapshot
+    val builtTopicMetadata = snapshot.topicMetadata(protocol, errorUnavailableEndpoints)
+    topics.toSeq.flatMap { topic =>
+      val cached = builtTopicMetadata.get(topic)
+      if (cached != null) {
+        Some(cached)
+      } else {
+        getPartitionMetadata(snapshot, topic, protocol, errorUnavailableEndpoints).map { partitionMetadata =>
+          val topicMetadata = new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic),
+            partitionMetadata.toBuffer.asJava)
+          val existing = builtTopicMetadata.putIfAbsent(topic, topicMetadata)
+          if (existing != null) existing else topicMetadata
         }
       }
     }
   }
 
   def hasTopicMetadata(topic: String): Boolean = {
-    inReadLock(partitionMetadataLock) {
-      cache.contains(topic)
-    }
+    snapshot.partitionStates.contains(topic)
   }
 
   def getAllTopics(): Set[String] = {
-    inReadLock(partitionMetadataLock) {
-      cache.keySet.toSet
-    }
+    snapshot.partitionStates.keySet
   }
 
   def getNonExistingTopics(topics: Set[String]): Set[String] = {
-    inReadLock(partitionMetadataLock) {
-      topics -- cache.keySet
-    }
+    val partitionStates = snapshot.partitionStates
+    topics.filterNot(partitionStates.contains)
   }
 
   def getAliveBrokers: Seq[Broker] = {
-    inReadLock(partitionMetadataLock) {
-      aliveBrokers.values.toBuffer
-    }
-  }
-
-  private def addOrUpdatePartitionInfo(topic: String,
-                                       partitionId: Int,
-                                       stateInfo: PartitionStateInfo) {
-    inWriteLock(partitionMetadataLock) {
-      val infos = cache.getOrElseUpdate(topic, mutable.Map())
-      infos(partitionId) = stateInfo
-    }
+    snapshot.aliveBrokerList
   }
 
   def getPartitionInfo(topic: String, partitionId: Int): Option[PartitionStateInfo] = {
-    inReadLock(partitionMetadataLock) {
-      cache.get(topic).flatMap(_.get(partitionId))
-    }
+    snapshot.partitionStates.get(topic).flatMap(_.get(partitionId))
   }
 
-  def getControllerId: Option[Int] = controllerId
+  def getControllerId: Option[Int] = snapshot.controllerId
 
   def updateCache(correlationId: Int, updateMetadataRequest: UpdateMetadataRequest) {
-    inWriteLock(partitionMetadataLock) {
-      controllerId = updateMetadataRequest.controllerId match {
+    // updates are serialized, and only the partitions of the topics in the request are copied
+    synchronized {
+      val controllerId = updateMetadataRequest.controllerId match {
           case id if id < 0 => None
           case id => Some(id)
         }
-      aliveNodes.clear()
-      aliveBrokers.clear()
+      val aliveNodes = mutable.Map[Int, collection.Map[SecurityProtocol, Node]]()
+      val aliveBrokers = mutable.Map[Int, Broker]()
       updateMetadataRequest.liveBrokers.asScala.foreach { broker =>
         val nodes = new EnumMap[SecurityProtocol, Node](classOf[SecurityProtocol])
         val endPoints = new EnumMap[SecurityProtocol, EndPoint](classOf[SecurityProtocol])
@@ -180,20 +172,27 @@ private[server] class MetadataCache(brokerId: Int) extends Logging {
         aliveNodes(broker.id) = nodes.asScala
       }
 
-      updateMetadataRequest.partitionStates.asScala.foreach { case (tp, info) =>
-        val controllerId = updateMetadataRequest.controllerId
-        val controllerEpoch = updateMetadataRequest.controllerEpoch
-        if (info.leader == LeaderAndIsr.LeaderDuringDelete) {
-          removePartitionInfo(tp.topic, tp.partition)
-          stateChangeLogger.trace(s"Broker $brokerId deleted partition $tp from metadata cache in response to UpdateMetadata " +
-            s"request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
-        } else {
-          val partitionInfo = partitionStateToPartitionStateInfo(info)
-          addOrUpdatePartitionInfo(tp.topic, tp.partition, partitionInfo)
-          stateChangeLogger.trace(s"Broker $brokerId cached leader info $partitionInfo for partition $tp in response to " +
-            s"UpdateMetadata request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
+      var partitionStates = snapshot.partitionStates
+      updateMetadataRequest.partitionStates.asScala.groupBy(_._1.topic).foreach { case (topic, states) =>
+        var infos = partitionStates.getOrElse(topic, Map.empty[Int, PartitionStateInfo])
+        states.foreach { case (tp, info) =>
+          val controllerId = updateMetadataRequest.controllerId
+          val controllerEpoch = updateMetadataRequest.controllerEpoch
+          if (info.leader == LeaderAndIsr.LeaderDuringDelete) {
+            infos -= tp.partition
+            stateChangeLogger.trace(s"Broker $brokerId deleted partition $tp from metadata cache in response to UpdateMetadata " +
+              s"request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
+          } else {
+            val partitionInfo = partitionStateToPartitionStateInfo(info)
+            infos += tp.partition -> partitionInfo
+            stateChangeLogger.trace(s"Broker $brokerId cached leader info $partitionInfo for partition $tp in response to " +
+              s"UpdateMetadata request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
+          }
         }
+        partitionStates = if (infos.isEmpty) partitionStates - topic else partitionStates.updated(topic, infos)
       }
+
+      snapshot = new MetadataSnapshot(partitionStates, controllerId, aliveBrokers.toMap, aliveNodes.toMap)
     }
   }
 
@@ -204,17 +203,28 @@ private[server] class MetadataCache(brokerId: Int) extends Logging {
   }
 
   def contains(topic: String): Boolean = {
-    inReadLock(partitionMetadataLock) {
-      cache.contains(topic)
-    }
+    snapshot.partitionStates.contains(topic)
   }
 
-  private def removePartitionInfo(topic: String, partitionId: Int): Boolean = {
-    cache.get(topic).map { infos =>
-      infos.remove(partitionId)
-      if (infos.isEmpty) cache.remove(topic)
-      true
-    }.getOrElse(false)
-  }
+}
+
+private[server] object MetadataCache {
 
+  /**
+   * The immutable state of the cache after an UpdateMetadataRequest, along with the topic metadata built from it so far
+   */
+  private class MetadataSnapshot(val partitionStates: immutable.Map[String, immutable.Map[Int, PartitionStateInfo]],
+                                 val controllerId: Option[Int],
+                                 val aliveBrokers: immutable.Map[Int, Broker],
+                                 val aliveNodes: immutable.Map[Int, collection.Map[SecurityProtocol, Node]]) {
+    val aliveBrokerList: Seq[Broker] = aliveBrokers.values.toVector
+
+    // indexed by the security protocol and whether unavailable endpoints are errors
+    private val builtTopicMetadata = Array.fill(SecurityProtocol.values.length * 2) {
+      new ConcurrentHashMap[String, MetadataResponse.TopicMetadata]()
+    }
+
+    def topicMetadata(protocol: SecurityProtocol, errorUnavailableEndpoints: Boolean): ConcurrentHashMap[String, MetadataResponse.TopicMetadata] =
+      builtTopicMetadata(protocol.ordinal * 2 + (if (errorUnavailableEndpoints) 1 else 0))
+  }
 }
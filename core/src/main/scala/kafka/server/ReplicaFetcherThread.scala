@@ -18,12 +18,14 @@
 package kafka.server
 
 import java.net.SocketTimeoutException
+import java.util
+import java.util.Collections
 
 import kafka.admin.AdminUtils
 import kafka.cluster.BrokerEndPoint
 import kafka.log.LogConfig
 import kafka.message.ByteBufferMessageSet
-import kafka.api.{KAFKA_0_10_0_IV0, KAFKA_0_9_0}
+import kafka.api.{KAFKA_0_10_0_IV0, KAFKA_0_10_0_FETCH_SESSION_IV0, KAFKA_0_10_0_ZSTD_IV0, KAFKA_0_9_0}
 import kafka.common.{KafkaStorageException, TopicAndPartition}
 import ReplicaFetcherThread._
 import org.apache.kafka.clients.{ManualMetadataUpdater, NetworkClient, ClientRequest, ClientResponse}
@@ -36,7 +38,7 @@ import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.protocol.{Errors, ApiKeys}
 import org.apache.kafka.common.utils.Time
 
-import scala.collection.{JavaConverters, Map, mutable}
+import scala.collection.{JavaConverters, Map}
 import JavaConverters._
 
 class ReplicaFetcherThread(name: String,
@@ -56,7 +58,9 @@ class ReplicaFetcherThread(name: String,
   type PD = PartitionData
 
   private val fetchRequestVersion: Short =
-    if (brokerConfig.interBrokerProtocolVersion >= KAFKA_0_10_0_IV0) 2
+    if (brokerConfig.interBrokerProtocolVersion >= KAFKA_0_10_0_ZSTD_IV0) 4
+    else if (brokerConfig.interBrokerProtocolVersion >= KAFKA_0_10_0_FETCH_SESSION_IV0) 3
+    else if (brokerConfig.interBrokerProtocolVersion >= KAFKA_0_10_0_IV0) 2
     else if (brokerConfig.interBrokerProtocolVersion >= KAFKA_0_9_0) 1
     else 0
   private val socketTimeout: Int = brokerConfig.replicaSocketTimeoutMs
@@ -64,6 +68,9 @@ class ReplicaFetcherThread(name: String,
   private val maxWait = brokerConfig.replicaFetchWaitMaxMs
   private val minBytes = brokerConfig.replicaFetchMinBytes
   private val fetchSize = brokerConfig.replicaFetchMaxBytes
+  // only the partitions that changed are sent to brokers that support fetch sessions
+  private val fetchSessionHandler =
+    if (fetchRequestVersion >= 3) Some(new FetchSessionHandler(sourceBroker.id)) else None
 
   private def clientId = name
 
@@ -226,10 +233,22 @@ class ReplicaFetcherThread(name: String,
   }
 
   protected def fetch(fetchRequest: FetchRequest): Map[TopicAndPartition, PartitionData] = {
-    val clientResponse = sendRequest(ApiKeys.FETCH, Some(fetchRequestVersion), fetchRequest.underlying)
-    new FetchResponse(clientResponse.responseBody).responseData.asScala.map { case (key, value) =>
-      TopicAndPartition(key.topic, key.partition) -> new PartitionData(value)
+    val clientResponse = try sendRequest(ApiKeys.FETCH, Some(fetchRequestVersion), fetchRequest.underlying) catch {
+      case e: Throwable =>
+        fetchSessionHandler.foreach(_.handleError(e))
+        throw e
     }
+    val response = clientResponse.parsedResponse match {
+      case fetchResponse: FetchResponse => fetchResponse
+      case _ => new FetchResponse(clientResponse.responseBody)
+    }
+    // the partitions of a fetch session that are not in the response have no new data
+    if (fetchSessionHandler.forall(_.handleResponse(response)))
+      response.responseData.asScala.map { case (key, value) =>
+        TopicAndPartition(key.topic, key.partition) -> new PartitionData(value)
+      }
+    else
+      Map.empty
   }
 
   private def sendRequest(apiKey: ApiKeys, apiVersion: Option[Short], request: AbstractRequest): ClientResponse = {
@@ -268,24 +287,37 @@ class ReplicaFetcherThread(name: String,
   }
 
   protected def buildFetchRequest(partitionMap: Map[TopicAndPartition, PartitionFetchState]): FetchRequest = {
-    val requestMap = mutable.Map.empty[TopicPartition, JFetchRequest.PartitionData]
+    val requestMap = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
 
     partitionMap.foreach { case ((TopicAndPartition(topic, partition), partitionFetchState)) =>
       if (partitionFetchState.isActive)
-        requestMap(new TopicPartition(topic, partition)) = new JFetchRequest.PartitionData(partitionFetchState.offset, fetchSize)
+        requestMap.put(new TopicPartition(topic, partition), new JFetchRequest.PartitionData(partitionFetchState.offset, fetchSize))
     }
 
-    new FetchRequest(new JFetchRequest(replicaId, maxWait, minBytes, requestMap.asJava))
+    val underlying = fetchSessionHandler match {
+      case Some(handler) =>
+        val data = handler.build(requestMap)
+        new JFetchRequest(fetchRequestVersion, replicaId, maxWait, minBytes, data.sessionId, data.epoch, data.toSend, data.toForget)
+      case None =>
+        new JFetchRequest(fetchRequestVersion, replicaId, maxWait, minBytes, JFetchRequest.INVALID_SESSION_ID,
+          JFetchRequest.FINAL_EPOCH, requestMap, Collections.emptyList[TopicPartition])
+    }
+    new FetchRequest(underlying, requestMap)
   }
 
 }
 
 object ReplicaFetcherThread {
 
-  private[server] class FetchRequest(val underlying: JFetchRequest) extends AbstractFetcherThread.FetchRequest {
-    def isEmpty: Boolean = underlying.fetchData.isEmpty
+  /**
+   * @param underlying The request to send, which only holds the partitions that changed for an incremental fetch
+   * @param fetchData All the partitions fetched
+   */
+  private[server] class FetchRequest(val underlying: JFetchRequest,
+                                     fetchData: util.Map[TopicPartition, JFetchRequest.PartitionData]) extends AbstractFetcherThread.FetchRequest {
+    def isEmpty: Boolean = fetchData.isEmpty
     def offset(topicAndPartition: TopicAndPartition): Long =
-      underlying.fetchData.asScala(new TopicPartition(topicAndPartition.topic, topicAndPartition.partition)).offset
+      fetchData.get(new TopicPartition(topicAndPartition.topic, topicAndPartition.partition)).offset
   }
 
   private[server] class PartitionData(val underlying: FetchResponse.PartitionData) extends AbstractFetcherThread.PartitionData {
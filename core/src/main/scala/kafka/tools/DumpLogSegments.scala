@@ -86,6 +86,7 @@ object DumpLogSegments {
 
     val misMatchesForIndexFilesMap = new mutable.HashMap[String, List[(Long, Long)]]
     val nonConsecutivePairsForLogFilesMap = new mutable.HashMap[String, List[(Long, Long)]]
+    val timeIndexDumpErrors = new mutable.HashMap[String, List[String]]
 
     for(arg <- files) {
       val file = new File(arg)
@@ -95,6 +96,9 @@ object DumpLogSegments {
       } else if(file.getName.endsWith(Log.IndexFileSuffix)) {
         println("Dumping " + file)
         dumpIndex(file, indexSanityOnly, verifyOnly, misMatchesForIndexFilesMap, maxMessageSize)
+      } else if(file.getName.endsWith(Log.TimeIndexFileSuffix)) {
+        println("Dumping " + file)
+        dumpTimeIndex(file, indexSanityOnly, verifyOnly, timeIndexDumpErrors)
       }
     }
     misMatchesForIndexFilesMap.foreach {
@@ -105,6 +109,11 @@ object DumpLogSegments {
         })
       }
     }
+    timeIndexDumpErrors.foreach {
+      case (fileName, errors) =>
+        System.err.println("Found time index errors in :" + fileName)
+        errors.foreach(error => System.err.println("  " + error))
+    }
     nonConsecutivePairsForLogFilesMap.foreach {
       case (fileName, listOfNonConsecutivePairs) => {
         System.err.println("Non-secutive offsets in :" + fileName)
@@ -150,6 +159,59 @@ object DumpLogSegments {
     }
   }
 
+  /* print out the contents of the time index and check it against the log */
+  private def dumpTimeIndex(file: File,
+                            indexSanityOnly: Boolean,
+                            verifyOnly: Boolean,
+                            timeIndexDumpErrors: mutable.HashMap[String, List[String]]) {
+    val startOffset = file.getName().split("\\.")(0).toLong
+    val logFile = new File(file.getAbsoluteFile.getParent, file.getName.split("\\.")(0) + Log.LogFileSuffix)
+    val messageSet = new FileMessageSet(logFile, false)
+    val indexFile = new File(file.getAbsoluteFile.getParent, file.getName.split("\\.")(0) + Log.IndexFileSuffix)
+    val index = new OffsetIndex(indexFile, baseOffset = startOffset)
+    val timeIndex = new TimeIndex(file, baseOffset = startOffset)
+
+    try {
+      //Check that index passes sanityCheck, this is the check that determines if indexes will be rebuilt on startup or not.
+      if (indexSanityOnly) {
+        timeIndex.sanityCheck
+        println(s"$file passed sanity check.")
+        return
+      }
+
+      def addError(error: String) {
+        timeIndexDumpErrors.put(file.getAbsolutePath, error :: timeIndexDumpErrors.getOrElse(file.getAbsolutePath, Nil))
+      }
+
+      var prevTimestamp = Message.NoTimestamp
+      for(i <- 0 until timeIndex.entries) {
+        val entry = timeIndex.entry(i)
+        // since it is a sparse file, in the event of a crash there may be many zero entries, stop if we see one
+        if(entry.offset == timeIndex.baseOffset && i > 0)
+          return
+        if(entry.timestamp <= prevTimestamp)
+          addError("Timestamp %d at offset %d is not larger than the previous indexed timestamp %d"
+            .format(entry.timestamp, entry.offset, prevTimestamp))
+        // the indexed timestamp must be the largest timestamp of the messages up to and including the indexed offset
+        val position = index.lookup(entry.offset).position
+        val maxTimestampBefore = messageSet.read(position, messageSet.sizeInBytes)
+          .takeWhile(_.offset <= entry.offset)
+          .foldLeft(Message.NoTimestamp)((max, messageAndOffset) => math.max(max, messageAndOffset.message.timestamp))
+        if(maxTimestampBefore > entry.timestamp)
+          addError("Indexed timestamp %d at offset %d is smaller than the largest timestamp %d found in the log before it"
+            .format(entry.timestamp, entry.offset, maxTimestampBefore))
+        prevTimestamp = entry.timestamp
+        if (!verifyOnly)
+          println("timestamp: %d offset: %d".format(entry.timestamp, entry.offset))
+      }
+    } finally {
+      // unmap rather than close the indexes, closing would trim the files of the segment being dumped
+      timeIndex.unmap()
+      index.unmap()
+      messageSet.close()
+    }
+  }
+
   private trait MessageParser[K, V] {
     def parse(message: Message): (Option[K], Option[V])
   }
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{DelayQueue, Executors, ThreadFactory, TimeUnit}
+
+import kafka.utils.{Logging, threadsafe}
+import org.apache.kafka.common.utils.Utils
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A hierarchical timing wheel timer for a high rate of short-lived tasks, such as the delayed fetch and produce
+ * operations of a busy broker, which are mostly completed long before they expire.
+ *
+ * Compared to SystemTimer:
+ * 1. Timer task entries are pooled and reused instead of allocated for every task
+ * 2. Adding a task pushes its entry on a lock-free stack, without taking a lock on the bucket or on the timer
+ * 3. Cancelling a task only marks its entry; cancelled entries are dropped when their bucket expires, or purged from
+ *    all buckets once they outnumber the pending tasks
+ * 4. The tasks expired by an advance of the clock are handed to the executor in batches instead of one by one
+ *
+ * @param maxBatchSize The maximum number of expired tasks run by a single task of the executor
+ * @param maxPooledEntries The maximum number of free timer task entries kept for reuse
+ */
+@threadsafe
+class LockFreeTimer(executorName: String,
+                    tickMs: Long = 1,
+                    wheelSize: Int = 20,
+                    startMs: Long = System.currentTimeMillis,
+                    maxBatchSize: Int = 1024,
+                    maxPooledEntries: Int = 64 * 1024) extends Timer with Logging {
+
+  private[this] val taskExecutor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+    def newThread(runnable: Runnable): Thread =
+      Utils.newThread("executor-"+executorName, runnable, false)
+  })
+
+  private[this] val delayQueue = new DelayQueue[TimerTaskStack]()
+  // the number of pending tasks
+  private[this] val taskCounter = new AtomicInteger(0)
+  // the number of cancelled entries still held by a bucket
+  private[this] val cancelledCounter = new AtomicInteger(0)
+  private[this] val timingWheel = new LockFreeTimingWheel(
+    tickMs = tickMs,
+    wheelSize = wheelSize,
+    startMs = startMs,
+    delayQueue
+  )
+
+  private[this] val onCancelled = () => {
+    taskCounter.decrementAndGet()
+    cancelledCounter.incrementAndGet()
+    ()
+  }
+  private[this] val entryPool = new TimerTaskEntryPool(() => new PooledTimerTaskEntry(onCancelled), maxPooledEntries)
+
+  // guards the state below, which is only used while advancing the clock
+  private[this] val advanceLock = new Object
+  private[this] val expiredTasks = new ArrayBuffer[TimerTask]()
+
+  def add(timerTask: TimerTask): Unit = {
+    val entry = entryPool.allocate()
+    entry.init(timerTask, timerTask.delayMs + System.currentTimeMillis())
+    taskCounter.incrementAndGet()
+    timerTask.setTimerTaskEntry(entry)
+    if (!timingWheel.add(entry)) {
+      // Already expired or cancelled. The entry was not added to a bucket, so it is left to the garbage collector
+      if (entry.expire()) {
+        taskCounter.decrementAndGet()
+        timerTask.clearTimerTaskEntry(entry)
+        taskExecutor.submit(timerTask)
+      } else {
+        cancelledCounter.decrementAndGet()
+      }
+    }
+  }
+
+  private[this] val reinsert = (entry: PooledTimerTaskEntry) => {
+    if (!timingWheel.add(entry)) {
+      if (entry.expire()) {
+        taskCounter.decrementAndGet()
+        val timerTask = entry.timerTask
+        timerTask.clearTimerTaskEntry(entry)
+        expiredTasks += timerTask
+      } else {
+        cancelledCounter.decrementAndGet()
+      }
+      entryPool.release(entry)
+    }
+  }
+
+  private[this] val releaseCancelled = (entry: PooledTimerTaskEntry) => {
+    cancelledCounter.decrementAndGet()
+    entryPool.release(entry)
+  }
+
+  /*
+   * Advances the clock if there is an expired bucket. If there isn't any expired bucket when called,
+   * waits up to timeoutMs before giving up.
+   */
+  def advanceClock(timeoutMs: Long): Boolean = {
+    var bucket = delayQueue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+    if (bucket != null) {
+      advanceLock synchronized {
+        while (bucket != null) {
+          timingWheel.advanceClock(bucket.getExpiration())
+          bucket.flush(reinsert)
+          bucket = delayQueue.poll()
+        }
+
+        if (cancelledCounter.get > math.max(taskCounter.get, LockFreeTimer.MinCancelledEntriesToPurge))
+          timingWheel.foreachBucket(_.purge(releaseCancelled))
+
+        expiredTasks.grouped(maxBatchSize).foreach { batch =>
+          taskExecutor.submit(new ExpiredTasks(batch.toArray))
+        }
+        expiredTasks.clear()
+      }
+      true
+    } else {
+      false
+    }
+  }
+
+  def size: Int = taskCounter.get
+
+  override def shutdown() {
+    taskExecutor.shutdown()
+  }
+
+  private class ExpiredTasks(tasks: Array[TimerTask]) extends Runnable {
+    def run(): Unit = {
+      tasks.foreach { task =>
+        try {
+          task.run()
+        } catch {
+          case t: Throwable => error("Error while running expired timer task %s".format(task), t)
+        }
+      }
+    }
+  }
+}
+
+object LockFreeTimer {
+  // cancelled entries are only purged from all the buckets once there are at least this many
+  private val MinCancelledEntriesToPurge = 1000
+}
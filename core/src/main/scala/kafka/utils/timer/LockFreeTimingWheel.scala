@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.concurrent.DelayQueue
+
+import kafka.utils.threadsafe
+
+/*
+ * The hierarchical timing wheel of a LockFreeTimer, see TimingWheel for the algorithm.
+ *
+ * Unlike TimingWheel, entries may be added while the clock is advanced. The expiration of a bucket is only set while
+ * the bucket is out of the delay queue, that is before it is first enqueued and after it has been polled and flushed,
+ * so the order of the queue is never broken by an adding thread. An entry may end up in a bucket whose expiration is
+ * earlier than its own, if the bucket is due but not flushed yet, or, when it is added with a stale current time,
+ * later than its own, if the bucket is already reused for a later round of the wheel. A flushed bucket reinserts all
+ * of its entries, so an entry is never executed before its own expiration time and at most one round of the wheel late.
+ */
+@threadsafe
+private[timer] class LockFreeTimingWheel(tickMs: Long, wheelSize: Int, startMs: Long, queue: DelayQueue[TimerTaskStack]) {
+
+  private[this] val interval = tickMs * wheelSize
+  private[this] val buckets = Array.tabulate[TimerTaskStack](wheelSize) { _ => new TimerTaskStack }
+
+  // only updated by the thread advancing the clock, but read by the adding threads
+  @volatile private[this] var currentTime = startMs - (startMs % tickMs) // rounding down to multiple of tickMs
+
+  @volatile private[this] var overflowWheel: LockFreeTimingWheel = null
+
+  private[this] def addOverflowWheel(): Unit = {
+    synchronized {
+      if (overflowWheel == null) {
+        overflowWheel = new LockFreeTimingWheel(
+          tickMs = interval,
+          wheelSize = wheelSize,
+          startMs = currentTime,
+          queue
+        )
+      }
+    }
+  }
+
+  def add(entry: PooledTimerTaskEntry): Boolean = {
+    val expiration = entry.expirationMs
+    val now = currentTime
+
+    if (!entry.pending) {
+      // Cancelled
+      false
+    } else if (expiration < now + tickMs) {
+      // Already expired
+      false
+    } else if (expiration < now + interval) {
+      // Put in its own bucket
+      val virtualId = expiration / tickMs
+      val bucket = buckets((virtualId % wheelSize.toLong).toInt)
+      bucket.add(entry)
+
+      // Enqueue the bucket if it is not in the queue yet, see TimingWheel.add
+      if (bucket.setExpirationIfUnset(virtualId * tickMs))
+        queue.offer(bucket)
+      true
+    } else {
+      // Out of the interval. Put it into the parent timer
+      if (overflowWheel == null) addOverflowWheel()
+      overflowWheel.add(entry)
+    }
+  }
+
+  // Try to advance the clock, only called by the thread advancing the timer
+  def advanceClock(timeMs: Long): Unit = {
+    if (timeMs >= currentTime + tickMs) {
+      currentTime = timeMs - (timeMs % tickMs)
+
+      // Try to advance the clock of the overflow wheel if present
+      if (overflowWheel != null) overflowWheel.advanceClock(currentTime)
+    }
+  }
+
+  // Apply the supplied function to all the buckets of this wheel and its overflow wheels
+  def foreachBucket(f: TimerTaskStack => Unit): Unit = {
+    buckets.foreach(f)
+    if (overflowWheel != null) overflowWheel.foreachBucket(f)
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong, AtomicReference}
+import java.util.concurrent.{Delayed, TimeUnit}
+
+import kafka.utils.{SystemTime, nonthreadsafe, threadsafe}
+
+import scala.math._
+
+/**
+ * A timer task entry of a LockFreeTimer. Entries are reused for other tasks once their task has expired or been
+ * cancelled, so an entry is only referenced by the timer and by its current task.
+ *
+ * Removing the entry only marks it as cancelled; the timer drops cancelled entries when it flushes or purges the bucket
+ * holding them.
+ */
+@threadsafe
+private[timer] class PooledTimerTaskEntry(onCancelled: () => Unit) extends TaskEntry {
+  import PooledTimerTaskEntry._
+
+  private[this] val state = new AtomicInteger(Free)
+
+  // the fields below are published to the thread flushing the bucket by the insertion of the entry into the bucket
+  var timerTask: TimerTask = null
+  var expirationMs: Long = -1L
+  // the next entry in a bucket, or in a chunk of free entries
+  var next: PooledTimerTaskEntry = null
+
+  def init(timerTask: TimerTask, expirationMs: Long): Unit = {
+    this.timerTask = timerTask
+    this.expirationMs = expirationMs
+    state.set(Pending)
+  }
+
+  def pending: Boolean = state.get == Pending
+
+  def remove(): Unit = {
+    if (state.compareAndSet(Pending, Cancelled))
+      onCancelled()
+  }
+
+  // Mark the entry expired, returns false if it was cancelled first
+  def expire(): Boolean = state.compareAndSet(Pending, Expired)
+
+  def reset(): Unit = {
+    timerTask = null
+    expirationMs = -1L
+    next = null
+    state.set(Free)
+  }
+}
+
+private[timer] object PooledTimerTaskEntry {
+  private val Free = 0
+  private val Pending = 1
+  private val Cancelled = 2
+  private val Expired = 3
+}
+
+/**
+ * A bucket of a LockFreeTimingWheel. Entries are pushed on a lock-free stack, and the thread advancing the timer takes
+ * them all at once when the bucket expires.
+ */
+@threadsafe
+private[timer] class TimerTaskStack extends Delayed {
+
+  private[this] val head = new AtomicReference[PooledTimerTaskEntry]()
+  private[this] val expiration = new AtomicLong(-1L)
+
+  // Set the bucket's expiration time if it has none, which is only the case while the bucket is not in the delay queue.
+  // The expiration of an enqueued bucket is never changed, since it orders the queue.
+  // Returns true if the expiration time was set, the bucket must be enqueued then
+  def setExpirationIfUnset(expirationMs: Long): Boolean = {
+    expiration.compareAndSet(-1L, expirationMs)
+  }
+
+  // Get the bucket's expiration time
+  def getExpiration(): Long = {
+    expiration.get()
+  }
+
+  def add(entry: PooledTimerTaskEntry): Unit = {
+    var done = false
+    while (!done) {
+      val currentHead = head.get
+      entry.next = currentHead
+      done = head.compareAndSet(currentHead, entry)
+    }
+  }
+
+  // Remove all task entries and apply the supplied function to each of them, in the order they were added
+  def flush(f: PooledTimerTaskEntry => Unit): Unit = {
+    // reset the expiration first, so that an entry added after the entries are taken out enqueues the bucket again
+    expiration.set(-1L)
+    foreachTaken(f)
+  }
+
+  // Drop the cancelled entries, keeping the expiration of the bucket
+  def purge(release: PooledTimerTaskEntry => Unit): Unit = {
+    foreachTaken { entry =>
+      if (entry.pending) add(entry) else release(entry)
+    }
+  }
+
+  private def foreachTaken(f: PooledTimerTaskEntry => Unit): Unit = {
+    // reverse the taken entries to apply the function in insertion order
+    var entry = head.getAndSet(null)
+    var reversed: PooledTimerTaskEntry = null
+    while (entry != null) {
+      val next = entry.next
+      entry.next = reversed
+      reversed = entry
+      entry = next
+    }
+    while (reversed != null) {
+      val next = reversed.next
+      reversed.next = null
+      f(reversed)
+      reversed = next
+    }
+  }
+
+  def getDelay(unit: TimeUnit): Long = {
+    unit.convert(max(getExpiration - SystemTime.milliseconds, 0), TimeUnit.MILLISECONDS)
+  }
+
+  def compareTo(d: Delayed): Int = {
+    val other = d.asInstanceOf[TimerTaskStack]
+
+    if (getExpiration < other.getExpiration) -1
+    else if (getExpiration > other.getExpiration) 1
+    else 0
+  }
+}
+
+/**
+ * A pool of timer task entries. Entries are only released by the thread advancing the timer, which hands them over to
+ * the adding threads in chunks, so that neither side contends on the pool for every entry.
+ *
+ * @param maxEntries The maximum number of free entries kept by the pool
+ */
+@threadsafe
+private[timer] class TimerTaskEntryPool(newEntry: () => PooledTimerTaskEntry, maxEntries: Int) {
+  import TimerTaskEntryPool._
+
+  private[this] val chunks = new ConcurrentLinkedQueue[PooledTimerTaskEntry]()
+  private[this] val numChunks = new AtomicInteger(0)
+  private[this] val localChunk = new ThreadLocal[LocalChunk]() {
+    override def initialValue = new LocalChunk
+  }
+
+  // the chunk being filled by the releasing thread
+  private[this] var released: PooledTimerTaskEntry = null
+  private[this] var numReleased = 0
+
+  def allocate(): PooledTimerTaskEntry = {
+    val local = localChunk.get
+    if (local.head == null) {
+      local.head = chunks.poll()
+      if (local.head != null)
+        numChunks.decrementAndGet()
+    }
+    val entry = local.head
+    if (entry == null) {
+      newEntry()
+    } else {
+      local.head = entry.next
+      entry.next = null
+      entry
+    }
+  }
+
+  // Only called by the thread advancing the timer
+  @nonthreadsafe
+  def release(entry: PooledTimerTaskEntry): Unit = {
+    entry.reset()
+    entry.next = released
+    released = entry
+    numReleased += 1
+    if (numReleased == ChunkSize) {
+      if (numChunks.get * ChunkSize < maxEntries) {
+        numChunks.incrementAndGet()
+        chunks.offer(released)
+      }
+      released = null
+      numReleased = 0
+    }
+  }
+}
+
+private[timer] object TimerTaskEntryPool {
+  val ChunkSize = 64
+
+  private class LocalChunk {
+    var head: PooledTimerTaskEntry = null
+  }
+}
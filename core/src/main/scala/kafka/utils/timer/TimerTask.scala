@@ -20,7 +20,7 @@ trait TimerTask extends Runnable {
 
   val delayMs: Long // timestamp in millisecond
 
-  private[this] var timerTaskEntry: TimerTaskEntry = null
+  private[this] var timerTaskEntry: TaskEntry = null
 
   def cancel(): Unit = {
     synchronized {
@@ -29,7 +29,7 @@ trait TimerTask extends Runnable {
     }
   }
 
-  private[timer] def setTimerTaskEntry(entry: TimerTaskEntry): Unit = {
+  private[timer] def setTimerTaskEntry(entry: TaskEntry): Unit = {
     synchronized {
       // if this timerTask is already held by an existing timer task entry,
       // we will remove such an entry first.
@@ -40,8 +40,27 @@ trait TimerTask extends Runnable {
     }
   }
 
-  private[timer] def getTimerTaskEntry(): TimerTaskEntry = {
+  private[timer] def getTimerTaskEntry(): TaskEntry = {
     timerTaskEntry
   }
 
+  // Detach the task from the entry once the entry has expired, so that the entry can be reused
+  private[timer] def clearTimerTaskEntry(entry: TaskEntry): Unit = {
+    synchronized {
+      if (timerTaskEntry eq entry)
+        timerTaskEntry = null
+    }
+  }
+
+}
+
+/**
+ * The entry of a timer task in a timer. A task is held by at most one entry at a time.
+ */
+private[timer] trait TaskEntry {
+
+  /**
+   * Remove the entry from the timer, so that its task is not executed on expiration
+   */
+  def remove(): Unit
 }
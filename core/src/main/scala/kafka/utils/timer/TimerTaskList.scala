@@ -131,7 +131,7 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
 
 }
 
-private[timer] class TimerTaskEntry(val timerTask: TimerTask, val expirationMs: Long) extends Ordered[TimerTaskEntry] {
+private[timer] class TimerTaskEntry(val timerTask: TimerTask, val expirationMs: Long) extends TaskEntry with Ordered[TimerTaskEntry] {
 
   @volatile
   var list: TimerTaskList = null
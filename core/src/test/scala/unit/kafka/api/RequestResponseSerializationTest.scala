@@ -21,6 +21,7 @@ import kafka.cluster.{EndPoint, Broker}
 import kafka.common.{OffsetAndMetadata, OffsetMetadataAndError}
 import kafka.common._
 import kafka.message.{Message, ByteBufferMessageSet}
+import kafka.network.InvalidRequestException
 import kafka.utils.SystemTime
 
 import kafka.controller.LeaderIsrAndControllerEpoch
@@ -130,6 +131,11 @@ object SerializationTestUtils {
     new FetchRequest(requestInfo = requestInfos)
   }
 
+  def createTestFetchRequestWithSession: FetchRequest = {
+    new FetchRequest(versionId = FetchRequest.SessionVersion, replicaId = 1, requestInfo = requestInfos, sessionId = 123, sessionEpoch = 5,
+      toForget = Seq(TopicAndPartition(topic1, 3), TopicAndPartition(topic1, 2)))
+  }
+
   def createTestFetchResponse: FetchResponse = {
     FetchResponse(1, topicDataFetchResponse)
   }
@@ -207,6 +213,7 @@ class RequestResponseSerializationTest extends JUnitSuite {
   private val producerRequest = SerializationTestUtils.createTestProducerRequest
   private val producerResponse = SerializationTestUtils.createTestProducerResponse
   private val fetchRequest = SerializationTestUtils.createTestFetchRequest
+  private val fetchRequestWithSession = SerializationTestUtils.createTestFetchRequestWithSession
   private val offsetRequest = SerializationTestUtils.createTestOffsetRequest
   private val offsetResponse = SerializationTestUtils.createTestOffsetResponse
   private val offsetCommitRequestV0 = SerializationTestUtils.createTestOffsetCommitRequestV0
@@ -224,7 +231,7 @@ class RequestResponseSerializationTest extends JUnitSuite {
 
     val requestsAndResponses =
       collection.immutable.Seq(producerRequest, producerResponse,
-                               fetchRequest, offsetRequest, offsetResponse,
+                               fetchRequest, fetchRequestWithSession, offsetRequest, offsetResponse,
                                offsetCommitRequestV0, offsetCommitRequestV1, offsetCommitRequestV2,
                                offsetCommitResponse, offsetFetchRequest, offsetFetchResponse,
                                consumerMetadataRequest, consumerMetadataResponse,
@@ -242,6 +249,20 @@ class RequestResponseSerializationTest extends JUnitSuite {
     }
   }
 
+  @Test
+  def testSessionFetchRequestOnlyFromReplicas() {
+    val consumerRequest = FetchRequest(versionId = FetchRequest.SessionVersion, requestInfo = Map.empty)
+    val buffer = ByteBuffer.allocate(consumerRequest.sizeInBytes)
+    consumerRequest.writeTo(buffer)
+    buffer.rewind()
+    try {
+      FetchRequest.readFrom(buffer)
+      fail("A fetch request of a version only used by replica fetchers should be rejected from a consumer")
+    } catch {
+      case _: InvalidRequestException => // expected
+    }
+  }
+
   @Test
   def testProduceResponseVersion() {
     val oldClientResponse = ProducerResponse(1, Map(
@@ -275,6 +296,20 @@ class RequestResponseSerializationTest extends JUnitSuite {
 
     // new response should have 4 bytes more than the old response since delayTime is an INT32
     assertEquals(oldClientResponse.sizeInBytes + 4, newClientResponse.sizeInBytes)
+
+    val sessionResponse = FetchResponse(1, Map(
+      TopicAndPartition("t1", 0) -> new FetchResponsePartitionData(messages = new ByteBufferMessageSet(new Message("first message".getBytes)))
+    ), 3, 100, Errors.NONE.code, 123)
+
+    // the session response adds an INT16 error code and an INT32 session id
+    assertEquals(newClientResponse.sizeInBytes + 6, sessionResponse.sizeInBytes)
+
+    val sessionErrorResponse = FetchResponse(1, Map.empty, 3, 100, Errors.FETCH_SESSION_ID_NOT_FOUND.code, 0)
+    val buffer = ByteBuffer.allocate(4 + sessionErrorResponse.headerSizeInBytes)
+    sessionErrorResponse.writeHeaderTo(buffer)
+    buffer.rewind()
+    assertEquals(sessionErrorResponse.sizeInBytes, buffer.getInt)
+    assertEquals(sessionErrorResponse, FetchResponse.readFrom(buffer, 3))
   }
 
 }
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.coordinator
+
+import java.util.Properties
+
+import kafka.cluster.{Partition, Replica}
+import kafka.common.{OffsetAndMetadata, TopicAndPartition}
+import kafka.log.{Log, LogConfig, LogManager}
+import kafka.message.{ByteBufferMessageSet, Message, NoCompressionCodec}
+import kafka.server.{LogOffsetMetadata, ReplicaManager}
+import kafka.utils.{MockTime, TestUtils, ZkUtils}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.internals.TopicConstants
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.utils.Utils
+import org.easymock.EasyMock
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.JavaConverters._
+import scala.collection._
+
+class GroupMetadataManagerTest extends JUnitSuite {
+
+  val groupId = "groupId"
+  val otherGroupId = "otherGroupId"
+  val topic = "foo"
+  val offsetsPartition = 0
+
+  var time: MockTime = null
+  var log: Log = null
+  var replicaManager: ReplicaManager = null
+  var groupMetadataManager: GroupMetadataManager = null
+
+  @Before
+  def setUp() {
+    time = new MockTime
+    val logProps = new Properties()
+    // small segments so that the offsets partition is loaded from several segments
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    log = new Log(TestUtils.randomPartitionLogDir(TestUtils.tempDir()), LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time)
+
+    // a single partition of the offsets topic that all groups belong to
+    val zkUtils = EasyMock.createNiceMock(classOf[ZkUtils])
+    EasyMock.expect(zkUtils.getPartitionAssignmentForTopics(Seq(TopicConstants.GROUP_METADATA_TOPIC_NAME)))
+      .andReturn(mutable.Map(TopicConstants.GROUP_METADATA_TOPIC_NAME -> Map(offsetsPartition -> Seq(0))))
+    EasyMock.replay(zkUtils)
+
+    val logManager = EasyMock.createNiceMock(classOf[LogManager])
+    EasyMock.expect(logManager.getLog(TopicAndPartition(TopicConstants.GROUP_METADATA_TOPIC_NAME, offsetsPartition)))
+      .andReturn(Some(log)).anyTimes()
+    EasyMock.replay(logManager)
+
+    val replica = EasyMock.createNiceMock(classOf[Replica])
+    EasyMock.expect(replica.highWatermark).andAnswer(new org.easymock.IAnswer[LogOffsetMetadata] {
+      def answer = new LogOffsetMetadata(log.logEndOffset)
+    }).anyTimes()
+    EasyMock.replay(replica)
+
+    val partition = EasyMock.createNiceMock(classOf[Partition])
+    EasyMock.expect(partition.leaderReplicaIfLocal()).andReturn(Some(replica)).anyTimes()
+    EasyMock.replay(partition)
+
+    replicaManager = EasyMock.createNiceMock(classOf[ReplicaManager])
+    EasyMock.expect(replicaManager.logManager).andReturn(logManager).anyTimes()
+    EasyMock.expect(replicaManager.getPartition(TopicConstants.GROUP_METADATA_TOPIC_NAME, offsetsPartition))
+      .andReturn(Some(partition)).anyTimes()
+    EasyMock.replay(replicaManager)
+
+    groupMetadataManager = new GroupMetadataManager(0, OffsetConfig(loadThreads = 2), replicaManager, zkUtils, time)
+  }
+
+  @After
+  def tearDown() {
+    groupMetadataManager.shutdown()
+    log.close()
+    Utils.delete(log.dir)
+  }
+
+  @Test
+  def testLoadOffsetsFromSeveralSegments() {
+    val numPartitions = 10
+    for (i <- 0 until 20; partition <- 0 until numPartitions)
+      appendOffsetCommit(groupId, partition, i * 100 + partition)
+    appendOffsetCommit(otherGroupId, 0, 5L)
+    // the offset of the last partition is deleted, and that of the other group committed again after the deletion
+    appendTombstone(groupId, numPartitions - 1)
+    appendTombstone(otherGroupId, 0)
+    appendOffsetCommit(otherGroupId, 0, 7L)
+    assertTrue("The offsets should span several segments", log.numberOfSegments > 2)
+
+    loadOffsetsPartition()
+
+    val expected = (0 until numPartitions - 1).map { partition =>
+      new TopicPartition(topic, partition) -> (1900L + partition)
+    }.toMap
+    assertEquals(expected, groupMetadataManager.getOffsets(groupId, Seq.empty).mapValues(_.offset))
+    val otherOffsets = groupMetadataManager.getOffsets(otherGroupId, Seq(new TopicPartition(topic, 0)))
+    assertEquals(7L, otherOffsets(new TopicPartition(topic, 0)).offset)
+    assertEquals(Errors.NONE.code, otherOffsets(new TopicPartition(topic, 0)).errorCode)
+  }
+
+  @Test
+  def testLoadEmptyPartition() {
+    loadOffsetsPartition()
+    assertEquals(Map.empty, groupMetadataManager.getOffsets(groupId, Seq.empty))
+  }
+
+  @Test
+  def testSegmentReadersAreSharedAndStoppedOnShutdown() {
+    for (i <- 0 until 20; partition <- 0 until 10)
+      appendOffsetCommit(groupId, partition, i * 100 + partition)
+    assertTrue("The offsets should span several segments", log.numberOfSegments > 2)
+    def segmentReaders = Thread.getAllStackTraces.keySet.asScala.filter(_.getName.startsWith("group-metadata-segment-reader-"))
+
+    loadOffsetsPartition()
+    val readers = segmentReaders
+    assertTrue("The segments should be read by the shared readers", readers.nonEmpty)
+    assertTrue("There should be at most one reader per load thread", readers.size <= 2)
+    assertTrue(readers.forall(_.isDaemon))
+
+    groupMetadataManager.shutdown()
+    TestUtils.waitUntilTrue(() => segmentReaders.isEmpty, "The segment readers should be stopped on shutdown")
+  }
+
+  private def loadOffsetsPartition() {
+    groupMetadataManager.loadGroupsForPartition(offsetsPartition, _ => ())
+    time.scheduler.tick()
+    TestUtils.waitUntilTrue(() => groupMetadataManager.isGroupLocal(groupId) && !groupMetadataManager.isLoading(),
+      "The offsets partition should be loaded")
+  }
+
+  private def appendOffsetCommit(group: String, partition: Int, offset: Long) {
+    val key = GroupMetadataManager.offsetCommitKey(group, topic, partition)
+    val value = GroupMetadataManager.offsetCommitValue(OffsetAndMetadata(offset, "", time.milliseconds))
+    log.append(new ByteBufferMessageSet(NoCompressionCodec, new Message(key = key, bytes = value, timestamp = time.milliseconds, magicValue = Message.MagicValue_V1)))
+  }
+
+  private def appendTombstone(group: String, partition: Int) {
+    val key = GroupMetadataManager.offsetCommitKey(group, topic, partition)
+    log.append(new ByteBufferMessageSet(NoCompressionCodec, new Message(key = key, bytes = null, timestamp = time.milliseconds, magicValue = Message.MagicValue_V1)))
+  }
+}
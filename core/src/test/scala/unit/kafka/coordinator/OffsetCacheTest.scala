@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.coordinator
+
+import kafka.common.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.JUnitSuite
+
+class OffsetCacheTest extends JUnitSuite {
+  val groupId = "groupId"
+  val otherGroupId = "otherGroupId"
+  val tp0 = new TopicPartition("foo", 0)
+  val tp5 = new TopicPartition("foo", 5)
+  val barTp = new TopicPartition("bar", 2)
+
+  @Test
+  def testPutAndGet() {
+    val cache = new OffsetCache
+    assertEquals(None, cache.get(groupId, tp0))
+
+    val offset = OffsetAndMetadata(15L, "metadata", 100L, 200L)
+    cache.put(groupId, tp0, offset)
+    cache.put(groupId, tp5, OffsetAndMetadata(0L))
+    assertEquals(Some(offset), cache.get(groupId, tp0))
+    assertEquals(Some(OffsetAndMetadata(0L)), cache.get(groupId, tp5))
+    assertEquals(None, cache.get(groupId, new TopicPartition("foo", 3)))
+    assertEquals(None, cache.get(otherGroupId, tp0))
+    assertEquals(2, cache.size)
+
+    // overwriting an offset does not change the size
+    val newOffset = OffsetAndMetadata(20L, "", 300L, 400L)
+    cache.put(groupId, tp0, newOffset)
+    assertEquals(Some(newOffset), cache.get(groupId, tp0))
+    assertEquals(2, cache.size)
+  }
+
+  @Test
+  def testManyPartitions() {
+    val cache = new OffsetCache
+    val offsets = (0 until 1000).map(p => new TopicPartition("foo", p) -> OffsetAndMetadata(p.toLong)).toMap
+    offsets.toSeq.sortBy(_._1.partition).foreach { case (tp, offset) => cache.put(groupId, tp, offset) }
+    assertEquals(1000, cache.size)
+    assertEquals(offsets, cache.offsets(groupId))
+    assertEquals(None, cache.get(groupId, new TopicPartition("foo", 1000)))
+  }
+
+  @Test
+  def testOffsetsOfGroup() {
+    val cache = new OffsetCache
+    cache.put(groupId, tp0, OffsetAndMetadata(1L))
+    cache.put(groupId, barTp, OffsetAndMetadata(2L))
+    cache.put(otherGroupId, tp5, OffsetAndMetadata(3L))
+
+    assertEquals(Map(tp0 -> OffsetAndMetadata(1L), barTp -> OffsetAndMetadata(2L)), cache.offsets(groupId))
+    assertEquals(Map(tp5 -> OffsetAndMetadata(3L)), cache.offsets(otherGroupId))
+    assertEquals(Map.empty, cache.offsets("unknown"))
+  }
+
+  @Test
+  def testRemove() {
+    val cache = new OffsetCache
+    cache.put(groupId, tp0, OffsetAndMetadata(1L))
+    cache.put(groupId, tp5, OffsetAndMetadata(2L))
+
+    assertTrue(cache.remove(groupId, tp0))
+    assertFalse(cache.remove(groupId, tp0))
+    assertFalse(cache.remove(groupId, barTp))
+    assertEquals(None, cache.get(groupId, tp0))
+    assertEquals(1, cache.size)
+
+    assertTrue(cache.remove(groupId, tp5))
+    assertEquals(0, cache.size)
+    assertEquals(Map.empty, cache.offsets(groupId))
+
+    // the group can still be added to after all of its offsets were removed
+    cache.put(groupId, tp0, OffsetAndMetadata(3L))
+    assertEquals(Some(OffsetAndMetadata(3L)), cache.get(groupId, tp0))
+  }
+
+  @Test
+  def testRemoveGroups() {
+    val cache = new OffsetCache
+    cache.put(groupId, tp0, OffsetAndMetadata(1L))
+    cache.put(groupId, barTp, OffsetAndMetadata(2L))
+    cache.put(otherGroupId, tp0, OffsetAndMetadata(3L))
+
+    assertEquals(2, cache.removeGroups(_ == groupId))
+    assertEquals(1, cache.size)
+    assertEquals(None, cache.get(groupId, tp0))
+    assertEquals(Some(OffsetAndMetadata(3L)), cache.get(otherGroupId, tp0))
+  }
+
+  @Test
+  def testRemoveExpired() {
+    val cache = new OffsetCache
+    val expired = OffsetAndMetadata(1L, "", 0L, 100L)
+    val live = OffsetAndMetadata(2L, "", 0L, 300L)
+    cache.put(groupId, tp0, expired)
+    cache.put(groupId, tp5, live)
+    cache.put(otherGroupId, barTp, expired)
+
+    val removed = cache.removeExpired(200L)
+    assertEquals(Set(GroupTopicPartition(groupId, tp0) -> expired, GroupTopicPartition(otherGroupId, barTp) -> expired),
+      removed.toSet)
+    assertEquals(1, cache.size)
+    assertEquals(Some(live), cache.get(groupId, tp5))
+    assertEquals(Map.empty, cache.offsets(otherGroupId))
+  }
+}
@@ -107,6 +107,200 @@ class CleanerTest extends JUnitSuite {
                (0 until leo.toInt by 2).forall(!keys.contains(_)))
   }
 
+  /**
+   * Test cleaning a log with workers, each mapping a range of the dirty segments and cleaning some of the groups
+   */
+  @Test
+  def testCleanWithWorkers() {
+    val cleaner = makeCleaner(Int.MaxValue, numWorkers = 2)
+    val log = makeLog()
+
+    // a few keys updated over many segments
+    while(log.numberOfSegments < 10)
+      log.append(message(log.logEndOffset.toInt % 7, log.logEndOffset.toInt))
+    val upperBoundOffset = log.activeSegment.baseOffset
+    val lastOffsets = offsetsInLog(log).filter(_._2 < upperBoundOffset).groupBy(_._1).mapValues(_.map(_._2).max)
+
+    try {
+      val endOffset = cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+      assertEquals("All the dirty segments should be cleaned", upperBoundOffset, endOffset)
+      assertEquals("Only the last message of each key should remain in the cleaned segments",
+        lastOffsets.toSeq.sortBy(_._2), offsetsInLog(log).filter(_._2 < endOffset))
+    } finally {
+      cleaner.shutdown()
+    }
+  }
+
+  /**
+   * Test that the ranges of the dirty segments following one that does not fit in its offset map are not cleaned
+   */
+  @Test
+  def testBuildOffsetMapWithWorkersWhenRangeIsFull() {
+    val cleaner = makeCleaner(40, numWorkers = 2)
+    val log = makeLog()
+
+    while(log.numberOfSegments < 10)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    val dirty = log.logSegments(0, log.activeSegment.baseOffset).toSeq
+    val ranges = cleaner.splitBySize(dirty, 3)
+    assertTrue("The first range should not fit in the offset map", ranges.head.map(segment => keysInLog(segment).size).sum > 30)
+    val keys = keysInLog(log)
+
+    try {
+      val endOffset = cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+      assertTrue("Only part of the first range should be cleaned", endOffset > 0 && endOffset < ranges(1).head.baseOffset)
+      assertEquals("No unique key should be removed", keys, keysInLog(log))
+    } finally {
+      cleaner.shutdown()
+    }
+  }
+
+  /**
+   * Test that only the segments with garbage are recopied
+   */
+  @Test
+  def testSegmentsWithoutGarbageAreNotRecopied() {
+    val cleaner = makeCleaner(Int.MaxValue)
+    val log = makeLog()
+
+    // unique keys, except for a few keys of the first segment that are updated in the third one
+    while(log.numberOfSegments < 3)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    for (key <- 0 until 3)
+      log.append(message(key, log.logEndOffset.toInt))
+    while(log.numberOfSegments < 5)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    val segments = log.logSegments.toSeq
+
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    val cleaned = log.logSegments.toSeq
+    assertEquals(segments.size, cleaned.size)
+    assertFalse("The segment with garbage should be recopied", segments.head eq cleaned.head)
+    assertTrue("The segments without garbage should be left in place", segments.tail.zip(cleaned.tail).forall { case (s, c) => s eq c })
+    assertEquals(segments.size - 2, cleaner.stats.segmentsSkipped)
+    assertEquals("The updated keys should be removed", (3 until 3 + keysInLog(cleaned.head).size).toList, keysInLog(cleaned.head).toList)
+  }
+
+  /**
+   * Test that a segment is left in place when cleaning it would only remove a small ratio of its bytes
+   */
+  @Test
+  def testSegmentsBelowGarbageRatioAreNotRecopied() {
+    val cleaner = makeCleaner(Int.MaxValue, minSegmentGarbageRatio = 0.5)
+    // create a log with compaction turned off so we can append an unkeyed message, which is garbage but shadows nothing
+    val logProps = new Properties()
+    logProps.put(LogConfig.CleanupPolicyProp, LogConfig.Delete)
+    val log = makeLog(config = LogConfig.fromProps(logConfig.originals, logProps))
+
+    while(log.numberOfSegments < 2)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    log.append(unkeyedMessage(log.logEndOffset.toInt))
+    while(log.numberOfSegments < 3)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    val keys = keysInLog(log)
+    val segments = log.logSegments.toSeq
+
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    assertEquals(keys, keysInLog(log))
+    assertTrue("No segment should be recopied", segments.zip(log.logSegments).forall { case (s, c) => s eq c })
+    assertEquals(2, cleaner.stats.segmentsSkipped)
+  }
+
+  /**
+   * Test that a segment without garbage is measured without creating a cleaned segment or writing any bytes
+   */
+  @Test
+  def testKeptSegmentIsNotWritten() {
+    // look for a cleaned segment each time the cleaner checks whether it should stop, that is, while it reads
+    var cleanedFiles = Seq.empty[String]
+    def checkDone(topicAndPartition: TopicAndPartition) {
+      cleanedFiles ++= dir.listFiles.map(_.getName).filter(_.endsWith(Log.CleanedFileSuffix))
+    }
+    val cleaner = makeCleaner(Int.MaxValue, checkDone = checkDone)
+    val log = makeLog()
+
+    while(log.numberOfSegments < 3)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    val segments = log.logSegments.toSeq
+
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    assertTrue("No segment should be recopied", segments.zip(log.logSegments).forall { case (s, c) => s eq c })
+    assertEquals(2, cleaner.stats.segmentsSkipped)
+    assertEquals("No cleaned segment should be created", Seq.empty, cleanedFiles)
+    assertEquals("No bytes should be written", 0L, cleaner.stats.bytesWritten)
+  }
+
+  /**
+   * Test that a segment below the garbage ratio is still recopied when it holds a record superseded by a later one, so
+   * that a deleted key does not come back once its tombstone is past the delete horizon
+   */
+  @Test
+  def testShadowedRecordsAreRemovedBelowGarbageRatio() {
+    val cleaner = makeCleaner(Int.MaxValue, minSegmentGarbageRatio = 0.5)
+    val logProps = new Properties()
+    logProps.put(LogConfig.DeleteRetentionMsProp, 0: java.lang.Long)
+    val log = makeLog(config = LogConfig.fromProps(logConfig.originals, logProps))
+
+    // the deleted key is a small part of the first segment, and its tombstone a small part of the second one
+    log.append(message(0, 0))
+    while(log.numberOfSegments < 2)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    log.append(deleteMessage(0))
+    while(log.numberOfSegments < 3)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    while(log.numberOfSegments < 4)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+
+    // the tombstone is retained, but the value it deletes is removed
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    assertFalse(keysInLog(log).exists(_ == 0))
+
+    // once the tombstone is past the delete horizon it is removed, and the key must stay deleted
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, log.logSegments.toSeq(2).baseOffset))
+    assertFalse("The deleted key should not come back", keysInLog(log).exists(_ == 0))
+  }
+
+  @Test
+  def testCleanWithOffHeapOffsetMap() {
+    val cleaner = new Cleaner(id = 0,
+                              offsetMap = new OffHeapOffsetMap(memory = 64 * 1024, initialMemory = 1024),
+                              ioBufferSize = 64*1024,
+                              maxIoBufferSize = 64*1024,
+                              dupBufferLoadFactor = 0.75,
+                              throttler = throttler,
+                              time = time,
+                              checkDone = noOpCheckDone)
+    val log = makeLog()
+
+    while(log.numberOfSegments < 10)
+      log.append(message(log.logEndOffset.toInt % 100, log.logEndOffset.toInt))
+    val upperBoundOffset = log.activeSegment.baseOffset
+    val lastOffsets = offsetsInLog(log).filter(_._2 < upperBoundOffset).groupBy(_._1).mapValues(_.map(_._2).max)
+
+    val endOffset = cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    assertEquals("All the dirty segments should be cleaned", upperBoundOffset, endOffset)
+    assertEquals("Only the last message of each key should remain in the cleaned segments",
+      lastOffsets.toSeq.sortBy(_._2), offsetsInLog(log).filter(_._2 < endOffset))
+  }
+
+  @Test
+  def testSplitBySize() {
+    val cleaner = makeCleaner(Int.MaxValue)
+    val log = makeLog()
+    while(log.numberOfSegments < 10)
+      log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+    val segments = log.logSegments.toSeq.dropRight(1)
+
+    for (maxRanges <- Seq(1, 3, 9, 20)) {
+      val ranges = cleaner.splitBySize(segments, maxRanges)
+      assertEquals(math.min(maxRanges, segments.size), ranges.size)
+      assertTrue("Ranges should not be empty", ranges.forall(_.nonEmpty))
+      assertEquals("Ranges should hold all the segments in order", segments, ranges.flatten)
+    }
+    val sizes = cleaner.splitBySize(segments, 3).map(_.size)
+    assertEquals("Ranges should have about the same size", Seq(3, 3, 3), sizes)
+  }
+
   @Test
   def testLogToClean: Unit = {
     // create a log with small segment size
@@ -157,7 +351,14 @@ class CleanerTest extends JUnitSuite {
   
   /* extract all the keys from a log */
   def keysInLog(log: Log): Iterable[Int] =
-    log.logSegments.flatMap(s => s.log.filter(!_.message.isNull).filter(_.message.hasKey).map(m => TestUtils.readString(m.message.key).toInt))
+    log.logSegments.flatMap(keysInLog)
+
+  def keysInLog(segment: LogSegment): Iterable[Int] =
+    segment.log.filter(!_.message.isNull).filter(_.message.hasKey).map(m => TestUtils.readString(m.message.key).toInt)
+
+  /* extract the keys and offsets of the messages in a log */
+  def offsetsInLog(log: Log): Seq[(Int, Long)] =
+    log.logSegments.toSeq.flatMap(s => s.log.filter(_.message.hasKey).map(m => (TestUtils.readString(m.message.key).toInt, m.offset)))
 
   def unkeyedMessageCountInLog(log: Log) =
     log.logSegments.map(s => s.log.filter(!_.message.isNull).count(m => !m.message.hasKey)).sum
@@ -463,7 +664,8 @@ class CleanerTest extends JUnitSuite {
 
   def noOpCheckDone(topicAndPartition: TopicAndPartition) { /* do nothing */  }
 
-  def makeCleaner(capacity: Int, checkDone: (TopicAndPartition) => Unit = noOpCheckDone) =
+  def makeCleaner(capacity: Int, checkDone: (TopicAndPartition) => Unit = noOpCheckDone, numWorkers: Int = 0,
+                  minSegmentGarbageRatio: Double = 0.0): Cleaner =
     new Cleaner(id = 0, 
                 offsetMap = new FakeOffsetMap(capacity), 
                 ioBufferSize = 64*1024, 
@@ -471,7 +673,9 @@ class CleanerTest extends JUnitSuite {
                 dupBufferLoadFactor = 0.75,                
                 throttler = throttler, 
                 time = time,
-                checkDone = checkDone )
+                checkDone = checkDone,
+                minSegmentGarbageRatio = minSegmentGarbageRatio,
+                workers = (0 until numWorkers).map(_ => makeCleaner(capacity, checkDone)))
   
   def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for((key, value) <- seq)
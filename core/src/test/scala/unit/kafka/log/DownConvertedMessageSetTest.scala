@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+
+import kafka.common.{LongRef, TopicAndPartition}
+import kafka.message._
+import kafka.utils.TestUtils
+import org.junit.Assert._
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.mutable.ArrayBuffer
+
+class DownConvertedMessageSetTest extends JUnitSuite {
+
+  private val topicAndPartition = TopicAndPartition("topic", 0)
+
+  /* a channel that only takes a few bytes per write, like a socket with a full send buffer */
+  private class StubByteChannel(bytesToConsumePerWrite: Int) extends GatheringByteChannel {
+    val data = new ArrayBuffer[Byte]
+
+    def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+      // stop at the first buffer that is not written fully, the socket is full
+      var written = 0L
+      var i = offset
+      while (i < offset + length && written < bytesToConsumePerWrite) {
+        val src = srcs(i)
+        written += write(src)
+        i = if (src.hasRemaining) offset + length else i + 1
+      }
+      written
+    }
+
+    def write(srcs: Array[ByteBuffer]): Long = write(srcs, 0, srcs.length)
+
+    def write(src: ByteBuffer): Int = {
+      val array = new Array[Byte](math.min(bytesToConsumePerWrite, src.remaining))
+      src.get(array)
+      data ++= array
+      array.length
+    }
+
+    def isOpen: Boolean = true
+
+    def close() {}
+  }
+
+  private def messagesV1(count: Int, valuePrefix: String = "value"): Seq[Message] =
+    (0 until count).map(i => new Message(s"$valuePrefix-$i".getBytes, s"key-$i".getBytes, 1000L + i, Message.MagicValue_V1))
+
+  private def fileMessageSet(messageSets: ByteBufferMessageSet*): FileMessageSet = {
+    val fileMessageSet = new FileMessageSet(TestUtils.tempFile())
+    messageSets.foreach(fileMessageSet.append)
+    fileMessageSet.flush()
+    fileMessageSet
+  }
+
+  /* write the whole set through a channel that takes a few bytes at a time and return what was written */
+  private def writeFully(messageSet: MessageSet, bytesPerWrite: Int = 100): ByteBuffer = {
+    val channel = new StubByteChannel(bytesPerWrite)
+    var written = 0
+    while (written < messageSet.sizeInBytes)
+      written += messageSet.writeTo(channel, written, messageSet.sizeInBytes - written)
+    assertEquals(messageSet.sizeInBytes, channel.data.size)
+    ByteBuffer.wrap(channel.data.toArray)
+  }
+
+  private def verifyMessages(expected: Seq[(Long, Message)], buffer: ByteBuffer, magicValue: Byte) {
+    val actual = new ByteBufferMessageSet(buffer).toList
+    assertEquals("All messages should be returned", expected.size, actual.size)
+    for (((offset, message), messageAndOffset) <- expected.zip(actual)) {
+      assertEquals("offset should not change", offset, messageAndOffset.offset)
+      assertEquals("magic value should be converted", magicValue, messageAndOffset.message.magic)
+      assertEquals("key should not change", message.key, messageAndOffset.message.key)
+      assertEquals("payload should not change", message.payload, messageAndOffset.message.payload)
+    }
+  }
+
+  @Test
+  def testDownConvertUncompressedMessages() {
+    val messages = messagesV1(300)
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*))
+    val converted = new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, new DownConversionCache(1024 * 1024))
+
+    assertEquals("The size should be the size of the converted messages", source.sizeInBytes - messages.size * Message.TimestampLength,
+      converted.sizeInBytes)
+    assertTrue(converted.isMagicValueInAllWrapperMessages(Message.MagicValue_V0))
+    verifyMessages(messages.indices.map(_.toLong).zip(messages), writeFully(converted), Message.MagicValue_V0)
+    assertEquals(messages.size, converted.iterator.size)
+  }
+
+  @Test
+  def testDownConvertCompressedMessages() {
+    val first = messagesV1(10, "first")
+    val second = messagesV1(10, "second")
+    val source = fileMessageSet(
+      new ByteBufferMessageSet(GZIPCompressionCodec, new LongRef(0), first: _*),
+      new ByteBufferMessageSet(GZIPCompressionCodec, new LongRef(10), second: _*))
+    val converted = new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, new DownConversionCache(1024 * 1024))
+
+    val written = new ByteBufferMessageSet(writeFully(converted, bytesPerWrite = 7))
+    val wrappers = written.shallowIterator.toList
+    assertEquals("The compressed message sets should be converted separately", 2, wrappers.size)
+    wrappers.foreach(wrapper => assertEquals(GZIPCompressionCodec, wrapper.message.compressionCodec))
+    val expected = (first ++ second).zipWithIndex.map { case (message, offset) => (offset.toLong, message) }
+    verifyMessages(expected, written.buffer, Message.MagicValue_V0)
+  }
+
+  @Test
+  def testZStdMessagesAreRecompressed() {
+    assumeTrue(MessageCompressionTest.isZStdAvailable)
+    val messages = messagesV1(10)
+    val source = fileMessageSet(new ByteBufferMessageSet(ZStdCompressionCodec, new LongRef(0), messages: _*))
+    assertTrue(source.hasWrapperMessageCompressedWith(ZStdCompressionCodec))
+
+    for (magicValue <- Seq(Message.MagicValue_V0, Message.MagicValue_V1)) {
+      val converted = new DownConvertedMessageSet(topicAndPartition, source, magicValue, new DownConversionCache(1024 * 1024))
+      val written = new ByteBufferMessageSet(writeFully(converted))
+      assertEquals(Seq(DownConvertedMessageSet.ZStdFallbackCodec), written.shallowIterator.map(_.message.compressionCodec).toSeq)
+      verifyMessages(messages.indices.map(_.toLong).zip(messages), written.buffer, magicValue)
+    }
+  }
+
+  @Test
+  def testConvertedChunksAreCached() {
+    val messages = messagesV1(300)
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*))
+    val cache = new DownConversionCache(1024 * 1024)
+    val converted = new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, cache)
+
+    // the messages are converted when the set is created, the 300 messages are cut into chunks at offsets 128 and 256
+    assertEquals(3, cache.size)
+    val first = writeFully(converted)
+    assertTrue(cache.get(topicAndPartition, 128L, Message.MagicValue_V0).isDefined)
+    val second = writeFully(new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, cache))
+    assertEquals(first, second)
+
+    // a fetch from the middle of a chunk converts up to the next aligned offset and then uses the cached chunks
+    val position = source.searchFor(200L, 0).position
+    val slice = source.read(position, source.sizeInBytes - position)
+    verifyMessages((200L until 300L).zip(messages.drop(200)),
+      writeFully(new DownConvertedMessageSet(topicAndPartition, slice, Message.MagicValue_V0, cache)), Message.MagicValue_V0)
+  }
+
+  @Test
+  def testStaleCachedChunksAreNotUsed() {
+    val cache = new DownConversionCache(1024 * 1024)
+    val messages = messagesV1(10)
+    writeFully(new DownConvertedMessageSet(topicAndPartition,
+      fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*)), Message.MagicValue_V0, cache))
+    assertEquals(1, cache.size)
+
+    // the log was truncated and different messages were appended at the same offsets
+    val newMessages = messagesV1(20, "new")
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), newMessages: _*))
+    verifyMessages(newMessages.indices.map(_.toLong).zip(newMessages),
+      writeFully(new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, cache)), Message.MagicValue_V0)
+  }
+
+  @Test
+  def testCacheIsBounded() {
+    val messages = messagesV1(300)
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*))
+    val cache = new DownConversionCache(source.sizeInBytes / 2)
+    writeFully(new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, cache))
+    assertTrue("The cache should not exceed its maximum size", cache.sizeInBytes <= cache.maxBytes)
+    assertTrue("The last chunk should have been cached", cache.get(topicAndPartition, 256L, Message.MagicValue_V0).isDefined)
+    assertFalse("The first chunk should have been evicted", cache.get(topicAndPartition, 0L, Message.MagicValue_V0).isDefined)
+
+    val disabled = new DownConversionCache(0)
+    writeFully(new DownConvertedMessageSet(topicAndPartition, source, Message.MagicValue_V0, disabled))
+    assertEquals(0, disabled.size)
+  }
+
+  @Test
+  def testSizeCoversFirstConvertedChunk() {
+    // up conversion makes the messages larger than the fetched range
+    val messages = Seq(new Message("hello".getBytes, "k1".getBytes, Message.NoTimestamp, Message.MagicValue_V0),
+      new Message("goodbye".getBytes, "k2".getBytes, Message.NoTimestamp, Message.MagicValue_V0))
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*))
+    val firstMessageSize = MessageSet.entrySize(messages.head)
+    val slice = source.read(0, firstMessageSize)
+    val converted = new DownConvertedMessageSet(topicAndPartition, slice, Message.MagicValue_V1, new DownConversionCache(1024))
+
+    assertEquals(firstMessageSize + Message.TimestampLength, converted.sizeInBytes)
+    val written = new ByteBufferMessageSet(writeFully(converted)).toList
+    assertEquals(1, written.size)
+    assertEquals(Message.MagicValue_V1, written.head.message.magic)
+  }
+
+  @Test
+  def testPartialMessageIsSentAsIs() {
+    val messages = messagesV1(2)
+    val source = fileMessageSet(new ByteBufferMessageSet(NoCompressionCodec, new LongRef(0), messages: _*))
+    val slice = source.read(0, MessageSet.entrySize(messages.head) - 1)
+    val converted = new DownConvertedMessageSet(topicAndPartition, slice, Message.MagicValue_V0, new DownConversionCache(1024))
+
+    assertEquals(slice.sizeInBytes, converted.sizeInBytes)
+    val expected = ByteBuffer.allocate(slice.sizeInBytes)
+    slice.readInto(expected, 0)
+    assertEquals(expected, writeFully(converted))
+  }
+}
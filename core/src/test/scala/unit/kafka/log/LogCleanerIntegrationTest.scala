@@ -104,6 +104,8 @@ class LogCleanerIntegrationTest(compressionCodec: String) {
 
   @Test
   def testCleanerWithMessageFormatV0() {
+    // zstd needs a newer message format than the ones tested here
+    Assume.assumeTrue(codec != ZStdCompressionCodec)
     val largeMessageKey = 20
     val (largeMessageValue, largeMessageSet) = createLargeSingleMessageSet(largeMessageKey, Message.MagicValue_V0)
     val maxMessageSize = codec match {
@@ -192,7 +194,8 @@ class LogCleanerIntegrationTest(compressionCodec: String) {
     
   @After
   def tearDown() {
-    cleaner.shutdown()
+    if (cleaner != null)
+      cleaner.shutdown()
     time.scheduler.shutdown()
     Utils.delete(logDir)
   }
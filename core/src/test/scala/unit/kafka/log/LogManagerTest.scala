@@ -20,6 +20,8 @@ package kafka.log
 import java.io._
 import java.util.Properties
 
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
 import kafka.common._
 import kafka.server.OffsetCheckpoint
 import kafka.utils._
@@ -28,6 +30,8 @@ import org.apache.kafka.common.utils.Utils
 import org.junit.Assert._
 import org.junit.{After, Before, Test}
 
+import scala.collection.JavaConverters._
+
 class LogManagerTest {
 
   val time: MockTime = new MockTime()
@@ -100,7 +104,7 @@ class LogManagerTest {
     time.sleep(maxLogAgeMs + 1)
     assertEquals("Now there should only be only one segment in the index.", 1, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
-    assertEquals("Files should have been deleted", log.numberOfSegments * 2, log.dir.list.length)
+    assertEquals("Files should have been deleted", log.numberOfSegments * 3, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, log.read(offset+1, 1024).messageSet.sizeInBytes)
 
     try {
@@ -113,6 +117,23 @@ class LogManagerTest {
     log.append(TestUtils.singleMessageSet("test".getBytes()))
   }
 
+  /**
+   * Test that time-based cleanup uses the message timestamps rather than the last modified time of the segment files.
+   */
+  @Test
+  def testCleanupExpiredSegmentsByMessageTimestamp() {
+    val log = logManager.createLog(TopicAndPartition(name, 0), logConfig)
+    for(i <- 0 until 200)
+      log.append(TestUtils.singleMessageSet("test".getBytes(), timestamp = time.milliseconds))
+    assertTrue("There should be more than one segment now.", log.numberOfSegments > 1)
+
+    // the files look fresh, but the messages they contain are old
+    log.logSegments.foreach(_.log.file.setLastModified(time.milliseconds + maxLogAgeMs + 1))
+
+    time.sleep(maxLogAgeMs + 1)
+    assertEquals("Now there should only be only one segment in the index.", 1, log.numberOfSegments)
+  }
+
   /**
    * Test size-based cleanup. Append messages, then run cleanup and check that segments are deleted.
    */
@@ -146,7 +167,7 @@ class LogManagerTest {
     time.sleep(logManager.InitialTaskDelayMs)
     assertEquals("Now there should be exactly 6 segments", 6, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
-    assertEquals("Files should have been deleted", log.numberOfSegments * 2, log.dir.list.length)
+    assertEquals("Files should have been deleted", log.numberOfSegments * 3, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, log.read(offset + 1, 1024).messageSet.sizeInBytes)
     try {
       log.read(0, 1024)
@@ -222,6 +243,24 @@ class LogManagerTest {
     verifyCheckpointRecovery(Seq(TopicAndPartition("test-a", 1), TopicAndPartition("test-b", 1)), logManager)
   }
 
+  /**
+   * Test that the logs are loaded again when the log manager is restarted and the number of logs left to load is reported
+   */
+  @Test
+  def testLoadLogs() {
+    for (partition <- 0 until 5)
+      logManager.createLog(TopicAndPartition(name, partition), logConfig)
+    logManager.shutdown()
+
+    logManager = createLogManager()
+    assertEquals(5, logManager.allLogs.size)
+    val gauges = Metrics.defaultRegistry.allMetrics.asScala.filterKeys { metricName =>
+      metricName.getName == "RemainingLogsToLoad" && metricName.getMBeanName.contains(logDir.getName)
+    }
+    assertEquals(1, gauges.size)
+    assertEquals(0, gauges.values.head.asInstanceOf[Gauge[Int]].value)
+  }
+
   /**
    * Test that recovery points directory checking works with trailing slash
    */
@@ -38,7 +38,10 @@ class LogSegmentTest {
     val idxFile = TestUtils.tempFile()
     idxFile.delete()
     val idx = new OffsetIndex(idxFile, offset, 1000)
-    val seg = new LogSegment(ms, idx, offset, 10, 0, SystemTime)
+    val timeIdxFile = TestUtils.tempFile()
+    timeIdxFile.delete()
+    val timeIdx = new TimeIndex(timeIdxFile, offset, 1500)
+    val seg = new LogSegment(ms, idx, timeIdx, offset, 10, 0, SystemTime)
     segments += seg
     seg
   }
@@ -50,12 +53,17 @@ class LogSegmentTest {
                              messages = messages.map(s => new Message(s.getBytes)):_*)
   }
   
+  /* create a ByteBufferMessageSet of message format v1 with the given timestamp starting from the given offset */
+  def messagesWithTimestamp(offset: Long, timestamp: Long, messages: String*): ByteBufferMessageSet = {
+    new ByteBufferMessageSet(compressionCodec = NoCompressionCodec,
+                             offsetCounter = new LongRef(offset),
+                             messages = messages.map(s => new Message(s.getBytes, timestamp, Message.MagicValue_V1)):_*)
+  }
+
   @After
   def teardown() {
-    for(seg <- segments) {
-      seg.index.delete()
-      seg.log.delete()
-    }
+    for(seg <- segments)
+      seg.delete()
   }
   
   /**
@@ -76,7 +84,7 @@ class LogSegmentTest {
   def testReadBeforeFirstOffset() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there", "little", "bee")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val read = seg.read(startOffset = 41, maxSize = 300, maxOffset = None).messageSet
     assertEquals(ms.toList, read.toList)
   }
@@ -90,7 +98,7 @@ class LogSegmentTest {
     val baseOffset = 50
     val seg = createSegment(baseOffset)
     val ms = messages(baseOffset, "hello", "there", "beautiful")
-    seg.append(baseOffset, ms)
+    seg.append(baseOffset, Message.NoTimestamp, -1L, ms)
     def validate(offset: Long) = 
       assertEquals(ms.filter(_.offset == offset).toList, 
                    seg.read(startOffset = offset, maxSize = 1024, maxOffset = Some(offset+1)).messageSet.toList)
@@ -106,7 +114,7 @@ class LogSegmentTest {
   def testReadAfterLast() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val read = seg.read(startOffset = 52, maxSize = 200, maxOffset = None)
     assertNull("Read beyond the last offset in the segment should give null", read)
   }
@@ -119,9 +127,9 @@ class LogSegmentTest {
   def testReadFromGap() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
   }
@@ -136,9 +144,9 @@ class LogSegmentTest {
     var offset = 40
     for(i <- 0 until 30) {
       val ms1 = messages(offset, "hello")
-      seg.append(offset, ms1)
+      seg.append(offset, Message.NoTimestamp, -1L, ms1)
       val ms2 = messages(offset+1, "hello")
-      seg.append(offset+1, ms2)
+      seg.append(offset+1, Message.NoTimestamp, -1L, ms2)
       // check that we can read back both messages
       val read = seg.read(offset, None, 10000)
       assertEquals(List(ms1.head, ms2.head), read.messageSet.toList)
@@ -158,10 +166,10 @@ class LogSegmentTest {
   def testTruncateFull() {
     // test the case where we fully truncate the log
     val seg = createSegment(40)
-    seg.append(40, messages(40, "hello", "there"))
+    seg.append(40, Message.NoTimestamp, -1L, messages(40, "hello", "there"))
     seg.truncateTo(0)
     assertNull("Segment should be empty.", seg.read(0, None, 1024))
-    seg.append(40, messages(40, "hello", "there"))    
+    seg.append(40, Message.NoTimestamp, -1L, messages(40, "hello", "there"))    
   }
   
   /**
@@ -171,7 +179,7 @@ class LogSegmentTest {
   def testNextOffsetCalculation() {
     val seg = createSegment(40)
     assertEquals(40, seg.nextOffset)
-    seg.append(50, messages(50, "hello", "there", "you"))
+    seg.append(50, Message.NoTimestamp, -1L, messages(50, "hello", "there", "you"))
     assertEquals(53, seg.nextOffset())
   }
   
@@ -183,11 +191,64 @@ class LogSegmentTest {
     val seg = createSegment(40)
     val logFile = seg.log.file
     val indexFile = seg.index.file
+    val timeIndexFile = seg.timeIndex.file
     seg.changeFileSuffixes("", ".deleted")
     assertEquals(logFile.getAbsolutePath + ".deleted", seg.log.file.getAbsolutePath)
     assertEquals(indexFile.getAbsolutePath + ".deleted", seg.index.file.getAbsolutePath)
+    assertEquals(timeIndexFile.getAbsolutePath + ".deleted", seg.timeIndex.file.getAbsolutePath)
     assertTrue(seg.log.file.exists)
     assertTrue(seg.index.file.exists)
+    assertTrue(seg.timeIndex.file.exists)
+  }
+
+  /**
+   * Append messages with increasing timestamps and check that the time index lets us find the first message
+   * at or after a given timestamp.
+   */
+  @Test
+  def testFindOffsetByTimestamp() {
+    val seg = createSegment(40)
+    for(i <- 40 until 100)
+      seg.append(i, i * 10, i, messagesWithTimestamp(i, i * 10, i.toString))
+    assertTrue("The time index should have entries", seg.timeIndex.entries > 0)
+
+    assertEquals(Some(TimestampOffset(400L, 40L)), seg.findOffsetByTimestamp(0L))
+    assertEquals(Some(TimestampOffset(500L, 50L)), seg.findOffsetByTimestamp(500L))
+    assertEquals(Some(TimestampOffset(510L, 51L)), seg.findOffsetByTimestamp(501L))
+    assertEquals(Some(TimestampOffset(990L, 99L)), seg.findOffsetByTimestamp(990L))
+    assertEquals(None, seg.findOffsetByTimestamp(991L))
+    assertEquals(990L, seg.largestTimestamp)
+  }
+
+  /**
+   * Create a segment with timestamped messages, corrupt the time index and recover the segment,
+   * the time index should be rebuilt.
+   */
+  @Test
+  def testRecoveryFixesCorruptTimeIndex() {
+    val seg = createSegment(0)
+    for(i <- 0 until 100)
+      seg.append(i, i * 10, i, messagesWithTimestamp(i, i * 10, i.toString))
+    val timeIndexFile = seg.timeIndex.file
+    TestUtils.writeNonsenseToFile(timeIndexFile, 5, timeIndexFile.length.toInt)
+    seg.recover(64*1024)
+    for(i <- 0 until 100)
+      assertEquals(Some(TimestampOffset(i * 10, i)), seg.findOffsetByTimestamp(i * 10))
+    assertEquals("The largest timestamp should be the last entry", TimestampOffset(990L, 99L), seg.timeIndex.lastEntry)
+  }
+
+  /**
+   * Truncating a segment should remove the time index entries of the truncated messages.
+   */
+  @Test
+  def testTruncateRemovesTimeIndexEntries() {
+    val seg = createSegment(40)
+    for(i <- 40 until 100)
+      seg.append(i, i * 10, i, messagesWithTimestamp(i, i * 10, i.toString))
+    seg.truncateTo(70)
+    assertTrue("The time index should not point past the truncation point", seg.timeIndex.lastEntry.offset < 70)
+    assertEquals(None, seg.findOffsetByTimestamp(700L))
+    assertEquals(Some(TimestampOffset(690L, 69L)), seg.findOffsetByTimestamp(690L))
   }
   
   /**
@@ -198,7 +259,7 @@ class LogSegmentTest {
   def testRecoveryFixesCorruptIndex() {
     val seg = createSegment(0)
     for(i <- 0 until 100)
-      seg.append(i, messages(i, i.toString))
+      seg.append(i, Message.NoTimestamp, -1L, messages(i, i.toString))
     val indexFile = seg.index.file
     TestUtils.writeNonsenseToFile(indexFile, 5, indexFile.length.toInt)
     seg.recover(64*1024)
@@ -206,6 +267,103 @@ class LogSegmentTest {
       assertEquals(i, seg.read(i, Some(i+1), 1024).messageSet.head.offset)
   }
   
+  /**
+   * Reopen a segment with a corrupt index and check that the index is rebuilt when the segment is first used.
+   */
+  @Test
+  def testCorruptIndexRebuiltOnFirstUse() {
+    val seg = createSegment(0, preallocate = false)
+    for(i <- 0 until 100)
+      seg.append(i, Message.NoTimestamp, -1L, messages(i, i.toString))
+    seg.onBecomeInactiveSegment()
+    seg.close()
+    // an index whose entries all point to the base offset fails the sanity check
+    val indexFile = seg.index.file
+    val indexSize = indexFile.length.toInt
+    assertTrue("The index should not be empty", indexSize > 0)
+    val zeros = new java.io.FileOutputStream(indexFile)
+    zeros.write(new Array[Byte](indexSize))
+    zeros.close()
+
+    val reopened = new LogSegment(indexFile.getParentFile, 0, 10, 1000, 0, SystemTime, fileAlreadyExists = true)
+    segments += reopened
+    val logLock = new Object
+    reopened.checkIndexesOnFirstUse(64*1024, logLock)
+    // the rebuild waits for the lock of the log
+    val firstRead = new AtomicLong(-1L)
+    val reader = new Thread() {
+      override def run(): Unit = firstRead.set(reopened.read(0, Some(1), 1024).messageSet.head.offset)
+    }
+    logLock synchronized {
+      reader.start()
+      TestUtils.waitUntilTrue(() => reader.getState == Thread.State.BLOCKED, "The first read should wait for the log lock")
+    }
+    reader.join()
+    assertEquals(0L, firstRead.get)
+    for(i <- 0 until 100)
+      assertEquals(i, reopened.read(i, Some(i+1), 1024).messageSet.head.offset)
+    assertTrue("The index should have been rebuilt", reopened.index.lastOffset > 0)
+    reopened.index.sanityCheck()
+  }
+
+  /**
+   * The indexes of a reopened segment are only mapped when it is read, and can be unmapped once they are idle
+   */
+  @Test
+  def testIndexesMappedLazily() {
+    val seg = createSegment(0, preallocate = false)
+    for(i <- 0 until 50)
+      seg.append(i, 1000L + i, i, messagesWithTimestamp(i, 1000L + i, i.toString))
+    seg.onBecomeInactiveSegment()
+    seg.close()
+
+    val mappedBefore = LazyIndex.numMappedIndexes
+    val reopened = new LogSegment(seg.log.file.getParentFile, 0, 10, 1000, 0, SystemTime, fileAlreadyExists = true)
+    segments += reopened
+    assertEquals("Opening a segment should not map its indexes", mappedBefore, LazyIndex.numMappedIndexes)
+
+    assertEquals(25L, reopened.read(25, None, 1024).messageSet.head.offset)
+    assertEquals(1049L, reopened.largestTimestamp)
+    assertEquals(mappedBefore + 2, LazyIndex.numMappedIndexes)
+
+    assertFalse("Indexes that were just used should stay mapped", reopened.unloadIdleIndexes(SystemTime.milliseconds, 60000L))
+    assertTrue(reopened.unloadIdleIndexes(SystemTime.milliseconds + 60000L, 60000L))
+    assertEquals(mappedBefore, LazyIndex.numMappedIndexes)
+
+    // the indexes are mapped again when they are needed
+    for(i <- 0 until 50)
+      assertEquals(i, reopened.read(i, Some(i+1), 1024).messageSet.head.offset)
+    assertEquals(Some(TimestampOffset(1020L, 20L)), reopened.findOffsetByTimestamp(1020L))
+    assertEquals(1049L, reopened.largestTimestamp)
+  }
+
+  @Test
+  def testIndexInUseIsNotUnloaded() {
+    val file = TestUtils.tempFile()
+    file.delete()
+    val index = new OffsetIndex(file, 0, 1000)
+    for(i <- 1 until 10)
+      index.append(i * 10, i * 100)
+    index.close()
+
+    val mappedBefore = LazyIndex.numMappedIndexes
+    val lazyIndex = LazyIndex.forOffset(file, 0, 1000)
+    val later = SystemTime.milliseconds + 60000L
+    lazyIndex.use { idx =>
+      assertEquals(mappedBefore + 1, LazyIndex.numMappedIndexes)
+      assertFalse("An index that is being used should not be unmapped", lazyIndex.unloadIfIdle(later, 0L))
+      assertEquals(OffsetPosition(50, 500), idx.lookup(55))
+    }
+    assertTrue(lazyIndex.unloadIfIdle(later, 0L))
+    assertFalse(lazyIndex.isLoaded)
+    assertEquals("Unloading should unmap the index", mappedBefore, LazyIndex.numMappedIndexes)
+
+    assertEquals(OffsetPosition(90, 900), lazyIndex.use(_.lookup(95)))
+    assertEquals(mappedBefore + 1, LazyIndex.numMappedIndexes)
+    lazyIndex.delete()
+    assertEquals(mappedBefore, LazyIndex.numMappedIndexes)
+  }
+
   /**
    * Randomly corrupt a log a number of times and attempt recovery.
    */
@@ -215,7 +373,7 @@ class LogSegmentTest {
     for(iteration <- 0 until 10) {
       val seg = createSegment(0)
       for(i <- 0 until messagesAppended)
-        seg.append(i, messages(i, i.toString))
+        seg.append(i, Message.NoTimestamp, -1L, messages(i, i.toString))
       val offsetToBeginCorruption = TestUtils.random.nextInt(messagesAppended)
       // start corrupting somewhere in the middle of the chosen record all the way to the end
       val position = seg.log.searchFor(offsetToBeginCorruption, 0).position + TestUtils.random.nextInt(15)
@@ -239,9 +397,9 @@ class LogSegmentTest {
   def testCreateWithInitFileSizeAppendMessage() {
     val seg = createSegment(40, false, 512*1024*1024, true)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
   }
@@ -253,9 +411,9 @@ class LogSegmentTest {
     val seg = new LogSegment(tempDir, 40, 10, 1000, 0, SystemTime, false, 512*1024*1024, true)
 
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
     val oldSize = seg.log.sizeInBytes()
@@ -20,10 +20,12 @@ package kafka.log
 import java.io._
 import java.util.Properties
 
-import org.apache.kafka.common.errors.{CorruptRecordException, OffsetOutOfRangeException, RecordBatchTooLargeException, RecordTooLargeException}
-import kafka.api.ApiVersion
+import org.apache.kafka.common.errors.{CorruptRecordException, OffsetOutOfRangeException, RecordBatchTooLargeException, RecordTooLargeException,
+  UnsupportedCompressionTypeException}
+import kafka.api.{ApiVersion, KAFKA_0_10_0_IV1, KAFKA_0_10_0_ZSTD_IV0}
 import kafka.common.LongRef
 import org.junit.Assert._
+import org.junit.Assume.assumeTrue
 import org.scalatest.junit.JUnitSuite
 import org.junit.{After, Before, Test}
 import kafka.message._
@@ -316,6 +318,37 @@ class LogTest extends JUnitSuite {
     assertEquals("Read at offset 3 should produce 2", 2, read(3).next().offset)
   }
 
+  /**
+   * Test that zstd message sets are only appended when the message format of the topic allows it.
+   */
+  @Test
+  def testZStdMessagesRequireMessageFormatVersion() {
+    assumeTrue(MessageCompressionTest.isZStdAvailable)
+    def messages = new ByteBufferMessageSet(ZStdCompressionCodec, new Message("hello".getBytes), new Message("there".getBytes))
+
+    val oldFormatProps = new Properties()
+    oldFormatProps.put(LogConfig.MessageFormatVersionProp, KAFKA_0_10_0_IV1.version)
+    val oldFormatLog = new Log(logDir, LogConfig(oldFormatProps), recoveryPoint = 0L, time.scheduler, time = time)
+    try {
+      oldFormatLog.append(messages)
+      fail("zstd messages should be rejected by a topic with an older message format")
+    } catch {
+      case e: UnsupportedCompressionTypeException => // this is good
+    }
+    assertEquals("Nothing should be appended", 0L, oldFormatLog.logEndOffset)
+    // followers append what the leader accepted
+    oldFormatLog.append(messages, assignOffsets = false)
+    oldFormatLog.close()
+    Utils.delete(logDir)
+
+    val logProps = new Properties()
+    logProps.put(LogConfig.MessageFormatVersionProp, KAFKA_0_10_0_ZSTD_IV0.version)
+    val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time = time)
+    log.append(messages)
+    assertEquals(ZStdCompressionCodec, log.read(0, 4096).messageSet.head.message.compressionCodec)
+    assertEquals(2L, log.logEndOffset)
+  }
+
   /**
    * Test garbage collecting old segments
    */
@@ -540,6 +573,67 @@ class LogTest extends JUnitSuite {
     log.close()
   }
 
+  /**
+   * Test that the time index is maintained on append and can be used to find offsets by timestamp
+   * across rolled segments.
+   */
+  @Test
+  def testFetchOffsetsByTimestamp() {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 200: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time)
+
+    val numMessages = 100
+    for(i <- 0 until numMessages)
+      log.append(TestUtils.singleMessageSet(TestUtils.randomBytes(10), timestamp = 1000L + i * 10))
+    assertTrue("There should be more than one segment", log.numberOfSegments > 1)
+
+    // every inactive segment must carry its largest timestamp in the last time index entry
+    for(segment <- log.logSegments.init)
+      assertEquals(segment.largestTimestamp, segment.timeIndex.lastEntry.timestamp)
+
+    assertEquals(Some(TimestampOffset(1000L, 0L)), log.fetchOffsetsByTimestamp(0L))
+    for(i <- 0 until numMessages) {
+      assertEquals(Some(TimestampOffset(1000L + i * 10, i)), log.fetchOffsetsByTimestamp(1000L + i * 10))
+      assertEquals(Some(TimestampOffset(1000L + i * 10, i)), log.fetchOffsetsByTimestamp(1000L + i * 10 - 5))
+    }
+    assertEquals(None, log.fetchOffsetsByTimestamp(1000L + numMessages * 10))
+    log.close()
+  }
+
+  /**
+   * Test that a corrupted time index is rebuilt when the log is re-opened
+   */
+  @Test
+  def testCorruptTimeIndexRebuild() {
+    val numMessages = 200
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 200: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+
+    val config = LogConfig(logProps)
+    var log = new Log(logDir, config, recoveryPoint = 0L, time.scheduler, time)
+    for(i <- 0 until numMessages)
+      log.append(TestUtils.singleMessageSet(TestUtils.randomBytes(10), timestamp = i * 10))
+    val timeIndexFiles = log.logSegments.map(_.timeIndex.file)
+    log.close()
+
+    // corrupt all the time index files
+    for(file <- timeIndexFiles) {
+      val bw = new BufferedWriter(new FileWriter(file))
+      bw.write("  ")
+      bw.close()
+    }
+
+    // reopen the log
+    log = new Log(logDir, config, recoveryPoint = 200L, time.scheduler, time)
+    assertEquals("Should have %d messages when log is reopened".format(numMessages), numMessages, log.logEndOffset)
+    for(i <- 0 until numMessages)
+      assertEquals(Some(TimestampOffset(i * 10, i)), log.fetchOffsetsByTimestamp(i * 10))
+    log.close()
+  }
+
   /**
    * Test the Log truncate operations
    */
@@ -44,6 +44,106 @@ class OffsetMapTest extends JUnitSuite {
       assertEquals(map.get(key(i)), -1L)
   }
   
+  @Test
+  def testConcurrentReader() {
+    val map = validateMap(1000)
+    val readers = (0 until 4).map(_ => map.concurrentReader())
+    val threads = readers.map { reader =>
+      new Thread() {
+        @volatile var misses = 0
+        override def run() {
+          for(i <- 0 until 1000 if reader.get(key(i)) != i.toLong)
+            misses += 1
+        }
+      }
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    assertEquals("Readers should find all the keys", Seq(0, 0, 0, 0), threads.map(_.misses))
+    assertEquals(map.size, readers.head.size)
+  }
+
+  @Test
+  def testCompositeOffsetMap() {
+    val first = new SkimpyOffsetMap(4000)
+    val second = new SkimpyOffsetMap(4000)
+    for(i <- 0 until 10)
+      first.put(key(i), i)
+    for(i <- 5 until 15)
+      second.put(key(i), i + 100)
+    val map = new CompositeOffsetMap(Seq(first, second))
+    for(i <- 0 until 5)
+      assertEquals(i.toLong, map.get(key(i)))
+    // the later map wins for the keys in both maps
+    for(i <- 5 until 15)
+      assertEquals(i + 100L, map.get(key(i)))
+    assertEquals(-1L, map.get(key(15)))
+    assertEquals(20, map.size)
+    assertEquals(first.slots + second.slots, map.slots)
+  }
+
+  @Test
+  def testOffHeapMapGrows() {
+    // a table of 10 entries at first, in buffers of 100 entries
+    val map = new OffHeapOffsetMap(memory = 24 * 5000, initialMemory = 24 * 10, maxBufferSize = 24 * 100)
+    assertEquals(5000, map.slots)
+    assertEquals(10, map.capacity)
+    for(i <- 0 until 4000)
+      map.put(key(i), i)
+    assertEquals(4000, map.size)
+    assertEquals("The table should grow up to the maximum size", 5000, map.capacity)
+    for(i <- 0 until 4000)
+      assertEquals(i.toLong, map.get(key(i)))
+    assertEquals(-1L, map.get(key(4000)))
+
+    // updating a key does not add an entry
+    map.put(key(0), 10000L)
+    assertEquals(10000L, map.get(key(0)))
+    assertEquals(4000, map.size)
+  }
+
+  @Test
+  def testOffHeapMapClear() {
+    val map = new OffHeapOffsetMap(memory = 24 * 5000, initialMemory = 24 * 10)
+    for(i <- 0 until 100)
+      map.put(key(i), i)
+    map.clear()
+    assertEquals(0, map.size)
+    assertEquals("The table should shrink back to its initial size", 10, map.capacity)
+    for(i <- 0 until 100)
+      assertEquals(-1L, map.get(key(i)))
+  }
+
+  @Test
+  def testOffHeapMapConcurrentReader() {
+    val map = new OffHeapOffsetMap(memory = 24 * 2000, initialMemory = 24 * 10)
+    for(i <- 0 until 1000)
+      map.put(key(i), i)
+    val reader = map.concurrentReader()
+    for(i <- 0 until 1000)
+      assertEquals(i.toLong, reader.get(key(i)))
+    assertEquals(1000, reader.size)
+  }
+
+  @Test
+  def testMurmur3Hash() {
+    val hash = new OffHeapOffsetMap.Murmur3Hash
+    def checkHash(input: String, h1: Long, h2: Long) {
+      // only the remaining bytes of the key are hashed
+      val buffer = ByteBuffer.wrap(("xx" + input).getBytes("UTF-8"))
+      buffer.position(2)
+      hash.hash(buffer)
+      assertEquals(h1, hash.h1)
+      assertEquals(h2, hash.h2)
+      assertEquals(2, buffer.position)
+    }
+    checkHash("hello", 0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L)
+    checkHash("The quick brown fox jumps over the lazy dog", 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L)
+    checkHash("0123456789abcdefg", 0x8e32612daa45f9deL, 0x0800f4c206c372eeL)
+    // the hash of an empty key would mark an empty slot
+    checkHash("", 0L, 1L)
+  }
+
   def key(key: Int) = ByteBuffer.wrap(key.toString.getBytes)
   
   def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
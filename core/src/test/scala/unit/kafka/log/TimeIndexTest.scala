@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+
+import kafka.common.InvalidOffsetException
+import kafka.message.Message
+import kafka.utils.TestUtils
+import org.junit.{After, Before, Test}
+import org.junit.Assert._
+import org.scalatest.junit.JUnitSuite
+
+class TimeIndexTest extends JUnitSuite {
+
+  var idx: TimeIndex = null
+  val maxEntries = 30
+  val baseOffset = 45L
+
+  @Before
+  def setup() {
+    this.idx = new TimeIndex(nonExistantTempFile(), baseOffset = baseOffset, maxIndexSize = maxEntries * 12)
+  }
+
+  @After
+  def teardown() {
+    if(this.idx != null)
+      this.idx.file.delete()
+  }
+
+  @Test
+  def testLookUp() {
+    // Empty time index
+    assertEquals(TimestampOffset(Message.NoTimestamp, baseOffset), idx.lookup(100L))
+
+    // Add several time index entries.
+    appendEntries(maxEntries - 1)
+
+    // look for timestamp smaller than the earliest entry
+    assertEquals(TimestampOffset(Message.NoTimestamp, baseOffset), idx.lookup(9))
+    // look for timestamp in the middle of two entries.
+    assertEquals(TimestampOffset(20L, 65L), idx.lookup(25))
+    // look for timestamp same as the one in the entry
+    assertEquals(TimestampOffset(30L, 75L), idx.lookup(30))
+    // look for timestamp larger than the last entry
+    assertEquals(TimestampOffset(290L, 335L), idx.lookup(1000))
+  }
+
+  @Test
+  def testEntry() {
+    appendEntries(maxEntries - 1)
+    assertEquals(TimestampOffset(10L, 10L + baseOffset), idx.entry(0))
+    assertEquals(TimestampOffset(290L, 290L + baseOffset), idx.entry(maxEntries - 2))
+    for (i <- 0 until idx.entries)
+      assertEquals("Entries and lookups should return the same offsets", idx.lookup(idx.entry(i).timestamp), idx.entry(i))
+  }
+
+  @Test
+  def testAppendIgnoresSmallerOrEqualTimestamp() {
+    idx.maybeAppend(10L, 55L)
+    idx.maybeAppend(10L, 56L)
+    assertEquals("An entry with the same timestamp should be ignored", 1, idx.entries)
+    assertEquals(TimestampOffset(10L, 55L), idx.lastEntry)
+  }
+
+  @Test(expected = classOf[InvalidOffsetException])
+  def testAppendOutOfOrderOffset() {
+    idx.maybeAppend(10L, 55L)
+    idx.maybeAppend(20L, 54L)
+  }
+
+  @Test(expected = classOf[IllegalStateException])
+  def testAppendOutOfOrderTimestamp() {
+    idx.maybeAppend(20L, 55L)
+    idx.maybeAppend(10L, 56L)
+  }
+
+  @Test
+  def testLastSlotIsReserved() {
+    appendEntries(maxEntries - 1)
+    assertTrue("The index should be full with one slot left", idx.isFull)
+    try {
+      idx.maybeAppend(10000L, 1000L)
+      fail("Append should fail on a full index")
+    } catch {
+      case e: IllegalArgumentException => // expected
+    }
+    // the reserved slot can still be used when the segment is rolled or closed
+    idx.maybeAppend(10000L, 1000L, skipFullCheck = true)
+    assertEquals(maxEntries, idx.entries)
+    assertEquals(TimestampOffset(10000L, 1000L), idx.lastEntry)
+  }
+
+  @Test
+  def testTruncate() {
+    appendEntries(maxEntries - 1)
+    idx.truncateTo(10000L)
+    assertEquals("Truncating past the end should have no effect", maxEntries - 1, idx.entries)
+
+    idx.truncateTo(75L)
+    assertEquals("Entries with offsets >= 75 should be removed", 2, idx.entries)
+    assertEquals(TimestampOffset(20L, 65L), idx.lastEntry)
+
+    idx.truncateTo(70L)
+    assertEquals(TimestampOffset(20L, 65L), idx.lastEntry)
+
+    idx.truncate()
+    assertEquals("Full truncation should leave no entries", 0, idx.entries)
+    assertEquals(TimestampOffset(Message.NoTimestamp, baseOffset), idx.lastEntry)
+    idx.maybeAppend(5L, 46L)
+    assertEquals(TimestampOffset(5L, 46L), idx.lastEntry)
+  }
+
+  @Test
+  def testReopen() {
+    appendEntries(5)
+    idx.close()
+    val idxRo = new TimeIndex(idx.file, baseOffset = baseOffset)
+    assertEquals(5, idxRo.entries)
+    assertEquals(TimestampOffset(50L, 95L), idxRo.lastEntry)
+    assertEquals(TimestampOffset(30L, 75L), idxRo.lookup(35L))
+    idxRo.sanityCheck()
+  }
+
+  private def appendEntries(numEntries: Int) {
+    for (i <- 1 to numEntries)
+      idx.maybeAppend(i * 10, i * 10 + baseOffset)
+  }
+
+  def nonExistantTempFile(): File = {
+    val file = TestUtils.tempFile()
+    file.delete()
+    file
+  }
+}
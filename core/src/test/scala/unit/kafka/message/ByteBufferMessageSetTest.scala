@@ -329,6 +329,56 @@ class ByteBufferMessageSetTest extends BaseMessageSetTestCases {
     checkOffsets(compressedMessagesWithOffset, offset)
   }
 
+  @Test
+  def testInPlaceOffsetAssignmentWithMultipleCompressedMessages() {
+    val now = System.currentTimeMillis()
+    val first = getMessages(magicValue = Message.MagicValue_V1, timestamp = now, codec = DefaultCompressionCodec)
+    val second = getMessages(magicValue = Message.MagicValue_V1, timestamp = now + 1, codec = DefaultCompressionCodec)
+    val buffer = ByteBuffer.allocate(first.sizeInBytes + second.sizeInBytes)
+    buffer.put(first.buffer.duplicate())
+    buffer.put(second.buffer.duplicate())
+    buffer.rewind()
+    val compressedMessages = new ByteBufferMessageSet(buffer)
+
+    val offset = 1234567
+    val (validatedMessages, messageSizeMaybeChanged) =
+      compressedMessages.validateMessagesAndAssignOffsets(offsetCounter = new LongRef(offset),
+                                                          now = now,
+                                                          sourceCodec = DefaultCompressionCodec,
+                                                          targetCodec = DefaultCompressionCodec,
+                                                          messageTimestampType = TimestampType.CREATE_TIME,
+                                                          messageTimestampDiffMaxMs = 5000L)
+    assertTrue("Messages with relative inner offsets should not be re-compressed", validatedMessages eq compressedMessages)
+    assertFalse(messageSizeMaybeChanged)
+    checkOffsets(validatedMessages, offset)
+    // each wrapper message carries the offset of its last inner message and the largest inner timestamp
+    assertEquals(Seq(offset + 2L, offset + 5L), validatedMessages.shallowIterator.map(_.offset).toSeq)
+    assertEquals(Seq(now, now + 1), validatedMessages.shallowIterator.map(_.message.timestamp).toSeq)
+    validatedMessages.shallowIterator.foreach(_.message.ensureValid())
+  }
+
+  @Test
+  def testCompressedMessagesWithNonRelativeInnerOffsetsAreRecompressed() {
+    val now = System.currentTimeMillis()
+    val compressedMessages = new ByteBufferMessageSet(
+      compressionCodec = DefaultCompressionCodec,
+      offsetSeq = Seq(0L, 2L, 4L),
+      new Message("hello".getBytes, timestamp = now, magicValue = Message.MagicValue_V1),
+      new Message("there".getBytes, timestamp = now, magicValue = Message.MagicValue_V1),
+      new Message("beautiful".getBytes, timestamp = now, magicValue = Message.MagicValue_V1))
+
+    val offset = 1234567
+    val (validatedMessages, messageSizeMaybeChanged) =
+      compressedMessages.validateMessagesAndAssignOffsets(offsetCounter = new LongRef(offset),
+                                                          now = now,
+                                                          sourceCodec = DefaultCompressionCodec,
+                                                          targetCodec = DefaultCompressionCodec,
+                                                          messageTimestampType = TimestampType.CREATE_TIME,
+                                                          messageTimestampDiffMaxMs = 5000L)
+    assertTrue(messageSizeMaybeChanged)
+    checkOffsets(validatedMessages, offset)
+  }
+
   @Test
   def testOffsetAssignmentAfterMessageFormatConversion() {
     // Check up conversion
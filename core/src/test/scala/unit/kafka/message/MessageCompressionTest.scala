@@ -28,6 +28,8 @@ import org.junit.Assert._
 
 class MessageCompressionTest extends JUnitSuite {
 
+  import MessageCompressionTest._
+
   @Test
   def testLZ4FramingV0() {
     val output = CompressionFactory(LZ4CompressionCodec, Message.MagicValue_V0, new ByteArrayOutputStream())
@@ -53,6 +55,8 @@ class MessageCompressionTest extends JUnitSuite {
       codecs += SnappyCompressionCodec
     if(isLZ4Available)
       codecs += LZ4CompressionCodec
+    if(isZStdAvailable)
+      codecs += ZStdCompressionCodec
     for(codec <- codecs)
       testSimpleCompressDecompress(codec)
   }
@@ -74,6 +78,15 @@ class MessageCompressionTest extends JUnitSuite {
 
     if(isLZ4Available)
       testCompressSize(LZ4CompressionCodec, messages, 387)
+
+    // the zstd frame depends on the version of the native library, so only check that it compresses as well as gzip
+    if(isZStdAvailable) {
+      val uncompressedSize = new ByteBufferMessageSet(NoCompressionCodec, messages: _*).sizeInBytes
+      val gzipSize = new ByteBufferMessageSet(GZIPCompressionCodec, messages: _*).sizeInBytes
+      val zstdSize = new ByteBufferMessageSet(ZStdCompressionCodec, messages: _*).sizeInBytes
+      assertTrue(s"zstd size $zstdSize should be smaller than the uncompressed size $uncompressedSize", zstdSize < uncompressedSize)
+      assertTrue(s"zstd size $zstdSize should be no larger than the gzip size $gzipSize", zstdSize <= gzipSize)
+    }
   }
 
   def testSimpleCompressDecompress(compressionCodec: CompressionCodec) {
@@ -88,6 +101,9 @@ class MessageCompressionTest extends JUnitSuite {
     val messageSet = new ByteBufferMessageSet(compressionCodec = compressionCodec, messages = messages:_*)
     assertEquals(s"$compressionCodec size has changed.", expectedSize, messageSet.sizeInBytes)
   }
+}
+
+object MessageCompressionTest {
 
   def isSnappyAvailable: Boolean = {
     try {
@@ -107,4 +123,13 @@ class MessageCompressionTest extends JUnitSuite {
       case e: UnsatisfiedLinkError => false
     }
   }
+
+  def isZStdAvailable: Boolean = {
+    try {
+      new com.github.luben.zstd.ZstdOutputStream(new ByteArrayOutputStream())
+      true
+    } catch {
+      case e: UnsatisfiedLinkError => false
+    }
+  }
 }
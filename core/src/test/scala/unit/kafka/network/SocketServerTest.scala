@@ -23,17 +23,20 @@ import java.io._
 import java.util.HashMap
 import java.util.Random
 import java.nio.ByteBuffer
+import java.util.Collections
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.NetworkSend
 import org.apache.kafka.common.protocol.{ApiKeys, SecurityProtocol}
 import org.apache.kafka.common.security.auth.KafkaPrincipal
-import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.requests.{ProduceRequest, RequestHeader}
+import org.apache.kafka.common.{Node, TopicPartition}
+import org.apache.kafka.common.requests.{AbstractRequest, HeartbeatRequest, LeaderAndIsrRequest, PartitionState, ProduceRequest, RequestHeader}
 import org.apache.kafka.common.utils.SystemTime
 
-import kafka.server.KafkaConfig
+import kafka.server.{KafkaApis, KafkaConfig, KafkaRequestHandlerPool}
 import kafka.utils.TestUtils
+import org.easymock.{EasyMock, IAnswer}
 
 import org.junit.Assert._
 import org.junit._
@@ -110,14 +113,16 @@ class SocketServerTest extends JUnitSuite {
   }
 
   private def producerRequestBytes: Array[Byte] = {
-    val apiKey: Short = 0
-    val correlationId = -1
-    val clientId = ""
     val ackTimeoutMs = 10000
     val ack = 0: Short
+    requestBytes(ApiKeys.PRODUCE.id, new ProduceRequest(ack, ackTimeoutMs, new HashMap[TopicPartition, ByteBuffer]()))
+  }
+
+  private def requestBytes(apiKey: Short, emptyRequest: AbstractRequest): Array[Byte] = {
+    val correlationId = -1
+    val clientId = ""
 
     val emptyHeader = new RequestHeader(apiKey, clientId, correlationId)
-    val emptyRequest = new ProduceRequest(ack, ackTimeoutMs, new HashMap[TopicPartition, ByteBuffer]())
 
     val byteBuffer = ByteBuffer.allocate(emptyHeader.sizeOf + emptyRequest.sizeOf)
     emptyHeader.writeTo(byteBuffer)
@@ -145,6 +150,114 @@ class SocketServerTest extends JUnitSuite {
     assertEquals(serializedBytes.toSeq, receiveResponse(traceSocket).toSeq)
   }
 
+  private def leaderAndIsrRequestBytes: Array[Byte] =
+    requestBytes(ApiKeys.LEADER_AND_ISR.id, new LeaderAndIsrRequest(0, 0,
+      Collections.emptyMap[TopicPartition, PartitionState](), Collections.emptySet[Node]()))
+
+  private def heartbeatRequestBytes: Array[Byte] =
+    requestBytes(ApiKeys.HEARTBEAT.id, new HeartbeatRequest("g", 1, "m"))
+
+  @Test
+  def controlRequestsAreQueuedSeparately() {
+    val socket = connect()
+
+    val heartbeatBytes = heartbeatRequestBytes
+    sendRequest(socket, heartbeatBytes)
+    val request = server.requestChannel.receiveRequest(2000, RequestChannel.CoordinatorQueue)
+    assertNotNull("receiveRequest timed out", request)
+    assertEquals(ApiKeys.HEARTBEAT.id, request.header.apiKey)
+    processRequest(server.requestChannel, request)
+    assertEquals(heartbeatBytes.toSeq, receiveResponse(socket).toSeq)
+
+    val leaderAndIsrBytes = leaderAndIsrRequestBytes
+    sendRequest(socket, leaderAndIsrBytes)
+    assertNull("Controller requests should not be queued with coordinator requests",
+      server.requestChannel.receiveRequest(200, RequestChannel.CoordinatorQueue))
+    val controllerRequest = server.requestChannel.receiveRequest(2000, RequestChannel.ControllerQueue)
+    assertNotNull("receiveRequest timed out", controllerRequest)
+    processRequest(server.requestChannel, controllerRequest)
+    assertEquals(leaderAndIsrBytes.toSeq, receiveResponse(socket).toSeq)
+
+    val produceBytes = producerRequestBytes
+    sendRequest(socket, produceBytes)
+    assertNull("Produce requests should not be queued with controller requests",
+      server.requestChannel.receiveRequest(200, RequestChannel.ControllerQueue))
+    processRequest(server.requestChannel)
+    assertEquals(produceBytes.toSeq, receiveResponse(socket).toSeq)
+  }
+
+  @Test
+  def blockedControllerRequestDoesNotDelayHeartbeat() {
+    val leaderAndIsrStarted = new CountDownLatch(1)
+    val releaseLeaderAndIsr = new CountDownLatch(1)
+    val apis = EasyMock.createMock(classOf[KafkaApis])
+    // calls into a thread safe mock are serialized, which would block the heartbeat behind the LeaderAndIsr request
+    EasyMock.makeThreadSafe(apis, false)
+    EasyMock.expect(apis.handle(EasyMock.anyObject[RequestChannel.Request])).andAnswer(new IAnswer[Unit] {
+      override def answer() {
+        val request = EasyMock.getCurrentArguments()(0).asInstanceOf[RequestChannel.Request]
+        if (request.header.apiKey == ApiKeys.LEADER_AND_ISR.id) {
+          leaderAndIsrStarted.countDown()
+          releaseLeaderAndIsr.await()
+        }
+        processRequest(server.requestChannel, request)
+      }
+    }).anyTimes()
+    EasyMock.replay(apis)
+    val handlers = new KafkaRequestHandlerPool(config.brokerId, server.requestChannel, apis, 1, config.numControlIoThreads)
+
+    try {
+      val controllerSocket = connect()
+      val leaderAndIsrBytes = leaderAndIsrRequestBytes
+      sendRequest(controllerSocket, leaderAndIsrBytes)
+      assertTrue("LeaderAndIsr request was not handled", leaderAndIsrStarted.await(5, TimeUnit.SECONDS))
+
+      // the heartbeat is answered while the LeaderAndIsr request is still being handled
+      val consumerSocket = connect()
+      consumerSocket.setSoTimeout(5000)
+      val heartbeatBytes = heartbeatRequestBytes
+      sendRequest(consumerSocket, heartbeatBytes)
+      assertEquals(heartbeatBytes.toSeq, receiveResponse(consumerSocket).toSeq)
+
+      releaseLeaderAndIsr.countDown()
+      assertEquals(leaderAndIsrBytes.toSeq, receiveResponse(controllerSocket).toSeq)
+    } finally {
+      releaseLeaderAndIsr.countDown()
+      handlers.shutdown()
+    }
+  }
+
+  @Test
+  def requestsAreNotReadWhenMemoryPoolIsExhausted() {
+    val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    props.put(KafkaConfig.NumNetworkThreadsProp, "1")
+    props.put(KafkaConfig.QueuedMaxRequestBytesProp, "1")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, new SystemTime)
+    try {
+      overrideServer.startup()
+      val serializedBytes = producerRequestBytes
+      val first = connect(overrideServer)
+      val second = connect(overrideServer)
+      sendRequest(first, serializedBytes)
+      val firstRequest = overrideServer.requestChannel.receiveRequest(2000)
+      assertNotNull("receiveRequest timed out", firstRequest)
+
+      // the buffer of the first request uses all the memory of the pool
+      sendRequest(second, serializedBytes)
+      assertNull("No request should be read while the pool is out of memory", overrideServer.requestChannel.receiveRequest(500))
+
+      processRequest(overrideServer.requestChannel, firstRequest)
+      firstRequest.releaseBuffer()
+      assertEquals(serializedBytes.toSeq, receiveResponse(first).toSeq)
+      processRequest(overrideServer.requestChannel)
+      assertEquals(serializedBytes.toSeq, receiveResponse(second).toSeq)
+    } finally {
+      overrideServer.shutdown()
+      serverMetrics.close()
+    }
+  }
+
   @Test
   def tooBigRequestIsRejected() {
     val tooManyBytes = new Array[Byte](server.config.socketRequestMaxBytes + 1)
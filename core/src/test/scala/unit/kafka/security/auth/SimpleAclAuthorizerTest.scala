@@ -240,6 +240,51 @@ class SimpleAclAuthorizerTest extends ZooKeeperTestHarness {
     assertTrue(!zkUtils.pathExists(simpleAclAuthorizer.toResourcePath(resource)))
   }
 
+  @Test
+  def testCachedDecisionsInvalidatedOnAclChange() {
+    val user1 = new KafkaPrincipal(KafkaPrincipal.USER_TYPE, username)
+    val host1 = InetAddress.getByName("192.168.4.1")
+    val user1Session = new Session(user1, host1)
+    val readAcl = new Acl(user1, Allow, host1.getHostAddress, Read)
+    val denyAcl = new Acl(user1, Deny, host1.getHostAddress, Read)
+
+    simpleAclAuthorizer.addAcls(Set(readAcl), resource)
+    assertTrue("User1 should have READ access", simpleAclAuthorizer.authorize(user1Session, Read, resource))
+    assertTrue("Cached decision should be returned", simpleAclAuthorizer.authorize(user1Session, Read, resource))
+
+    // a change made through another authorizer reaches this one through the change notification
+    simpleAclAuthorizer2.addAcls(Set(denyAcl), resource)
+    TestUtils.waitUntilTrue(() => !simpleAclAuthorizer.authorize(user1Session, Read, resource),
+      "deny acl not propagated in timeout period")
+
+    simpleAclAuthorizer2.removeAcls(Set(denyAcl), resource)
+    TestUtils.waitUntilTrue(() => simpleAclAuthorizer.authorize(user1Session, Read, resource),
+      "acl removal not propagated in timeout period")
+
+    // a change on the wildcard resource also invalidates decisions on the literal resource
+    simpleAclAuthorizer.addAcls(Set(denyAcl), new Resource(resource.resourceType, Resource.WildCardResource))
+    assertFalse("User1 should not have READ access", simpleAclAuthorizer.authorize(user1Session, Read, resource))
+    simpleAclAuthorizer.removeAcls(new Resource(resource.resourceType, Resource.WildCardResource))
+  }
+
+  @Test
+  def testDecisionCacheDisabled() {
+    val props = TestUtils.createBrokerConfig(1, zkConnect)
+    props.put(SimpleAclAuthorizer.DecisionCacheSizeProp, "0")
+    val authorizer = new SimpleAclAuthorizer
+    try {
+      authorizer.configure(KafkaConfig.fromProps(props).originals)
+      val user1 = new KafkaPrincipal(KafkaPrincipal.USER_TYPE, username)
+      val user1Session = new Session(user1, InetAddress.getByName("192.168.4.2"))
+      authorizer.addAcls(Set(new Acl(user1, Allow, WildCardHost, Write)), resource)
+      assertTrue("User1 should have WRITE access", authorizer.authorize(user1Session, Write, resource))
+      authorizer.removeAcls(resource)
+      assertFalse("User1 should not have WRITE access", authorizer.authorize(user1Session, Write, resource))
+    } finally {
+      authorizer.close()
+    }
+  }
+
   @Test
   def testLoadCache() {
     val user1 = new KafkaPrincipal(KafkaPrincipal.USER_TYPE, username)
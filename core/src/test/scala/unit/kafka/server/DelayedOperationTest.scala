@@ -17,6 +17,7 @@
 
 package kafka.server
 
+import kafka.utils.timer.SystemTimer
 import org.junit.{After, Before, Test}
 import org.junit.Assert._
 
@@ -98,6 +99,32 @@ class DelayedOperationTest {
     assertEquals("Purgatory should have 1 watched elements instead of " + purgatory.watched(), 1, purgatory.watched())
   }
 
+  @Test
+  def testWatchListsAcrossShards() {
+    for (shards <- Seq(1, 3)) {
+      val shardedPurgatory = new DelayedOperationPurgatory[MockDelayedOperation]("mock-sharded",
+        new SystemTimer("mock-sharded"), shards = shards)
+      try {
+        val keys = (0 until 10).map("key" + _)
+        val operations = keys.map { key =>
+          val op = new MockDelayedOperation(100000L)
+          assertFalse(shardedPurgatory.tryCompleteElseWatch(op, Array(key, "all")))
+          op
+        }
+        assertEquals(10, shardedPurgatory.delayed())
+        assertEquals(20, shardedPurgatory.watched())
+
+        operations.take(5).foreach(_.completable = true)
+        assertEquals("Five operations should be completed", 5, shardedPurgatory.checkAndComplete("all"))
+        keys.take(5).foreach(key => assertEquals(0, shardedPurgatory.checkAndComplete(key)))
+        assertEquals(5, shardedPurgatory.delayed())
+        assertEquals(10, shardedPurgatory.watched())
+      } finally {
+        shardedPurgatory.shutdown()
+      }
+    }
+  }
+
   class MockDelayedOperation(delayMs: Long) extends DelayedOperation(delayMs) {
     var completable = false
 
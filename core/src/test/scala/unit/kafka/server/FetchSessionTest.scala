@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util
+
+import kafka.api.{FetchRequest, FetchResponsePartitionData, PartitionFetchInfo}
+import kafka.common.TopicAndPartition
+import kafka.message.{ByteBufferMessageSet, Message, MessageSet}
+import kafka.utils.MockTime
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.requests.{FetchResponse, FetchRequest => JFetchRequest}
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+
+class FetchSessionTest {
+
+  private val foo0 = TopicAndPartition("foo", 0)
+  private val foo1 = TopicAndPartition("foo", 1)
+  private val bar0 = TopicAndPartition("bar", 0)
+
+  private def fetchRequest(requestInfo: Map[TopicAndPartition, PartitionFetchInfo],
+                           sessionId: Int,
+                           sessionEpoch: Int,
+                           toForget: Seq[TopicAndPartition] = Seq.empty) =
+    FetchRequest(replicaId = 1, requestInfo = requestInfo, sessionId = sessionId, sessionEpoch = sessionEpoch,
+      toForget = toForget)
+
+  private def partitionData(hw: Long, messages: MessageSet = MessageSet.Empty, error: Short = Errors.NONE.code) =
+    FetchResponsePartitionData(error, hw, messages)
+
+  @Test
+  def testSessionlessFetch() {
+    val cache = new FetchSessionCache(10)
+    val requestInfo = Map(foo0 -> PartitionFetchInfo(0, 100))
+    val context = cache.newContext(fetchRequest(requestInfo, FetchRequest.InvalidSessionId, FetchRequest.FinalEpoch))
+    assertTrue(context.isInstanceOf[SessionlessFetchContext])
+    assertEquals(requestInfo, context.fetchInfos)
+    assertEquals(FetchRequest.InvalidSessionId, context.sessionId)
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def testIncrementalFetch() {
+    val cache = new FetchSessionCache(10)
+    val full = cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(0, 100), foo1 -> PartitionFetchInfo(10, 100)),
+      FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch))
+    assertTrue(full.isInstanceOf[FullFetchContext])
+    assertNotEquals(FetchRequest.InvalidSessionId, full.sessionId)
+    assertEquals(1, cache.size)
+    // a full fetch returns all the partitions
+    val fullData = Map(foo0 -> partitionData(5), foo1 -> partitionData(20))
+    assertEquals(fullData, full.partitionsToReturn(fullData))
+
+    // only the changed partition and the added one are sent, but all the partitions of the session are read
+    val incremental = cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(5, 100), bar0 -> PartitionFetchInfo(0, 100)),
+      full.sessionId, 1))
+    assertTrue(incremental.isInstanceOf[IncrementalFetchContext])
+    assertEquals(full.sessionId, incremental.sessionId)
+    assertEquals(Map(foo0 -> PartitionFetchInfo(5, 100), foo1 -> PartitionFetchInfo(10, 100), bar0 -> PartitionFetchInfo(0, 100)),
+      incremental.fetchInfos)
+
+    // only the partitions with data, a new high watermark or an error are returned
+    val messages = new ByteBufferMessageSet(new Message("hello".getBytes))
+    val data = Map(foo0 -> partitionData(5, messages), foo1 -> partitionData(20), bar0 -> partitionData(7))
+    assertEquals(Set(foo0, bar0), incremental.partitionsToReturn(data).keySet)
+
+    val forget = cache.newContext(fetchRequest(Map.empty, full.sessionId, 2, toForget = Seq(foo0)))
+    assertEquals(Map(foo1 -> PartitionFetchInfo(10, 100), bar0 -> PartitionFetchInfo(0, 100)), forget.fetchInfos)
+    val errorData = Map(foo1 -> partitionData(20, error = Errors.NOT_LEADER_FOR_PARTITION.code), bar0 -> partitionData(7))
+    assertEquals(Set(foo1), forget.partitionsToReturn(errorData).keySet)
+  }
+
+  @Test
+  def testSessionErrors() {
+    val cache = new FetchSessionCache(10)
+    val full = cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(0, 100)), FetchRequest.InvalidSessionId,
+      FetchRequest.InitialEpoch))
+
+    val unknown = cache.newContext(fetchRequest(Map.empty, full.sessionId + 1, 1))
+    assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND.code, unknown.error)
+    assertTrue(unknown.fetchInfos.isEmpty)
+
+    val wrongEpoch = cache.newContext(fetchRequest(Map.empty, full.sessionId, 2))
+    assertEquals(Errors.INVALID_FETCH_SESSION_EPOCH.code, wrongEpoch.error)
+    assertTrue(wrongEpoch.fetchInfos.isEmpty)
+
+    // the session is still usable with the expected epoch
+    val incremental = cache.newContext(fetchRequest(Map.empty, full.sessionId, 1))
+    assertEquals(Errors.NONE.code, incremental.error)
+    assertEquals(Map(foo0 -> PartitionFetchInfo(0, 100)), incremental.fetchInfos)
+
+    // the final epoch closes the session
+    cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(0, 100)), full.sessionId, FetchRequest.FinalEpoch))
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def testEviction() {
+    val time = new MockTime()
+    val cache = new FetchSessionCache(2, evictionMs = 1000, time = time)
+    def newSession() = cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(0, 100)), FetchRequest.InvalidSessionId,
+      FetchRequest.InitialEpoch))
+
+    val first = newSession()
+    time.sleep(500)
+    val second = newSession()
+    assertTrue(second.isInstanceOf[FullFetchContext])
+
+    // the cache is full and no session is old enough to be evicted
+    assertTrue(newSession().isInstanceOf[SessionlessFetchContext])
+    assertEquals(2, cache.size)
+
+    // the first session is the least recently used once the second is used again
+    time.sleep(600)
+    cache.newContext(fetchRequest(Map.empty, second.sessionId, 1))
+    val third = newSession()
+    assertTrue(third.isInstanceOf[FullFetchContext])
+    assertEquals(2, cache.size)
+    assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND.code, cache.newContext(fetchRequest(Map.empty, first.sessionId, 1)).error)
+    assertEquals(Errors.NONE.code, cache.newContext(fetchRequest(Map.empty, second.sessionId, 2)).error)
+  }
+
+  @Test
+  def testDisabledCache() {
+    val cache = new FetchSessionCache(0)
+    val context = cache.newContext(fetchRequest(Map(foo0 -> PartitionFetchInfo(0, 100)), FetchRequest.InvalidSessionId,
+      FetchRequest.InitialEpoch))
+    assertTrue(context.isInstanceOf[SessionlessFetchContext])
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def testFetchSessionHandler() {
+    val tp0 = new TopicPartition("foo", 0)
+    val tp1 = new TopicPartition("foo", 1)
+    val handler = new FetchSessionHandler(0)
+    val fetchData = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
+    fetchData.put(tp0, new JFetchRequest.PartitionData(0, 100))
+    fetchData.put(tp1, new JFetchRequest.PartitionData(10, 100))
+    val emptyResponseData = new util.LinkedHashMap[TopicPartition, FetchResponse.PartitionData]
+
+    // the first fetch sends all the partitions
+    val first = handler.build(fetchData)
+    assertEquals(JFetchRequest.INVALID_SESSION_ID, first.sessionId)
+    assertEquals(JFetchRequest.INITIAL_EPOCH, first.epoch)
+    assertEquals(fetchData.keySet, first.toSend.keySet)
+    assertTrue(handler.handleResponse(new FetchResponse(Errors.NONE.code, 123, emptyResponseData, 0)))
+
+    // the next fetch only sends the partition that changed and the one that was removed
+    fetchData.put(tp0, new JFetchRequest.PartitionData(5, 100))
+    fetchData.remove(tp1)
+    val second = handler.build(fetchData)
+    assertEquals(123, second.sessionId)
+    assertEquals(1, second.epoch)
+    assertEquals(Set(tp0), second.toSend.keySet.asScala)
+    assertEquals(Seq(tp1), second.toForget.asScala)
+    assertTrue(handler.handleResponse(new FetchResponse(Errors.NONE.code, 123, emptyResponseData, 0)))
+
+    val third = handler.build(fetchData)
+    assertEquals(2, third.epoch)
+    assertTrue(third.toSend.isEmpty)
+    assertTrue(third.toForget.isEmpty)
+
+    // a session error starts a new session with all the partitions
+    assertFalse(handler.handleResponse(new FetchResponse(Errors.INVALID_FETCH_SESSION_EPOCH.code, 0, emptyResponseData, 0)))
+    val fourth = handler.build(fetchData)
+    assertEquals(JFetchRequest.INITIAL_EPOCH, fourth.epoch)
+    assertEquals(fetchData.keySet, fourth.toSend.keySet)
+  }
+}
@@ -19,6 +19,7 @@ package kafka.server
 import java.util
 import util.Arrays.asList
 
+import kafka.api.LeaderAndIsr
 import kafka.common.BrokerEndPointNotAvailableException
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.protocol.{Errors, SecurityProtocol}
@@ -300,4 +301,55 @@ class MetadataCacheTest {
     assertEquals(initialBrokerIds, aliveBrokersFromCache.map(_.id).toSet)
   }
 
+  @Test
+  def getTopicMetadataShouldReflectUpdateCache() {
+    val topic = "topic"
+    val cache = new MetadataCache(1)
+    val brokers = (0 to 1).map { brokerId =>
+      new Broker(brokerId, Map(SecurityProtocol.PLAINTEXT -> new EndPoint("foo", 9092 + brokerId)).asJava, null)
+    }.toSet
+
+    def updateCache(leader: Int) {
+      val partitionStates = Map(
+        new TopicPartition(topic, 0) -> new PartitionState(1, leader, leader, asList(0, 1), 3, asSet(0, 1)))
+      cache.updateCache(15, new UpdateMetadataRequest(2, 1, partitionStates.asJava, brokers.asJava))
+    }
+
+    updateCache(0)
+    val topicMetadata = cache.getTopicMetadata(Set(topic), SecurityProtocol.PLAINTEXT).head
+    assertEquals(0, topicMetadata.partitionMetadata.get(0).leader.id)
+    // the topic metadata is reused until the cache is updated
+    assertSame(topicMetadata, cache.getTopicMetadata(Set(topic), SecurityProtocol.PLAINTEXT).head)
+
+    updateCache(1)
+    val updatedTopicMetadata = cache.getTopicMetadata(Set(topic), SecurityProtocol.PLAINTEXT).head
+    assertEquals(1, updatedTopicMetadata.partitionMetadata.get(0).leader.id)
+    assertEquals(0, topicMetadata.partitionMetadata.get(0).leader.id)
+  }
+
+  @Test
+  def updateCacheShouldKeepOtherTopicsAndRemoveDeletedPartitions() {
+    val cache = new MetadataCache(1)
+    val brokers = Set(new Broker(0, Map(SecurityProtocol.PLAINTEXT -> new EndPoint("foo", 9092)).asJava, null))
+
+    def updateCache(partitionStates: Map[TopicPartition, PartitionState]) {
+      cache.updateCache(15, new UpdateMetadataRequest(2, 1, partitionStates.asJava, brokers.asJava))
+    }
+
+    updateCache(Map(
+      new TopicPartition("foo", 0) -> new PartitionState(1, 0, 0, asList(0), 3, asSet(0)),
+      new TopicPartition("foo", 1) -> new PartitionState(1, 0, 0, asList(0), 3, asSet(0)),
+      new TopicPartition("bar", 0) -> new PartitionState(1, 0, 0, asList(0), 3, asSet(0))))
+    assertEquals(Set("foo", "bar"), cache.getAllTopics())
+
+    // an update for some of the partitions of one topic leaves the other topics untouched
+    updateCache(Map(
+      new TopicPartition("foo", 1) -> new PartitionState(1, LeaderAndIsr.LeaderDuringDelete, 0, asList(0), 3, asSet(0)),
+      new TopicPartition("bar", 0) -> new PartitionState(1, LeaderAndIsr.LeaderDuringDelete, 0, asList(0), 3, asSet(0))))
+    assertEquals(Set("foo"), cache.getAllTopics())
+    assertTrue(cache.getPartitionInfo("foo", 0).isDefined)
+    assertEquals(None, cache.getPartitionInfo("foo", 1))
+    assertEquals(Set("bar"), cache.getNonExistingTopics(Set("foo", "bar")))
+  }
+
 }
@@ -17,12 +17,17 @@
 
 package kafka.server
 
-import kafka.message.{ByteBufferMessageSet, LZ4CompressionCodec, Message}
+import java.util.Properties
+
+import kafka.api.KAFKA_0_10_0_IV1
+import kafka.log.LogConfig
+import kafka.message.{ByteBufferMessageSet, LZ4CompressionCodec, Message, MessageCompressionTest, ZStdCompressionCodec}
 import kafka.utils.TestUtils
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.protocol.{ApiKeys, Errors, ProtoUtils}
 import org.apache.kafka.common.requests.{ProduceRequest, ProduceResponse}
 import org.junit.Assert._
+import org.junit.Assume.assumeTrue
 import org.junit.Test
 
 import scala.collection.JavaConverters._
@@ -50,8 +55,8 @@ class ProduceRequestTest extends BaseRequestTest {
   }
 
   /* returns a pair of partition id and leader id */
-  private def createTopicAndFindPartitionWithLeader(topic: String): (Int, Int) = {
-    val partitionToLeader = TestUtils.createTopic(zkUtils, topic, 3, 2, servers)
+  private def createTopicAndFindPartitionWithLeader(topic: String, topicConfig: Properties = new Properties): (Int, Int) = {
+    val partitionToLeader = TestUtils.createTopic(zkUtils, topic, 3, 2, servers, topicConfig)
     partitionToLeader.collectFirst {
       case (partition, Some(leader)) if leader != -1 => (partition, leader)
     }.getOrElse(fail(s"No leader elected for topic $topic"))
@@ -75,6 +80,27 @@ class ProduceRequestTest extends BaseRequestTest {
     assertEquals(-1, partitionResponse.timestamp)
   }
 
+  @Test
+  def testZStdProduceRequiresMessageFormatVersion() {
+    assumeTrue(MessageCompressionTest.isZStdAvailable)
+    def partitionRecords(topicPartition: TopicPartition) = Map(topicPartition -> new ByteBufferMessageSet(ZStdCompressionCodec,
+      new Message("value".getBytes, "key".getBytes, System.currentTimeMillis(), 1: Byte)).buffer).asJava
+
+    // topics whose message format predates zstd can't store it
+    val oldFormatConfig = new Properties
+    oldFormatConfig.put(LogConfig.MessageFormatVersionProp, KAFKA_0_10_0_IV1.version)
+    val (oldFormatPartition, oldFormatLeader) = createTopicAndFindPartitionWithLeader("old-format-topic", oldFormatConfig)
+    val oldFormatTopicPartition = new TopicPartition("old-format-topic", oldFormatPartition)
+    val oldFormatResponse = sendProduceRequest(oldFormatLeader, new ProduceRequest(-1, 3000, partitionRecords(oldFormatTopicPartition)))
+    assertEquals(Errors.UNSUPPORTED_COMPRESSION_TYPE.code, oldFormatResponse.responses.get(oldFormatTopicPartition).errorCode)
+
+    val (partition, leader) = createTopicAndFindPartitionWithLeader("topic")
+    val topicPartition = new TopicPartition("topic", partition)
+    val response = sendProduceRequest(leader, new ProduceRequest(-1, 3000, partitionRecords(topicPartition)))
+    assertEquals(Errors.NONE.code, response.responses.get(topicPartition).errorCode)
+    assertEquals(0, response.responses.get(topicPartition).baseOffset)
+  }
+
   private def sendProduceRequest(leaderId: Int, request: ProduceRequest): ProduceResponse = {
     val socket = connect(s = servers.find(_.config.brokerId == leaderId).map(_.socketServer).getOrElse {
       fail(s"Could not find broker with id $leaderId")
@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.atomic._
+
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+import scala.collection.mutable.ArrayBuffer
+
+class LockFreeTimerTest {
+
+  private class TestTask(override val delayMs: Long, id: Int, latch: CountDownLatch, output: ArrayBuffer[Int]) extends TimerTask {
+    private[this] val completed = new AtomicBoolean(false)
+    def run(): Unit = {
+      if (completed.compareAndSet(false, true)) {
+        output.synchronized { output += id }
+        latch.countDown()
+      }
+    }
+  }
+
+  private[this] var timer: Timer = null
+
+  @Before
+  def setup() {
+    timer = new LockFreeTimer("test", tickMs = 1, wheelSize = 3, maxBatchSize = 10)
+  }
+
+  @After
+  def teardown(): Unit = {
+    timer.shutdown()
+  }
+
+  @Test
+  def testAlreadyExpiredTask(): Unit = {
+    val output = new ArrayBuffer[Int]()
+
+    val latches = (-5 until 0).map { i =>
+      val latch = new CountDownLatch(1)
+      timer.add(new TestTask(i, i, latch, output))
+      latch
+    }
+
+    timer.advanceClock(0)
+
+    latches.foreach { latch =>
+      assertTrue("already expired tasks should run immediately", latch.await(3, TimeUnit.SECONDS))
+    }
+
+    assertEquals("output of already expired tasks", Set(-5, -4, -3, -2, -1), output.toSet)
+    assertEquals(0, timer.size)
+  }
+
+  @Test
+  def testTaskExpiration(): Unit = {
+    val output = new ArrayBuffer[Int]()
+
+    val tasks = new ArrayBuffer[TestTask]()
+    val ids = new ArrayBuffer[Int]()
+
+    val latches =
+      (0 until 5).map { i =>
+        val latch = new CountDownLatch(1)
+        tasks += new TestTask(i, i, latch, output)
+        ids += i
+        latch
+      } ++ (10 until 100).map { i =>
+        val latch = new CountDownLatch(2)
+        tasks += new TestTask(i, i, latch, output)
+        tasks += new TestTask(i, i, latch, output)
+        ids += i
+        ids += i
+        latch
+      } ++ (100 until 500).map { i =>
+        val latch = new CountDownLatch(1)
+        tasks += new TestTask(i, i, latch, output)
+        ids += i
+        latch
+      }
+
+    tasks.foreach { task => timer.add(task) }
+
+    while (timer.advanceClock(2000)) {}
+
+    latches.foreach { latch => latch.await() }
+
+    assertEquals("output should match", ids.sorted, output.toSeq)
+    assertEquals(0, timer.size)
+  }
+
+  @Test
+  def testCancelledTasksAreNotRun(): Unit = {
+    val output = new ArrayBuffer[Int]()
+    val latch = new CountDownLatch(50)
+    val tasks = (0 until 100).map { i => new TestTask(10 + i % 20, i, latch, output) }
+    tasks.foreach(timer.add)
+    assertEquals(100, timer.size)
+
+    tasks.indices.filter(_ % 2 == 0).foreach(i => tasks(i).cancel())
+    assertEquals(50, timer.size)
+
+    while (latch.getCount > 0)
+      timer.advanceClock(10)
+    assertEquals((0 until 100).filter(_ % 2 != 0).toSet, output.synchronized(output.toSet))
+    assertEquals(0, timer.size)
+  }
+
+  @Test
+  def testEntriesReusedAfterExpiration(): Unit = {
+    // more rounds than fit in a single chunk of the entry pool
+    for (round <- 0 until 5) {
+      val output = new ArrayBuffer[Int]()
+      val latch = new CountDownLatch(200)
+      (0 until 200).foreach { i => timer.add(new TestTask(1 + i % 5, i, latch, output)) }
+      while (latch.getCount > 0)
+        timer.advanceClock(10)
+      assertEquals((0 until 200).toSet, output.synchronized(output.toSet))
+      assertEquals(0, timer.size)
+    }
+  }
+
+  @Test
+  def testBucketExpirationIsOnlySetOutsideTheQueue(): Unit = {
+    val bucket = new TimerTaskStack
+    assertTrue(bucket.setExpirationIfUnset(10L))
+    // the bucket is in the queue now, its expiration must not change
+    assertFalse(bucket.setExpirationIfUnset(20L))
+    assertFalse(bucket.setExpirationIfUnset(5L))
+    assertEquals(10L, bucket.getExpiration())
+    bucket.flush(_ => ())
+    assertTrue(bucket.setExpirationIfUnset(20L))
+    assertEquals(20L, bucket.getExpiration())
+  }
+
+  @Test
+  def testManyTimeoutsAcrossBuckets(): Unit = {
+    val numThreads = 4
+    val tasksPerThread = 2500
+    val latch = new CountDownLatch(numThreads * tasksPerThread)
+    val early = new AtomicInteger(0)
+
+    class TimedTask(override val delayMs: Long) extends TimerTask {
+      private[this] val deadline = System.currentTimeMillis + delayMs
+      def run(): Unit = {
+        // the timer rounds the current time down to a tick, so a task may run up to a tick early
+        if (System.currentTimeMillis < deadline - 1)
+          early.incrementAndGet()
+        latch.countDown()
+      }
+    }
+
+    // add tasks spread over the buckets of all the wheels while the clock is advanced
+    val adders = (0 until numThreads).map { t =>
+      new Thread() {
+        override def run(): Unit = {
+          val random = new java.util.Random(t)
+          for (i <- 0 until tasksPerThread) {
+            timer.add(new TimedTask(random.nextInt(300)))
+            if (i % 100 == 0)
+              Thread.sleep(1)
+          }
+        }
+      }
+    }
+    adders.foreach(_.start())
+
+    val deadline = System.currentTimeMillis + 30000
+    while (latch.getCount > 0 && System.currentTimeMillis < deadline)
+      timer.advanceClock(10)
+    adders.foreach(_.join())
+
+    assertEquals("All tasks should have run", 0, latch.getCount)
+    assertEquals("No task should run before it expires", 0, early.get)
+    assertEquals(0, timer.size)
+  }
+
+  @Test
+  def testPurgeOfCancelledTasks(): Unit = {
+    val output = new ArrayBuffer[Int]()
+    val latch = new CountDownLatch(1)
+    // long-lived tasks that are cancelled well before they expire
+    val cancelled = (0 until 5000).map { i => new TestTask(60000, i, new CountDownLatch(1), output) }
+    cancelled.foreach(timer.add)
+    cancelled.foreach(_.cancel())
+    assertEquals(0, timer.size)
+
+    // expiring a bucket purges the cancelled entries, which must not be run
+    timer.add(new TestTask(1, -1, latch, output))
+    while (latch.getCount > 0)
+      timer.advanceClock(10)
+    assertEquals(Seq(-1), output.synchronized(output.toSeq))
+    assertEquals(0, timer.size)
+  }
+}
@@ -0,0 +1,41 @@
+#!/bin/bash
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#    http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+base_dir=$(dirname $0)
+jmh_project_name="jmh-benchmarks"
+
+if [ ${base_dir} == "." ]; then
+    gradlew_dir=".."
+    libs_dir="build/libs"
+elif [ ${base_dir##./} == "${jmh_project_name}" ]; then
+    gradlew_dir="."
+    libs_dir="${jmh_project_name}/build/libs"
+else
+    echo "JMH Benchmarks script must be run from the root or the ${jmh_project_name} directory"
+    exit 1
+fi
+
+echo "running gradlew :${jmh_project_name}:clean :${jmh_project_name}:shadowJar in quiet mode"
+
+$gradlew_dir/gradlew -q :${jmh_project_name}:clean :${jmh_project_name}:shadowJar
+
+echo "gradle build done"
+
+echo "running JMH with args [$@]"
+
+java -jar ${libs_dir}/kafka-jmh-benchmarks.jar "$@"
+
+echo "JMH benchmarks done"
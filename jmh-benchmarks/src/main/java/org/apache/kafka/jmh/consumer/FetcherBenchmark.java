@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.consumer;
+
+import org.apache.kafka.clients.Metadata;
+import org.apache.kafka.clients.MockClient;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.consumer.internals.ConsumerNetworkClient;
+import org.apache.kafka.clients.consumer.internals.Fetcher;
+import org.apache.kafka.clients.consumer.internals.SubscriptionState;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.utils.MockTime;
+import org.apache.kafka.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a fetch response into {@link ConsumerRecord}s, i.e. {@code Fetcher.parseFetchedData()} and the
+ * draining done by {@link Fetcher#fetchedRecords()}, including CRC checks and decompression.
+ *
+ * Each invocation sends a fetch, completes it with a canned response through a {@link MockClient} and drains the
+ * records. The network client overhead is small compared to the parsing for the default parameters.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FetcherBenchmark {
+
+    private static final String TOPIC = "benchmark";
+
+    @Param({"NONE", "SNAPPY", "LZ4"})
+    private String compression;
+
+    @Param({"100", "1000"})
+    private int recordSize;
+
+    @Param({"1000"})
+    private int recordsPerFetch;
+
+    @Param({"true", "false"})
+    private boolean checkCrcs;
+
+    private final TopicPartition tp = new TopicPartition(TOPIC, 0);
+    private final MockTime time = new MockTime();
+    private Metrics metrics;
+    private MockClient client;
+    private ConsumerNetworkClient consumerClient;
+    private SubscriptionState subscriptions;
+    private Fetcher<byte[], byte[]> fetcher;
+    private ByteBuffer records;
+
+    @Setup
+    public void setup() {
+        Cluster cluster = TestUtils.singletonCluster(TOPIC, 1);
+        Metadata metadata = new Metadata(0, Long.MAX_VALUE);
+        metadata.update(cluster, time.milliseconds());
+        client = new MockClient(time);
+        client.setNode(cluster.nodes().get(0));
+        consumerClient = new ConsumerNetworkClient(client, metadata, time, 100, 1000);
+        subscriptions = new SubscriptionState(OffsetResetStrategy.EARLIEST);
+        subscriptions.assignFromUser(Collections.singletonList(tp));
+        metrics = new Metrics(time);
+        fetcher = new Fetcher<>(consumerClient, 1, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, checkCrcs, false,
+                new ByteArrayDeserializer(), new ByteArrayDeserializer(), metadata, subscriptions, metrics,
+                "consumer", time, 100L);
+
+        Random random = new Random(42);
+        byte[] value = new byte[recordSize];
+        MemoryRecords memoryRecords = MemoryRecords.emptyRecords(
+                ByteBuffer.allocate(recordsPerFetch * (recordSize + 64) + 1024),
+                CompressionType.forName(compression.toLowerCase()));
+        for (int i = 0; i < recordsPerFetch; i++) {
+            random.nextBytes(value);
+            memoryRecords.append(i, time.milliseconds(), null, value);
+        }
+        memoryRecords.close();
+        records = memoryRecords.buffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Benchmark
+    public Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> fetchAndParse() {
+        subscriptions.seek(tp, 0L);
+        fetcher.sendFetches();
+        FetchResponse.PartitionData data = new FetchResponse.PartitionData(Errors.NONE.code(), recordsPerFetch,
+                records.duplicate());
+        client.prepareResponse(new FetchResponse(Collections.singletonMap(tp, data), 0).toStruct());
+        consumerClient.poll(0);
+        return fetcher.fetchedRecords();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffsetIndex;
+import kafka.log.OffsetPosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary search cost of {@link OffsetIndex#lookup(long)}, which is performed for every fetch request.
+ * The index is filled with one entry per {@code offsetsPerEntry} offsets and looked up at random offsets.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetIndexBenchmark {
+
+    private static final int LOOKUP_COUNT = 1024;
+
+    @Param({"1000", "100000", "1000000"})
+    private int entries;
+
+    @Param({"1", "100"})
+    private int offsetsPerEntry;
+
+    private OffsetIndex index;
+    private long[] targets;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        File file = File.createTempFile("kafka-jmh", ".index");
+        file.delete();
+        long baseOffset = 1000L;
+        index = new OffsetIndex(file, baseOffset, entries * 8);
+        for (int i = 0; i < entries; i++)
+            index.append(baseOffset + (long) i * offsetsPerEntry, i * 100);
+
+        Random random = new Random(42);
+        long offsetRange = (long) entries * offsetsPerEntry;
+        targets = new long[LOOKUP_COUNT];
+        for (int i = 0; i < LOOKUP_COUNT; i++)
+            targets[i] = baseOffset + (long) (random.nextDouble() * offsetRange);
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.delete();
+    }
+
+    @Benchmark
+    public OffsetPosition lookup() {
+        next = (next + 1) & (LOOKUP_COUNT - 1);
+        return index.lookup(targets[next]);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffHeapOffsetMap;
+import kafka.log.OffsetMap;
+import kafka.log.SkimpyOffsetMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link OffsetMap} operations performed by the log cleaner for every record it reads: a put
+ * while building the map of the dirty section, and a get while recopying the segments being cleaned.
+ * The map is pre-filled to the given load factor since the probe length depends on it. Compares the heap
+ * {@link SkimpyOffsetMap}, which hashes keys with MD5, with the {@link OffHeapOffsetMap}.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetMapBenchmark {
+
+    private static final int KEY_COUNT = 4096;
+
+    @Param({"16777216"})
+    private int memory;
+
+    @Param({"0.5", "0.9"})
+    private double loadFactor;
+
+    @Param({"skimpy", "offheap"})
+    private String mapType;
+
+    private OffsetMap map;
+    private ByteBuffer[] keys;
+    private int next = 0;
+    private long offset = 0L;
+
+    @Setup
+    public void setup() {
+        if (mapType.equals("skimpy"))
+            map = new SkimpyOffsetMap(memory, "MD5");
+        else
+            map = new OffHeapOffsetMap(memory, OffHeapOffsetMap.InitialMemory(), OffHeapOffsetMap.MaxBufferSize());
+        int fill = (int) (map.slots() * loadFactor);
+        for (int i = 0; i < fill; i++)
+            map.put(key(i), offset++);
+
+        // look up a random sample of the keys that are in the map
+        Random random = new Random(42);
+        keys = new ByteBuffer[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++)
+            keys[i] = key(random.nextInt(fill));
+    }
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(("key-" + i).getBytes());
+    }
+
+    @Benchmark
+    public void put() {
+        next = (next + 1) & (KEY_COUNT - 1);
+        map.put(keys[next], offset++);
+    }
+
+    @Benchmark
+    public long get() {
+        next = (next + 1) & (KEY_COUNT - 1);
+        return map.get(keys[next]);
+    }
+}
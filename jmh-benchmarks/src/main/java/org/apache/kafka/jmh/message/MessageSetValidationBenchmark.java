@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.message;
+
+import kafka.common.LongRef;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.CompressionCodec$;
+import kafka.message.Message;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.TimestampType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Tuple2;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ByteBufferMessageSet#validateMessagesAndAssignOffsets}, the validation and offset assignment done
+ * by the leader for every produce request before the messages are appended to the log.
+ *
+ * The message sets are built once with the producer's {@link MemoryRecords} so that the broker sees exactly the
+ * bytes a client would send. Each invocation works on a copy of that buffer since validation may rewrite it in place.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageSetValidationBenchmark {
+
+    @Param({"NONE", "GZIP", "SNAPPY", "LZ4", "ZSTD"})
+    private String compression;
+
+    @Param({"100", "1000"})
+    private int messageSize;
+
+    @Param({"10", "1000"})
+    private int messagesPerSet;
+
+    @Param({"CREATE_TIME", "LOG_APPEND_TIME"})
+    private TimestampType timestampType;
+
+    private ByteBuffer original;
+    private ByteBuffer working;
+    private CompressionCodec codec;
+    private final LongRef offsetCounter = new LongRef(0L);
+
+    @Setup
+    public void setup() {
+        CompressionType compressionType = CompressionType.forName(compression.toLowerCase());
+        codec = CompressionCodec$.MODULE$.getCompressionCodec(compressionType.id);
+
+        Random random = new Random(42);
+        byte[] value = new byte[messageSize];
+        ByteBuffer buffer = ByteBuffer.allocate(messagesPerSet * (messageSize + 64) + 1024);
+        MemoryRecords records = MemoryRecords.emptyRecords(buffer, compressionType);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < messagesPerSet; i++) {
+            random.nextBytes(value);
+            records.append(i, now, null, value);
+        }
+        records.close();
+
+        original = records.buffer();
+        working = ByteBuffer.allocate(original.limit());
+    }
+
+    @Benchmark
+    public Tuple2<ByteBufferMessageSet, Object> validateMessagesAndAssignOffsets() {
+        working.clear();
+        working.put(original.duplicate());
+        working.flip();
+        offsetCounter.value_$eq(0L);
+        ByteBufferMessageSet messages = new ByteBufferMessageSet(working);
+        return messages.validateMessagesAndAssignOffsets(offsetCounter, System.currentTimeMillis(), codec, codec,
+                false, Message.CurrentMagicValue(), timestampType, Long.MAX_VALUE);
+    }
+}
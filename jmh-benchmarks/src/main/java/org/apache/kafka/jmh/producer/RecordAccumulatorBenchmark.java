@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.producer;
+
+import org.apache.kafka.clients.producer.internals.RecordAccumulator;
+import org.apache.kafka.clients.producer.internals.RecordBatch;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.SystemTime;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of {@link RecordAccumulator#append}, which every {@code KafkaProducer.send()} goes through.
+ *
+ * Whenever an append fills a batch, the calling thread drains the accumulator the way the sender thread would and
+ * releases the batches back to the buffer pool, so the accumulator never runs out of memory. Run with
+ * {@code -t <threads>} to measure contention between concurrent senders.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordAccumulatorBenchmark {
+
+    private static final String TOPIC = "benchmark";
+
+    @Param({"NONE", "LZ4"})
+    private String compression;
+
+    @Param({"100", "1000"})
+    private int recordSize;
+
+    @Param({"1", "16"})
+    private int partitions;
+
+    /**
+     * The value of {@code batch.stripes}, only makes a difference when run with several threads.
+     */
+    @Param({"1", "4"})
+    private int stripes;
+
+    private final Time time = new SystemTime();
+    private final AtomicInteger nextPartition = new AtomicInteger(0);
+    private final Object drainLock = new Object();
+    private Metrics metrics;
+    private RecordAccumulator accumulator;
+    private Cluster cluster;
+    private Set<Node> nodes;
+    private TopicPartition[] topicPartitions;
+    private byte[] value;
+
+    @Setup
+    public void setup() {
+        metrics = new Metrics(time);
+        accumulator = new RecordAccumulator(16 * 1024, 32 * 1024 * 1024L,
+                CompressionType.forName(compression.toLowerCase()), 0L, 100L, stripes, metrics, time);
+        cluster = TestUtils.singletonCluster(TOPIC, partitions);
+        nodes = Collections.singleton(cluster.nodes().get(0));
+        topicPartitions = new TopicPartition[partitions];
+        for (int i = 0; i < partitions; i++)
+            topicPartitions[i] = new TopicPartition(TOPIC, i);
+        value = new byte[recordSize];
+        new Random(42).nextBytes(value);
+    }
+
+    @TearDown
+    public void tearDown() {
+        accumulator.close();
+        metrics.close();
+    }
+
+    @Benchmark
+    public RecordAccumulator.RecordAppendResult append() throws InterruptedException {
+        TopicPartition tp = topicPartitions[(nextPartition.getAndIncrement() & Integer.MAX_VALUE) % partitions];
+        RecordAccumulator.RecordAppendResult result = accumulator.append(tp, time.milliseconds(), null, value, null, 0L);
+        if (result.batchIsFull)
+            drain();
+        return result;
+    }
+
+    private void drain() {
+        synchronized (drainLock) {
+            Map<Integer, List<RecordBatch>> drained = accumulator.drain(cluster, nodes, Integer.MAX_VALUE, time.milliseconds());
+            for (List<RecordBatch> batches : drained.values()) {
+                for (RecordBatch batch : batches)
+                    accumulator.deallocate(batch);
+            }
+        }
+    }
+}
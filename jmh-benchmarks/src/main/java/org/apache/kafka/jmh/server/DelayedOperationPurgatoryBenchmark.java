@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.server.DelayedOperation;
+import kafka.server.DelayedOperationPurgatory;
+import kafka.utils.timer.SystemTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link DelayedOperationPurgatory} under concurrent use, i.e. what every acks=all produce request and
+ * every long-poll fetch request goes through: each operation can't complete right away, is watched on a partition
+ * key, and is completed by a later {@code checkAndComplete()} on that key, like a follower fetch or an append would.
+ *
+ * Compare the throughput for a single shard with the default number of shards to see the effect of the sharded
+ * watch lists. This replaces the manual {@code TestPurgatoryPerformance} tool for this purpose.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DelayedOperationPurgatoryBenchmark {
+
+    @Param({"1", "512"})
+    private int shards;
+
+    /**
+     * The number of partitions the operations are watched on
+     */
+    @Param({"16", "1000"})
+    private int keys;
+
+    private DelayedOperationPurgatory<BenchmarkOperation> purgatory;
+    private String[] watchKeys;
+    private Seq<Object>[] watchKeySeqs;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        purgatory = new DelayedOperationPurgatory<>("jmh-purgatory", new SystemTimer("jmh-purgatory", 1L, 20,
+                System.currentTimeMillis()), 0, 1000, true, shards);
+        watchKeys = new String[keys];
+        watchKeySeqs = new Seq[keys];
+        for (int i = 0; i < keys; i++) {
+            watchKeys[i] = "topic-" + i;
+            watchKeySeqs[i] = JavaConversions.asScalaBuffer(Collections.<Object>singletonList(watchKeys[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        purgatory.shutdown();
+    }
+
+    @Benchmark
+    public int watchAndComplete() {
+        int key = ThreadLocalRandom.current().nextInt(keys);
+        BenchmarkOperation operation = new BenchmarkOperation();
+        purgatory.tryCompleteElseWatch(operation, watchKeySeqs[key]);
+        operation.completable = true;
+        return purgatory.checkAndComplete(watchKeys[key]);
+    }
+
+    private static class BenchmarkOperation extends DelayedOperation {
+        private volatile boolean completable = false;
+
+        BenchmarkOperation() {
+            super(30000L);
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return completable && forceComplete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.timer;
+
+import kafka.server.DelayedOperation;
+import kafka.utils.timer.LockFreeTimer;
+import kafka.utils.timer.SystemTimer;
+import kafka.utils.timer.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding operations to the hierarchical timing wheel behind {@code DelayedOperationPurgatory} and of
+ * removing them again, either because they completed before their timeout (the common case for produce and fetch
+ * requests) or because they expired. Compares {@code SystemTimer} with {@code LockFreeTimer}.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerBenchmark {
+
+    private static final int OPERATIONS = 10000;
+
+    /**
+     * The spread of the timeouts of the added operations; a larger spread puts more operations in the overflow wheels.
+     */
+    @Param({"100", "30000"})
+    private int maxTimeoutMs;
+
+    @Param({"system", "lockfree"})
+    private String timerType;
+
+    private Timer timer;
+    private long[] timeouts;
+    private Thread reaper;
+    private volatile boolean running;
+
+    @Setup
+    public void setup() {
+        if (timerType.equals("system"))
+            timer = new SystemTimer("jmh-timer", 1L, 20, System.currentTimeMillis());
+        else
+            timer = new LockFreeTimer("jmh-timer", 1L, 20, System.currentTimeMillis(), 1024, 64 * 1024);
+        Random random = new Random(42);
+        timeouts = new long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++)
+            timeouts[i] = 1 + random.nextInt(maxTimeoutMs);
+
+        // advance the clock in the background like the expiration reaper of the purgatory does
+        running = true;
+        reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running)
+                    timer.advanceClock(200L);
+            }
+        }, "jmh-timer-reaper");
+        reaper.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        reaper.join();
+        timer.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void addAndComplete() {
+        BenchmarkOperation[] operations = new BenchmarkOperation[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            operations[i] = new BenchmarkOperation(timeouts[i], null);
+            timer.add(operations[i]);
+        }
+        for (BenchmarkOperation operation : operations)
+            operation.forceComplete();
+    }
+
+    /**
+     * Expiration is driven by the wall clock, so only short timeouts are used here. The result includes the time
+     * spent waiting for the last operation to expire.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void addAndExpire() throws InterruptedException {
+        CountDownLatch expired = new CountDownLatch(OPERATIONS);
+        for (int i = 0; i < OPERATIONS; i++)
+            timer.add(new BenchmarkOperation(timeouts[i] % 10, expired));
+        while (expired.getCount() > 0)
+            timer.advanceClock(1L);
+    }
+
+    private static class BenchmarkOperation extends DelayedOperation {
+        private final CountDownLatch expired;
+
+        BenchmarkOperation(long delayMs, CountDownLatch expired) {
+            super(delayMs);
+            this.expired = expired;
+        }
+
+        @Override
+        public void onExpiration() {
+            expired.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return false;
+        }
+    }
+}